@@ -16,11 +16,6 @@ package com.amazonaws.codepipeline.jenkinsplugin;
 
 import java.io.Serializable;
 
-import org.apache.commons.lang.StringUtils;
-
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
-
 public class AWSClientFactory implements Serializable {
 
     private static final long serialVersionUID = 1L;
@@ -33,26 +28,16 @@ public class AWSClientFactory implements Serializable {
             final String region,
             final String pluginUserAgentPrefix) {
 
-        final AWSClients aws;
-
-        if (StringUtils.isEmpty(awsAccessKey) && StringUtils.isEmpty(awsSecretKey)) {
-            aws = AWSClients.fromDefaultCredentialChain(
-                    region,
-                    proxyHost,
-                    proxyPort,
-                    pluginUserAgentPrefix);
-        }
-        else {
-            aws = AWSClients.fromBasicCredentials(
-                    region,
-                    awsAccessKey,
-                    awsSecretKey,
-                    proxyHost,
-                    proxyPort,
-                    pluginUserAgentPrefix);
-        }
+        return getAwsClient(AWSClientSettings.builder()
+                .withCredentials(awsAccessKey, awsSecretKey)
+                .withProxy(proxyHost, proxyPort)
+                .withRegion(region)
+                .withPluginUserAgentPrefix(pluginUserAgentPrefix)
+                .build());
+    }
 
-        return aws;
+    public AWSClients getAwsClient(final AWSClientSettings settings) {
+        return AWSClients.fromSettings(settings);
     }
 
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.util.Objects;
+
+/**
+ * What the clients of a job are made from: the credentials, the proxy, the region and the endpoints of the
+ * services, how their connections are set up and the prefix of their user agent. Made with {@link #builder()};
+ * whatever is not set is left to the defaults of {@link AWSClients}.
+ */
+public final class AWSClientSettings {
+
+    private final String awsAccessKey;
+    private final String awsSecretKey;
+    private final String proxyHost;
+    private final int proxyPort;
+    private final String region;
+    private final String codePipelineEndpoint;
+    private final String s3Endpoint;
+    private final TransportProfile transportProfile;
+    private final String pluginUserAgentPrefix;
+
+    private AWSClientSettings(final Builder builder) {
+        this.awsAccessKey = builder.awsAccessKey;
+        this.awsSecretKey = builder.awsSecretKey;
+        this.proxyHost = builder.proxyHost;
+        this.proxyPort = builder.proxyPort;
+        this.region = builder.region;
+        this.codePipelineEndpoint = builder.codePipelineEndpoint;
+        this.s3Endpoint = builder.s3Endpoint;
+        this.transportProfile = builder.transportProfile;
+        this.pluginUserAgentPrefix = builder.pluginUserAgentPrefix;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the settings of the model, which the SCM and the publisher have filled in for the job
+     */
+    static AWSClientSettings fromModel(final CodePipelineStateModel model, final String pluginUserAgentPrefix) {
+        return builder()
+                .withCredentials(model.getAwsAccessKey(), model.getAwsSecretKey())
+                .withProxy(model.getProxyHost(), model.getProxyPort())
+                .withRegion(model.getRegion())
+                .withCodePipelineEndpoint(model.getCodePipelineEndpoint())
+                .withS3Endpoint(model.getS3Endpoint())
+                .withTransportProfile(model.getTransportProfile())
+                .withPluginUserAgentPrefix(pluginUserAgentPrefix)
+                .build();
+    }
+
+    public String getAwsAccessKey() {
+        return awsAccessKey;
+    }
+
+    public String getAwsSecretKey() {
+        return awsSecretKey;
+    }
+
+    public String getProxyHost() {
+        return proxyHost;
+    }
+
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public String getCodePipelineEndpoint() {
+        return codePipelineEndpoint;
+    }
+
+    public String getS3Endpoint() {
+        return s3Endpoint;
+    }
+
+    public TransportProfile getTransportProfile() {
+        return transportProfile;
+    }
+
+    public String getPluginUserAgentPrefix() {
+        return pluginUserAgentPrefix;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AWSClientSettings)) {
+            return false;
+        }
+        final AWSClientSettings that = (AWSClientSettings) o;
+        return proxyPort == that.proxyPort
+                && Objects.equals(awsAccessKey, that.awsAccessKey)
+                && Objects.equals(awsSecretKey, that.awsSecretKey)
+                && Objects.equals(proxyHost, that.proxyHost)
+                && Objects.equals(region, that.region)
+                && Objects.equals(codePipelineEndpoint, that.codePipelineEndpoint)
+                && Objects.equals(s3Endpoint, that.s3Endpoint)
+                && transportProfile == that.transportProfile
+                && Objects.equals(pluginUserAgentPrefix, that.pluginUserAgentPrefix);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(awsAccessKey, awsSecretKey, proxyHost, proxyPort, region, codePipelineEndpoint,
+                s3Endpoint, transportProfile, pluginUserAgentPrefix);
+    }
+
+    // Leaves out the secret key, the settings may end up in a log
+    @Override
+    public String toString() {
+        return "AWSClientSettings{awsAccessKey=" + awsAccessKey
+                + ", proxyHost=" + proxyHost
+                + ", proxyPort=" + proxyPort
+                + ", region=" + region
+                + ", codePipelineEndpoint=" + codePipelineEndpoint
+                + ", s3Endpoint=" + s3Endpoint
+                + ", transportProfile=" + transportProfile
+                + ", pluginUserAgentPrefix=" + pluginUserAgentPrefix + "}";
+    }
+
+    public static final class Builder {
+
+        private String awsAccessKey;
+        private String awsSecretKey;
+        private String proxyHost;
+        private int proxyPort;
+        private String region;
+        private String codePipelineEndpoint;
+        private String s3Endpoint;
+        private TransportProfile transportProfile = TransportProfile.Default;
+        private String pluginUserAgentPrefix;
+
+        private Builder() {
+        }
+
+        /**
+         * Without both keys, the credentials are looked up by the default credential chain of the SDK.
+         */
+        public Builder withCredentials(final String awsAccessKey, final String awsSecretKey) {
+            this.awsAccessKey = awsAccessKey;
+            this.awsSecretKey = awsSecretKey;
+            return this;
+        }
+
+        /**
+         * The proxy is only used with a host and a port greater than zero.
+         */
+        public Builder withProxy(final String proxyHost, final int proxyPort) {
+            this.proxyHost = proxyHost;
+            this.proxyPort = proxyPort;
+            return this;
+        }
+
+        /**
+         * @param region the region of the services, us-east-1 if null
+         */
+        public Builder withRegion(final String region) {
+            this.region = region;
+            return this;
+        }
+
+        /**
+         * @param codePipelineEndpoint the endpoint of AWS CodePipeline, or empty for the endpoint of the region
+         */
+        public Builder withCodePipelineEndpoint(final String codePipelineEndpoint) {
+            this.codePipelineEndpoint = codePipelineEndpoint;
+            return this;
+        }
+
+        /**
+         * @param s3Endpoint the endpoint of S3, or empty for the endpoint of the region
+         */
+        public Builder withS3Endpoint(final String s3Endpoint) {
+            this.s3Endpoint = s3Endpoint;
+            return this;
+        }
+
+        /**
+         * @param transportProfile how the connections of the clients are set up, the SDK defaults if null
+         */
+        public Builder withTransportProfile(final TransportProfile transportProfile) {
+            this.transportProfile = transportProfile;
+            return this;
+        }
+
+        public Builder withPluginUserAgentPrefix(final String pluginUserAgentPrefix) {
+            this.pluginUserAgentPrefix = pluginUserAgentPrefix;
+            return this;
+        }
+
+        public AWSClientSettings build() {
+            return new AWSClientSettings(this);
+        }
+
+    }
+
+}
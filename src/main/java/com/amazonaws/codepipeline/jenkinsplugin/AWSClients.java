@@ -14,26 +14,59 @@
  */
 package com.amazonaws.codepipeline.jenkinsplugin;
 
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.lang.StringUtils;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.codepipeline.AWSCodePipeline;
-import com.amazonaws.services.codepipeline.AWSCodePipelineClient;
+import com.amazonaws.services.codepipeline.AWSCodePipelineClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.client.config.SdkAdvancedClientOption;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.ProxyConfiguration;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 
+/**
+ * The clients of the services a job talks to. Their endpoints are derived from the region unless an endpoint
+ * is configured, such as S3 Transfer Acceleration, a dual-stack, FIPS or VPC interface endpoint, or a local
+ * stand-in. Requests to a configured endpoint are still signed for the region, and S3 buckets are addressed
+ * in the path rather than the host name unless the endpoint is one of AWS.
+ *
+ * The connections of the clients are set up by a {@link TransportProfile}, and their pools report to
+ * {@link ConnectionPoolMetrics} until the clients are {@link #shutdown() shut down}. The non-blocking S3
+ * clients of {@link AsyncTransferEngine} come from the AWS SDK for Java 2.x and are set up alike, from the
+ * same settings, but keep their connections to themselves.
+ */
 public class AWSClients {
 
     private final AWSCodePipeline codePipelineClient;
     private final ClientConfiguration clientCfg;
     private final String region;
+    private final String s3Endpoint;
 
     private final S3ClientFactory s3ClientFactory;
+    private final List<AmazonS3> s3Clients = new CopyOnWriteArrayList<>();
+    private final List<S3AsyncClient> s3AsyncClients = new CopyOnWriteArrayList<>();
 
     public AWSClients(
             final String region,
@@ -44,21 +77,56 @@ public class AWSClients {
             final CodePipelineClientFactory codePipelineClientFactory,
             final S3ClientFactory s3ClientFactory) {
 
-        if (region == null) {
+        this(AWSClientSettings.builder()
+                        .withRegion(region)
+                        .withProxy(proxyHost, proxyPort)
+                        .withPluginUserAgentPrefix(pluginUserAgentPrefix)
+                        .build(),
+                credentials,
+                codePipelineClientFactory,
+                s3ClientFactory);
+    }
+
+    /**
+     * @param settings the settings of the clients, whose credentials are looked up by the default credential
+     *                 chain of the SDK unless both keys are set
+     */
+    public AWSClients(
+            final AWSClientSettings settings,
+            final CodePipelineClientFactory codePipelineClientFactory,
+            final S3ClientFactory s3ClientFactory) {
+
+        this(settings, getCredentials(settings), codePipelineClientFactory, s3ClientFactory);
+    }
+
+    private AWSClients(
+            final AWSClientSettings settings,
+            final AWSCredentials credentials,
+            final CodePipelineClientFactory codePipelineClientFactory,
+            final S3ClientFactory s3ClientFactory) {
+
+        if (settings.getRegion() == null) {
             this.region = Region.getRegion(Regions.US_EAST_1).getName();
         } else {
-            this.region = region;
+            this.region = settings.getRegion();
         }
-        this.clientCfg = new ClientConfiguration().withUserAgentPrefix(pluginUserAgentPrefix);
+        this.clientCfg = new ClientConfiguration().withUserAgentPrefix(settings.getPluginUserAgentPrefix());
 
-        if (proxyHost != null && proxyPort > 0) {
-            clientCfg.setProxyHost(proxyHost);
-            clientCfg.setProxyPort(proxyPort);
+        if (settings.getProxyHost() != null && settings.getProxyPort() > 0) {
+            clientCfg.setProxyHost(settings.getProxyHost());
+            clientCfg.setProxyPort(settings.getProxyPort());
+        }
+        if (settings.getTransportProfile() != null) {
+            settings.getTransportProfile().apply(clientCfg);
         }
 
-        this.codePipelineClient = codePipelineClientFactory.getAWSCodePipelineClient(credentials, clientCfg);
-        this.codePipelineClient.setEndpoint("https://codepipeline." + this.region + getAwsClientSuffix(this.region));
+        final String codePipelineEndpoint = StringUtils.isEmpty(settings.getCodePipelineEndpoint())
+                ? "https://codepipeline." + this.region + getAwsClientSuffix(this.region)
+                : settings.getCodePipelineEndpoint();
+        this.codePipelineClient = codePipelineClientFactory.getAWSCodePipelineClient(credentials, clientCfg,
+                new EndpointConfiguration(codePipelineEndpoint, this.region));
 
+        this.s3Endpoint = StringUtils.isEmpty(settings.getS3Endpoint()) ? null : settings.getS3Endpoint();
         this.s3ClientFactory = s3ClientFactory;
     }
 
@@ -89,12 +157,45 @@ public class AWSClients {
                 new S3ClientFactory());
     }
 
+    public static AWSClients fromSettings(final AWSClientSettings settings) {
+        return new AWSClients(settings, new CodePipelineClientFactory(), new S3ClientFactory());
+    }
+
+    private static AWSCredentials getCredentials(final AWSClientSettings settings) {
+        if (StringUtils.isEmpty(settings.getAwsAccessKey()) && StringUtils.isEmpty(settings.getAwsSecretKey())) {
+            return null;
+        }
+        return new BasicAWSCredentials(settings.getAwsAccessKey(), settings.getAwsSecretKey());
+    }
+
     public AmazonS3 getS3Client(final AWSCredentialsProvider credentialsProvider) {
         Objects.requireNonNull(credentialsProvider, "credentialsProvider must not be null");
         Objects.requireNonNull(region, "region must not be null");
 
-        final AmazonS3 client = s3ClientFactory.getS3Client(credentialsProvider, new ClientConfiguration(clientCfg).withSignerOverride("AWSS3V4SignerType"));
-        client.setEndpoint("https://s3." + this.region + getAwsClientSuffix(this.region));
+        final String endpoint = s3Endpoint == null ? "https://s3." + this.region + getAwsClientSuffix(this.region) : s3Endpoint;
+        final AmazonS3 client = s3ClientFactory.getS3Client(
+                credentialsProvider,
+                new ClientConfiguration(clientCfg).withSignerOverride("AWSS3V4SignerType"),
+                new EndpointConfiguration(endpoint, this.region),
+                !isAwsEndpoint(endpoint));
+        s3Clients.add(client);
+
+        return client;
+    }
+
+    /**
+     * @return a non-blocking client of the same endpoint as {@link #getS3Client}, shut down with the others
+     */
+    public S3AsyncClient getS3AsyncClient(final AWSCredentialsProvider credentialsProvider) {
+        Objects.requireNonNull(credentialsProvider, "credentialsProvider must not be null");
+
+        final String endpoint = s3Endpoint == null ? "https://s3." + this.region + getAwsClientSuffix(this.region) : s3Endpoint;
+        final S3AsyncClient client = s3ClientFactory.getS3AsyncClient(
+                toAsyncCredentialsProvider(credentialsProvider),
+                new ClientConfiguration(clientCfg),
+                new EndpointConfiguration(endpoint, this.region),
+                !isAwsEndpoint(endpoint));
+        s3AsyncClients.add(client);
 
         return client;
     }
@@ -103,26 +204,143 @@ public class AWSClients {
         return codePipelineClient;
     }
 
+    /**
+     * Shuts down the CodePipeline client and every S3 client handed out, which closes their connections and
+     * takes their pools out of {@link ConnectionPoolMetrics}.
+     */
+    public void shutdown() {
+        codePipelineClient.shutdown();
+        ConnectionPoolMetrics.CODE_PIPELINE.release(codePipelineClient);
+        for (final AmazonS3 s3Client : s3Clients) {
+            s3Client.shutdown();
+            ConnectionPoolMetrics.S3.release(s3Client);
+        }
+        s3Clients.clear();
+        for (final S3AsyncClient s3AsyncClient : s3AsyncClients) {
+            s3AsyncClient.close();
+        }
+        s3AsyncClients.clear();
+    }
+
     public static class CodePipelineClientFactory {
 
-        public AWSCodePipeline getAWSCodePipelineClient(final AWSCredentials credentials, final ClientConfiguration clientCfg) {
-            if (credentials == null) {
-                return new AWSCodePipelineClient(clientCfg);
-            } else {
-                return new AWSCodePipelineClient(credentials, clientCfg);
-            }
+        /**
+         * @param endpoint the endpoint of the client and the region its requests are signed for
+         */
+        public AWSCodePipeline getAWSCodePipelineClient(
+                final AWSCredentials credentials,
+                final ClientConfiguration clientCfg,
+                final EndpointConfiguration endpoint) {
+
+            final AWSCredentialsProvider credentialsProvider = credentials == null
+                    ? DefaultAWSCredentialsProviderChain.getInstance()
+                    : new AWSStaticCredentialsProvider(credentials);
+            final AWSCodePipeline client = AWSCodePipelineClientBuilder.standard()
+                    .withCredentials(credentialsProvider)
+                    .withClientConfiguration(clientCfg)
+                    .withEndpointConfiguration(endpoint)
+                    .withMetricsCollector(ConnectionPoolMetrics.CODE_PIPELINE.getCollector())
+                    .withRequestHandlers(new TracingRequestHandler())
+                    .build();
+            ConnectionPoolMetrics.CODE_PIPELINE.register(client);
+            return client;
         }
 
     }
 
     public static class S3ClientFactory {
 
-        public AmazonS3 getS3Client(final AWSCredentialsProvider credentialsProvider, final ClientConfiguration clientCfg) {
-            return new AmazonS3Client(credentialsProvider, clientCfg);
+        /**
+         * @param endpoint the endpoint of the client and the region its requests are signed for
+         * @param pathStyleAccess whether buckets are addressed in the path rather than the host name
+         */
+        public AmazonS3 getS3Client(
+                final AWSCredentialsProvider credentialsProvider,
+                final ClientConfiguration clientCfg,
+                final EndpointConfiguration endpoint,
+                final boolean pathStyleAccess) {
+
+            final AmazonS3 client = AmazonS3ClientBuilder.standard()
+                    .withCredentials(credentialsProvider)
+                    .withClientConfiguration(clientCfg)
+                    .withEndpointConfiguration(endpoint)
+                    .withPathStyleAccessEnabled(pathStyleAccess)
+                    .withMetricsCollector(ConnectionPoolMetrics.S3.getCollector())
+                    .withRequestHandlers(new TracingRequestHandler(), new ChecksumModeRequestHandler())
+                    .build();
+            ConnectionPoolMetrics.S3.register(client);
+            return client;
+        }
+
+        /**
+         * @param endpoint the endpoint of the client and the region its requests are signed for
+         * @param pathStyleAccess whether buckets are addressed in the path rather than the host name
+         */
+        public S3AsyncClient getS3AsyncClient(
+                final AwsCredentialsProvider credentialsProvider,
+                final ClientConfiguration clientCfg,
+                final EndpointConfiguration endpoint,
+                final boolean pathStyleAccess) {
+
+            return S3AsyncClient.builder()
+                    .credentialsProvider(credentialsProvider)
+                    .region(software.amazon.awssdk.regions.Region.of(endpoint.getSigningRegion()))
+                    .endpointOverride(URI.create(endpoint.getServiceEndpoint()))
+                    .forcePathStyle(pathStyleAccess)
+                    .httpClientBuilder(newAsyncHttpClientBuilder(clientCfg))
+                    .overrideConfiguration(override -> override
+                            .putAdvancedOption(SdkAdvancedClientOption.USER_AGENT_PREFIX, clientCfg.getUserAgentPrefix()))
+                    .build();
+        }
+
+        /**
+         * @return the HTTP client of a non-blocking client, with the connections set up as for a blocking one
+         */
+        protected NettyNioAsyncHttpClient.Builder newAsyncHttpClientBuilder(final ClientConfiguration clientCfg) {
+            final NettyNioAsyncHttpClient.Builder builder = NettyNioAsyncHttpClient.builder()
+                    .maxConcurrency(clientCfg.getMaxConnections())
+                    .connectionTimeout(Duration.ofMillis(clientCfg.getConnectionTimeout()))
+                    .readTimeout(Duration.ofMillis(clientCfg.getSocketTimeout()))
+                    .tcpKeepAlive(clientCfg.useTcpKeepAlive())
+                    .connectionMaxIdleTime(Duration.ofMillis(clientCfg.getConnectionMaxIdleMillis()));
+            if (clientCfg.getConnectionTTL() > 0) {
+                builder.connectionTimeToLive(Duration.ofMillis(clientCfg.getConnectionTTL()));
+            }
+            if (clientCfg.getProxyHost() != null && clientCfg.getProxyPort() > 0) {
+                builder.proxyConfiguration(ProxyConfiguration.builder()
+                        .host(clientCfg.getProxyHost())
+                        .port(clientCfg.getProxyPort())
+                        .build());
+            }
+            return builder;
         }
 
     }
 
+    // Credentials are looked up for every request, the ones of a job are renewed as they expire
+    private static AwsCredentialsProvider toAsyncCredentialsProvider(final AWSCredentialsProvider credentialsProvider) {
+        return () -> {
+            final AWSCredentials credentials = credentialsProvider.getCredentials();
+            if (credentials instanceof AWSSessionCredentials) {
+                return AwsSessionCredentials.create(
+                        credentials.getAWSAccessKeyId(),
+                        credentials.getAWSSecretKey(),
+                        ((AWSSessionCredentials) credentials).getSessionToken());
+            }
+            return AwsBasicCredentials.create(credentials.getAWSAccessKeyId(), credentials.getAWSSecretKey());
+        };
+    }
+
+    // Other hosts, such as local stand-ins, can not be expected to resolve a subdomain for every bucket
+    static boolean isAwsEndpoint(final String endpoint) {
+        final String host = URI.create(endpoint.contains("://") ? endpoint : "https://" + endpoint).getHost();
+        if (host == null) {
+            return false;
+        }
+        final String lowerCaseHost = host.toLowerCase(Locale.ENGLISH);
+        return lowerCaseHost.endsWith(".amazonaws.com") || lowerCaseHost.endsWith(".amazonaws.com.cn");
+    }
+
     private String getAwsClientSuffix(String region) {
         if (region.equals(Regions.CN_NORTH_1.getName()) || region.equals(Regions.CN_NORTHWEST_1.getName())) {
             return ".amazonaws.com.cn";
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import hudson.Extension;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+/**
+ * Controller-wide settings of the AWS CodePipeline plugin, shown on the Configure System page.
+ *
+ * Note: this should only be invoked from the master node. Values needed on agents are copied into the
+ * {@link CodePipelineStateModel} before the callables are sent there.
+ */
+@Extension
+public class AWSCodePipelineGlobalConfiguration extends GlobalConfiguration {
+
+    private String otlpEndpoint;
+    private boolean deltaUpload;
+    private boolean reproducibleArchives;
+    private boolean archiveCache;
+    private boolean nativeArchiveTools;
+    private boolean pooledTransfers;
+    private boolean asyncTransfers;
+    private String transportProfile;
+    private Integer maxTransferStreams;
+    private Long maxTransferBytesPerSecond;
+    private Integer publisherParallelism;
+
+    public AWSCodePipelineGlobalConfiguration() {
+        load();
+    }
+
+    public static AWSCodePipelineGlobalConfiguration get() {
+        if (Jenkins.getInstanceOrNull() == null) {
+            return null;
+        }
+        return GlobalConfiguration.all().get(AWSCodePipelineGlobalConfiguration.class);
+    }
+
+    public static String getConfiguredOtlpEndpoint() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration == null ? null : configuration.getOtlpEndpoint();
+    }
+
+    public static boolean isDeltaUploadConfigured() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration != null && configuration.isDeltaUpload();
+    }
+
+    public static boolean isReproducibleArchivesConfigured() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration != null && configuration.isReproducibleArchives();
+    }
+
+    public static boolean isArchiveCacheConfigured() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration != null && configuration.isArchiveCache();
+    }
+
+    public static boolean isNativeArchiveToolsConfigured() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration != null && configuration.isNativeArchiveTools();
+    }
+
+    public static boolean isPooledTransfersConfigured() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration != null && configuration.isPooledTransfers();
+    }
+
+    public static boolean isAsyncTransfersConfigured() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration != null && configuration.isAsyncTransfers();
+    }
+
+    public static TransportProfile getConfiguredTransportProfile() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration == null
+                ? TransportProfile.Default
+                : TransportProfile.fromName(configuration.getTransportProfile(), TransportProfile.Default);
+    }
+
+    /**
+     * @return the limit, or null to leave it to the system property of each agent
+     */
+    public static Integer getConfiguredMaxTransferStreams() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration == null ? null : configuration.getMaxTransferStreams();
+    }
+
+    /**
+     * @return the limit, or null to leave it to the system property of each agent
+     */
+    public static Long getConfiguredMaxTransferBytesPerSecond() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration == null ? null : configuration.getMaxTransferBytesPerSecond();
+    }
+
+    /**
+     * @return the number of output artifacts a build publishes at once, or null to leave it to the system
+     *         property of each agent
+     */
+    public static Integer getConfiguredPublisherParallelism() {
+        final AWSCodePipelineGlobalConfiguration configuration = get();
+        return configuration == null ? null : configuration.getPublisherParallelism();
+    }
+
+    public String getOtlpEndpoint() {
+        return otlpEndpoint;
+    }
+
+    @DataBoundSetter
+    public void setOtlpEndpoint(final String otlpEndpoint) {
+        this.otlpEndpoint = StringUtils.trimToNull(otlpEndpoint);
+    }
+
+    public boolean isDeltaUpload() {
+        return deltaUpload;
+    }
+
+    @DataBoundSetter
+    public void setDeltaUpload(final boolean deltaUpload) {
+        this.deltaUpload = deltaUpload;
+    }
+
+    public boolean isReproducibleArchives() {
+        return reproducibleArchives;
+    }
+
+    @DataBoundSetter
+    public void setReproducibleArchives(final boolean reproducibleArchives) {
+        this.reproducibleArchives = reproducibleArchives;
+    }
+
+    public boolean isArchiveCache() {
+        return archiveCache;
+    }
+
+    @DataBoundSetter
+    public void setArchiveCache(final boolean archiveCache) {
+        this.archiveCache = archiveCache;
+    }
+
+    public boolean isNativeArchiveTools() {
+        return nativeArchiveTools;
+    }
+
+    @DataBoundSetter
+    public void setNativeArchiveTools(final boolean nativeArchiveTools) {
+        this.nativeArchiveTools = nativeArchiveTools;
+    }
+
+    public boolean isPooledTransfers() {
+        return pooledTransfers;
+    }
+
+    @DataBoundSetter
+    public void setPooledTransfers(final boolean pooledTransfers) {
+        this.pooledTransfers = pooledTransfers;
+    }
+
+    public boolean isAsyncTransfers() {
+        return asyncTransfers;
+    }
+
+    @DataBoundSetter
+    public void setAsyncTransfers(final boolean asyncTransfers) {
+        this.asyncTransfers = asyncTransfers;
+    }
+
+    public String getTransportProfile() {
+        return transportProfile;
+    }
+
+    @DataBoundSetter
+    public void setTransportProfile(final String transportProfile) {
+        this.transportProfile = StringUtils.trimToNull(transportProfile);
+    }
+
+    public Integer getMaxTransferStreams() {
+        return maxTransferStreams;
+    }
+
+    @DataBoundSetter
+    public void setMaxTransferStreams(final Integer maxTransferStreams) {
+        this.maxTransferStreams = maxTransferStreams == null || maxTransferStreams < 0 ? null : maxTransferStreams;
+    }
+
+    public Long getMaxTransferBytesPerSecond() {
+        return maxTransferBytesPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setMaxTransferBytesPerSecond(final Long maxTransferBytesPerSecond) {
+        this.maxTransferBytesPerSecond =
+                maxTransferBytesPerSecond == null || maxTransferBytesPerSecond < 0 ? null : maxTransferBytesPerSecond;
+    }
+
+    public Integer getPublisherParallelism() {
+        return publisherParallelism;
+    }
+
+    @DataBoundSetter
+    public void setPublisherParallelism(final Integer publisherParallelism) {
+        this.publisherParallelism = publisherParallelism == null || publisherParallelism < 1 ? null : publisherParallelism;
+    }
+
+    @Override
+    public boolean configure(final StaplerRequest req, final JSONObject json) throws FormException {
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+
+    public ListBoxModel doFillTransportProfileItems() {
+        return TransportProfile.fillItems();
+    }
+
+    public FormValidation doCheckMaxTransferStreams(@QueryParameter final String value) {
+        return checkLimit(value);
+    }
+
+    public FormValidation doCheckMaxTransferBytesPerSecond(@QueryParameter final String value) {
+        return checkLimit(value);
+    }
+
+    public FormValidation doCheckPublisherParallelism(@QueryParameter final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return FormValidation.ok();
+        }
+
+        try {
+            if (Integer.parseInt(value.trim()) >= 1) {
+                return FormValidation.ok();
+            }
+        } catch (final NumberFormatException ex) {
+            // Reported below
+        }
+        return FormValidation.error("The number of output artifacts must be a whole number of at least 1");
+    }
+
+    public FormValidation doCheckOtlpEndpoint(@QueryParameter final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return FormValidation.ok();
+        }
+
+        try {
+            final URL url = new URL(value.trim());
+            if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+                return FormValidation.error("The OTLP endpoint must be an http or https URL");
+            }
+        } catch (final MalformedURLException ex) {
+            return FormValidation.error("The OTLP endpoint is not a valid URL: " + ex.getMessage());
+        }
+
+        return FormValidation.ok();
+    }
+
+    private static FormValidation checkLimit(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return FormValidation.ok();
+        }
+
+        try {
+            if (Long.parseLong(value.trim()) >= 0) {
+                return FormValidation.ok();
+            }
+        } catch (final NumberFormatException ex) {
+            // Reported below
+        }
+        return FormValidation.error("The limit must be a whole number, 0 for no limit");
+    }
+
+}
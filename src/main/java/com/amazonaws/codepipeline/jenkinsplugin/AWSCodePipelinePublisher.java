@@ -22,7 +22,9 @@ import java.util.List;
 import java.util.Set;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import com.amazonaws.AmazonServiceException;
@@ -40,6 +42,11 @@ import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
+import hudson.util.ListBoxModel;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
@@ -53,11 +60,16 @@ import net.sf.json.JSONObject;
 public class AWSCodePipelinePublisher extends Notifier {
     private static final String JELLY_KEY_LOCATION = "location";
     private static final String JELLY_KEY_ARTIFACT_NAME = "artifactName";
+    private static final String JELLY_KEY_INCLUDES = "includes";
+    private static final String JELLY_KEY_EXCLUDES = "excludes";
 
     @Deprecated // renamed to outputArtifacts
     private final transient List<OutputTuple> buildOutputs;
     private List<OutputArtifact> outputArtifacts;
 
+    // Name of the TransportProfile for the uploads, or null for the one of the SCM
+    private String transportProfile;
+
     private AWSClientFactory awsClientFactory;
 
     @DataBoundConstructor
@@ -71,10 +83,12 @@ public class AWSCodePipelinePublisher extends Notifier {
                 if (jsonObject.has(JELLY_KEY_LOCATION) && jsonObject.has(JELLY_KEY_ARTIFACT_NAME)) {
                     final String locationValue = jsonObject.getString(JELLY_KEY_LOCATION);
                     final String artifactName = jsonObject.getString(JELLY_KEY_ARTIFACT_NAME);
-                    this.outputArtifacts.add(new OutputArtifact(
+                    final OutputArtifact outputArtifact = new OutputArtifact(
                             Validation.sanitize(locationValue.trim()),
-                            Validation.sanitize(artifactName.trim())
-                    ));
+                            Validation.sanitize(artifactName.trim()));
+                    outputArtifact.setIncludes(Validation.sanitize(jsonObject.optString(JELLY_KEY_INCLUDES).trim()));
+                    outputArtifact.setExcludes(Validation.sanitize(jsonObject.optString(JELLY_KEY_EXCLUDES).trim()));
+                    this.outputArtifacts.add(outputArtifact);
                 }
             }
         }
@@ -111,13 +125,12 @@ public class AWSCodePipelinePublisher extends Notifier {
             return false;
         }
 
+        if (transportProfile != null) {
+            model.setTransportProfile(TransportProfile.fromName(transportProfile, model.getTransportProfile()));
+        }
+
         final AWSClients awsClients = awsClientFactory.getAwsClient(
-                model.getAwsAccessKey(),
-                model.getAwsSecretKey(),
-                model.getProxyHost(),
-                model.getProxyPort(),
-                model.getRegion(),
-                JenkinsMetadata.getPluginUserAgentPrefix());
+                AWSClientSettings.fromModel(model, JenkinsMetadata.getPluginUserAgentPrefix()));
 
         if (!actionSucceeded) {
             if (model.getActionTypeCategory() == CategoryType.Build) {
@@ -131,9 +144,19 @@ public class AWSCodePipelinePublisher extends Notifier {
         // or update. But we want to see if we can build what we have.
         if (model.getJob() == null) {
             LoggingHelper.log(listener, "No Job, returning early");
+            awsClients.shutdown();
             return actionSucceeded;
         }
 
+        final String otlpEndpoint = model.getOtlpEndpoint();
+        final Tracer tracer = CodePipelineTracing.getTracer(otlpEndpoint);
+        final Span span = CodePipelineTracing.startSpan(
+                tracer,
+                "Publish",
+                CodePipelineTracing.extract(model.getTraceContext()),
+                model.getJob().getId());
+        final Scope scope = CodePipelineTracing.makeCurrent(span, tracer);
+
         try {
             LoggingHelper.log(listener, "Publishing artifacts");
 
@@ -177,14 +200,24 @@ public class AWSCodePipelinePublisher extends Notifier {
             awsStatus = false;
             throw ex;
         } finally {
-            PublisherTools.putJobResult(
-                    awsStatus,
-                    error,
-                    action.getId(),
-                    model.getJob().getId(),
-                    awsClients.getCodePipelineClient(),
-                    listener);
-            cleanUp(model);
+            try {
+                PublisherTools.putJobResult(
+                        awsStatus,
+                        error,
+                        action.getId(),
+                        model.getJob().getId(),
+                        awsClients.getCodePipelineClient(),
+                        listener);
+                cleanUp(model);
+            } finally {
+                awsClients.shutdown();
+                scope.close();
+                if (!awsStatus) {
+                    span.setStatus(StatusCode.ERROR, error);
+                }
+                span.end();
+                CodePipelineTracing.flush(otlpEndpoint);
+            }
         }
 
         return awsStatus;
@@ -228,6 +261,15 @@ public class AWSCodePipelinePublisher extends Notifier {
         }
     }
 
+    public String getTransportProfile() {
+        return transportProfile;
+    }
+
+    @DataBoundSetter
+    public void setTransportProfile(final String transportProfile) {
+        this.transportProfile = StringUtils.trimToNull(transportProfile);
+    }
+
     /**
      * Descriptor for {@link AWSCodePipelinePublisher}. Used as a singleton.
      * The class is marked as public so that it can be accessed from views.
@@ -252,6 +294,10 @@ public class AWSCodePipelinePublisher extends Notifier {
             return "AWS CodePipeline Publisher";
         }
 
+        public ListBoxModel doFillTransportProfileItems() {
+            return TransportProfile.fillOverrideItems();
+        }
+
         @Override
         public boolean configure(
                 final StaplerRequest req,
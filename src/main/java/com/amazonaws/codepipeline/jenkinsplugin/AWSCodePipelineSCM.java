@@ -16,7 +16,11 @@ package com.amazonaws.codepipeline.jenkinsplugin;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Instant;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Random;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -25,12 +29,12 @@ import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CategoryType;
 import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
-import com.amazonaws.services.codepipeline.AWSCodePipeline;
 import com.amazonaws.services.codepipeline.model.AcknowledgeJobRequest;
 import com.amazonaws.services.codepipeline.model.AcknowledgeJobResult;
 import com.amazonaws.services.codepipeline.model.ActionOwner;
@@ -58,6 +62,10 @@ import hudson.scm.SCMRevisionState;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.Secret;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 import net.sf.json.JSONObject;
 
 public class AWSCodePipelineSCM extends hudson.scm.SCM {
@@ -73,6 +81,7 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
     private static final Random RANDOM = new Random();
 
     private Job job;
+    private transient Map<String, String> jobTraceContext;
     private final boolean clearWorkspace;
     //keeping this to avoid "data stored in an older format" jenkins warning
     private final String projectName;
@@ -86,6 +95,17 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
     private final String proxyHost;
     private final int proxyPort;
 
+    // Endpoints used instead of the ones of the region, such as VPC interface endpoints
+    private String codePipelineEndpoint;
+    private String s3Endpoint;
+
+    // Name of the TransportProfile, or null for the one of the global configuration
+    private String transportProfile;
+
+    // Comma separated Ant patterns selecting the entries of input artifacts to extract, see PathFilter
+    private String includes;
+    private String excludes;
+
     private final AWSClientFactory awsClientFactory;
 
     @DataBoundConstructor
@@ -204,8 +224,40 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
         }
         LoggingHelper.log(listener, "Job '%s' received", model.getJob().getId());
 
+        final Tracer tracer = CodePipelineTracing.getTracer(model.getOtlpEndpoint());
+        final Span span = CodePipelineTracing.startSpan(
+                tracer,
+                "Checkout",
+                CodePipelineTracing.extract(model.getTraceContext()),
+                model.getJob().getId());
+
+        try (final Scope ignored = CodePipelineTracing.makeCurrent(span, tracer)) {
+            acknowledgeJob(model);
+
+            LoggingHelper.log(listener, "Acknowledged job with ID: %s", model.getJob().getId());
+
+            workspacePath.act(new DownloadCallable(
+                        clearWorkspace,
+                        model.getJob(),
+                        model,
+                        awsClientFactory,
+                        JenkinsMetadata.getPluginUserAgentPrefix(),
+                        listener));
+        } catch (final IOException | InterruptedException | RuntimeException ex) {
+            CodePipelineTracing.recordFailure(span, ex);
+            throw ex;
+        } finally {
+            span.end();
+            CodePipelineTracing.flush(model.getOtlpEndpoint());
+        }
+
+        return true;
+    }
+
+    private void acknowledgeJob(final CodePipelineStateModel model) throws AbortException {
+        final AWSClients awsClients = getAwsClients();
         try {
-            final AcknowledgeJobResult acknowledgeJobResult = getCodePipelineClient().acknowledgeJob(new AcknowledgeJobRequest()
+            final AcknowledgeJobResult acknowledgeJobResult = awsClients.getCodePipelineClient().acknowledgeJob(new AcknowledgeJobRequest()
                     .withJobId(model.getJob().getId())
                     .withNonce(model.getJob().getNonce()));
 
@@ -216,19 +268,9 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
         } catch (final InvalidNonceException e) {
             model.setSkipPutJobResult(true);
             throw new AbortException(String.format("Job with ID %s was already acknowledged", job.getId()));
+        } finally {
+            awsClients.shutdown();
         }
-
-        LoggingHelper.log(listener, "Acknowledged job with ID: %s", model.getJob().getId());
-
-        workspacePath.act(new DownloadCallable(
-                    clearWorkspace,
-                    model.getJob(),
-                    model,
-                    awsClientFactory,
-                    JenkinsMetadata.getPluginUserAgentPrefix(),
-                    listener));
-
-        return true;
     }
 
     public PollingResult pollForJobs(final String projectName, final ActionTypeId actionType, final TaskListener taskListener) throws InterruptedException {
@@ -238,10 +280,17 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
         final long jitter = (long) RANDOM.nextInt(55 * 1000);
         Thread.sleep(jitter);
 
-        final PollForJobsResult result = getCodePipelineClient().pollForJobs(new PollForJobsRequest()
-                .withActionTypeId(actionType)
-                .withMaxBatchSize(1)
-                .withQueryParam(Collections.singletonMap("ProjectName", projectName)));
+        final Instant pollStartTime = Instant.now();
+        final AWSClients awsClients = getAwsClients();
+        final PollForJobsResult result;
+        try {
+            result = awsClients.getCodePipelineClient().pollForJobs(new PollForJobsRequest()
+                    .withActionTypeId(actionType)
+                    .withMaxBatchSize(1)
+                    .withQueryParam(Collections.singletonMap("ProjectName", projectName)));
+        } finally {
+            awsClients.shutdown();
+        }
 
         if (result.getJobs().size() < 1) {
             LoggingHelper.log(taskListener, "No jobs found.");
@@ -249,11 +298,26 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
         }
 
         job = result.getJobs().get(0);
+        jobTraceContext = startJobTrace(job.getId(), pollStartTime);
         LoggingHelper.log(taskListener, "Received job with ID: %s", job.getId());
 
         return PollingResult.BUILD_NOW;
     }
 
+    // The poll that received the job is the root span of the job's trace
+    private Map<String, String> startJobTrace(final String jobId, final Instant pollStartTime) {
+        final String otlpEndpoint = AWSCodePipelineGlobalConfiguration.getConfiguredOtlpEndpoint();
+        final Span span = CodePipelineTracing.startSpan(
+                CodePipelineTracing.getTracer(otlpEndpoint),
+                "Poll",
+                Context.root(),
+                jobId,
+                pollStartTime);
+        span.end();
+
+        return CodePipelineTracing.inject(Context.root().with(span));
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl)super.getDescriptor();
@@ -286,6 +350,55 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
         return proxyPort;
     }
 
+    public String getCodePipelineEndpoint() {
+        return codePipelineEndpoint;
+    }
+
+    @DataBoundSetter
+    public void setCodePipelineEndpoint(final String codePipelineEndpoint) {
+        this.codePipelineEndpoint = sanitizeEndpoint(codePipelineEndpoint);
+    }
+
+    public String getS3Endpoint() {
+        return s3Endpoint;
+    }
+
+    @DataBoundSetter
+    public void setS3Endpoint(final String s3Endpoint) {
+        this.s3Endpoint = sanitizeEndpoint(s3Endpoint);
+    }
+
+    public String getTransportProfile() {
+        return transportProfile;
+    }
+
+    @DataBoundSetter
+    public void setTransportProfile(final String transportProfile) {
+        this.transportProfile = StringUtils.trimToNull(transportProfile);
+    }
+
+    private static String sanitizeEndpoint(final String endpoint) {
+        return StringUtils.isBlank(endpoint) ? null : Validation.sanitize(endpoint.trim());
+    }
+
+    public String getIncludes() {
+        return includes;
+    }
+
+    @DataBoundSetter
+    public void setIncludes(final String includes) {
+        this.includes = includes == null ? null : Validation.sanitize(includes.trim());
+    }
+
+    public String getExcludes() {
+        return excludes;
+    }
+
+    @DataBoundSetter
+    public void setExcludes(final String excludes) {
+        this.excludes = excludes == null ? null : Validation.sanitize(excludes.trim());
+    }
+
     public String getCategory() {
         return actionTypeCategory;
     }
@@ -313,6 +426,23 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
         model.setProxyHost(proxyHost);
         model.setProxyPort(proxyPort);
         model.setRegion(region);
+        model.setCodePipelineEndpoint(codePipelineEndpoint);
+        model.setS3Endpoint(s3Endpoint);
+        model.setTransportProfile(TransportProfile.fromName(
+                transportProfile, AWSCodePipelineGlobalConfiguration.getConfiguredTransportProfile()));
+        model.setExtractIncludes(includes);
+        model.setExtractExcludes(excludes);
+        model.setOtlpEndpoint(AWSCodePipelineGlobalConfiguration.getConfiguredOtlpEndpoint());
+        model.setDeltaUpload(AWSCodePipelineGlobalConfiguration.isDeltaUploadConfigured());
+        model.setReproducibleArchives(AWSCodePipelineGlobalConfiguration.isReproducibleArchivesConfigured());
+        model.setArchiveCache(AWSCodePipelineGlobalConfiguration.isArchiveCacheConfigured());
+        model.setNativeArchiveTools(AWSCodePipelineGlobalConfiguration.isNativeArchiveToolsConfigured());
+        model.setPooledTransfers(AWSCodePipelineGlobalConfiguration.isPooledTransfersConfigured());
+        model.setAsyncTransfers(AWSCodePipelineGlobalConfiguration.isAsyncTransfersConfigured());
+        model.setMaxTransferStreams(AWSCodePipelineGlobalConfiguration.getConfiguredMaxTransferStreams());
+        model.setMaxTransferBytesPerSecond(AWSCodePipelineGlobalConfiguration.getConfiguredMaxTransferBytesPerSecond());
+        model.setPublisherParallelism(AWSCodePipelineGlobalConfiguration.getConfiguredPublisherParallelism());
+        model.setTraceContext(jobTraceContext);
         CodePipelineStateService.setModel(model);
     }
 
@@ -328,15 +458,16 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
                 listener);
     }
 
-    private AWSCodePipeline getCodePipelineClient() {
-        return awsClientFactory.getAwsClient(
-                awsAccessKey,
-                Secret.toString(awsSecretKey),
-                proxyHost,
-                proxyPort,
-                region,
-                JenkinsMetadata.getPluginUserAgentPrefix())
-                .getCodePipelineClient();
+    private AWSClients getAwsClients() {
+        return awsClientFactory.getAwsClient(AWSClientSettings.builder()
+                .withCredentials(awsAccessKey, Secret.toString(awsSecretKey))
+                .withProxy(proxyHost, proxyPort)
+                .withRegion(region)
+                .withCodePipelineEndpoint(codePipelineEndpoint)
+                .withS3Endpoint(s3Endpoint)
+                .withTransportProfile(TransportProfile.fromName(transportProfile, AWSCodePipelineGlobalConfiguration.getConfiguredTransportProfile()))
+                .withPluginUserAgentPrefix(JenkinsMetadata.getPluginUserAgentPrefix())
+                .build());
     }
 
     /**
@@ -367,7 +498,7 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
         @Override
         public SCM newInstance(final StaplerRequest req,
                                final JSONObject formData) throws FormException {
-            return new AWSCodePipelineSCM(
+            final AWSCodePipelineSCM scm = new AWSCodePipelineSCM(
                     req.getParameter("name"),
                     req.getParameter("clearWorkspace") != null,
                     req.getParameter("region"),
@@ -379,6 +510,10 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
                     req.getParameter("provider"),
                     req.getParameter("version"),
                     new AWSClientFactory());
+
+            // The optional settings only have data bound setters
+            req.bindJSON(scm, formData);
+            return scm;
         }
 
         @Override
@@ -468,6 +603,43 @@ public class AWSCodePipelineSCM extends hudson.scm.SCM {
                     "Proxy Port must be between 0 and 65535");
         }
 
+        public ListBoxModel doFillTransportProfileItems() {
+            return TransportProfile.fillOverrideItems();
+        }
+
+        public FormValidation doCheckCodePipelineEndpoint(@QueryParameter final String value) {
+            return validateEndpoint(value);
+        }
+
+        public FormValidation doCheckS3Endpoint(@QueryParameter final String value) {
+            return validateEndpoint(value);
+        }
+
+        private FormValidation validateEndpoint(final String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return FormValidation.ok();
+            }
+
+            final URI endpoint;
+            try {
+                endpoint = new URI(value.trim());
+            } catch (final URISyntaxException ex) {
+                return FormValidation.error("Please enter an endpoint such as https://s3-accelerate.amazonaws.com");
+            }
+
+            if (endpoint.getHost() == null) {
+                return FormValidation.error("Please enter an endpoint such as https://s3-accelerate.amazonaws.com");
+            }
+            if ("http".equalsIgnoreCase(endpoint.getScheme())) {
+                return FormValidation.warning("Requests to this endpoint are not encrypted");
+            }
+            if (!"https".equalsIgnoreCase(endpoint.getScheme())) {
+                return FormValidation.error("Please enter an endpoint such as https://s3-accelerate.amazonaws.com");
+            }
+
+            return FormValidation.ok();
+        }
+
         private FormValidation validateIntIsInRange(
                 final String value,
                 final int lowerBound,
@@ -15,19 +15,49 @@
 package com.amazonaws.codepipeline.jenkinsplugin;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Date;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.zip.UnixStat;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 
 import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
 
 public class ArchiveEntryFactory {
 
+    // Time of every entry of a reproducible archive. Zip entries store local time, so the same local time
+    // is used whatever the time zone; the first day of 1980 is avoided as some tools treat it as no time.
+    private static final LocalDateTime REPRODUCIBLE_TIME = LocalDateTime.of(1980, 2, 1, 0, 0);
+    private static final int FILE_MODE = 0644;
+    private static final int EXECUTABLE_FILE_MODE = 0755;
+
     final CompressionType compressionType;
+    private final boolean reproducible;
 
     public ArchiveEntryFactory(final CompressionType compressionType) {
+        this(compressionType, false);
+    }
+
+    /**
+     * @param reproducible whether entries are made from the contents of files only: with a fixed time, no
+     *                     owner, and permissions that only tell executable files apart, so that the same
+     *                     files always make the same archive
+     */
+    public ArchiveEntryFactory(final CompressionType compressionType, final boolean reproducible) {
         this.compressionType = compressionType;
+        this.reproducible = reproducible;
+    }
+
+    public boolean isReproducible() {
+        return reproducible;
     }
 
     public ArchiveEntry create(final File file, final String fileName) {
@@ -43,4 +73,68 @@ public class ArchiveEntryFactory {
         return null;
     }
 
-}
\ No newline at end of file
+    /**
+     * Creates the entry from attributes already read while walking the directory. Tar entries still read
+     * the file's owner, which is not part of the basic attributes.
+     *
+     * Zip entries carry the same time as those made from the file alone, the last modification. The time of
+     * the last access changes whenever the file is read, so it would make every archive of the same files
+     * different.
+     */
+    public ArchiveEntry create(final File file, final String fileName, final BasicFileAttributes attributes) {
+        if (reproducible) {
+            return createReproducible(file, fileName, attributes);
+        }
+
+        switch (compressionType) {
+            case None:
+            case Zip:
+                final ZipArchiveEntry zipArchiveEntry = new ZipArchiveEntry(fileName);
+                zipArchiveEntry.setSize(attributes.size());
+                zipArchiveEntry.setTime(attributes.lastModifiedTime().toMillis());
+                return zipArchiveEntry;
+            case Tar:
+            case TarGz:
+                return new TarArchiveEntry(file, fileName);
+        }
+
+        return null;
+    }
+
+    private ArchiveEntry createReproducible(final File file, final String fileName, final BasicFileAttributes attributes) {
+        final int mode = isExecutable(file) ? EXECUTABLE_FILE_MODE : FILE_MODE;
+
+        switch (compressionType) {
+            case None:
+            case Zip:
+                final ZipArchiveEntry zipArchiveEntry = new ZipArchiveEntry(fileName);
+                zipArchiveEntry.setSize(attributes.size());
+                zipArchiveEntry.setTime(REPRODUCIBLE_TIME.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                zipArchiveEntry.setUnixMode(UnixStat.FILE_FLAG | mode);
+                return zipArchiveEntry;
+            case Tar:
+            case TarGz:
+                final TarArchiveEntry tarArchiveEntry = new TarArchiveEntry(fileName);
+                tarArchiveEntry.setSize(attributes.size());
+                tarArchiveEntry.setModTime(Date.from(REPRODUCIBLE_TIME.toInstant(ZoneOffset.UTC)));
+                tarArchiveEntry.setMode(UnixStat.FILE_FLAG | mode);
+                tarArchiveEntry.setUserId(0);
+                tarArchiveEntry.setGroupId(0);
+                tarArchiveEntry.setUserName("");
+                tarArchiveEntry.setGroupName("");
+                return tarArchiveEntry;
+        }
+
+        return null;
+    }
+
+    private static boolean isExecutable(final File file) {
+        try {
+            return Files.getPosixFilePermissions(file.toPath()).contains(PosixFilePermission.OWNER_EXECUTE);
+        } catch (final UnsupportedOperationException | IOException ex) {
+            // No such thing as an executable file there
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import hudson.model.BuildListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+
+/**
+ * The files of an output directory as they were when it was archived, along with the digest of that archive.
+ *
+ * Two manifests match when the same files have the same size, permissions and modification time, as tar
+ * archives and the executable bit of reproducible archives carry the permissions. Files modified shortly
+ * before their manifest was taken may have changed again within the resolution of the file system clock, so
+ * they never match on their time alone. With content hashes, a file whose time changed still matches if its
+ * contents did not.
+ */
+final class ArchiveManifest {
+
+    static final boolean HASH_CONTENTS = Boolean.getBoolean(ArchiveManifest.class.getName() + ".hashContents");
+
+    // Coarser than the modification time resolution of common file systems
+    private static final long RACY_INTERVAL_MILLIS = 2000;
+
+    private static final String ARCHIVE = "archive";
+    private static final String FILE = "file";
+    private static final String NO_HASH = "-";
+    private static final int NO_MODE = -1;
+
+    private final CompressionType compressionType;
+    private final boolean reproducible;
+    private final long takenAt;
+    private final Map<String, Entry> entries;
+    private String archiveDigest;
+    private long archiveSize;
+
+    private ArchiveManifest(
+            final CompressionType compressionType,
+            final boolean reproducible,
+            final long takenAt,
+            final Map<String, Entry> entries) {
+
+        this.compressionType = compressionType;
+        this.reproducible = reproducible;
+        this.takenAt = takenAt;
+        this.entries = entries;
+    }
+
+    /**
+     * Walks the files of the directory the way they are archived, reading the attributes of the files and, if asked to,
+     * hashing their contents.
+     */
+    static ArchiveManifest take(
+            final Path directory,
+            final PathFilter filter,
+            final CompressionType compressionType,
+            final boolean reproducible,
+            final boolean hashContents,
+            final BuildListener listener) throws IOException {
+
+        final Map<String, Entry> entries = new HashMap<>();
+        final long takenAt = System.currentTimeMillis();
+
+        CompressionTools.walkFilesToCompress(directory, filter, listener, (file, attributes) -> entries.put(
+                directory.relativize(file).toString(),
+                new Entry(
+                        attributes.size(),
+                        attributes.lastModifiedTime().toMillis(),
+                        getMode(file, attributes),
+                        hashContents ? ArtifactDigestIndex.digestFile(file.toFile()) : null)));
+
+        return new ArchiveManifest(compressionType, reproducible, takenAt, entries);
+    }
+
+    /**
+     * @return the manifest recorded in the file, or null if there is none
+     */
+    static ArchiveManifest load(final File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        ArchiveManifest manifest = null;
+        final Map<String, Entry> entries = new HashMap<>();
+
+        for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            final String[] fields = line.split(" ");
+
+            try {
+                if (fields.length == 6 && ARCHIVE.equals(fields[0]) && manifest == null) {
+                    manifest = new ArchiveManifest(
+                            CompressionType.valueOf(fields[1]),
+                            Boolean.parseBoolean(fields[2]),
+                            Long.parseLong(fields[3]),
+                            entries);
+                    manifest.setArchive(fields[4], Long.parseLong(fields[5]));
+                } else if (fields.length == 6 && FILE.equals(fields[0])) {
+                    entries.put(ArtifactDigestIndex.decode(fields[1]), new Entry(
+                            Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]),
+                            Integer.parseInt(fields[4]),
+                            NO_HASH.equals(fields[5]) ? null : fields[5]));
+                } else {
+                    return null;
+                }
+            } catch (final IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        return manifest;
+    }
+
+    void save(final File file) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+
+        final StringBuilder contents = new StringBuilder()
+                .append(ARCHIVE).append(' ')
+                .append(compressionType.name()).append(' ')
+                .append(reproducible).append(' ')
+                .append(takenAt).append(' ')
+                .append(archiveDigest).append(' ')
+                .append(archiveSize).append('\n');
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            contents.append(FILE).append(' ')
+                    .append(ArtifactDigestIndex.encode(entry.getKey())).append(' ')
+                    .append(entry.getValue().size).append(' ')
+                    .append(entry.getValue().lastModified).append(' ')
+                    .append(entry.getValue().mode).append(' ')
+                    .append(entry.getValue().hash == null ? NO_HASH : entry.getValue().hash).append('\n');
+        }
+
+        final File temporaryFile = new File(directory, file.getName() + ".tmp");
+        Files.write(temporaryFile.toPath(), contents.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return whether the archive of this manifest is also an archive of the current files
+     */
+    boolean matches(final ArchiveManifest current) {
+        if (compressionType != current.compressionType
+                || reproducible != current.reproducible
+                || entries.size() != current.entries.size()) {
+            return false;
+        }
+
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            final Entry recorded = entry.getValue();
+            final Entry found = current.entries.get(entry.getKey());
+
+            if (found == null || recorded.size != found.size || recorded.mode != found.mode) {
+                return false;
+            }
+            if (recorded.hash != null && found.hash != null) {
+                if (!recorded.hash.equals(found.hash)) {
+                    return false;
+                }
+            } else if (recorded.lastModified != found.lastModified
+                    || recorded.lastModified >= takenAt - RACY_INTERVAL_MILLIS) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    void setArchive(final String archiveDigest, final long archiveSize) {
+        this.archiveDigest = Objects.requireNonNull(archiveDigest);
+        this.archiveSize = archiveSize;
+    }
+
+    String getArchiveDigest() {
+        return archiveDigest;
+    }
+
+    long getArchiveSize() {
+        return archiveSize;
+    }
+
+    // The permission bits, e.g. 0755, or NO_MODE where the file system has none
+    private static int getMode(final Path file, final BasicFileAttributes attributes) throws IOException {
+        final Set<PosixFilePermission> permissions;
+        try {
+            // The attributes of the walk have the permissions on most file systems, saving another system call
+            permissions = attributes instanceof PosixFileAttributes
+                    ? ((PosixFileAttributes) attributes).permissions()
+                    : Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS);
+        } catch (final UnsupportedOperationException ex) {
+            return NO_MODE;
+        }
+
+        // Declared from OWNER_READ to OTHERS_EXECUTE, the order of the bits
+        int mode = 0;
+        for (final PosixFilePermission permission : permissions) {
+            mode |= 0400 >> permission.ordinal();
+        }
+        return mode;
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final int mode;
+        private final String hash;
+
+        private Entry(final long size, final long lastModified, final int mode, final String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mode = mode;
+            this.hash = hash;
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import hudson.model.BuildListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+/**
+ * The files of a directory to be archived, in walk order. Reproducible archives walk the files in the order
+ * of their names.
+ *
+ * The directory is walked on its own thread while the archive is being written. A small pool prepares the
+ * archive entries of upcoming files and reads small files ahead, so that writing the archive does not wait
+ * for the file system as long as the read-ahead keeps up. Files are read ahead into slabs of the agent's
+ * {@link SlabPool}; when it has none to spare, or for larger files, they are streamed when their turn comes,
+ * and very large ones are mapped into memory instead of being read through a stream.
+ */
+final class ArchiveSource implements Closeable {
+
+    private static final int READ_AHEAD_THREADS =
+            Integer.getInteger(ArchiveSource.class.getName() + ".readAheadThreads", 4);
+    private static final int READ_AHEAD_FILES = 256;
+    private static final long MAX_READ_AHEAD_FILE_SIZE = 1024 * 1024;
+
+    // Files at least this large are mapped into memory rather than read
+    static final long MAP_THRESHOLD = Long.getLong(ArchiveSource.class.getName() + ".mapThreshold", 64L * 1024 * 1024);
+    private static final long MAP_REGION_SIZE = 256L * 1024 * 1024;
+
+    private static final AtomicInteger SOURCE_COUNT = new AtomicInteger();
+    private static final Future<Item> END = CompletableFuture.completedFuture(null);
+
+    private final Path root;
+    private final PathFilter filter;
+    private final ArchiveEntryFactory archiveEntryFactory;
+    private final BuildListener listener;
+    private final long mapThreshold;
+
+    private final BlockingQueue<Future<Item>> pending = new ArrayBlockingQueue<>(READ_AHEAD_FILES);
+    private final SlabPool slabPool = SlabPool.get();
+    private final Set<Item> itemsHoldingSlabs = ConcurrentHashMap.newKeySet();
+    private final ExecutorService readers;
+    private final Thread walker;
+
+    private volatile boolean closed;
+    private boolean finished;
+
+    ArchiveSource(final Path root, final ArchiveEntryFactory archiveEntryFactory, final BuildListener listener) {
+        this(root, PathFilter.ALL, archiveEntryFactory, listener);
+    }
+
+    ArchiveSource(
+            final Path root,
+            final PathFilter filter,
+            final ArchiveEntryFactory archiveEntryFactory,
+            final BuildListener listener) {
+        this(root, filter, archiveEntryFactory, listener, MAP_THRESHOLD);
+    }
+
+    ArchiveSource(
+            final Path root,
+            final PathFilter filter,
+            final ArchiveEntryFactory archiveEntryFactory,
+            final BuildListener listener,
+            final long mapThreshold) {
+
+        this.root = root;
+        this.filter = filter;
+        this.archiveEntryFactory = archiveEntryFactory;
+        this.listener = listener;
+        this.mapThreshold = mapThreshold;
+
+        final String threadName = "AWS CodePipeline archive source " + SOURCE_COUNT.incrementAndGet();
+        this.readers = Executors.newFixedThreadPool(READ_AHEAD_THREADS, runnable -> {
+            final Thread thread = new Thread(runnable, threadName + " read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.walker = new Thread(this::walk, threadName + " walker");
+        this.walker.setDaemon(true);
+        this.walker.start();
+    }
+
+    /**
+     * @return the next file to archive, or null when all files have been returned
+     */
+    Item next() throws IOException {
+        if (finished) {
+            return null;
+        }
+
+        try {
+            final Future<Item> item = pending.take();
+            if (item == END) {
+                finished = true;
+                return null;
+            }
+            return item.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the next file to archive");
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        walker.interrupt();
+        readers.shutdownNow();
+        pending.clear();
+
+        // Items read ahead but never written give back their slabs. Readers still filling theirs give them
+        // back themselves, or find the source closed once they are done.
+        for (final Item item : itemsHoldingSlabs) {
+            item.releaseSlabs();
+        }
+    }
+
+    private void walk() {
+        try {
+            if (archiveEntryFactory.isReproducible()) {
+                CompressionTools.walkFilesToCompressSorted(root, filter, listener, this::submit);
+            } else {
+                CompressionTools.walkFilesToCompress(root, filter, listener, this::submit);
+            }
+            pending.put(END);
+        } catch (final IOException ex) {
+            final CompletableFuture<Item> failure = new CompletableFuture<>();
+            failure.completeExceptionally(ex);
+            try {
+                pending.put(failure);
+            } catch (final InterruptedException interrupted) {
+                // Closed, nobody is waiting for the failure anymore
+            }
+        } catch (final InterruptedException ex) {
+            // Closed before the walk was over
+        }
+    }
+
+    private void submit(final Path file, final BasicFileAttributes attributes) throws IOException {
+        if (closed) {
+            throw new InterruptedIOException("Archive source closed");
+        }
+
+        try {
+            pending.put(readers.submit(() -> prepare(file, attributes)));
+        } catch (final InterruptedException | RejectedExecutionException ex) {
+            throw new InterruptedIOException("Archive source closed");
+        }
+    }
+
+    private Item prepare(final Path file, final BasicFileAttributes attributes) throws IOException {
+        final String entryName = root.relativize(file).toString();
+        final ArchiveEntry entry = archiveEntryFactory.create(file.toFile(), entryName, attributes);
+
+        List<ByteBuffer> contents = null;
+        if (attributes.size() <= MAX_READ_AHEAD_FILE_SIZE) {
+            contents = slabPool.tryTake((int) ((attributes.size() + SlabPool.SLAB_SIZE - 1) / SlabPool.SLAB_SIZE));
+        }
+
+        final Item item = new Item(file, entry, contents);
+        if (contents == null) {
+            return item;
+        }
+
+        // The slabs are this reader's until they are filled, close() only gives back those of finished items
+        boolean readAhead = false;
+        try {
+            if (closed) {
+                throw new InterruptedIOException("Archive source closed");
+            }
+            readAhead = readAhead(file, contents);
+        } finally {
+            if (!readAhead) {
+                // Failed, or grown since the walk and streamed instead
+                item.contents = null;
+                slabPool.give(contents);
+            }
+        }
+        if (!readAhead) {
+            return item;
+        }
+
+        itemsHoldingSlabs.add(item);
+        if (closed) {
+            // Closed meanwhile, close() may have gone over the items before this one was added
+            item.releaseSlabs();
+        }
+        return item;
+    }
+
+    /**
+     * @return false if the file does not fit into the slabs
+     */
+    private static boolean readAhead(final Path file, final List<ByteBuffer> slabs) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (final ByteBuffer slab : slabs) {
+                while (slab.hasRemaining() && channel.read(slab) != -1) {
+                    // Fills the slab
+                }
+                slab.flip();
+            }
+            return channel.read(ByteBuffer.allocate(1)) == -1;
+        }
+    }
+
+    final class Item {
+        private final Path file;
+        private final ArchiveEntry entry;
+        private volatile List<ByteBuffer> contents;
+
+        private Item(final Path file, final ArchiveEntry entry, final List<ByteBuffer> contents) {
+            this.file = file;
+            this.entry = entry;
+            this.contents = contents;
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        ArchiveEntry getEntry() {
+            return entry;
+        }
+
+        void writeContents(final OutputStream out) throws IOException {
+            final List<ByteBuffer> slabs = contents;
+            if (slabs == null) {
+                writeFile(out);
+                return;
+            }
+
+            try {
+                final WritableByteChannel target = Channels.newChannel(out);
+                for (final ByteBuffer slab : slabs) {
+                    BufferPool.write(target, slab);
+                }
+            } finally {
+                releaseSlabs();
+            }
+        }
+
+        private void releaseSlabs() {
+            if (itemsHoldingSlabs.remove(this)) {
+                slabPool.give(contents);
+                contents = null;
+            }
+        }
+
+        // Nothing is borrowed from the slab pool here, the items waiting for this thread may hold all of it
+        private void writeFile(final OutputStream out) throws IOException {
+            final WritableByteChannel target = Channels.newChannel(out);
+
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final long size = channel.size();
+
+                if (size < mapThreshold) {
+                    long position = 0;
+                    while (position < size) {
+                        position += channel.transferTo(position, size - position, target);
+                    }
+                    return;
+                }
+
+                // Regions are unmapped once collected, mapping in parts keeps the address space in use bounded
+                for (long position = 0; position < size; position += MAP_REGION_SIZE) {
+                    BufferPool.write(target, channel.map(
+                            FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_REGION_SIZE, size - position)));
+                }
+            }
+        }
+    }
+
+}
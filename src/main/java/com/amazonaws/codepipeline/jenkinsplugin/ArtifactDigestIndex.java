@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * The S3 objects whose contents are known from earlier builds in a workspace, by the SHA-256 digest of
+ * their contents: the input artifacts downloaded and the output artifacts published.
+ *
+ * An output artifact with the same digest as one of them can be copied within S3 instead of uploaded. The
+ * index is only a hint, the object it names is checked against the recorded size and ETag before it is
+ * copied. Only the most recently used entries are kept. Output artifacts published at the same time share
+ * one index.
+ */
+final class ArtifactDigestIndex {
+
+    static final String FILE_NAME = "artifact-digests";
+
+    private static final int MAX_ENTRIES = 256;
+    private static final String SEPARATOR = " ";
+
+    private final File file;
+    private final Map<String, Location> locations = new LinkedHashMap<>();
+
+    private ArtifactDigestIndex(final File file) {
+        this.file = file;
+    }
+
+    static ArtifactDigestIndex load(final File file) throws IOException {
+        final ArtifactDigestIndex index = new ArtifactDigestIndex(file);
+
+        if (file.isFile()) {
+            final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            for (final String line : lines) {
+                final String[] fields = line.split(SEPARATOR);
+                if (fields.length != 5) {
+                    continue;
+                }
+
+                try {
+                    index.locations.put(fields[0], new Location(
+                            decode(fields[1]),
+                            decode(fields[2]),
+                            Long.parseLong(fields[3]),
+                            decode(fields[4])));
+                } catch (final IllegalArgumentException ex) {
+                    // Not a line this class wrote, the entry is dropped
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * @return the last known object with the given contents, or null
+     */
+    synchronized Location find(final String digest) {
+        return locations.get(digest);
+    }
+
+    /**
+     * @return whether an object of the given size is known, without which no artifact of that size can be copied
+     */
+    synchronized boolean containsSize(final long size) {
+        for (final Location location : locations.values()) {
+            if (location.getSize() == size) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void put(final String digest, final Location location) throws IOException {
+        // Moves the entry to the end, entries are dropped from the front
+        locations.remove(digest);
+        locations.put(digest, location);
+
+        final Iterator<String> digests = locations.keySet().iterator();
+        while (locations.size() > MAX_ENTRIES) {
+            digests.next();
+            digests.remove();
+        }
+
+        save();
+    }
+
+    synchronized void remove(final String digest) throws IOException {
+        if (locations.remove(digest) != null) {
+            save();
+        }
+    }
+
+    private void save() throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+
+        final StringBuilder contents = new StringBuilder();
+        for (final Map.Entry<String, Location> entry : locations.entrySet()) {
+            final Location location = entry.getValue();
+            contents.append(entry.getKey()).append(SEPARATOR)
+                    .append(encode(location.getBucketName())).append(SEPARATOR)
+                    .append(encode(location.getObjectKey())).append(SEPARATOR)
+                    .append(location.getSize()).append(SEPARATOR)
+                    .append(encode(location.getETag())).append('\n');
+        }
+
+        final File temporaryFile = new File(directory, file.getName() + ".tmp");
+        Files.write(temporaryFile.toPath(), contents.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String toHex(final MessageDigest digest) {
+        return BinaryUtils.toHex(digest.digest());
+    }
+
+    static String digestFile(final File source) throws IOException {
+        return digestFile(source, newDigest());
+    }
+
+    static String digestFile(final File source, final MessageDigest digest) throws IOException {
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            BufferPool.update(in, 0, in.size(), digest);
+        }
+
+        return toHex(digest);
+    }
+
+    static String encode(final String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (final UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String decode(final String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        } catch (final UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static final class Location {
+        private final String bucketName;
+        private final String objectKey;
+        private final long size;
+        private final String eTag;
+
+        Location(final String bucketName, final String objectKey, final long size, final String eTag) {
+            this.bucketName = bucketName;
+            this.objectKey = objectKey;
+            this.size = size;
+            this.eTag = eTag;
+        }
+
+        String getBucketName() {
+            return bucketName;
+        }
+
+        String getObjectKey() {
+            return objectKey;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        @Override
+        public String toString() {
+            return "s3://" + bucketName + "/" + objectKey;
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import hudson.model.BuildListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.SSECustomerKey;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.FileRequestBodyConfiguration;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+/**
+ * Uploads parts with the non-blocking S3 client of the AWS SDK for Java 2.x, so that no thread is held by a
+ * part in flight. The thread of the build waits for the part's turn with {@link TransferScheduler}, hands the
+ * part to the client and goes on with the next one; the client sends it from the event loop of its
+ * connections. A failed part is tried again from the completion of the attempt once its backoff is over, as
+ * {@link PublisherTools} retries all parts, again without a thread waiting for it.
+ *
+ * Parts read into memory are sent from their slabs as they are. The parts in flight per upload are set on the
+ * agents with the system property
+ * {@code com.amazonaws.codepipeline.jenkinsplugin.AsyncTransferEngine.partsInFlight}.
+ *
+ * The client is made by {@link AWSClients} for the build and shut down with its other clients.
+ */
+final class AsyncTransferEngine implements TransferEngine {
+
+    private static final int PARTS_IN_FLIGHT =
+            Integer.getInteger(AsyncTransferEngine.class.getName() + ".partsInFlight", 16);
+
+    private final S3AsyncClient s3AsyncClient;
+    private final int maxPartsInFlight;
+
+    AsyncTransferEngine(final S3AsyncClient s3AsyncClient) {
+        this(s3AsyncClient, PARTS_IN_FLIGHT);
+    }
+
+    AsyncTransferEngine(final S3AsyncClient s3AsyncClient, final int maxPartsInFlight) {
+        this.s3AsyncClient = s3AsyncClient;
+        this.maxPartsInFlight = Math.max(1, maxPartsInFlight);
+    }
+
+    /**
+     * The part is sent by the client of the engine, to the same endpoint as the blocking client.
+     *
+     * Once returned, the part is on its way, so cancelling the future has no effect.
+     */
+    @Override
+    public CompletableFuture<PartETag> uploadPart(
+            final AmazonS3 amazonS3,
+            final UploadPartRequest uploadPartRequest,
+            final String build,
+            final BuildListener listener) {
+
+        final PartUpload partUpload = new PartUpload(uploadPartRequest, listener);
+        final TransferScheduler.Transfer transfer;
+        try {
+            transfer = TransferScheduler.get().start(build, TransferScheduler.Priority.UPLOAD);
+        } catch (final IOException ex) {
+            partUpload.completeExceptionally(ex);
+            return partUpload;
+        }
+
+        partUpload.whenComplete((partETag, ex) -> transfer.close());
+        try {
+            transfer.transferred(uploadPartRequest.getPartSize());
+            partUpload.attempt(1);
+        } catch (final IOException | RuntimeException ex) {
+            partUpload.completeExceptionally(ex);
+        }
+        return partUpload;
+    }
+
+    @Override
+    public int getMaxPartsInFlight() {
+        return maxPartsInFlight;
+    }
+
+    /**
+     * A part sent by the client, or waiting to be sent again.
+     */
+    private final class PartUpload extends CompletableFuture<PartETag> {
+        private final UploadPartRequest uploadPartRequest;
+        private final BuildListener listener;
+
+        private PartUpload(final UploadPartRequest uploadPartRequest, final BuildListener listener) {
+            this.uploadPartRequest = uploadPartRequest;
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        private void attempt(final int attempt) throws IOException {
+            final int partNumber = uploadPartRequest.getPartNumber();
+            s3AsyncClient.uploadPart(toAsyncRequest(uploadPartRequest), newRequestBody(uploadPartRequest))
+                    .whenComplete((response, failure) -> {
+                        if (failure == null) {
+                            complete(new PartETag(partNumber, response.eTag().replace("\"", "")));
+                            return;
+                        }
+
+                        final Throwable ex = toAmazonClientException(failure);
+                        final long delayMillis = ex instanceof AmazonClientException
+                                ? PublisherTools.getPartRetryDelayMillis(attempt, (AmazonClientException) ex)
+                                : -1;
+                        if (delayMillis < 0) {
+                            completeExceptionally(ex);
+                            return;
+                        }
+
+                        LoggingHelper.log(listener, "Upload of part %d failed, retrying in %d ms: %s",
+                                partNumber, delayMillis, ex.getMessage());
+                        CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(() -> {
+                            try {
+                                attempt(attempt + 1);
+                            } catch (final IOException | RuntimeException retryFailure) {
+                                completeExceptionally(retryFailure);
+                            }
+                        });
+                    });
+        }
+    }
+
+    private static software.amazon.awssdk.services.s3.model.UploadPartRequest toAsyncRequest(
+            final UploadPartRequest uploadPartRequest) {
+
+        final software.amazon.awssdk.services.s3.model.UploadPartRequest.Builder builder =
+                software.amazon.awssdk.services.s3.model.UploadPartRequest.builder()
+                        .bucket(uploadPartRequest.getBucketName())
+                        .key(uploadPartRequest.getKey())
+                        .uploadId(uploadPartRequest.getUploadId())
+                        .partNumber(uploadPartRequest.getPartNumber())
+                        .contentLength(uploadPartRequest.getPartSize())
+                        .contentMD5(uploadPartRequest.getMd5Digest());
+
+        final SSECustomerKey sseCustomerKey = uploadPartRequest.getSSECustomerKey();
+        if (sseCustomerKey != null) {
+            builder.sseCustomerAlgorithm(sseCustomerKey.getAlgorithm())
+                    .sseCustomerKey(sseCustomerKey.getKey())
+                    .sseCustomerKeyMD5(sseCustomerKey.getMd5());
+        }
+        return builder.build();
+    }
+
+    // Every attempt sends the part from its start
+    private static AsyncRequestBody newRequestBody(final UploadPartRequest uploadPartRequest) throws IOException {
+        final InputStream in = uploadPartRequest.getInputStream();
+        if (in == null) {
+            return AsyncRequestBody.fromFile(FileRequestBodyConfiguration.builder()
+                    .path(uploadPartRequest.getFile().toPath())
+                    .position(uploadPartRequest.getFileOffset())
+                    .numBytesToRead(uploadPartRequest.getPartSize())
+                    .build());
+        }
+
+        final ByteBuffer[] contents = BufferPool.Part.getContents(in);
+        if (contents != null) {
+            return AsyncRequestBody.fromByteBuffersUnsafe(contents);
+        }
+
+        // Not a part read by the publisher, it is sent from a copy
+        in.reset();
+        return AsyncRequestBody.fromBytes(IOUtils.toByteArray(in, uploadPartRequest.getPartSize()));
+    }
+
+    /**
+     * Failures of the client are reported as the blocking client reports them, so that they are retried and
+     * resumed alike.
+     */
+    static Throwable toAmazonClientException(final Throwable failure) {
+        final Throwable ex = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+
+        if (ex instanceof AwsServiceException) {
+            final AwsServiceException serviceException = (AwsServiceException) ex;
+            final AmazonS3Exception s3Exception = new AmazonS3Exception(
+                    serviceException.awsErrorDetails() == null
+                            ? serviceException.getMessage()
+                            : serviceException.awsErrorDetails().errorMessage(),
+                    serviceException);
+            s3Exception.setServiceName("Amazon S3");
+            s3Exception.setStatusCode(serviceException.statusCode());
+            s3Exception.setRequestId(serviceException.requestId());
+            s3Exception.setErrorType(serviceException.statusCode() >= 500
+                    ? AmazonServiceException.ErrorType.Service
+                    : AmazonServiceException.ErrorType.Client);
+            if (serviceException.awsErrorDetails() != null) {
+                s3Exception.setErrorCode(serviceException.awsErrorDetails().errorCode());
+            }
+            return s3Exception;
+        }
+        if (ex instanceof SdkClientException) {
+            return new AmazonClientException(ex.getMessage(), ex);
+        }
+        return ex;
+    }
+
+}
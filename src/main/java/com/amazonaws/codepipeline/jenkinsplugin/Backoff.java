@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the delay before a retry is picked at random between zero and an
+ * exponentially growing ceiling, so that agents failing at the same time do not retry in lockstep.
+ */
+final class Backoff {
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    Backoff(final long baseDelayMillis, final long maxDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param attempt the number of attempts that failed so far, starting at 1
+     * @return the time to wait before the next attempt
+     */
+    long getDelayMillis(final int attempt) {
+        return ThreadLocalRandom.current().nextLong(getCeilingMillis(attempt) + 1);
+    }
+
+    long getCeilingMillis(final int attempt) {
+        // Shifting further would overflow long before the ceiling matters
+        final int exponent = Math.min(Math.max(attempt - 1, 0), 30);
+        return Math.min(maxDelayMillis, baseDelayMillis << exponent);
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import hudson.model.BuildListener;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Transfers on the thread of the build, one part at a time. The returned futures are complete.
+ */
+final class BlockingTransferEngine implements TransferEngine {
+
+    static final BlockingTransferEngine INSTANCE = new BlockingTransferEngine();
+
+    private BlockingTransferEngine() {}
+
+    @Override
+    public CompletableFuture<PartETag> uploadPart(
+            final AmazonS3 amazonS3,
+            final UploadPartRequest uploadPartRequest,
+            final String build,
+            final BuildListener listener) {
+
+        final CompletableFuture<PartETag> partETag = new CompletableFuture<>();
+        try {
+            partETag.complete(PublisherTools.uploadPart(amazonS3, uploadPartRequest, build, listener));
+        } catch (final IOException | RuntimeException ex) {
+            partETag.completeExceptionally(ex);
+        }
+        return partETag;
+    }
+
+    @Override
+    public int getMaxPartsInFlight() {
+        return 1;
+    }
+
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transfer buffers borrowed from the agent's {@link SlabPool} for the length of a copy, so that copying the
+ * many entries of an archive or the many artifacts of a job does not allocate new buffers for each of them,
+ * and no thread keeps any once it is done. What is borrowed counts against the budget of the pool and shows
+ * in its metrics.
+ *
+ * Bytes are read from the stream through a channel straight into the slabs, which are only written to the
+ * file once all of them are full. This keeps file writes large and sequential however little each read
+ * returns. When the pool is short, a copy makes do with a single slab.
+ */
+final class BufferPool {
+
+    static final int READ_CHUNK_SIZE = SlabPool.SLAB_SIZE;
+    static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    private static final int WRITE_BUFFER_SLABS = WRITE_BUFFER_SIZE / SlabPool.SLAB_SIZE;
+
+    private BufferPool() {}
+
+    /**
+     * Copies the stream to the channel, starting at the channel's current position.
+     *
+     * @return the number of bytes copied
+     */
+    static long copy(final InputStream in, final FileChannel out) throws IOException {
+        final ReadableByteChannel source = Channels.newChannel(in);
+        long total = 0;
+
+        try (final WriteBuffer pending = takeWriteBuffer()) {
+            int bytesRead;
+            while ((bytesRead = pending.readFrom(source)) != -1) {
+                total += bytesRead;
+                if (pending.isFull()) {
+                    pending.drainTo(out);
+                }
+            }
+            pending.drainTo(out);
+        }
+        return total;
+    }
+
+    /**
+     * Feeds part of a file to the digests.
+     *
+     * @throws EOFException if the file ends before the part
+     */
+    static void update(final FileChannel in, final long position, final long length, final MessageDigest... digests)
+            throws IOException {
+        final SlabPool slabPool = SlabPool.get();
+        final ByteBuffer slab = slabPool.take();
+
+        try {
+            long offset = position;
+            final long end = position + length;
+
+            while (offset < end) {
+                slab.clear().limit((int) Math.min(slab.capacity(), end - offset));
+                readFully(in, slab, offset, end);
+                slab.flip();
+                update(slab, digests);
+                offset += slab.limit();
+            }
+        } finally {
+            slabPool.give(slab);
+        }
+    }
+
+    /**
+     * Reads part of a file into slabs while feeding it to the digests, so that it can be sent on without
+     * reading the file again.
+     *
+     * @return the part, or null if the pool cannot spare the slabs for all of it, in which case nothing was read
+     * @throws EOFException if the file ends before the part
+     */
+    static Part tryRead(final FileChannel in, final long position, final int length, final MessageDigest... digests)
+            throws IOException {
+        final SlabPool slabPool = SlabPool.get();
+        final List<ByteBuffer> slabs = slabPool.tryTake((length + SlabPool.SLAB_SIZE - 1) / SlabPool.SLAB_SIZE);
+        if (slabs == null) {
+            return null;
+        }
+
+        final Part part = new Part(slabPool, slabs.toArray(new ByteBuffer[0]), length);
+        try {
+            long offset = position;
+            final long end = position + length;
+
+            for (final ByteBuffer slab : part.slabs) {
+                slab.limit((int) Math.min(slab.capacity(), end - offset));
+                readFully(in, slab, offset, end);
+                slab.flip();
+                update(slab, digests);
+                offset += slab.limit();
+            }
+            return part;
+        } catch (final IOException | RuntimeException ex) {
+            part.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads from the channel into the buffer, like {@link ReadableByteChannel#read(ByteBuffer)}.
+     *
+     * @throws InterruptedIOException if the thread was interrupted, which closes the channel
+     */
+    static int read(final ReadableByteChannel in, final ByteBuffer buffer) throws IOException {
+        try {
+            return in.read(buffer);
+        } catch (final ClosedByInterruptException ex) {
+            throw interrupted();
+        }
+    }
+
+    /**
+     * Writes all of the buffer to the channel.
+     *
+     * @throws InterruptedIOException if the thread was interrupted, which closes the channel
+     */
+    static void write(final WritableByteChannel out, final ByteBuffer buffer) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        } catch (final ClosedByInterruptException ex) {
+            throw interrupted();
+        }
+    }
+
+    /**
+     * Borrows the slabs of a write buffer, which go back to the pool when it is closed. Only waits for the pool
+     * when it cannot spare a single slab.
+     */
+    static WriteBuffer takeWriteBuffer() throws InterruptedIOException {
+        final SlabPool slabPool = SlabPool.get();
+        List<ByteBuffer> slabs = slabPool.tryTake(WRITE_BUFFER_SLABS);
+        if (slabs == null) {
+            slabs = Collections.singletonList(slabPool.take());
+        }
+        return new WriteBuffer(slabPool, slabs.toArray(new ByteBuffer[0]));
+    }
+
+    // Reads at the offset until the slab is full
+    private static void readFully(final FileChannel in, final ByteBuffer slab, final long offset, final long end)
+            throws IOException {
+        long position = offset;
+        while (slab.hasRemaining()) {
+            final int bytesRead;
+            try {
+                bytesRead = in.read(slab, position);
+            } catch (final ClosedByInterruptException ex) {
+                throw interrupted();
+            }
+            if (bytesRead < 0) {
+                throw new EOFException("File ended at " + position + " bytes, before the " + end + " to read");
+            }
+            position += bytesRead;
+        }
+    }
+
+    private static void update(final ByteBuffer slab, final MessageDigest... digests) {
+        for (final MessageDigest digest : digests) {
+            digest.update(slab.duplicate());
+        }
+    }
+
+    private static InterruptedIOException interrupted() {
+        return new InterruptedIOException("Interrupted while copying");
+    }
+
+    /**
+     * Slabs filled one after the other and written to the file together.
+     */
+    static final class WriteBuffer implements Closeable {
+        private final SlabPool slabPool;
+        private final ByteBuffer[] slabs;
+        private int current;
+
+        private WriteBuffer(final SlabPool slabPool, final ByteBuffer[] slabs) {
+            this.slabPool = slabPool;
+            this.slabs = slabs;
+        }
+
+        /**
+         * Reads once from the channel into the slabs.
+         *
+         * @return the number of bytes read, or -1 at the end of the channel
+         * @throws InterruptedIOException if the thread was interrupted, which closes the channel
+         */
+        int readFrom(final ReadableByteChannel in) throws IOException {
+            final int bytesRead = read(in, slabs[current]);
+            if (!slabs[current].hasRemaining() && current < slabs.length - 1) {
+                current++;
+            }
+            return bytesRead;
+        }
+
+        boolean isFull() {
+            return !slabs[slabs.length - 1].hasRemaining();
+        }
+
+        /**
+         * Writes what was read to the file, starting at the file's current position, and empties the slabs.
+         */
+        void drainTo(final FileChannel out) throws IOException {
+            long remaining = 0;
+            for (int i = 0; i <= current; i++) {
+                slabs[i].flip();
+                remaining += slabs[i].remaining();
+            }
+            try {
+                while (remaining > 0) {
+                    remaining -= out.write(slabs, 0, current + 1);
+                }
+            } catch (final ClosedByInterruptException ex) {
+                throw interrupted();
+            }
+            for (int i = 0; i <= current; i++) {
+                slabs[i].clear();
+            }
+            current = 0;
+        }
+
+        @Override
+        public void close() {
+            for (final ByteBuffer slab : slabs) {
+                slabPool.give(slab);
+            }
+        }
+    }
+
+    /**
+     * Part of a file held in slabs, which go back to the pool when it is closed.
+     */
+    static final class Part implements Closeable {
+        private final SlabPool slabPool;
+        private final ByteBuffer[] slabs;
+        private final int length;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Part(final SlabPool slabPool, final ByteBuffer[] slabs, final int length) {
+            this.slabPool = slabPool;
+            this.slabs = slabs;
+            this.length = length;
+        }
+
+        /**
+         * The stream can be reset to the start of the part, and be read again as long as the part is not
+         * closed. Closing the stream does not close the part.
+         */
+        InputStream newInputStream() {
+            return new PartInputStream(slabs, length);
+        }
+
+        /**
+         * @return the contents of the part read from the stream of a part, without copying them, or null if the
+         *         stream is not the one of a part. They are only valid until the part is closed.
+         */
+        static ByteBuffer[] getContents(final InputStream in) {
+            if (!(in instanceof PartInputStream)) {
+                return null;
+            }
+
+            final PartInputStream partInputStream = (PartInputStream) in;
+            final ByteBuffer[] contents = new ByteBuffer[partInputStream.slabs.length];
+            for (int i = 0; i < contents.length; i++) {
+                final ByteBuffer slab = partInputStream.slabs[i].asReadOnlyBuffer();
+                slab.clear();
+                slab.limit(Math.min(SlabPool.SLAB_SIZE, partInputStream.length - i * SlabPool.SLAB_SIZE));
+                contents[i] = slab;
+            }
+            return contents;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                for (final ByteBuffer slab : slabs) {
+                    slabPool.give(slab);
+                }
+            }
+        }
+    }
+
+    // Every slab but the last is full
+    private static final class PartInputStream extends InputStream {
+        private final ByteBuffer[] slabs;
+        private final int length;
+        private int position;
+        private int mark;
+
+        private PartInputStream(final ByteBuffer[] slabs, final int length) {
+            this.slabs = slabs;
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            if (position >= length) {
+                return -1;
+            }
+            final int value = slabs[position / SlabPool.SLAB_SIZE].get(position % SlabPool.SLAB_SIZE) & 0xff;
+            position++;
+            return value;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+
+            final ByteBuffer slab = slabs[position / SlabPool.SLAB_SIZE].duplicate();
+            slab.position(position % SlabPool.SLAB_SIZE);
+            final int bytes = Math.min(count, slab.remaining());
+            slab.get(buffer, offset, bytes);
+            position += bytes;
+            return bytes;
+        }
+
+        @Override
+        public long skip(final long count) {
+            final int bytes = (int) Math.max(0, Math.min(count, length - position));
+            position += bytes;
+            return bytes;
+        }
+
+        @Override
+        public int available() {
+            return length - position;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(final int readLimit) {
+            mark = position;
+        }
+
+        @Override
+        public void reset() {
+            position = mark;
+        }
+    }
+
+}
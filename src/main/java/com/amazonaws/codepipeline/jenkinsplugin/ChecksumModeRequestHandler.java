@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+
+/**
+ * Asks S3 for the checksums it keeps of objects along with their contents, so that {@link DownloadVerifier}
+ * can check downloads of objects the plugin did not publish. The SDK sends no such header of its own.
+ */
+public class ChecksumModeRequestHandler extends RequestHandler2 {
+
+    static final String CHECKSUM_MODE_HEADER = "x-amz-checksum-mode";
+
+    @Override
+    public void beforeRequest(final Request<?> request) {
+        if (request.getOriginalRequest() instanceof GetObjectRequest) {
+            request.addHeader(CHECKSUM_MODE_HEADER, "ENABLED");
+        }
+    }
+
+}
@@ -15,6 +15,7 @@
 package com.amazonaws.codepipeline.jenkinsplugin;
 
 import java.io.Serializable;
+import java.util.Map;
 import java.util.Objects;
 
 import com.amazonaws.services.codepipeline.model.EncryptionKey;
@@ -64,7 +65,23 @@ public class CodePipelineStateModel implements Serializable {
     private String proxyHost;
     private int proxyPort;
     private String region;
+    private String codePipelineEndpoint;
+    private String s3Endpoint;
+    private TransportProfile transportProfile;
     private boolean skipPutJobResult;
+    private String extractIncludes;
+    private String extractExcludes;
+    private String otlpEndpoint;
+    private boolean deltaUpload;
+    private boolean reproducibleArchives;
+    private boolean archiveCache;
+    private boolean nativeArchiveTools;
+    private boolean pooledTransfers;
+    private boolean asyncTransfers;
+    private Integer maxTransferStreams;
+    private Long maxTransferBytesPerSecond;
+    private Integer publisherParallelism;
+    private Map<String, String> traceContext;
 
     public CodePipelineStateModel() {
         compressionType    = CompressionType.None;
@@ -87,6 +104,30 @@ public class CodePipelineStateModel implements Serializable {
         this.region = region;
     }
 
+    public String getCodePipelineEndpoint() {
+        return codePipelineEndpoint;
+    }
+
+    public void setCodePipelineEndpoint(final String codePipelineEndpoint) {
+        this.codePipelineEndpoint = codePipelineEndpoint;
+    }
+
+    public String getS3Endpoint() {
+        return s3Endpoint;
+    }
+
+    public void setS3Endpoint(final String s3Endpoint) {
+        this.s3Endpoint = s3Endpoint;
+    }
+
+    public TransportProfile getTransportProfile() {
+        return transportProfile;
+    }
+
+    public void setTransportProfile(final TransportProfile transportProfile) {
+        this.transportProfile = transportProfile;
+    }
+
     public String getProxyHost() {
         return proxyHost;
     }
@@ -139,6 +180,119 @@ public class CodePipelineStateModel implements Serializable {
         this.skipPutJobResult = skipPutJobResult;
     }
 
+    public String getOtlpEndpoint() {
+        return otlpEndpoint;
+    }
+
+    public void setOtlpEndpoint(final String otlpEndpoint) {
+        this.otlpEndpoint = otlpEndpoint;
+    }
+
+    // Patterns of the input artifact entries to extract, see PathFilter
+    public String getExtractIncludes() {
+        return extractIncludes;
+    }
+
+    public void setExtractIncludes(final String extractIncludes) {
+        this.extractIncludes = extractIncludes;
+    }
+
+    public String getExtractExcludes() {
+        return extractExcludes;
+    }
+
+    public void setExtractExcludes(final String extractExcludes) {
+        this.extractExcludes = extractExcludes;
+    }
+
+    // Whether output artifacts reuse the unchanged parts of their previous upload, see PublisherTools
+    public boolean isDeltaUpload() {
+        return deltaUpload;
+    }
+
+    public void setDeltaUpload(final boolean deltaUpload) {
+        this.deltaUpload = deltaUpload;
+    }
+
+    // Whether output artifacts are archived without timestamps, owners or listing order, see ArchiveEntryFactory
+    public boolean isReproducibleArchives() {
+        return reproducibleArchives;
+    }
+
+    public void setReproducibleArchives(final boolean reproducibleArchives) {
+        this.reproducibleArchives = reproducibleArchives;
+    }
+
+    // Whether the archives of output directories are kept and reused while the directories do not change,
+    // see ArchiveManifest
+    public boolean isArchiveCache() {
+        return archiveCache;
+    }
+
+    public void setArchiveCache(final boolean archiveCache) {
+        this.archiveCache = archiveCache;
+    }
+
+    public boolean isNativeArchiveTools() {
+        return nativeArchiveTools;
+    }
+
+    public void setNativeArchiveTools(final boolean nativeArchiveTools) {
+        this.nativeArchiveTools = nativeArchiveTools;
+    }
+
+    public boolean isPooledTransfers() {
+        return pooledTransfers;
+    }
+
+    public void setPooledTransfers(final boolean pooledTransfers) {
+        this.pooledTransfers = pooledTransfers;
+    }
+
+    // Takes precedence over pooled transfers
+    public boolean isAsyncTransfers() {
+        return asyncTransfers;
+    }
+
+    public void setAsyncTransfers(final boolean asyncTransfers) {
+        this.asyncTransfers = asyncTransfers;
+    }
+
+    // Null leaves the limit to the agent's system property, see TransferScheduler
+    public Integer getMaxTransferStreams() {
+        return maxTransferStreams;
+    }
+
+    public void setMaxTransferStreams(final Integer maxTransferStreams) {
+        this.maxTransferStreams = maxTransferStreams;
+    }
+
+    public Long getMaxTransferBytesPerSecond() {
+        return maxTransferBytesPerSecond;
+    }
+
+    public void setMaxTransferBytesPerSecond(final Long maxTransferBytesPerSecond) {
+        this.maxTransferBytesPerSecond = maxTransferBytesPerSecond;
+    }
+
+    // Null leaves it to the agent's system property, see PublisherCallable
+    public Integer getPublisherParallelism() {
+        return publisherParallelism;
+    }
+
+    public void setPublisherParallelism(final Integer publisherParallelism) {
+        this.publisherParallelism = publisherParallelism;
+    }
+
+    // Context of the job's root span, see CodePipelineTracing
+    public Map<String, String> getTraceContext() {
+        return traceContext;
+    }
+
+    public void setTraceContext(final Map<String, String> traceContext) {
+        this.traceContext = traceContext;
+    }
+
     public EncryptionKey getEncryptionKey() {
         Objects.requireNonNull(job, "The job is null");
         Objects.requireNonNull(job.getData(), "The job data is null");
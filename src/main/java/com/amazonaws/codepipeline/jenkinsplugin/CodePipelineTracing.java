@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import hudson.init.Terminator;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.ContextKey;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.exporter.otlp.http.trace.OtlpHttpSpanExporter;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+
+/**
+ * OpenTelemetry tracing of an AWS CodePipeline job.
+ *
+ * A job is polled and checked out on the controller, downloaded and uploaded on an agent and finally
+ * reported back from the controller. The polling span is the root of the job's trace; its context travels
+ * to the publisher in the {@link CodePipelineStateModel} and to the agent inside the callables, so every
+ * phase and every AWS call of a job shows up on the same timeline.
+ *
+ * Spans are exported over OTLP/HTTP when an endpoint is configured, otherwise they are handed to
+ * {@link GlobalOpenTelemetry}, which does nothing unless an SDK has been registered in the JVM. Only the SDK
+ * of the latest endpoint is kept: when the endpoint changes, the SDK of the previous one is shut down along
+ * with its export thread, and Jenkins shuts down the last one when it stops.
+ */
+public final class CodePipelineTracing {
+
+    public static final AttributeKey<String> JOB_ID = AttributeKey.stringKey("codepipeline.job.id");
+
+    private static final String INSTRUMENTATION_NAME = "com.amazonaws.codepipeline.jenkinsplugin";
+    private static final String SERVICE_NAME = "jenkins-aws-codepipeline";
+    private static final long FLUSH_TIMEOUT_SECONDS = 10;
+
+    private static final ContextKey<Tracer> TRACER_KEY = ContextKey.named("aws-codepipeline-tracer");
+
+    // The endpoint spans are exported to and its SDK, guarded by the class
+    private static String exportingEndpoint;
+    private static OpenTelemetrySdk exportingSdk;
+
+    private static final TextMapGetter<Map<String, String>> MAP_GETTER = new TextMapGetter<Map<String, String>>() {
+        @Override
+        public Iterable<String> keys(final Map<String, String> carrier) {
+            return carrier.keySet();
+        }
+
+        @Override
+        public String get(final Map<String, String> carrier, final String key) {
+            return carrier == null ? null : carrier.get(key);
+        }
+    };
+
+    private CodePipelineTracing() {}
+
+    public static Tracer getTracer(final String otlpEndpoint) {
+        return getOpenTelemetry(otlpEndpoint).getTracer(INSTRUMENTATION_NAME);
+    }
+
+    public static Span startSpan(
+            final Tracer tracer,
+            final String name,
+            final Context parent,
+            final String jobId) {
+
+        return startSpan(tracer, name, parent, jobId, null);
+    }
+
+    public static Span startSpan(
+            final Tracer tracer,
+            final String name,
+            final Context parent,
+            final String jobId,
+            final Instant startTime) {
+
+        final SpanBuilder builder = tracer.spanBuilder(name).setParent(parent);
+
+        if (jobId != null) {
+            builder.setAttribute(JOB_ID, jobId);
+        }
+        if (startTime != null) {
+            builder.setStartTimestamp(startTime);
+        }
+
+        return builder.startSpan();
+    }
+
+    /**
+     * Makes the span current together with its tracer, so that nested phases and the AWS SDK request
+     * handler can create child spans without having the tracer passed around.
+     */
+    public static Scope makeCurrent(final Span span, final Tracer tracer) {
+        return Context.current().with(span).with(TRACER_KEY, tracer).makeCurrent();
+    }
+
+    static Tracer currentTracer() {
+        return Context.current().get(TRACER_KEY);
+    }
+
+    /**
+     * Runs the call in a child span of the current span. When no traced phase is active the call is run as is.
+     */
+    public static <T, E extends Exception> T inSpan(final String name, final TracedCall<T, E> call) throws E {
+        final Tracer tracer = currentTracer();
+        if (tracer == null) {
+            return call.call();
+        }
+
+        final Span span = tracer.spanBuilder(name).startSpan();
+        try (final Scope ignored = span.makeCurrent()) {
+            return call.call();
+        } catch (final Exception ex) {
+            recordFailure(span, ex);
+            throw ex;
+        } finally {
+            span.end();
+        }
+    }
+
+    public static void recordFailure(final Span span, final Throwable ex) {
+        span.recordException(ex);
+        span.setStatus(StatusCode.ERROR, String.valueOf(ex.getMessage()));
+    }
+
+    public static Map<String, String> inject(final Context context) {
+        final Map<String, String> carrier = new HashMap<>();
+        W3CTraceContextPropagator.getInstance().inject(context, carrier, Map::put);
+        return carrier;
+    }
+
+    public static Context extract(final Map<String, String> carrier) {
+        if (carrier == null || carrier.isEmpty()) {
+            return Context.root();
+        }
+        return W3CTraceContextPropagator.getInstance().extract(Context.root(), carrier, MAP_GETTER);
+    }
+
+    /**
+     * Exports the spans ended so far. Called at the end of each phase so that spans recorded on an agent
+     * do not wait for the next export interval.
+     */
+    public static void flush(final String otlpEndpoint) {
+        if (StringUtils.isBlank(otlpEndpoint)) {
+            return;
+        }
+
+        final OpenTelemetrySdk sdk;
+        synchronized (CodePipelineTracing.class) {
+            sdk = otlpEndpoint.trim().equals(exportingEndpoint) ? exportingSdk : null;
+        }
+        if (sdk != null) {
+            sdk.getSdkTracerProvider().forceFlush().join(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static OpenTelemetry getOpenTelemetry(final String otlpEndpoint) {
+        if (StringUtils.isBlank(otlpEndpoint)) {
+            return GlobalOpenTelemetry.get();
+        }
+
+        final String endpoint = otlpEndpoint.trim();
+        final OpenTelemetrySdk replaced;
+        final OpenTelemetrySdk sdk;
+        synchronized (CodePipelineTracing.class) {
+            if (endpoint.equals(exportingEndpoint)) {
+                return exportingSdk;
+            }
+            replaced = exportingSdk;
+            sdk = createExportingSdk(endpoint);
+            exportingEndpoint = endpoint;
+            exportingSdk = sdk;
+        }
+
+        // Spans still open on the replaced SDK are dropped, the ended ones are exported first
+        shutdown(replaced);
+        return sdk;
+    }
+
+    /**
+     * Shuts down the SDK exporting spans, if any, after exporting what it still holds.
+     */
+    @Terminator
+    public static void shutdown() {
+        final OpenTelemetrySdk sdk;
+        synchronized (CodePipelineTracing.class) {
+            sdk = exportingSdk;
+            exportingEndpoint = null;
+            exportingSdk = null;
+        }
+        shutdown(sdk);
+    }
+
+    private static void shutdown(final OpenTelemetrySdk sdk) {
+        if (sdk != null) {
+            sdk.getSdkTracerProvider().shutdown().join(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static OpenTelemetrySdk createExportingSdk(final String otlpEndpoint) {
+        final Resource resource = Resource.getDefault().merge(
+                Resource.create(Attributes.of(AttributeKey.stringKey("service.name"), SERVICE_NAME)));
+
+        final SdkTracerProvider tracerProvider = SdkTracerProvider.builder()
+                .setResource(resource)
+                .addSpanProcessor(BatchSpanProcessor.builder(
+                        OtlpHttpSpanExporter.builder().setEndpoint(otlpEndpoint).build()).build())
+                .build();
+
+        return OpenTelemetrySdk.builder()
+                .setTracerProvider(tracerProvider)
+                .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+                .build();
+    }
+
+    public interface TracedCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+}
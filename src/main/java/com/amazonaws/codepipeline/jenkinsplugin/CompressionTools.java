@@ -15,27 +15,37 @@
 package com.amazonaws.codepipeline.jenkinsplugin;
 
 import hudson.model.BuildListener;
-import hudson.util.IOUtils;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.List;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
@@ -55,21 +65,61 @@ public final class CompressionTools {
             final CompressionType compressionType,
             final BuildListener listener)
             throws IOException {
+        return compressFile(projectName, pathToCompress, PathFilter.ALL, compressionType, null, false, listener);
+    }
+
+    /**
+     * @param filter the files below the path to archive
+     * @param digest updated with the bytes of the archive as they are written, may be null
+     * @param reproducible whether the archive only depends on the names and contents of the files, see
+     *        {@link ArchiveEntryFactory#ArchiveEntryFactory(CompressionType, boolean)}
+     */
+    static File compressFile(
+            final String projectName,
+            final Path pathToCompress,
+            final PathFilter filter,
+            final CompressionType compressionType,
+            final MessageDigest digest,
+            final boolean reproducible,
+            final BuildListener listener)
+            throws IOException {
+        return compressFile(projectName, pathToCompress, filter, compressionType, digest, reproducible, false, listener);
+    }
+
+    /**
+     * @param nativeTools whether to create tar archives with the tools of {@link NativeArchiveTools} where the
+     *        agent has them; reproducible archives are always created by the plugin
+     */
+    static File compressFile(
+            final String projectName,
+            final Path pathToCompress,
+            final PathFilter filter,
+            final CompressionType compressionType,
+            final MessageDigest digest,
+            final boolean reproducible,
+            final boolean nativeTools,
+            final BuildListener listener)
+            throws IOException {
         File compressedArtifacts = null;
+        final boolean useNativeTools = nativeTools && !reproducible;
 
         try {
             switch (compressionType) {
                 case Zip:
                     compressedArtifacts = File.createTempFile(projectName + "-", ".zip");
-                    compressZipFile(compressedArtifacts, pathToCompress, listener);
+                    compressZipFile(compressedArtifacts, pathToCompress, filter, digest, reproducible, listener);
                     break;
                 case Tar:
                     compressedArtifacts = File.createTempFile(projectName + "-", ".tar");
-                    compressTarFile(compressedArtifacts, pathToCompress, listener);
+                    if (!useNativeTools || !compressNatively(compressedArtifacts, pathToCompress, filter, compressionType, digest, listener)) {
+                        compressTarFile(compressedArtifacts, pathToCompress, filter, digest, reproducible, listener);
+                    }
                     break;
                 case TarGz:
                     compressedArtifacts = File.createTempFile(projectName + "-", ".tar.gz");
-                    compressTarGzFile(compressedArtifacts, pathToCompress, listener);
+                    if (!useNativeTools || !compressNatively(compressedArtifacts, pathToCompress, filter, compressionType, digest, listener)) {
+                        compressTarGzFile(compressedArtifacts, pathToCompress, filter, digest, reproducible, listener);
+                    }
                     break;
                 case None:
                     throw new IllegalArgumentException("No compression type specified.");
@@ -86,20 +136,62 @@ public final class CompressionTools {
         return compressedArtifacts;
     }
 
+    private static boolean compressNatively(
+            final File archive,
+            final Path pathToCompress,
+            final PathFilter filter,
+            final CompressionType compressionType,
+            final MessageDigest digest,
+            final BuildListener listener)
+            throws IOException {
+        final NativeArchiveTools nativeArchiveTools = NativeArchiveTools.get();
+        if (!nativeArchiveTools.canCompress(compressionType)) {
+            return false;
+        }
+
+        LoggingHelper.log(listener, "Compressing directory '%s' as a '%s' archive with tar",
+                pathToCompress.toString(),
+                compressionType.name());
+
+        if (!nativeArchiveTools.compress(archive, pathToCompress, filter, compressionType, listener)) {
+            return false;
+        }
+
+        // Written by another process, the digest can only be taken afterwards
+        if (digest != null) {
+            try (final FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+                BufferPool.update(in, 0, in.size(), digest);
+            }
+        }
+        return true;
+    }
+
     public static void compressZipFile(
             final File temporaryZipFile,
             final Path pathToCompress,
             final BuildListener listener)
             throws IOException {
+        compressZipFile(temporaryZipFile, pathToCompress, PathFilter.ALL, null, false, listener);
+    }
+
+    static void compressZipFile(
+            final File temporaryZipFile,
+            final Path pathToCompress,
+            final PathFilter filter,
+            final MessageDigest digest,
+            final boolean reproducible,
+            final BuildListener listener)
+            throws IOException {
         try (final ZipArchiveOutputStream zipArchiveOutputStream =
                      new ZipArchiveOutputStream(
                      new BufferedOutputStream(
-                     new FileOutputStream(temporaryZipFile)))) {
+                     openArchiveFile(temporaryZipFile, digest)))) {
 
             compressArchive(
                     pathToCompress,
+                    filter,
                     zipArchiveOutputStream,
-                    new ArchiveEntryFactory(CompressionType.Zip),
+                    new ArchiveEntryFactory(CompressionType.Zip, reproducible),
                     CompressionType.Zip,
                     listener);
         }
@@ -110,16 +202,28 @@ public final class CompressionTools {
             final Path pathToCompress,
             final BuildListener listener)
             throws IOException {
+        compressTarFile(temporaryTarFile, pathToCompress, PathFilter.ALL, null, false, listener);
+    }
+
+    static void compressTarFile(
+            final File temporaryTarFile,
+            final Path pathToCompress,
+            final PathFilter filter,
+            final MessageDigest digest,
+            final boolean reproducible,
+            final BuildListener listener)
+            throws IOException {
         try (final TarArchiveOutputStream tarArchiveOutputStream =
                      new TarArchiveOutputStream(
                      new BufferedOutputStream(
-                     new FileOutputStream(temporaryTarFile)))) {
+                     openArchiveFile(temporaryTarFile, digest)))) {
 
             tarArchiveOutputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
             compressArchive(
                     pathToCompress,
+                    filter,
                     tarArchiveOutputStream,
-                    new ArchiveEntryFactory(CompressionType.Tar),
+                    new ArchiveEntryFactory(CompressionType.Tar, reproducible),
                     CompressionType.Tar,
                     listener);
         }
@@ -130,50 +234,89 @@ public final class CompressionTools {
             final Path pathToCompress,
             final BuildListener listener)
             throws IOException {
+        compressTarGzFile(temporaryTarGzFile, pathToCompress, PathFilter.ALL, null, false, listener);
+    }
+
+    static void compressTarGzFile(
+            final File temporaryTarGzFile,
+            final Path pathToCompress,
+            final PathFilter filter,
+            final MessageDigest digest,
+            final boolean reproducible,
+            final BuildListener listener)
+            throws IOException {
         try (final TarArchiveOutputStream tarGzArchiveOutputStream =
                 new TarArchiveOutputStream(
                 new BufferedOutputStream(
                 new GzipCompressorOutputStream(
-                new FileOutputStream(temporaryTarGzFile))))) {
+                openArchiveFile(temporaryTarGzFile, digest))))) {
 
             tarGzArchiveOutputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
             compressArchive(
                     pathToCompress,
+                    filter,
                     tarGzArchiveOutputStream,
-                    new ArchiveEntryFactory(CompressionType.TarGz),
+                    new ArchiveEntryFactory(CompressionType.TarGz, reproducible),
                     CompressionType.TarGz,
                     listener);
         }
     }
 
+    private static OutputStream openArchiveFile(final File archiveFile, final MessageDigest digest)
+            throws IOException {
+        final OutputStream out = new FileOutputStream(archiveFile);
+        return digest == null ? out : new DigestOutputStream(out, digest);
+    }
+
     private static void compressArchive(
             final Path pathToCompress,
+            final PathFilter filter,
             final ArchiveOutputStream archiveOutputStream,
             final ArchiveEntryFactory archiveEntryFactory,
             final CompressionType compressionType,
             final BuildListener listener)
             throws IOException {
-        final List<File> files = addFilesToCompress(pathToCompress, listener);
-
         LoggingHelper.log(listener, "Compressing directory '%s' as a '%s' archive",
                 pathToCompress.toString(),
                 compressionType.name());
 
-        for (final File file : files) {
-            final String newTarFileName = pathToCompress.relativize(file.toPath()).toString();
-            final ArchiveEntry archiveEntry = archiveEntryFactory.create(file, newTarFileName);
-            archiveOutputStream.putArchiveEntry(archiveEntry);
+        // The directory is walked and read ahead while the archive is written
+        try (final ArchiveSource archiveSource = new ArchiveSource(pathToCompress, filter, archiveEntryFactory, listener)) {
+            ArchiveSource.Item item;
 
-            try (final FileInputStream fileInputStream = new FileInputStream(file)) {
-                IOUtils.copy(fileInputStream, archiveOutputStream);
+            while ((item = archiveSource.next()) != null) {
+                archiveOutputStream.putArchiveEntry(item.getEntry());
+                item.writeContents(archiveOutputStream);
+                archiveOutputStream.closeArchiveEntry();
             }
-
-            archiveOutputStream.closeArchiveEntry();
         }
     }
 
     public static List<File> addFilesToCompress(final Path pathToCompress, final BuildListener listener) throws IOException {
         final List<File> files = new ArrayList<>();
+        walkFilesToCompress(pathToCompress, listener, (file, attributes) -> files.add(file.toFile()));
+        return files;
+    }
+
+    /**
+     * Walks the files below the path in the order the file system lists them, following links. A link cycle
+     * fails the walk.
+     */
+    static void walkFilesToCompress(
+            final Path pathToCompress,
+            final BuildListener listener,
+            final FileConsumer consumer) throws IOException {
+        walkFilesToCompress(pathToCompress, PathFilter.ALL, listener, consumer);
+    }
+
+    /**
+     * Walks the files below the path that pass the filter. Directories the filter rules out are skipped.
+     */
+    static void walkFilesToCompress(
+            final Path pathToCompress,
+            final PathFilter filter,
+            final BuildListener listener,
+            final FileConsumer consumer) throws IOException {
 
         if (pathToCompress != null) {
             Files.walkFileTree(
@@ -182,8 +325,18 @@ public final class CompressionTools {
                     Integer.MAX_VALUE,
                     new SimpleFileVisitor<Path>() {
                 @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                    if (!filter.isAll() && !dir.equals(pathToCompress)
+                            && !filter.mayIncludeBelow(pathToCompress.relativize(dir).toString())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override
                 public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
-                    files.add(file.toFile());
+                    if (filter.isAll() || filter.includesFile(pathToCompress.relativize(file).toString())) {
+                        consumer.accept(file, attrs);
+                    }
                     return FileVisitResult.CONTINUE;
                 }
                 @Override
@@ -197,8 +350,87 @@ public final class CompressionTools {
                 }
             });
         }
+    }
 
-        return files;
+    /**
+     * Walks the files below the path like {@link #walkFilesToCompress}, but in the order of their names within
+     * each directory, so that the order only depends on the names of the files.
+     */
+    static void walkFilesToCompressSorted(
+            final Path pathToCompress,
+            final BuildListener listener,
+            final FileConsumer consumer) throws IOException {
+        walkFilesToCompressSorted(pathToCompress, PathFilter.ALL, listener, consumer);
+    }
+
+    static void walkFilesToCompressSorted(
+            final Path pathToCompress,
+            final PathFilter filter,
+            final BuildListener listener,
+            final FileConsumer consumer) throws IOException {
+
+        if (pathToCompress != null) {
+            walkSorted(pathToCompress, pathToCompress, filter, new ArrayDeque<>(), listener, consumer);
+        }
+    }
+
+    private static void walkSorted(
+            final Path root,
+            final Path path,
+            final PathFilter filter,
+            final Deque<Object> ancestors,
+            final BuildListener listener,
+            final FileConsumer consumer) throws IOException {
+
+        final BasicFileAttributes attributes;
+        final List<Path> children = new ArrayList<>();
+        final Object key;
+
+        try {
+            attributes = readAttributes(path);
+            if (!attributes.isDirectory()) {
+                if (filter.isAll() || filter.includesFile(root.relativize(path).toString())) {
+                    consumer.accept(path, attributes);
+                }
+                return;
+            }
+
+            if (!filter.isAll() && !path.equals(root) && !filter.mayIncludeBelow(root.relativize(path).toString())) {
+                return;
+            }
+
+            key = attributes.fileKey() != null ? attributes.fileKey() : path.toRealPath();
+            if (ancestors.contains(key)) {
+                throw new FileSystemLoopException(path.toString());
+            }
+
+            try (final DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path)) {
+                for (final Path child : directoryStream) {
+                    children.add(child);
+                }
+            }
+        } catch (final FileSystemLoopException | NoSuchFileException | AccessDeniedException e) {
+            LoggingHelper.log(listener, "Failed to visit file '%s'. Error: %s.", path.toString(), e.getMessage());
+            LoggingHelper.log(listener, e);
+            throw e;
+        }
+
+        children.sort(Comparator.comparing(child -> child.getFileName().toString()));
+
+        ancestors.push(key);
+        for (final Path child : children) {
+            walkSorted(root, child, filter, ancestors, listener, consumer);
+        }
+        ancestors.pop();
+    }
+
+    private static BasicFileAttributes readAttributes(final Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (final NoSuchFileException ex) {
+            // A link to nothing is taken as a file, as walkFileTree does
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
     }
 
     public static Path resolveWorkspacePath(
@@ -239,4 +471,8 @@ public final class CompressionTools {
         return path;
     }
 
+    interface FileConsumer {
+        void accept(Path file, BasicFileAttributes attributes) throws IOException;
+    }
+
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.http.AmazonHttpClient;
+import com.amazonaws.http.apache.client.impl.ConnectionManagerAwareHttpClient;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+
+/**
+ * The connection pools of the clients of a service. Every client is {@link #register registered} once it is
+ * built and {@link #release released} when it is shut down, or dropped along with a client that never is.
+ *
+ * The counts are read from the pools when they are asked for. The requests and the peaks are counted by the
+ * {@link #getCollector() collector} the clients are built with, from what each request saw when it was about
+ * to lease a connection, and by every read of the pools.
+ */
+final class ConnectionPoolMetrics implements ConnectionPoolMetricsMXBean {
+
+    static final String OBJECT_NAME_PREFIX = "com.amazonaws.codepipeline.jenkinsplugin:type=ConnectionPool,service=";
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPoolMetrics.class.getName());
+
+    static final ConnectionPoolMetrics S3 = register(new ConnectionPoolMetrics(), "S3");
+    static final ConnectionPoolMetrics CODE_PIPELINE = register(new ConnectionPoolMetrics(), "CodePipeline");
+
+    // Weak, the client holds on to its pool for as long as it is in use
+    private final Map<ConnPoolControl<?>, Boolean> pools = Collections.synchronizedMap(new WeakHashMap<>());
+    private final RequestMetricCollector collector = new Collector();
+    private final AtomicInteger peakLeasedConnections = new AtomicInteger();
+    private final AtomicInteger peakPendingRequests = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+
+    ConnectionPoolMetrics() {
+    }
+
+    private static ConnectionPoolMetrics register(final ConnectionPoolMetrics metrics, final String service) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME_PREFIX + service));
+        } catch (final InstanceAlreadyExistsException ex) {
+            // Loaded again by another class loader, the first one keeps reporting
+        } catch (final JMException | RuntimeException ex) {
+            LOGGER.log(Level.FINE, "Unable to register the connection pool metrics", ex);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the collector to build the clients of the service with
+     */
+    RequestMetricCollector getCollector() {
+        return collector;
+    }
+
+    /**
+     * Starts reading the pool of a client. Clients that do not keep their pool where the SDK does, such as
+     * mocks, are left out.
+     */
+    void register(final Object client) {
+        final ConnPoolControl<?> pool = getPool(client);
+        if (pool != null) {
+            register(pool);
+        }
+    }
+
+    void register(final ConnPoolControl<?> pool) {
+        pools.put(pool, Boolean.TRUE);
+    }
+
+    /**
+     * Stops reading the pool of a client that was shut down, the pool is gone with it.
+     */
+    void release(final Object client) {
+        final ConnPoolControl<?> pool = getPool(client);
+        if (pool != null) {
+            release(pool);
+        }
+    }
+
+    void release(final ConnPoolControl<?> pool) {
+        pools.remove(pool);
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        return getTotalStats().getLeased();
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        return getTotalStats().getAvailable();
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return getTotalStats().getPending();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return getTotalStats().getMax();
+    }
+
+    @Override
+    public int getPeakLeasedConnections() {
+        getTotalStats();
+        return peakLeasedConnections.get();
+    }
+
+    @Override
+    public int getPeakPendingRequests() {
+        getTotalStats();
+        return peakPendingRequests.get();
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    private PoolStats getTotalStats() {
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        int max = 0;
+        for (final ConnPoolControl<?> pool : getPools()) {
+            final PoolStats stats = pool.getTotalStats();
+            leased += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+            max += stats.getMax();
+        }
+        peakLeasedConnections.accumulateAndGet(leased, Math::max);
+        peakPendingRequests.accumulateAndGet(pending, Math::max);
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    private List<ConnPoolControl<?>> getPools() {
+        synchronized (pools) {
+            return new ArrayList<>(pools.keySet());
+        }
+    }
+
+    // The SDK keeps the pool of a client to itself, it is the connection manager of its HTTP client
+    private static ConnPoolControl<?> getPool(final Object client) {
+        if (!(client instanceof AmazonWebServiceClient)) {
+            return null;
+        }
+        try {
+            final Object httpClient = getField(AmazonWebServiceClient.class, "client", client);
+            final Object apacheHttpClient = getField(AmazonHttpClient.class, "httpClient", httpClient);
+            if (apacheHttpClient instanceof ConnectionManagerAwareHttpClient) {
+                final Object connectionManager = ((ConnectionManagerAwareHttpClient) apacheHttpClient).getHttpClientConnectionManager();
+                if (connectionManager instanceof ConnPoolControl) {
+                    return (ConnPoolControl<?>) connectionManager;
+                }
+            }
+        } catch (final ReflectiveOperationException | RuntimeException ex) {
+            LOGGER.log(Level.FINE, "Unable to find the connection pool of the client", ex);
+        }
+        return null;
+    }
+
+    private static Object getField(final Class<?> type, final String name, final Object instance) throws ReflectiveOperationException {
+        if (instance == null) {
+            return null;
+        }
+        final Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(instance);
+    }
+
+    private static int getCounter(final TimingInfo timingInfo, final AWSRequestMetrics.Field field) {
+        final Number counter = timingInfo.getCounter(field.name());
+        return counter == null ? -1 : counter.intValue();
+    }
+
+    private final class Collector extends RequestMetricCollector {
+        @Override
+        public void collectMetrics(final Request<?> request, final Response<?> response) {
+            final AWSRequestMetrics metrics = request.getAWSRequestMetrics();
+            if (metrics == null || metrics.getTimingInfo() == null) {
+                return;
+            }
+
+            final TimingInfo timingInfo = metrics.getTimingInfo();
+            final int leased = getCounter(timingInfo, AWSRequestMetrics.Field.HttpClientPoolLeasedCount);
+            if (leased < 0) {
+                // Failed before it got to the pool
+                return;
+            }
+            final int pending = Math.max(0, getCounter(timingInfo, AWSRequestMetrics.Field.HttpClientPoolPendingCount));
+
+            requests.incrementAndGet();
+            peakLeasedConnections.accumulateAndGet(leased, Math::max);
+            peakPendingRequests.accumulateAndGet(pending, Math::max);
+        }
+    }
+
+}
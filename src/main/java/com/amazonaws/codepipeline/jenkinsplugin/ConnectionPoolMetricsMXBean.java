@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+/**
+ * Connection pools of the clients of one service, registered with the platform MBean server as
+ * {@value ConnectionPoolMetrics#OBJECT_NAME_PREFIX} followed by the service.
+ *
+ * The counts are the sum over the pools of the clients that were not shut down yet, as they are at the time
+ * they are read. The peaks are the highest counts seen by a request about to lease a connection or by a read.
+ */
+public interface ConnectionPoolMetricsMXBean {
+
+    int getLeasedConnections();
+
+    int getAvailableConnections();
+
+    /**
+     * @return the requests waiting for a connection, because the pool had none left
+     */
+    int getPendingRequests();
+
+    /**
+     * @return the connections the pools may open at most
+     */
+    int getMaxConnections();
+
+    int getPeakLeasedConnections();
+
+    int getPeakPendingRequests();
+
+    long getRequests();
+
+}
@@ -19,32 +19,53 @@ import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Map;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import org.apache.commons.io.FileUtils;
 import org.jenkinsci.remoting.RoleChecker;
 
 import com.amazonaws.services.codepipeline.model.Artifact;
 import com.amazonaws.services.codepipeline.model.Job;
 import com.amazonaws.services.codepipeline.model.S3ArtifactLocation;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
-import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 
 public final class DownloadCallable implements FileCallable<Void> {
 
     private static final long serialVersionUID = 1L;
 
+    // Attempts to continue a download whose connection dropped, counted again once an attempt gets further
+    private static final int RESUME_ATTEMPTS =
+            Integer.getInteger(DownloadCallable.class.getName() + ".resumeAttempts", 5);
+    private static final Backoff RESUME_BACKOFF = new Backoff(
+            Long.getLong(DownloadCallable.class.getName() + ".resumeRetryBaseDelay", 200),
+            Long.getLong(DownloadCallable.class.getName() + ".resumeRetryMaxDelay", 20_000));
+
     private final boolean clearWorkspace;
     private final TaskListener listener;
     private final Job job;
     private final CodePipelineStateModel model;
     private final AWSClientFactory awsClientFactory;
     private final String pluginUserAgentPrefix;
+    private final Map<String, String> traceContext;
 
     public DownloadCallable(
             final boolean clearWorkspace,
@@ -60,6 +81,7 @@ public final class DownloadCallable implements FileCallable<Void> {
         this.model = model;
         this.awsClientFactory = awsClientFactory;
         this.pluginUserAgentPrefix = pluginUserAgentPrefix;
+        this.traceContext = CodePipelineTracing.inject(Context.current());
     }
 
     // This is an abstract method in parent class so we have to override it. 
@@ -68,73 +90,130 @@ public final class DownloadCallable implements FileCallable<Void> {
     public void checkRoles(RoleChecker checker) throws SecurityException {
     }
 
-    @SuppressFBWarnings(value = "NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE",
-        justification = "The getter method should always return non-null values")
     @Override
     public Void invoke(final File workspace, final VirtualChannel channel) throws InterruptedException {
+        final Tracer tracer = CodePipelineTracing.getTracer(model.getOtlpEndpoint());
+        final Span span = CodePipelineTracing.startSpan(
+                tracer,
+                "Download",
+                CodePipelineTracing.extract(traceContext),
+                job.getId());
+
+        try (final Scope ignored = CodePipelineTracing.makeCurrent(span, tracer)) {
+            downloadInputArtifacts(workspace);
+        } catch (final InterruptedException | RuntimeException ex) {
+            CodePipelineTracing.recordFailure(span, ex);
+            throw ex;
+        } finally {
+            span.end();
+            CodePipelineTracing.flush(model.getOtlpEndpoint());
+        }
+
+        return null;
+    }
+
+    @SuppressFBWarnings(value = "NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE",
+        justification = "The getter method should always return non-null values")
+    private void downloadInputArtifacts(final File workspace) throws InterruptedException {
+        TransferScheduler.get().setLimits(model.getMaxTransferStreams(), model.getMaxTransferBytesPerSecond());
         clearWorkspaceIfSelected(workspace, listener);
 
         final AWSClients awsClients = awsClientFactory.getAwsClient(
-                model.getAwsAccessKey(),
-                model.getAwsSecretKey(),
-                model.getProxyHost(),
-                model.getProxyPort(),
-                model.getRegion(),
-                pluginUserAgentPrefix);
-
-        final AWSCodePipelineJobCredentialsProvider credentialsProvider = new AWSCodePipelineJobCredentialsProvider(
-                job.getId(), awsClients.getCodePipelineClient());
-        final AmazonS3 s3Client = awsClients.getS3Client(credentialsProvider);
-
-        for (final Artifact artifact : job.getData().getInputArtifacts()) {
-            final S3Object sessionObject = getS3Object(s3Client, artifact);
+                AWSClientSettings.fromModel(model, pluginUserAgentPrefix));
 
-            model.setCompressionType(ExtractionTools.getCompressionType(sessionObject, listener));
-
-            final String downloadedFileName = Paths.get(sessionObject.getKey()).getFileName().toString();
+        try {
+            final AWSCodePipelineJobCredentialsProvider credentialsProvider = new AWSCodePipelineJobCredentialsProvider(
+                    job.getId(), awsClients.getCodePipelineClient());
+            final AmazonS3 s3Client = awsClients.getS3Client(credentialsProvider);
+            final ArtifactDigestIndex digestIndex = loadDigestIndex(workspace);
 
-            try {
-                downloadAndExtract(sessionObject, workspace, downloadedFileName, listener);
-            } catch (final Exception ex) {
-                final String error = "Failed to acquire artifacts: " + ex.getMessage();
-                LoggingHelper.log(listener, error);
-                LoggingHelper.log(listener, ex);
+            for (final Artifact artifact : job.getData().getInputArtifacts()) {
+                try {
+                    downloadAndExtract(s3Client, artifact, workspace, digestIndex, listener);
+                } catch (final Exception ex) {
+                    final String error = "Failed to acquire artifacts: " + ex.getMessage();
+                    LoggingHelper.log(listener, error);
+                    LoggingHelper.log(listener, ex);
 
-                throw new InterruptedException(error);
+                    throw new InterruptedException(error);
+                }
             }
+        } finally {
+            awsClients.shutdown();
         }
+    }
 
-        return null;
+    private ArtifactDigestIndex loadDigestIndex(final File workspace) {
+        final File indexFile = WorkspaceStateDirectory.get(workspace, ArtifactDigestIndex.FILE_NAME);
+        try {
+            return ArtifactDigestIndex.load(indexFile);
+        } catch (final IOException ex) {
+            // Only costs the chance of copying an output artifact within S3
+            LoggingHelper.log(listener, "Unable to read the artifact digest index: %s", ex.getMessage());
+            return null;
+        }
     }
 
     private void clearWorkspaceIfSelected(final File workspace, final TaskListener listener) {
         if (clearWorkspace) {
             try {
                 LoggingHelper.log(listener, "Clearing workspace '%s' before download", workspace.getAbsolutePath());
-                FileUtils.cleanDirectory(workspace);
+                WorkspaceReaper.get().clear(workspace);
             } catch (final IOException ex) {
                 LoggingHelper.log(listener, "Unable to clear workspace: %s", ex.getMessage());
             }
+        } else {
+            try {
+                // Contents cleared before an agent restart that were not deleted yet
+                WorkspaceReaper.get().reclaim(workspace);
+            } catch (final IOException ex) {
+                LoggingHelper.log(listener, "Unable to delete previously cleared workspace contents: %s", ex.getMessage());
+            }
         }
     }
 
     private S3Object getS3Object(final AmazonS3 s3Client, final Artifact artifact) {
         final S3ArtifactLocation artifactLocation = artifact.getLocation().getS3Location();
-        return s3Client.getObject(artifactLocation.getBucketName(), artifactLocation.getObjectKey());
+        return TransferEngine.get(model.isPooledTransfers())
+                .getObject(s3Client, artifactLocation.getBucketName(), artifactLocation.getObjectKey());
     }
 
     private void downloadAndExtract(
-            final S3Object sessionObject,
+            final AmazonS3 s3Client,
+            final Artifact artifact,
             final File workspace,
-            final String downloadedFileName,
+            final ArtifactDigestIndex digestIndex,
             final TaskListener listener) throws IOException {
 
-        downloadArtifacts(sessionObject, workspace, downloadedFileName, listener);
+        final String downloadedFileName;
+
+        // Opened once the transfer has its turn, an object left unread while waiting could time out
+        try (final TransferScheduler.Transfer transfer =
+                     TransferScheduler.get().start(job.getId(), TransferScheduler.Priority.DOWNLOAD)) {
+            final S3Object sessionObject = getS3Object(s3Client, artifact);
+
+            model.setCompressionType(ExtractionTools.getCompressionType(sessionObject, listener));
+            downloadedFileName = Paths.get(sessionObject.getKey()).getFileName().toString();
+
+            CodePipelineTracing.inSpan("Transfer", () -> {
+                downloadArtifacts(s3Client, sessionObject, transfer, workspace, downloadedFileName, digestIndex, listener);
+                return null;
+            });
+        }
 
         final File fullFilePath = new File(workspace, downloadedFileName);
 
         try {
-            ExtractionTools.decompressFile(fullFilePath, workspace, model.getCompressionType(), listener);
+            CodePipelineTracing.inSpan("Extract", () -> {
+                ExtractionTools.decompressFile(
+                        fullFilePath,
+                        workspace,
+                        model.getCompressionType(),
+                        PathFilter.of(model.getExtractIncludes(), model.getExtractExcludes()),
+                        model.isNativeArchiveTools(),
+                        listener);
+                return null;
+            });
             LoggingHelper.log(listener, "Artifact uncompressed successfully");
         } finally {
             if (fullFilePath != null) {
@@ -148,34 +227,216 @@ public final class DownloadCallable implements FileCallable<Void> {
         }
     }
 
-    private static void downloadArtifacts(
+    private void downloadArtifacts(
+            final AmazonS3 s3Client,
             final S3Object sessionObject,
+            final TransferScheduler.Transfer transfer,
             final File workspace,
             final String downloadedFileName,
+            final ArtifactDigestIndex digestIndex,
             final TaskListener listener)
             throws IOException {
 
-        streamReadAndDownloadObject(workspace, sessionObject, downloadedFileName);
+        final DownloadVerifier verifier = DownloadVerifier.forObject(sessionObject.getKey(), sessionObject.getObjectMetadata());
+        final MessageDigest digest = verifier.getDigest();
+        final long size = streamReadAndDownloadObject(
+                s3Client, workspace, sessionObject, transfer, downloadedFileName, digest, verifier, listener);
+        final String sha256 = ArtifactDigestIndex.toHex(digest);
+        verifyContents(verifier, sha256, new File(workspace, downloadedFileName), listener);
         LoggingHelper.log(listener, "Successfully downloaded artifact from AWS CodePipeline");
+
+        // An output artifact with the same contents can then be copied from the input artifact
+        final ObjectMetadata metadata = sessionObject.getObjectMetadata();
+        if (digestIndex != null && metadata != null && metadata.getETag() != null) {
+            try {
+                digestIndex.put(sha256, new ArtifactDigestIndex.Location(
+                        sessionObject.getBucketName(),
+                        sessionObject.getKey(),
+                        size,
+                        metadata.getETag()));
+            } catch (final IOException ex) {
+                LoggingHelper.log(listener, "Unable to update the artifact digest index: %s", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Checks the contents with the digests taken while they were written, so the check costs no second pass
+     * over the file. A corrupt download is deleted.
+     */
+    private static void verifyContents(
+            final DownloadVerifier verifier,
+            final String sha256,
+            final File downloadedFile,
+            final TaskListener listener) throws IOException {
+        final String verified;
+        try {
+            verified = verifier.verify(sha256);
+        } catch (final IOException ex) {
+            ExtractionTools.deleteTemporaryCompressedFile(downloadedFile);
+            throw ex;
+        }
+
+        if (verified != null) {
+            LoggingHelper.log(listener, "Verified the %s", verified);
+        }
     }
 
-    private static void streamReadAndDownloadObject(
+    /**
+     * Writes the contents of the object to the file while taking their digests. When the connection drops,
+     * the download continues where the file ends with a ranged GET of the same version of the object, which
+     * the ETag has to match, so that the bytes already written are kept.
+     *
+     * @return the size of the file
+     */
+    private long streamReadAndDownloadObject(
+            final AmazonS3 s3Client,
             final File workspace,
             final S3Object sessionObject,
-            final String downloadedFileName) throws IOException {
+            final TransferScheduler.Transfer transfer,
+            final String downloadedFileName,
+            final MessageDigest digest,
+            final DownloadVerifier verifier,
+            final TaskListener listener) throws IOException {
 
         final File outputFile = new File(workspace, downloadedFileName);
+        final long contentLength = getContentLength(sessionObject);
+        final String eTag = sessionObject.getObjectMetadata() == null
+                ? null
+                : sessionObject.getObjectMetadata().getETag();
+
+        try (final RandomAccessFile file = new RandomAccessFile(outputFile, "rw");
+             final FileChannel target = file.getChannel()) {
+
+            // Reserve the whole file up front so it is not grown one write at a time
+            if (contentLength > 0) {
+                file.setLength(contentLength);
+            }
+
+            S3Object object = sessionObject;
+            int attempt = 0;
+            int resumes = 0;
+            long resumedFrom = 0;
+
+            while (true) {
+                try (final InputStream objectContents =
+                             new DigestInputStream(verifier.wrap(transfer.meter(object.getObjectContent())), digest)) {
+                    copyContents(objectContents, target);
+                    break;
+                } catch (final DroppedConnectionException ex) {
+                    final long position = target.position();
+                    if (contentLength > 0 && position >= contentLength) {
+                        // Dropped after the last byte arrived, nothing left to resume
+                        break;
+                    }
+
+                    attempt = position > resumedFrom ? 1 : attempt + 1;
+                    if (eTag == null || attempt >= RESUME_ATTEMPTS) {
+                        throw ex.getCause();
+                    }
+
+                    final long delayMillis = RESUME_BACKOFF.getDelayMillis(attempt);
+                    LoggingHelper.log(listener, "Connection dropped after %d bytes, resuming the download in %d ms: %s",
+                            position, delayMillis, ex.getCause().getMessage());
+                    sleep(delayMillis);
+
+                    object = resumeObject(s3Client, sessionObject, position, eTag);
+                    resumes++;
+                    resumedFrom = position;
+                }
+            }
+
+            final long written = target.position();
+            if (resumes > 0) {
+                LoggingHelper.log(listener, "Resumed the download %d times, the last time from byte %d", resumes, resumedFrom);
+            }
+
+            // Drops whatever was reserved but not received, or left over from an earlier download
+            file.setLength(written);
+            return written;
+        }
+    }
+
+    private S3Object resumeObject(
+            final AmazonS3 s3Client,
+            final S3Object sessionObject,
+            final long position,
+            final String eTag) throws IOException {
 
-        try (final S3ObjectInputStream objectContents = sessionObject.getObjectContent();
-             final OutputStream outputStream = new FileOutputStream(outputFile)) {
-            final int BUFFER_SIZE = 8192;
-            final byte[] buffer = new byte[BUFFER_SIZE];
+        final GetObjectRequest getObjectRequest = new GetObjectRequest(sessionObject.getBucketName(), sessionObject.getKey())
+                .withRange(position)
+                .withMatchingETagConstraint(eTag);
 
-            int i;
-            while ((i = objectContents.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, i);
+        final S3Object object = TransferEngine.get(model.isPooledTransfers()).getObject(s3Client, getObjectRequest);
+        if (object == null) {
+            throw new IOException(String.format(
+                    "%s changed while it was being downloaded, unable to resume the download", sessionObject.getKey()));
+        }
+        return object;
+    }
+
+    /**
+     * Copies the contents to the file, read through a channel straight into a write buffer borrowed from the
+     * slab pool, which is written to the file once full. What was read before the connection dropped is
+     * written too, so that the position of the file is where the download stopped.
+     *
+     * @throws DroppedConnectionException if reading the contents failed
+     */
+    static void copyContents(final InputStream in, final FileChannel target) throws IOException {
+        final ReadableByteChannel source = Channels.newChannel(in);
+
+        try (final BufferPool.WriteBuffer pending = BufferPool.takeWriteBuffer()) {
+            while (true) {
+                final int bytesRead;
+                try {
+                    bytesRead = pending.readFrom(source);
+                } catch (final SocketTimeoutException ex) {
+                    pending.drainTo(target);
+                    throw new DroppedConnectionException(ex);
+                } catch (final InterruptedIOException ex) {
+                    // The build was aborted
+                    throw ex;
+                } catch (final IOException ex) {
+                    pending.drainTo(target);
+                    throw new DroppedConnectionException(ex);
+                }
+
+                if (bytesRead == -1) {
+                    pending.drainTo(target);
+                    return;
+                }
+                if (pending.isFull()) {
+                    pending.drainTo(target);
+                }
             }
         }
     }
 
+    private static void sleep(final long delayMillis) throws InterruptedIOException {
+        try {
+            Thread.sleep(delayMillis);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to resume the download");
+        }
+    }
+
+    private static long getContentLength(final S3Object sessionObject) {
+        final ObjectMetadata metadata = sessionObject.getObjectMetadata();
+        return metadata == null ? -1 : metadata.getContentLength();
+    }
+
+    private static final class DroppedConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private DroppedConnectionException(final IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
 }
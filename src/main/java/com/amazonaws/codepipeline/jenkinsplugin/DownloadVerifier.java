@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Checks a downloaded artifact against what S3 knows of its contents, with digests taken while it is
+ * downloaded: the SHA-256 the plugin stores with the objects it publishes; otherwise the MD5 that is the ETag
+ * of objects uploaded in one part and not encrypted with KMS or customer keys, or the MD5 of the MD5 digests
+ * of the parts for such objects the plugin uploaded in parts of a recorded size; otherwise the CRC32C
+ * checksum S3 returns, see {@link ChecksumModeRequestHandler}, for objects uploaded with one. Only the
+ * digests needed for the check are taken.
+ */
+final class DownloadVerifier {
+
+    static final String CRC32C_HEADER = "x-amz-checksum-crc32c";
+
+    // The ETag of an object uploaded in one part, quoted or not; other ETags end with the number of parts
+    private static final Pattern MD5_ETAG = Pattern.compile("\"?[0-9a-fA-F]{32}\"?");
+    private static final Pattern MULTIPART_ETAG = Pattern.compile("\"?[0-9a-fA-F]{32}-[0-9]+\"?");
+
+    private final String key;
+    private final String expectedSha256;
+    private final String expectedMd5;
+    private final String expectedCrc32c;
+    private final String expectedETag;
+    private final MessageDigest md5;
+    private final CRC32C crc32c;
+    private final UploadDigest partDigest;
+
+    private DownloadVerifier(
+            final String key,
+            final String expectedSha256,
+            final String expectedMd5,
+            final String expectedCrc32c) {
+        this(key, expectedSha256, expectedMd5, expectedCrc32c, null, 0);
+    }
+
+    private DownloadVerifier(
+            final String key,
+            final String expectedSha256,
+            final String expectedMd5,
+            final String expectedCrc32c,
+            final String expectedETag,
+            final long partSize) {
+        this.key = key;
+        this.expectedSha256 = expectedSha256;
+        this.expectedMd5 = expectedMd5;
+        this.expectedCrc32c = expectedCrc32c;
+        this.expectedETag = expectedETag;
+        this.md5 = expectedMd5 == null ? null : newMd5();
+        this.crc32c = expectedCrc32c == null ? null : new CRC32C();
+        this.partDigest = expectedETag == null ? null : new UploadDigest(partSize);
+    }
+
+    /**
+     * Chooses the check from the metadata of the object, before its contents are read.
+     */
+    static DownloadVerifier forObject(final String key, final ObjectMetadata metadata) {
+        if (metadata == null) {
+            return new DownloadVerifier(key, null, null, null);
+        }
+
+        final String sha256 = metadata.getUserMetaDataOf(PublisherTools.SHA256_METADATA);
+        if (sha256 != null) {
+            return new DownloadVerifier(key, sha256, null, null);
+        }
+
+        final String eTag = metadata.getETag();
+        final boolean md5ETag = eTag != null
+                && metadata.getSSEAwsKmsKeyId() == null
+                && !isKms(metadata.getSSEAlgorithm())
+                && metadata.getSSECustomerAlgorithm() == null;
+        if (md5ETag && MD5_ETAG.matcher(eTag).matches()) {
+            return new DownloadVerifier(key, null, eTag.replace("\"", "").toLowerCase(Locale.ENGLISH), null);
+        }
+
+        final long partSize = parsePartSize(metadata.getUserMetaDataOf(PublisherTools.PART_SIZE_METADATA));
+        if (md5ETag && partSize > 0 && MULTIPART_ETAG.matcher(eTag).matches()) {
+            return new DownloadVerifier(
+                    key, null, null, null, eTag.replace("\"", "").toLowerCase(Locale.ENGLISH), partSize);
+        }
+
+        // A checksum of the checksums of the parts, followed by their number, is no checksum of the contents
+        final Object crc32c = metadata.getRawMetadataValue(CRC32C_HEADER);
+        if (crc32c instanceof String && !((String) crc32c).contains("-")) {
+            return new DownloadVerifier(key, null, null, (String) crc32c);
+        }
+
+        return new DownloadVerifier(key, null, null, null);
+    }
+
+    /**
+     * @return the SHA-256 digest to take of the contents, which for objects uploaded in parts also takes the
+     *         MD5 digests of the parts the check needs
+     */
+    MessageDigest getDigest() {
+        return partDigest != null ? partDigest : ArtifactDigestIndex.newDigest();
+    }
+
+    /**
+     * @return the stream, taking the digests the check needs as it is read
+     */
+    InputStream wrap(final InputStream in) {
+        InputStream wrapped = in;
+        if (md5 != null) {
+            wrapped = new DigestInputStream(wrapped, md5);
+        }
+        if (crc32c != null) {
+            wrapped = new CheckedInputStream(wrapped, crc32c);
+        }
+        return wrapped;
+    }
+
+    /**
+     * @param sha256 the SHA-256 digest of the contents, in hex, taken with {@link #getDigest()}
+     * @return what the contents were verified with, or null if there was nothing to verify them with
+     * @throws IOException if the contents do not match
+     */
+    String verify(final String sha256) throws IOException {
+        if (expectedSha256 != null) {
+            check("SHA-256 digest", sha256, expectedSha256);
+            return "SHA-256 digest of the artifact";
+        }
+        if (md5 != null) {
+            check("MD5 digest", BinaryUtils.toHex(md5.digest()), expectedMd5);
+            return "MD5 digest of the artifact against its ETag";
+        }
+        if (partDigest != null) {
+            check("multipart ETag", multipartETag(partDigest.getPartMd5s()), expectedETag);
+            return "MD5 digests of the parts of the artifact against its ETag";
+        }
+        if (crc32c != null) {
+            final byte[] checksum = ByteBuffer.allocate(Integer.BYTES).putInt((int) crc32c.getValue()).array();
+            check("CRC32C checksum", Base64.getEncoder().encodeToString(checksum), expectedCrc32c);
+            return "CRC32C checksum of the artifact";
+        }
+        return null;
+    }
+
+    private void check(final String name, final String actual, final String expected) throws IOException {
+        if (!expected.equalsIgnoreCase(actual)) {
+            throw new IOException(String.format(
+                    "Downloaded artifact %s is corrupt, its %s is %s instead of %s", key, name, actual, expected));
+        }
+    }
+
+    private static String multipartETag(final List<String> partMd5s) {
+        final MessageDigest digest = newMd5();
+        for (final String partMd5 : partMd5s) {
+            digest.update(BinaryUtils.fromHex(partMd5));
+        }
+        return BinaryUtils.toHex(digest.digest()) + "-" + partMd5s.size();
+    }
+
+    // Only what the plugin recorded is trusted, anything else leaves the contents unchecked
+    private static long parsePartSize(final String partSize) {
+        if (partSize == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(partSize);
+        } catch (final NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static boolean isKms(final String sseAlgorithm) {
+        return sseAlgorithm != null && sseAlgorithm.startsWith("aws:kms");
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
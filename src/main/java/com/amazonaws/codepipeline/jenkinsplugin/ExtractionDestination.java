@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The directory an archive is extracted to.
+ *
+ * The base directory is resolved once and entry names are checked against it lexically. Parent directories
+ * are created or verified once per extraction and remembered. Links are only resolved where one is actually
+ * found on the way, so an entry costs about one system call while every entry that would end up outside of
+ * the base directory is still refused.
+ *
+ * Files may be created from several threads at once; whoever creates a directory first wins, the others
+ * find it there.
+ */
+final class ExtractionDestination {
+
+    // Prefix of the directories inside the destination that archives are extracted to before being moved in place
+    static final String STAGING_PREFIX = ".aws-codepipeline-extract-";
+
+    private final Path base;
+    private final Set<Path> verifiedDirectories = ConcurrentHashMap.newKeySet();
+
+    ExtractionDestination(final File baseDirectory) throws IOException {
+        this.base = baseDirectory.toPath().toRealPath();
+        verifiedDirectories.add(base);
+    }
+
+    /**
+     * @return the normalized path of the entry, which is the base directory or below it
+     */
+    Path resolve(final String entryName) throws IOException {
+        final Path destination;
+        try {
+            // Resolved like new File(base, name) so that leading separators do not make the name absolute
+            destination = new File(base.toFile(), entryName).toPath().normalize();
+        } catch (final InvalidPathException ex) {
+            throw invalidDestination(entryName);
+        }
+
+        if (!destination.startsWith(base)) {
+            throw invalidDestination(entryName);
+        }
+        return destination;
+    }
+
+    void createDirectory(final String entryName) throws IOException {
+        createDirectories(resolve(entryName), entryName);
+    }
+
+    /**
+     * Creates or replaces the file of an entry along with any missing parent directories.
+     */
+    FileChannel createFile(final String entryName) throws IOException {
+        final Path file = resolve(entryName);
+        createDirectories(file.getParent(), entryName);
+
+        try {
+            return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING, LinkOption.NOFOLLOW_LINKS);
+        } catch (final IOException ex) {
+            if (!Files.isSymbolicLink(file)) {
+                throw ex;
+            }
+        }
+
+        // The entry replaces an existing link, which is only followed if it stays inside the base directory
+        verifyLinkTarget(file, entryName);
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    boolean exists(final String entryName) throws IOException {
+        return Files.exists(resolve(entryName), LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * Moves a file or directory extracted elsewhere on the same file system to the place of an entry, creating
+     * any missing parent directories. A file replaces an existing file, or the target of an existing link the
+     * way {@link #createFile} writes to it.
+     */
+    void move(final Path source, final String entryName) throws IOException {
+        Path target = resolve(entryName);
+        createDirectories(target.getParent(), entryName);
+
+        if (Files.isSymbolicLink(target)) {
+            verifyLinkTarget(target, entryName);
+            target = target.toRealPath();
+        }
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Moves everything extracted to a staging directory on the same file system in place, below the base
+     * directory. Directories that are new to the destination are moved as a whole.
+     */
+    void moveEntries(final Path stagingDirectory) throws IOException {
+        moveEntries(stagingDirectory, "");
+    }
+
+    private void moveEntries(final Path stagedDirectory, final String prefix) throws IOException {
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(stagedDirectory)) {
+            for (final Path entry : entries) {
+                final String entryName = prefix + entry.getFileName();
+
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) && exists(entryName)) {
+                    createDirectory(entryName);
+                    moveEntries(entry, entryName + "/");
+                } else {
+                    move(entry, entryName);
+                }
+            }
+        }
+    }
+
+    private void createDirectories(final Path directory, final String entryName) throws IOException {
+        if (directory == null || !directory.startsWith(base)) {
+            throw invalidDestination(entryName);
+        }
+        if (verifiedDirectories.contains(directory)) {
+            return;
+        }
+
+        createDirectories(directory.getParent(), entryName);
+
+        try {
+            Files.createDirectory(directory);
+        } catch (final FileAlreadyExistsException ex) {
+            final BasicFileAttributes attributes =
+                    Files.readAttributes(directory, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isSymbolicLink()) {
+                verifyLinkTarget(directory, entryName);
+            } else if (!attributes.isDirectory()) {
+                // Not cached, creating anything below it fails
+                return;
+            }
+        }
+
+        verifiedDirectories.add(directory);
+    }
+
+    private void verifyLinkTarget(final Path link, final String entryName) throws IOException {
+        if (!link.toRealPath().startsWith(base)) {
+            throw invalidDestination(entryName);
+        }
+    }
+
+    private static IOException invalidDestination(final String entryName) {
+        return new IOException("The compressed input file contains files targeting an invalid destination: " + entryName);
+    }
+
+}
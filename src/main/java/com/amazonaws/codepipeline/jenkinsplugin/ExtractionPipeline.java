@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes the files of an archive on a small pool while the archive is still being decoded, so that
+ * decompressing and writing to disk overlap instead of waiting for each other.
+ *
+ * The thread reading the archive copies the contents of each entry into slabs of the agent's {@link SlabPool}
+ * and hands them to the writer of the entry's file, which may start before the entry has been read to its
+ * end. The pool bounds the memory of entries waiting to be written: once an entry has its first slab,
+ * reading waits for more, and an entry that finds the pool empty is written by the reading thread itself.
+ * Directories are created by the reading thread, in archive order. An entry
+ * whose path is still being written waits for that write, so that the last entry of a name wins as it does
+ * when extracting sequentially.
+ */
+final class ExtractionPipeline implements Closeable {
+
+    private static final int WRITER_THREADS =
+            Integer.getInteger(ExtractionPipeline.class.getName() + ".writerThreads", 4);
+    private static final int MAX_TRACKED_WRITES = 4096;
+
+    private static final AtomicInteger PIPELINE_COUNT = new AtomicInteger();
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final ExtractionDestination destination;
+    private final SlabPool slabPool;
+    private final ExecutorService writers;
+    private final Map<Path, PendingFile> pendingWrites = new HashMap<>();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private volatile boolean closed;
+
+    ExtractionPipeline(final ExtractionDestination destination) {
+        this(destination, SlabPool.get());
+    }
+
+    ExtractionPipeline(final ExtractionDestination destination, final SlabPool slabPool) {
+        this.destination = destination;
+        this.slabPool = slabPool;
+
+        final String threadName = "AWS CodePipeline extraction " + PIPELINE_COUNT.incrementAndGet() + " writer";
+        this.writers = Executors.newFixedThreadPool(WRITER_THREADS, runnable -> {
+            final Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void createDirectory(final String entryName) throws IOException {
+        checkFailure();
+        awaitPendingWrite(destination.resolve(entryName));
+        destination.createDirectory(entryName);
+    }
+
+    /**
+     * Reads the contents of an entry from the stream and has them written to the entry's file.
+     *
+     * @param size the size of the entry if known, to allocate the file up front, or -1
+     */
+    void writeFile(final String entryName, final InputStream in, final long size) throws IOException {
+        checkFailure();
+
+        final Path file = destination.resolve(entryName);
+        awaitPendingWrite(file);
+
+        if (pendingWrites.size() >= MAX_TRACKED_WRITES) {
+            pendingWrites.values().removeIf(pendingFile -> pendingFile.written.isDone());
+        }
+
+        final ByteBuffer firstSlab = slabPool.tryTake();
+        if (firstSlab == null) {
+            // No memory to spare, the entry goes straight to disk
+            ExtractionTools.writeEntry(destination, entryName, in, size);
+            return;
+        }
+
+        final PendingFile pendingFile = new PendingFile(entryName, size);
+        pendingWrites.put(file, pendingFile);
+        try {
+            writers.execute(() -> write(pendingFile));
+        } catch (final RejectedExecutionException ex) {
+            slabPool.give(firstSlab);
+            throw new InterruptedIOException("Extraction closed");
+        }
+
+        // Read straight into the slabs, the channel copies through a small array of its own
+        final ReadableByteChannel source = Channels.newChannel(in);
+        try {
+            ByteBuffer slab = firstSlab;
+            while (true) {
+                try {
+                    fill(source, slab);
+                } catch (final IOException ex) {
+                    slabPool.give(slab);
+                    throw ex;
+                }
+                if (slab.position() == 0) {
+                    slabPool.give(slab);
+                    break;
+                }
+                slab.flip();
+                pendingFile.slabs.add(slab);
+                slab = slabPool.take();
+            }
+        } finally {
+            pendingFile.slabs.add(END);
+        }
+    }
+
+    /**
+     * Waits for all files to be written.
+     *
+     * @throws IOException the first failure to write a file
+     */
+    void finish() throws IOException {
+        writers.shutdown();
+        try {
+            while (!writers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keeps waiting, a slow disk is no reason to give up
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for extracted files to be written");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stops the writers, interrupting those writing, and gives back the slabs of every file not written yet.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writers.shutdownNow();
+        try {
+            // Writes are interruptible, the writers stop as soon as they notice
+            while (!writers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keeps waiting, the staged files are deleted once the pipeline is closed
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        // All slabs have been queued by now, those of started writes as well as the others
+        for (final PendingFile pendingFile : pendingWrites.values()) {
+            pendingFile.started.set(true);
+            drainSlabs(pendingFile);
+        }
+    }
+
+    private void write(final PendingFile pendingFile) {
+        if (!pendingFile.started.compareAndSet(false, true)) {
+            return;
+        }
+        boolean ended = false;
+
+        try {
+            try (final FileChannel channel = destination.createFile(pendingFile.entryName)) {
+                if (pendingFile.size >= ExtractionTools.PREALLOCATION_THRESHOLD) {
+                    // Extends the file to its final size before the first write
+                    channel.write(ByteBuffer.wrap(new byte[1]), pendingFile.size - 1);
+                }
+
+                long written = 0;
+                ByteBuffer slab;
+                while ((slab = pendingFile.slabs.take()) != END) {
+                    try {
+                        while (slab.hasRemaining()) {
+                            written += channel.write(slab);
+                        }
+                    } finally {
+                        slabPool.give(slab);
+                    }
+                }
+                ended = true;
+
+                // Drops whatever was reserved but not written
+                if (channel.size() != written) {
+                    channel.truncate(written);
+                }
+            }
+        } catch (final IOException ex) {
+            failure.compareAndSet(null, ex);
+        } catch (final InterruptedException ex) {
+            failure.compareAndSet(null, new InterruptedIOException("Interrupted while writing " + pendingFile.entryName));
+        } finally {
+            // The reading thread may be waiting for the slabs still queued for this file
+            if (!ended) {
+                releaseSlabs(pendingFile);
+            }
+            pendingFile.written.complete(null);
+        }
+    }
+
+    private void releaseSlabs(final PendingFile pendingFile) {
+        // The interrupt of close() would fail the wait right away, the writer stops once the slabs are back
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (!closed) {
+                final ByteBuffer slab = pendingFile.slabs.poll(100, TimeUnit.MILLISECONDS);
+                if (slab == END) {
+                    return;
+                }
+                if (slab != null) {
+                    slabPool.give(slab);
+                }
+            }
+        } catch (final InterruptedException ex) {
+            // Closed, close() gives back the rest
+            interrupted = true;
+        } finally {
+            drainSlabs(pendingFile);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void drainSlabs(final PendingFile pendingFile) {
+        ByteBuffer slab;
+        while ((slab = pendingFile.slabs.poll()) != null) {
+            if (slab != END) {
+                slabPool.give(slab);
+            }
+        }
+    }
+
+    private void awaitPendingWrite(final Path path) throws IOException {
+        final PendingFile pendingFile = pendingWrites.remove(path);
+        if (pendingFile == null) {
+            return;
+        }
+
+        try {
+            pendingFile.written.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + path + " to be written");
+        } catch (final ExecutionException ex) {
+            // Never completed exceptionally, failures are kept separately
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException ex = failure.get();
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    private static void fill(final ReadableByteChannel in, final ByteBuffer slab) throws IOException {
+        while (slab.hasRemaining()) {
+            if (BufferPool.read(in, slab) == -1) {
+                return;
+            }
+        }
+    }
+
+    private static final class PendingFile {
+        private final String entryName;
+        private final long size;
+        private final BlockingQueue<ByteBuffer> slabs = new LinkedBlockingQueue<>();
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private PendingFile(final String entryName, final long size) {
+            this.entryName = entryName;
+            this.size = size;
+        }
+    }
+
+}
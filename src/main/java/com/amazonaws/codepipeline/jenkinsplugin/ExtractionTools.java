@@ -16,113 +16,318 @@ package com.amazonaws.codepipeline.jenkinsplugin;
 
 import hudson.model.TaskListener;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Enumeration;
+import java.util.zip.ZipException;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.commons.compress.utils.IOUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 
 import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
 import com.amazonaws.services.s3.model.S3Object;
 
-@SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",
-    justification = ".mkdirs() returns booleans values which is not"
-    + "handled, but either value should be fine since directories "
-    + "may already exist.")
 public final class ExtractionTools {
 
+    // Entries at least this large have their whole file reserved before being written
+    static final long PREALLOCATION_THRESHOLD = 1024 * 1024;
+
+    // ZipFile keeps every central directory entry in memory, larger archives are extracted as a stream
+    private static final long STREAMING_ZIP_ENTRY_THRESHOLD =
+            Long.getLong(ExtractionTools.class.getName() + ".streamingZipEntryThreshold", 100_000);
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_LENGTH = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_LENGTH = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int MAX_ZIP_COMMENT_LENGTH = 0xFFFF;
+
     private ExtractionTools() {}
 
-    private static void extractZip(final File source, final File destination) throws IOException {
+    private static void extractZip(
+            final File source,
+            final File destination,
+            final PathFilter filter,
+            final TaskListener listener) throws IOException {
+        final long entryCount = getZipEntryCount(source);
+
+        final boolean streaming = entryCount >= STREAMING_ZIP_ENTRY_THRESHOLD;
+        if (streaming) {
+            LoggingHelper.log(listener, "Archive has %d entries, extracting it as a stream", entryCount);
+        }
+        extractZip(source, destination, streaming, entryCount, filter, listener);
+    }
+
+    static void extractZip(
+            final File source,
+            final File destination,
+            final boolean streaming,
+            final PathFilter filter,
+            final TaskListener listener) throws IOException {
+        extractZip(source, destination, streaming, streaming ? getZipEntryCount(source) : -1, filter, listener);
+    }
+
+    /**
+     * @param entryCount the number of entries the end of central directory record lists, or -1 if unknown
+     */
+    private static void extractZip(
+            final File source,
+            final File destination,
+            final boolean streaming,
+            final long entryCount,
+            final PathFilter filter,
+            final TaskListener listener) throws IOException {
+
+        if (streaming) {
+            // Extracted aside first, so that nothing of a stream that turns out unreadable is left behind
+            final Path staging = WorkspaceReaper.get().createStagingDirectory(destination);
+            try {
+                extractZipStream(source, staging.toFile(), entryCount, filter);
+                new ExtractionDestination(destination).moveEntries(staging);
+                return;
+            } catch (final ZipException ex) {
+                // e.g. a stored entry with a data descriptor whose data contains another zip file, which
+                // cannot be told apart from the next entry without the central directory
+                LoggingHelper.log(listener, "Unable to extract the archive as a stream, reading its central directory instead: %s",
+                        ex.getMessage());
+            } finally {
+                FileUtils.deleteDirectory(staging.toFile());
+            }
+        }
+
         try (final ZipFile zipFile = new ZipFile(source, StandardCharsets.UTF_8.name(), true)) {
-            extractZipFile(destination, zipFile);
+            extractZipFile(destination, zipFile, filter);
         }
     }
 
-    private static void extractTar(final File source, final File destination) throws IOException {
+    private static void extractTar(final File source, final File destination, final PathFilter filter)
+            throws IOException {
         try (final ArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(new FileInputStream(source))) {
-            extractArchive(destination, tarArchiveInputStream);
+            extractArchive(destination, tarArchiveInputStream, filter);
         }
     }
 
-    private static void extractTarGz(final File source, final File destination) throws IOException {
+    private static void extractTarGz(final File source, final File destination, final PathFilter filter)
+            throws IOException {
         try (final ArchiveInputStream tarGzArchiveInputStream
                 = new TarArchiveInputStream(new GzipCompressorInputStream(new FileInputStream(source)))) {
-            extractArchive(destination, tarGzArchiveInputStream);
+            extractArchive(destination, tarGzArchiveInputStream, filter);
         }
     }
 
     // Use of ZipFile is recommended, ZipArchiveInputStream has many limitations
     // https://commons.apache.org/proper/commons-compress/zip.html
-    private static void extractZipFile(final File destination, final ZipFile zipFile) throws IOException {
+    // Entries left out by the filter are never read, the central directory tells where the next one starts.
+    private static void extractZipFile(final File destination, final ZipFile zipFile, final PathFilter filter)
+            throws IOException {
+        final ExtractionDestination extractionDestination = new ExtractionDestination(destination);
         final Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
 
         while (entries.hasMoreElements()) {
             final ZipArchiveEntry entry = entries.nextElement();
-            final File entryDestination = getDestinationFile(destination, entry.getName());
 
+            if (!isSelected(entry, filter)) {
+                continue;
+            }
             if (entry.isDirectory()) {
-                entryDestination.mkdirs();
+                extractionDestination.createDirectory(entry.getName());
             } else {
-                entryDestination.getParentFile().mkdirs();
-                final InputStream in = zipFile.getInputStream(entry);
-                try (final OutputStream out = new FileOutputStream(entryDestination)) {
-                    IOUtils.copy(in, out);
-                    IOUtils.closeQuietly(in);
+                try (final InputStream in = zipFile.getInputStream(entry)) {
+                    writeEntry(extractionDestination, entry.getName(), in, entry.getSize());
                 }
             }
         }
     }
 
-    private static void extractArchive(final File destination, final ArchiveInputStream archiveInputStream)
-            throws IOException {
-        final int BUFFER_SIZE = 8192;
-        ArchiveEntry entry = archiveInputStream.getNextEntry();
+    // Reads the local headers in order, memory use does not depend on the number of entries. The central
+    // directory is not kept, but the number of local headers read has to be the number of entries it lists:
+    // local headers it does not refer to, or entries hidden in the data of others, fail the stream. Entries
+    // left out by the filter are skipped without being inflated when their local header has their size.
+    private static void extractZipStream(
+            final File source,
+            final File destination,
+            final long expectedEntryCount,
+            final PathFilter filter) throws IOException {
+        final ExtractionDestination extractionDestination = new ExtractionDestination(destination);
+        long entryCount = 0;
 
-        while (entry != null) {
-            final File destinationFile = getDestinationFile(destination, entry.getName());
+        // Data descriptors are only searched for when an entry leaves its sizes out of the local header
+        try (final ZipArchiveInputStream zipArchiveInputStream = new ZipArchiveInputStream(
+                    new BufferedInputStream(new FileInputStream(source), BufferPool.READ_CHUNK_SIZE),
+                    StandardCharsets.UTF_8.name(),
+                    true,
+                    true)) {
+            ZipArchiveEntry entry = getNextZipEntry(zipArchiveInputStream);
 
-            if (entry.isDirectory()) {
-                destinationFile.mkdir();
-            } else {
-                destinationFile.getParentFile().mkdirs();
-                try (final OutputStream fileOutputStream = new FileOutputStream(destinationFile)) {
-                    final byte[] buffer = new byte[BUFFER_SIZE];
-                    int bytesRead;
+            while (entry != null) {
+                entryCount++;
+                if (!zipArchiveInputStream.canReadEntryData(entry)) {
+                    throw new ZipException("Unsupported compression method or encryption of entry: " + entry.getName());
+                }
 
-                    while ((bytesRead = archiveInputStream.read(buffer)) != -1) {
-                        fileOutputStream.write(buffer, 0, bytesRead);
+                if (isSelected(entry, filter)) {
+                    if (entry.isDirectory()) {
+                        extractionDestination.createDirectory(entry.getName());
+                    } else {
+                        writeEntry(extractionDestination, entry.getName(), zipArchiveInputStream, entry.getSize());
                     }
                 }
+
+                entry = getNextZipEntry(zipArchiveInputStream);
             }
+        }
 
-            entry = archiveInputStream.getNextEntry();
+        if (expectedEntryCount >= 0 && entryCount != expectedEntryCount) {
+            throw new ZipException(String.format("Found %d local headers for the %d entries of the central directory",
+                    entryCount, expectedEntryCount));
         }
     }
 
-    private static File getDestinationFile(final File basedir, final String file) throws IOException {
-        final File destination = new File(basedir, file);
-        final String canonicalDestination = destination.getCanonicalPath();
-        final String canonicalBasedir = basedir.getCanonicalPath();
+    // Past the last entry the central directory is expected to hold one record per local header read, an
+    // archive that does not fails with an IOException of its own
+    private static ZipArchiveEntry getNextZipEntry(final ZipArchiveInputStream zipArchiveInputStream) throws IOException {
+        try {
+            return zipArchiveInputStream.getNextZipEntry();
+        } catch (final ZipException ex) {
+            throw ex;
+        } catch (final IOException ex) {
+            throw (ZipException) new ZipException(ex.getMessage()).initCause(ex);
+        }
+    }
 
-        if (canonicalDestination.startsWith(canonicalBasedir + File.separator) || canonicalDestination.equals(canonicalBasedir)) {
-            return destination;
+    // Entries left out by the filter are skipped by getNextEntry, seeking past them in an uncompressed tar.
+    // Files are written by the pipeline while the next entries are decoded.
+    private static void extractArchive(
+            final File destination,
+            final ArchiveInputStream archiveInputStream,
+            final PathFilter filter) throws IOException {
+        try (final ExtractionPipeline pipeline = new ExtractionPipeline(new ExtractionDestination(destination))) {
+            ArchiveEntry entry = archiveInputStream.getNextEntry();
+
+            while (entry != null) {
+                if (isSelected(entry, filter)) {
+                    if (entry.isDirectory()) {
+                        pipeline.createDirectory(entry.getName());
+                    } else {
+                        pipeline.writeFile(entry.getName(), archiveInputStream, entry.getSize());
+                    }
+                }
+
+                entry = archiveInputStream.getNextEntry();
+            }
+
+            pipeline.finish();
         }
+    }
 
-        throw new IOException("The compressed input file contains files targeting an invalid destination: " + file);
+    private static boolean isSelected(final ArchiveEntry entry, final PathFilter filter) {
+        if (filter.isAll()) {
+            return true;
+        }
+
+        // Names are matched relative to the root of the archive, e.g. without the ./ of tar -C dir .
+        String name = entry.getName();
+        while (name.startsWith("./") || name.startsWith("/")) {
+            name = name.substring(name.indexOf('/') + 1);
+        }
+        name = StringUtils.removeEnd(name, "/");
+
+        // Directory entries are only created where files may be extracted below them
+        return entry.isDirectory() ? filter.mayIncludeBelow(name) : filter.includesFile(name);
+    }
+
+    static void writeEntry(
+            final ExtractionDestination destination,
+            final String entryName,
+            final InputStream in,
+            final long size) throws IOException {
+
+        try (final FileChannel channel = destination.createFile(entryName)) {
+            if (size >= PREALLOCATION_THRESHOLD) {
+                // Extends the file to its final size before the first write
+                channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+
+            final long written = BufferPool.copy(in, channel);
+
+            // Drops whatever was reserved but not written
+            if (channel.size() != written) {
+                channel.truncate(written);
+            }
+        }
+    }
+
+    /**
+     * Reads the number of entries from the end of central directory record of a zip file, without reading
+     * the central directory itself.
+     *
+     * @return the number of entries, or -1 if the file does not end like a zip file
+     */
+    static long getZipEntryCount(final File source) throws IOException {
+        try (final RandomAccessFile file = new RandomAccessFile(source, "r")) {
+            final long length = file.length();
+            final int tailLength = (int) Math.min(length, EOCD_LENGTH + MAX_ZIP_COMMENT_LENGTH);
+            if (tailLength < EOCD_LENGTH) {
+                return -1;
+            }
+
+            final ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+            file.seek(length - tailLength);
+            file.readFully(tail.array());
+
+            for (int offset = tailLength - EOCD_LENGTH; offset >= 0; offset--) {
+                if (tail.getInt(offset) != EOCD_SIGNATURE) {
+                    continue;
+                }
+
+                final int entryCount = Short.toUnsignedInt(tail.getShort(offset + 10));
+                if (entryCount != 0xFFFF) {
+                    return entryCount;
+                }
+                return getZip64EntryCount(file, length - tailLength + offset);
+            }
+
+            return -1;
+        }
+    }
+
+    private static long getZip64EntryCount(final RandomAccessFile file, final long eocdOffset) throws IOException {
+        if (eocdOffset < ZIP64_EOCD_LOCATOR_LENGTH) {
+            return 0xFFFF;
+        }
+
+        final ByteBuffer locator = ByteBuffer.allocate(ZIP64_EOCD_LOCATOR_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        file.seek(eocdOffset - ZIP64_EOCD_LOCATOR_LENGTH);
+        file.readFully(locator.array());
+        if (locator.getInt(0) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+            return 0xFFFF;
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        file.seek(locator.getLong(8));
+        file.readFully(record.array());
+        if (record.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+            return 0xFFFF;
+        }
+
+        return record.getLong(32);
     }
 
     public static void deleteTemporaryCompressedFile(final File fileToDelete) throws IOException {
@@ -174,21 +379,52 @@ public final class ExtractionTools {
             final File destination,
             final CompressionType compressionType,
             final TaskListener listener) throws IOException {
+        decompressFile(compressedFile, destination, compressionType, PathFilter.ALL, listener);
+    }
+
+    /**
+     * @param filter the entries of the archive to extract, by their names
+     */
+    static void decompressFile(
+            final File compressedFile,
+            final File destination,
+            final CompressionType compressionType,
+            final PathFilter filter,
+            final TaskListener listener) throws IOException {
+        decompressFile(compressedFile, destination, compressionType, filter, false, listener);
+    }
+
+    /**
+     * @param nativeTools whether to extract with the tools of {@link NativeArchiveTools} where the agent has
+     *        them, which only handle whole archives
+     */
+    static void decompressFile(
+            final File compressedFile,
+            final File destination,
+            final CompressionType compressionType,
+            final PathFilter filter,
+            final boolean nativeTools,
+            final TaskListener listener) throws IOException {
 
         LoggingHelper.log(listener, "Extracting '%s' to '%s'",
                 compressedFile.getAbsolutePath(), destination.getAbsolutePath());
 
+        if (nativeTools && filter.isAll() && NativeArchiveTools.get().canExtract(compressionType)
+                && NativeArchiveTools.get().extract(compressedFile, destination, compressionType, listener)) {
+            return;
+        }
+
         switch (compressionType) {
             case None:
                 // Attempt to decompress with Zip if it is unknown
             case Zip:
-                extractZip(compressedFile, destination);
+                extractZip(compressedFile, destination, filter, listener);
                 break;
             case Tar:
-                extractTar(compressedFile, destination);
+                extractTar(compressedFile, destination, filter);
                 break;
             case TarGz:
-                extractTarGz(compressedFile, destination);
+                extractTarGz(compressedFile, destination, filter);
                 break;
         }
     }
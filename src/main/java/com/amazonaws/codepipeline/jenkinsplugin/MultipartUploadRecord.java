@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * What is known to have been uploaded for a multipart upload, kept on disk so that a publish retried after
+ * a failure can continue the upload instead of starting over.
+ *
+ * There is one record per bucket and artifact name, which stay the same from one execution of the pipeline
+ * to the next while the object key does not. An upload left behind for an earlier object is found that way
+ * and can be aborted. The record names the object key, the upload ID, a fingerprint of the file being
+ * uploaded and the parts completed so far, one line per part, appended as each part completes. A line
+ * that was not written completely is ignored when the record is read.
+ */
+final class MultipartUploadRecord {
+
+    private static final String OBJECT = "object";
+    private static final String UPLOAD = "upload";
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String PART = "part";
+
+    private final File file;
+    private String objectKey;
+    private String uploadId;
+    private String fingerprint;
+    private final Map<Integer, Part> parts = new TreeMap<>();
+
+    private MultipartUploadRecord(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the record of the last upload of the artifact to the bucket, or returns an empty record if there
+     * is none.
+     */
+    static MultipartUploadRecord open(final File directory, final String bucketName, final String artifactName)
+            throws IOException {
+        final MultipartUploadRecord record = new MultipartUploadRecord(
+                new File(directory, toFileName(bucketName, artifactName)));
+
+        if (record.file.isFile()) {
+            record.read();
+        }
+        return record;
+    }
+
+    /**
+     * @return the key of the object the recorded upload is for, or null if there is none
+     */
+    String getObjectKey() {
+        return objectKey;
+    }
+
+    String getUploadId() {
+        return uploadId;
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    Map<Integer, Part> getParts() {
+        return Collections.unmodifiableMap(parts);
+    }
+
+    /**
+     * Replaces the record with one for a new upload that has no parts yet.
+     */
+    void start(final String newObjectKey, final String newUploadId, final String newFingerprint) throws IOException {
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+
+        final File temporaryFile = new File(directory, file.getName() + ".tmp");
+        final String contents = OBJECT + " " + newObjectKey + "\n"
+                + UPLOAD + " " + newUploadId + "\n"
+                + FINGERPRINT + " " + newFingerprint + "\n";
+        Files.write(temporaryFile.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        objectKey = newObjectKey;
+        uploadId = newUploadId;
+        fingerprint = newFingerprint;
+        parts.clear();
+    }
+
+    void addPart(final int partNumber, final String eTag, final String md5) throws IOException {
+        final String line = PART + " " + partNumber + " " + eTag + " " + md5 + "\n";
+        Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        parts.put(partNumber, new Part(eTag, md5));
+    }
+
+    void delete() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+
+        objectKey = null;
+        uploadId = null;
+        fingerprint = null;
+        parts.clear();
+    }
+
+    private void read() throws IOException {
+        final String contents = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        final String[] lines = contents.split("\n", -1);
+
+        // The last element is what follows the last line break, a line that was being written
+        for (int i = 0; i < lines.length - 1; i++) {
+            final String[] fields = lines[i].split(" ");
+
+            if (fields.length >= 2 && OBJECT.equals(fields[0])) {
+                // Object keys may hold spaces
+                objectKey = lines[i].substring(OBJECT.length() + 1);
+            } else if (fields.length == 2 && UPLOAD.equals(fields[0])) {
+                uploadId = fields[1];
+            } else if (fields.length == 2 && FINGERPRINT.equals(fields[0])) {
+                fingerprint = fields[1];
+            } else if (fields.length == 4 && PART.equals(fields[0])) {
+                try {
+                    parts.put(Integer.parseInt(fields[1]), new Part(fields[2], fields[3]));
+                } catch (final NumberFormatException ex) {
+                    // Not a line this class wrote, the part is uploaded again
+                }
+            }
+        }
+    }
+
+    private static String toFileName(final String bucketName, final String artifactName) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] hash = digest.digest((bucketName + "/" + artifactName).getBytes(StandardCharsets.UTF_8));
+            return BinaryUtils.toHex(hash) + ".upload";
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static final class Part {
+        private final String eTag;
+        private final String md5;
+
+        Part(final String eTag, final String md5) {
+            this.eTag = eTag;
+            this.md5 = md5;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        String getMd5() {
+            return md5;
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import hudson.model.BuildListener;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+
+/**
+ * Extracts and creates archives with GNU tar, pigz and unzip, which are usually faster than commons-compress,
+ * when they are found on the agent's PATH.
+ *
+ * The results are those of {@link ExtractionTools} and {@link CompressionTools}. Archives are extracted to a
+ * staging directory inside the destination first. Anything but files and directories there, such as links,
+ * leaves the archive to {@link ExtractionTools}, which does not create them. Otherwise the permissions are
+ * reset to those of newly created files, and the entries are moved in place through an
+ * {@link ExtractionDestination}, which refuses entries outside of the destination the same way. Created
+ * archives hold the files of the same walk under the same names. Whenever a tool fails, nothing has been
+ * extracted or the archive is written again, by the plugin itself.
+ */
+final class NativeArchiveTools {
+
+    private static final int MAX_LOGGED_OUTPUT = 2000;
+
+    private final String tar;
+    private final String pigz;
+    private final String unzip;
+
+    NativeArchiveTools(final String tar, final String pigz, final String unzip) {
+        this.tar = tar;
+        this.pigz = pigz;
+        this.unzip = unzip;
+    }
+
+    /**
+     * @return the tools of this agent, looked up once
+     */
+    static NativeArchiveTools get() {
+        return Detected.TOOLS;
+    }
+
+    /**
+     * Looks up the tools on a search path. Other implementations of tar take different options and are not
+     * used.
+     */
+    static NativeArchiveTools detect(final String searchPath) {
+        if (File.separatorChar != '/' || searchPath == null) {
+            return new NativeArchiveTools(null, null, null);
+        }
+
+        final String tar = find(searchPath, "tar");
+        return new NativeArchiveTools(
+                tar != null && isGnuTar(tar) ? tar : null,
+                find(searchPath, "pigz"),
+                find(searchPath, "unzip"));
+    }
+
+    boolean canExtract(final CompressionType compressionType) {
+        switch (compressionType) {
+            case None:
+            case Zip:
+                return unzip != null;
+            case Tar:
+            case TarGz:
+                return tar != null;
+        }
+        return false;
+    }
+
+    boolean canCompress(final CompressionType compressionType) {
+        return tar != null && (compressionType == CompressionType.Tar || compressionType == CompressionType.TarGz);
+    }
+
+    /**
+     * @return whether the archive was extracted; if not, nothing was and it is up to {@link ExtractionTools}
+     */
+    boolean extract(
+            final File archive,
+            final File destination,
+            final CompressionType compressionType,
+            final TaskListener listener) throws IOException {
+
+        final Path staging = WorkspaceReaper.get().createStagingDirectory(destination);
+
+        try {
+            final Set<PosixFilePermission> filePermissions = getCreatedPermissions(staging, false);
+            final Set<PosixFilePermission> directoryPermissions = getCreatedPermissions(staging, true);
+            if (filePermissions == null || directoryPermissions == null) {
+                return false;
+            }
+
+            final List<String> command = new ArrayList<>();
+            if (compressionType == CompressionType.Tar || compressionType == CompressionType.TarGz) {
+                command.addAll(Arrays.asList(tar, "--extract", "--file=" + archive.getAbsolutePath(),
+                        "--directory=" + staging, "--touch", "--no-same-owner", "--no-same-permissions"));
+                addCompressionOption(command, compressionType);
+            } else {
+                command.addAll(Arrays.asList(unzip, "-q", "-o", "-DD", archive.getAbsolutePath(), "-d", staging.toString()));
+            }
+
+            if (!run(command, listener)) {
+                return false;
+            }
+            if (!resetPermissions(staging, filePermissions, directoryPermissions)) {
+                LoggingHelper.log(listener, "The archive holds links or special files, extracting it without %s",
+                        command.get(0));
+                return false;
+            }
+
+            new ExtractionDestination(destination).moveEntries(staging);
+            return true;
+        } finally {
+            FileUtils.deleteDirectory(staging.toFile());
+        }
+    }
+
+    /**
+     * Archives the files below the path that pass the filter, in the order of {@link
+     * CompressionTools#walkFilesToCompress}.
+     *
+     * @return whether the archive was written; if not, it is up to {@link CompressionTools}
+     */
+    boolean compress(
+            final File archive,
+            final Path pathToCompress,
+            final PathFilter filter,
+            final CompressionType compressionType,
+            final BuildListener listener) throws IOException {
+
+        final File fileList = File.createTempFile("aws-codepipeline-", ".files");
+
+        try {
+            final StringBuilder names = new StringBuilder();
+            CompressionTools.walkFilesToCompress(pathToCompress, filter, listener, (file, attributes) ->
+                    names.append(pathToCompress.relativize(file)).append('\0'));
+            Files.write(fileList.toPath(), names.toString().getBytes(Charset.defaultCharset()));
+
+            final List<String> command = new ArrayList<>(Arrays.asList(tar, "--create",
+                    "--file=" + archive.getAbsolutePath(), "--directory=" + pathToCompress, "--format=gnu",
+                    "--dereference", "--no-recursion", "--null", "--verbatim-files-from",
+                    "--files-from=" + fileList.getAbsolutePath()));
+            addCompressionOption(command, compressionType);
+
+            return run(command, listener);
+        } finally {
+            if (!fileList.delete()) {
+                fileList.deleteOnExit();
+            }
+        }
+    }
+
+    private void addCompressionOption(final List<String> command, final CompressionType compressionType) {
+        if (compressionType == CompressionType.TarGz) {
+            command.add(pigz != null ? "--use-compress-program=" + pigz : "--gzip");
+        }
+    }
+
+    private static boolean run(final List<String> command, final TaskListener listener) throws IOException {
+        final Process process;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        } catch (final IOException ex) {
+            LoggingHelper.log(listener, "Unable to run %s: %s", command.get(0), ex.getMessage());
+            return false;
+        }
+
+        try {
+            process.getOutputStream().close();
+            final String output;
+            try (final InputStream in = process.getInputStream()) {
+                output = IOUtils.toString(in, Charset.defaultCharset());
+            }
+
+            final int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                LoggingHelper.log(listener, "%s exited with status %d, falling back to the built-in archiver: %s",
+                        command.get(0), exitCode, StringUtils.abbreviate(output.trim(), MAX_LOGGED_OUTPUT));
+                return false;
+            }
+            return true;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + command.get(0));
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    // What newly created files and directories get from the umask, as ExtractionTools creates them
+    private static Set<PosixFilePermission> getCreatedPermissions(final Path directory, final boolean isDirectory)
+            throws IOException {
+        final Path probe = directory.resolve("probe");
+        try {
+            if (isDirectory) {
+                Files.createDirectory(probe);
+            } else {
+                Files.createFile(probe);
+            }
+            return Files.getPosixFilePermissions(probe, LinkOption.NOFOLLOW_LINKS);
+        } catch (final UnsupportedOperationException ex) {
+            return null;
+        } finally {
+            Files.deleteIfExists(probe);
+        }
+    }
+
+    /**
+     * @return false if there is anything but files and directories
+     */
+    private static boolean resetPermissions(
+            final Path staging,
+            final Set<PosixFilePermission> filePermissions,
+            final Set<PosixFilePermission> directoryPermissions) throws IOException {
+
+        final boolean[] supported = { true };
+
+        Files.walkFileTree(staging, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(staging)) {
+                    resetPermissions(dir, attrs, directoryPermissions);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                if (!attrs.isRegularFile()) {
+                    supported[0] = false;
+                    return FileVisitResult.TERMINATE;
+                }
+                resetPermissions(file, attrs, filePermissions);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return supported[0];
+    }
+
+    private static void resetPermissions(
+            final Path path,
+            final BasicFileAttributes attributes,
+            final Set<PosixFilePermission> permissions) throws IOException {
+
+        // The attributes of the walk have the permissions on most file systems, saving another system call
+        final Set<PosixFilePermission> current = attributes instanceof PosixFileAttributes
+                ? ((PosixFileAttributes) attributes).permissions()
+                : Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+
+        if (!current.equals(permissions)) {
+            Files.setPosixFilePermissions(path, permissions);
+        }
+    }
+
+    private static String find(final String searchPath, final String name) {
+        for (final String directory : searchPath.split(File.pathSeparator)) {
+            try {
+                final Path candidate = Paths.get(directory.isEmpty() ? "." : directory, name);
+                if (Files.isRegularFile(candidate) && Files.isExecutable(candidate)) {
+                    return candidate.toAbsolutePath().toString();
+                }
+            } catch (final InvalidPathException ex) {
+                // Not a directory that could hold it
+            }
+        }
+        return null;
+    }
+
+    private static boolean isGnuTar(final String tar) {
+        try {
+            final Process process = new ProcessBuilder(tar, "--version").redirectErrorStream(true).start();
+            try (final InputStream in = process.getInputStream()) {
+                final String version = IOUtils.toString(in, StandardCharsets.UTF_8);
+                return process.waitFor(10, TimeUnit.SECONDS) && process.exitValue() == 0 && version.contains("GNU tar");
+            } finally {
+                process.destroyForcibly();
+            }
+        } catch (final IOException ex) {
+            return false;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static final class Detected {
+        private static final NativeArchiveTools TOOLS = detect(System.getenv("PATH"));
+    }
+
+}
@@ -16,6 +16,8 @@ package com.amazonaws.codepipeline.jenkinsplugin;
 
 import java.io.Serializable;
 
+import org.kohsuke.stapler.DataBoundSetter;
+
 public final class OutputArtifact implements Serializable {
     private static final long serialVersionUID = 1L;
 
@@ -23,6 +25,11 @@ public final class OutputArtifact implements Serializable {
 
     private final String artifactName;
 
+    // Comma separated Ant patterns selecting the files of a directory location, see PathFilter
+    private String includes;
+
+    private String excludes;
+
     public OutputArtifact(final String location, final String artifactName) {
         this.location = location;
         this.artifactName = artifactName;
@@ -36,4 +43,22 @@ public final class OutputArtifact implements Serializable {
         return artifactName;
     }
 
+    public String getIncludes() {
+        return includes;
+    }
+
+    @DataBoundSetter
+    public void setIncludes(final String includes) {
+        this.includes = includes;
+    }
+
+    public String getExcludes() {
+        return excludes;
+    }
+
+    @DataBoundSetter
+    public void setExcludes(final String excludes) {
+        this.excludes = excludes;
+    }
+
 }
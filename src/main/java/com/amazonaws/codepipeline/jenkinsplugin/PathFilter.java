@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Ant style include and exclude patterns for the files below an output location, such as
+ * {@code target/*.jar, docs/} or {@code **}{@code /.git/**}. Patterns are separated by commas and match paths
+ * relative to the location, with either slash as separator. A pattern ending with a separator matches
+ * everything below that directory. Without include patterns every file is included.
+ *
+ * Directories that no include pattern can reach, or that an exclude pattern excludes with everything below
+ * them, are not walked at all.
+ */
+final class PathFilter {
+
+    static final PathFilter ALL = new PathFilter(Collections.emptyList(), Collections.emptyList());
+
+    private static final String ALL_BELOW = File.separator + "**";
+
+    private final List<String> includes;
+    private final List<String> excludes;
+
+    private PathFilter(final List<String> includes, final List<String> excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * @param includes comma separated patterns of the files to include, all files if blank
+     * @param excludes comma separated patterns of the files to leave out, none if blank
+     */
+    static PathFilter of(final String includes, final String excludes) {
+        final List<String> includePatterns = parse(includes);
+        final List<String> excludePatterns = parse(excludes);
+
+        if (includePatterns.isEmpty() && excludePatterns.isEmpty()) {
+            return ALL;
+        }
+        return new PathFilter(includePatterns, excludePatterns);
+    }
+
+    boolean isAll() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    /**
+     * @param relativePath path of a file relative to the output location
+     */
+    boolean includesFile(final String relativePath) {
+        final String path = normalize(relativePath);
+
+        if (!includes.isEmpty() && includes.stream().noneMatch(pattern -> SelectorUtils.matchPath(pattern, path))) {
+            return false;
+        }
+        return excludes.stream().noneMatch(pattern -> SelectorUtils.matchPath(pattern, path));
+    }
+
+    /**
+     * @param relativePath path of a directory relative to the output location
+     * @return whether any file below the directory may be included, the directory is skipped otherwise
+     */
+    boolean mayIncludeBelow(final String relativePath) {
+        final String path = normalize(relativePath);
+
+        if (!includes.isEmpty() && includes.stream().noneMatch(pattern -> SelectorUtils.matchPatternStart(pattern, path))) {
+            return false;
+        }
+
+        for (final String pattern : excludes) {
+            if (pattern.equals("**")
+                    || pattern.endsWith(ALL_BELOW)
+                    && SelectorUtils.matchPath(pattern.substring(0, pattern.length() - ALL_BELOW.length()), path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> parse(final String patterns) {
+        final List<String> parsed = new ArrayList<>();
+        if (patterns == null) {
+            return parsed;
+        }
+
+        for (final String pattern : patterns.split(",")) {
+            String trimmed = normalize(pattern.trim());
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (trimmed.endsWith(File.separator)) {
+                trimmed += "**";
+            }
+            parsed.add(trimmed);
+        }
+        return parsed;
+    }
+
+    // SelectorUtils splits paths and patterns at the platform's separator
+    private static String normalize(final String path) {
+        return path.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+    }
+
+}
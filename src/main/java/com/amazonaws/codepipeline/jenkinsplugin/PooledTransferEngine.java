@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import hudson.model.BuildListener;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Uploads parts on a pool of threads shared by all builds of an agent. The thread of the build prepares
+ * the next parts while earlier ones are uploaded, and a build with many uploads holds as many threads as
+ * the pool has, not one per part. Which part goes first is still up to {@link TransferScheduler}.
+ *
+ * The size of the pool and the parts in flight per upload are set on the agents with the system properties
+ * {@code com.amazonaws.codepipeline.jenkinsplugin.PooledTransferEngine.threads} and
+ * {@code com.amazonaws.codepipeline.jenkinsplugin.PooledTransferEngine.partsInFlight}.
+ *
+ * Each part in flight still holds a thread of the pool while it is sent, as the clients of the AWS SDK for
+ * Java 1.x block until a request is done. {@link AsyncTransferEngine} sends them without.
+ */
+final class PooledTransferEngine implements TransferEngine {
+
+    private static final int THREADS = Integer.getInteger(PooledTransferEngine.class.getName() + ".threads", 16);
+    private static final int PARTS_IN_FLIGHT =
+            Integer.getInteger(PooledTransferEngine.class.getName() + ".partsInFlight", 4);
+
+    private static final AtomicInteger ENGINE_COUNT = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+    private final int maxPartsInFlight;
+
+    PooledTransferEngine(final int threads, final int maxPartsInFlight) {
+        this.maxPartsInFlight = Math.max(1, maxPartsInFlight);
+
+        final String threadName = "AWS CodePipeline transfer " + ENGINE_COUNT.incrementAndGet();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // An agent that is not transferring anything keeps no threads
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    static PooledTransferEngine get() {
+        return Shared.INSTANCE;
+    }
+
+    @Override
+    public CompletableFuture<PartETag> uploadPart(
+            final AmazonS3 amazonS3,
+            final UploadPartRequest uploadPartRequest,
+            final String build,
+            final BuildListener listener) {
+
+        final PartUpload partUpload = new PartUpload(() ->
+                PublisherTools.uploadPart(amazonS3, uploadPartRequest, build, listener));
+        executor.execute(partUpload);
+        return partUpload;
+    }
+
+    @Override
+    public int getMaxPartsInFlight() {
+        return maxPartsInFlight;
+    }
+
+    private interface PartTransfer {
+        PartETag transfer() throws IOException;
+    }
+
+    /**
+     * A part waiting for or on a thread of the pool. Once started, it can no longer be cancelled.
+     */
+    private static final class PartUpload extends CompletableFuture<PartETag> implements Runnable {
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final PartTransfer transfer;
+
+        private PartUpload(final PartTransfer transfer) {
+            this.transfer = transfer;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return started.compareAndSet(false, true) && super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                complete(transfer.transfer());
+            } catch (final Throwable ex) {
+                // Whatever it is, the build waiting for the part gets it
+                completeExceptionally(ex);
+            }
+        }
+    }
+
+    // Created with the first pooled transfer, agents that never use the engine start no pool
+    private static final class Shared {
+        private static final PooledTransferEngine INSTANCE = new PooledTransferEngine(THREADS, PARTS_IN_FLIGHT);
+    }
+
+}
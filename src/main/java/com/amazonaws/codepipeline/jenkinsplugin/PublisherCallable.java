@@ -16,8 +16,12 @@ package com.amazonaws.codepipeline.jenkinsplugin;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -25,6 +29,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
@@ -34,18 +44,29 @@ import com.amazonaws.services.s3.AmazonS3;
 import hudson.FilePath.FileCallable;
 import hudson.model.BuildListener;
 import hudson.remoting.VirtualChannel;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 import org.jenkinsci.remoting.RoleChecker;
 
 public final class PublisherCallable implements FileCallable<Void> {
 
     private static final long serialVersionUID = 1L;
 
+    // Output artifacts compressed and uploaded at the same time, unless set on the Configure System page
+    static final int PARALLELISM =
+            Integer.getInteger(PublisherCallable.class.getName() + ".parallelism", Validation.MAX_ARTIFACTS);
+
+    private static final AtomicInteger PUBLISHER_COUNT = new AtomicInteger();
+
     private final String projectName;
     private final String pluginUserAgentPrefix;
     private final CodePipelineStateModel model;
     private final AWSClientFactory awsClientFactory;
     private final List<OutputArtifact> outputs;
     private final BuildListener listener;
+    private final Map<String, String> traceContext;
 
     public PublisherCallable(
             final String projectName,
@@ -61,6 +82,7 @@ public final class PublisherCallable implements FileCallable<Void> {
         this.awsClientFactory = Objects.requireNonNull(awsClientFactory, "awsClientFactory must not be null");
         this.pluginUserAgentPrefix = Objects.requireNonNull(pluginUserAgentPrefix, "pluginUserAgentPrefix must not be null");
         this.listener = listener;
+        this.traceContext = CodePipelineTracing.inject(Context.current());
     }
 
     // This is an abstract method in parent class so we have to override it. 
@@ -72,19 +94,48 @@ public final class PublisherCallable implements FileCallable<Void> {
 
     @Override
     public Void invoke(final File workspace, final VirtualChannel channel) throws IOException {
+        final Tracer tracer = CodePipelineTracing.getTracer(model.getOtlpEndpoint());
+        final Span span = CodePipelineTracing.startSpan(
+                tracer,
+                "Upload",
+                CodePipelineTracing.extract(traceContext),
+                model.getJob().getId());
+
+        try (final Scope ignored = CodePipelineTracing.makeCurrent(span, tracer)) {
+            publishOutputArtifacts(workspace);
+        } catch (final IOException | RuntimeException ex) {
+            CodePipelineTracing.recordFailure(span, ex);
+            throw ex;
+        } finally {
+            span.end();
+            CodePipelineTracing.flush(model.getOtlpEndpoint());
+        }
+
+        return null;
+    }
+
+    private void publishOutputArtifacts(final File workspace) throws IOException {
+        TransferScheduler.get().setLimits(model.getMaxTransferStreams(), model.getMaxTransferBytesPerSecond());
+
         final AWSClients awsClients = awsClientFactory.getAwsClient(
-                model.getAwsAccessKey(),
-                model.getAwsSecretKey(),
-                model.getProxyHost(),
-                model.getProxyPort(),
-                model.getRegion(),
-                pluginUserAgentPrefix);
+                AWSClientSettings.fromModel(model, pluginUserAgentPrefix));
+
+        try {
+            publishOutputArtifacts(workspace, awsClients);
+        } finally {
+            awsClients.shutdown();
+        }
+    }
 
+    private void publishOutputArtifacts(final File workspace, final AWSClients awsClients) throws IOException {
         final AWSCodePipelineJobCredentialsProvider credentialsProvider = new AWSCodePipelineJobCredentialsProvider(
                 model.getJob().getId(), awsClients.getCodePipelineClient());
         final AmazonS3 amazonS3 = awsClients.getS3Client(credentialsProvider);
+        final TransferEngine transferEngine = model.isAsyncTransfers()
+                ? new AsyncTransferEngine(awsClients.getS3AsyncClient(credentialsProvider))
+                : TransferEngine.get(model.isPooledTransfers());
 
-        Map<String, String> artifactLocations = new HashMap<>();
+        Map<String, OutputArtifact> artifactOutputs = new HashMap<>();
 
         final Set<String> artifactNames = getArtifactNamesFromProject(outputs);
         if (!artifactNames.isEmpty() && artifactNames.size() != outputs.size()) {
@@ -97,34 +148,157 @@ public final class PublisherCallable implements FileCallable<Void> {
 
         if (artifactNames.size() == outputs.size()) {
             for (final OutputArtifact outputArtifact : outputs) {
-                artifactLocations.put(outputArtifact.getArtifactName(), outputArtifact.getLocation());
+                artifactOutputs.put(outputArtifact.getArtifactName(), outputArtifact);
             }
         } else {
             Iterator<Artifact> artifactIterator = model.getJob().getData().getOutputArtifacts().iterator();
             for (final OutputArtifact outputArtifact : outputs) {
                 final Artifact artifact = artifactIterator.next();
-                artifactLocations.put(artifact.getName(), outputArtifact.getLocation());
+                artifactOutputs.put(artifact.getName(), outputArtifact);
             }
         }
 
-        for (final Artifact artifact : model.getJob().getData().getOutputArtifacts()) {
-            final String artifactLocation = artifactLocations.get(artifact.getName());
-            if (artifactLocation != null) {
-                final Path pathToUpload = CompressionTools.resolveWorkspacePath(workspace, artifactLocation);
-
-                if (Files.isDirectory(pathToUpload.toRealPath())) {
-                    uploadDirectory(pathToUpload, artifact, amazonS3);
-                } else {
-                    uploadFile(pathToUpload.toFile(), artifact, CompressionType.None, amazonS3);
-                }
-            } else {
+        // Every output artifact needs a location before anything is published
+        final List<Artifact> artifacts = model.getJob().getData().getOutputArtifacts();
+        for (final Artifact artifact : artifacts) {
+            final OutputArtifact output = artifactOutputs.get(artifact.getName());
+            if (output == null || output.getLocation() == null) {
                 final String message = "No defined output artifact in pipeline matched the jobs output artifact: " + artifact.getName();
                 LoggingHelper.log(listener, message);
                 throw new IllegalArgumentException(message);
             }
         }
 
-        return null;
+        final ArtifactDigestIndex digestIndex = loadDigestIndex(workspace);
+
+        final List<Callable<Long>> publications = new ArrayList<>();
+        for (final Artifact artifact : artifacts) {
+            final OutputArtifact output = artifactOutputs.get(artifact.getName());
+            // Spans of the publication join the trace wherever it runs
+            publications.add(Context.current().wrap(
+                    () -> publishOutputArtifact(artifact, output, amazonS3, transferEngine, workspace, digestIndex)));
+        }
+
+        final long bytesAvoided = publishAll(publications);
+        if (bytesAvoided > 0) {
+            LoggingHelper.log(listener, "Server-side copies avoided uploading %d bytes", bytesAvoided);
+        }
+    }
+
+    private long publishOutputArtifact(
+            final Artifact artifact,
+            final OutputArtifact output,
+            final AmazonS3 amazonS3,
+            final TransferEngine transferEngine,
+            final File workspace,
+            final ArtifactDigestIndex digestIndex) throws IOException {
+
+        final Path pathToUpload = CompressionTools.resolveWorkspacePath(workspace, output.getLocation());
+
+        if (Files.isDirectory(pathToUpload.toRealPath())) {
+            final PathFilter filter = PathFilter.of(output.getIncludes(), output.getExcludes());
+            return uploadDirectory(pathToUpload, filter, artifact, amazonS3, transferEngine, workspace, digestIndex);
+        }
+
+        final File file = pathToUpload.toFile();
+        if (digestIndex != null && digestIndex.containsSize(file.length())) {
+            // The file may be copied within S3 instead, which takes its digest before the upload
+            final UploadDigest digest = new UploadDigest();
+            return uploadFile(
+                    file,
+                    ArtifactDigestIndex.digestFile(file, digest),
+                    digest.getPartMd5s(),
+                    artifact,
+                    CompressionType.None,
+                    amazonS3,
+                    transferEngine,
+                    workspace,
+                    digestIndex);
+        }
+
+        return uploadFile(file, null, null, artifact, CompressionType.None, amazonS3, transferEngine, workspace, digestIndex);
+    }
+
+    /**
+     * Runs the publications, up to {@link #getParallelism()} at a time. Every publication runs to its end even if
+     * others fail; the first failure is thrown with the others suppressed by it.
+     *
+     * @return the number of bytes copies avoided uploading
+     */
+    private long publishAll(final List<Callable<Long>> publications) throws IOException {
+        final int threads = Math.min(getParallelism(), publications.size());
+        if (threads <= 1) {
+            long bytesAvoided = 0;
+            for (final Callable<Long> publication : publications) {
+                bytesAvoided += call(publication);
+            }
+            return bytesAvoided;
+        }
+
+        final String threadName = "AWS CodePipeline publisher " + PUBLISHER_COUNT.incrementAndGet();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            final List<Future<Long>> results = executor.invokeAll(publications);
+            long bytesAvoided = 0;
+            Exception failure = null;
+
+            for (final Future<Long> result : results) {
+                try {
+                    bytesAvoided += result.get();
+                } catch (final ExecutionException ex) {
+                    final Exception cause = ex.getCause() instanceof Exception
+                            ? (Exception) ex.getCause()
+                            : new IOException(ex.getCause());
+                    if (failure == null) {
+                        failure = cause;
+                    } else if (cause != failure) {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+
+            if (failure != null) {
+                if (failure.getSuppressed().length > 0) {
+                    LoggingHelper.log(listener, "Publishing %d of %d output artifacts failed",
+                            failure.getSuppressed().length + 1, publications.size());
+                }
+                throw rethrow(failure);
+            }
+            return bytesAvoided;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while publishing output artifacts");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int getParallelism() {
+        final Integer parallelism = model.getPublisherParallelism();
+        return parallelism == null ? PARALLELISM : parallelism;
+    }
+
+    private static long call(final Callable<Long> publication) throws IOException {
+        try {
+            return publication.call();
+        } catch (final Exception ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    private static IOException rethrow(final Exception ex) {
+        if (ex instanceof IOException) {
+            return (IOException) ex;
+        }
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        return new IOException(ex);
     }
 
     public static Set<String> getArtifactNamesFromProject(final List<OutputArtifact> outputArtifacts) {
@@ -137,37 +311,271 @@ public final class PublisherCallable implements FileCallable<Void> {
         return artifactNames;
     }
 
-    private void uploadDirectory(
+    private long uploadDirectory(
             final Path path,
+            final PathFilter filter,
             final Artifact artifact,
-            final AmazonS3 amazonS3) throws IOException {
+            final AmazonS3 amazonS3,
+            final TransferEngine transferEngine,
+            final File workspace,
+            final ArtifactDigestIndex digestIndex) throws IOException {
 
         // Default to ZIP compression if we could not detect the compression type
         final CompressionType compressionType = model.getCompressionType() == CompressionType.None
                 ? CompressionType.Zip
                 : model.getCompressionType();
 
-        final File fileToUpload = CompressionTools.compressFile(
-                projectName,
+        if (model.isArchiveCache()) {
+            return uploadCachedDirectory(path, filter, compressionType, artifact, amazonS3, transferEngine, workspace, digestIndex);
+        }
+
+        final UploadDigest digest = new UploadDigest();
+        final File fileToUpload = compressDirectory(path, filter, compressionType, digest);
+
+        try {
+            return uploadFile(
+                    fileToUpload,
+                    ArtifactDigestIndex.toHex(digest),
+                    digest.getPartMd5s(),
+                    artifact,
+                    compressionType,
+                    amazonS3,
+                    transferEngine,
+                    workspace,
+                    digestIndex);
+        } finally {
+            if (!fileToUpload.delete()) {
+                fileToUpload.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Uploads the archive kept from the last upload of the artifact if the directory did not change since,
+     * or compresses the directory and keeps its archive for the next upload.
+     */
+    private long uploadCachedDirectory(
+            final Path path,
+            final PathFilter filter,
+            final CompressionType compressionType,
+            final Artifact artifact,
+            final AmazonS3 amazonS3,
+            final TransferEngine transferEngine,
+            final File workspace,
+            final ArtifactDigestIndex digestIndex) throws IOException {
+
+        final File cacheDirectory = WorkspaceStateDirectory.get(workspace, "archives");
+        final String cacheName = ArtifactDigestIndex.encode(artifact.getName());
+        final File manifestFile = new File(cacheDirectory, cacheName + ".manifest");
+        final File cachedArchive = new File(cacheDirectory, cacheName + ".archive");
+
+        final ArchiveManifest manifest = CodePipelineTracing.inSpan("Manifest", () -> ArchiveManifest.take(
                 path,
+                filter,
                 compressionType,
-                listener);
+                model.isReproducibleArchives(),
+                ArchiveManifest.HASH_CONTENTS,
+                listener));
+        final ArchiveManifest previous = loadArchiveManifest(manifestFile);
+
+        if (previous != null && previous.matches(manifest) && cachedArchive.length() == previous.getArchiveSize()) {
+            LoggingHelper.log(listener, "Directory '%s' did not change since it was last archived, uploading that archive",
+                    path.toString());
+            return uploadFile(
+                    cachedArchive,
+                    previous.getArchiveDigest(),
+                    null,
+                    artifact,
+                    compressionType,
+                    amazonS3,
+                    transferEngine,
+                    workspace,
+                    digestIndex);
+        }
+
+        final UploadDigest digest = new UploadDigest();
+        final File fileToUpload = compressDirectory(path, filter, compressionType, digest);
 
         try {
-            uploadFile(fileToUpload, artifact, compressionType, amazonS3);
+            final String archiveDigest = ArtifactDigestIndex.toHex(digest);
+            final long bytesAvoided = uploadFile(
+                    fileToUpload,
+                    archiveDigest,
+                    digest.getPartMd5s(),
+                    artifact,
+                    compressionType,
+                    amazonS3,
+                    transferEngine,
+                    workspace,
+                    digestIndex);
+
+            // The manifest goes first, a manifest without its archive is never trusted
+            Files.createDirectories(cacheDirectory.toPath());
+            Files.deleteIfExists(manifestFile.toPath());
+            Files.move(fileToUpload.toPath(), cachedArchive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            manifest.setArchive(archiveDigest, cachedArchive.length());
+            manifest.save(manifestFile);
+
+            return bytesAvoided;
         } finally {
-            if (!fileToUpload.delete()) {
+            if (fileToUpload.exists() && !fileToUpload.delete()) {
                 fileToUpload.deleteOnExit();
             }
         }
     }
 
-    private void uploadFile(
+    private File compressDirectory(
+            final Path path,
+            final PathFilter filter,
+            final CompressionType compressionType,
+            final MessageDigest digest) throws IOException {
+
+        return CodePipelineTracing.inSpan("Compress", () -> CompressionTools.compressFile(
+                projectName,
+                path,
+                filter,
+                compressionType,
+                digest,
+                model.isReproducibleArchives(),
+                model.isNativeArchiveTools(),
+                listener));
+    }
+
+    /**
+     * Copies an object known to have the same contents within S3, or uploads the file if there is none.
+     * With delta uploads, the parts that did not change since the last upload of the artifact are copied.
+     *
+     * @param digest the SHA-256 digest of the file, or null to take it as the file is read for the upload, in
+     *        which case there is no object to copy
+     * @param partMd5s the MD5 digests of the parts of the file taken along with its digest, or null
+     * @return the number of bytes copies avoided uploading
+     */
+    private long uploadFile(
             final File file,
+            final String digest,
+            final List<String> partMd5s,
             final Artifact artifact,
             final CompressionType compressionType,
-            final AmazonS3 amazonS3) throws IOException {
+            final AmazonS3 amazonS3,
+            final TransferEngine transferEngine,
+            final File workspace,
+            final ArtifactDigestIndex digestIndex) throws IOException {
+
+        final String bucketName = artifact.getLocation().getS3Location().getBucketName();
+        final String objectKey = artifact.getLocation().getS3Location().getObjectKey();
+        final long size = file.length();
+
+        return CodePipelineTracing.inSpan("UploadArtifact", () -> {
+            final ArtifactDigestIndex.Location source = digestIndex == null || digest == null
+                    ? null
+                    : digestIndex.find(digest);
 
-        PublisherTools.uploadFile(file, artifact, compressionType, model.getEncryptionKey(), amazonS3, listener);
+            if (source != null && source.getSize() == size) {
+                final String eTag = PublisherTools.copyObject(
+                        source,
+                        artifact,
+                        compressionType,
+                        model.getEncryptionKey(),
+                        amazonS3,
+                        digest,
+                        listener);
+
+                if (eTag != null) {
+                    LoggingHelper.log(listener, "Copied artifact from %s instead of uploading %d bytes", source, size);
+                    updateDigestIndex(digestIndex, digest, new ArtifactDigestIndex.Location(bucketName, objectKey, size, eTag));
+                    return size;
+                }
+                updateDigestIndex(digestIndex, digest, null);
+            }
+
+            // Parts are tracked per artifact name, the object key changes with every execution
+            final File partsFile = new File(
+                    WorkspaceStateDirectory.get(workspace, "parts"),
+                    ArtifactDigestIndex.encode(artifact.getName()));
+            final UploadedParts previousUpload = model.isDeltaUpload() ? loadUploadedParts(partsFile) : null;
+            final MessageDigest readDigest = digest == null ? ArtifactDigestIndex.newDigest() : null;
+
+            final UploadedParts upload = PublisherTools.uploadFile(
+                    file,
+                    artifact,
+                    compressionType,
+                    model.getEncryptionKey(),
+                    amazonS3,
+                    WorkspaceStateDirectory.get(workspace, "uploads"),
+                    previousUpload,
+                    model.getJob().getId(),
+                    transferEngine,
+                    digest,
+                    partMd5s,
+                    readDigest,
+                    listener);
+
+            final String eTag = upload.getObject().getETag();
+            if (eTag != null) {
+                final String uploadedDigest = digest != null ? digest : ArtifactDigestIndex.toHex(readDigest);
+                updateDigestIndex(digestIndex, uploadedDigest,
+                        new ArtifactDigestIndex.Location(bucketName, objectKey, size, eTag));
+                if (model.isDeltaUpload()) {
+                    upload.save(partsFile);
+                }
+            }
+            return upload.getCopiedBytes();
+        });
+    }
+
+    /**
+     * @return the index, or null if it cannot be read, in which case every output artifact is uploaded
+     */
+    private ArtifactDigestIndex loadDigestIndex(final File workspace) {
+        final File indexFile = WorkspaceStateDirectory.get(workspace, ArtifactDigestIndex.FILE_NAME);
+        try {
+            return ArtifactDigestIndex.load(indexFile);
+        } catch (final IOException ex) {
+            // Only costs the chance of copying an output artifact within S3
+            LoggingHelper.log(listener, "Unable to read the artifact digest index, uploading the output artifacts: %s",
+                    ex.getMessage());
+            return null;
+        }
+    }
+
+    // Records where the contents are now, or forgets them without a location. The artifact is published either way.
+    private void updateDigestIndex(
+            final ArtifactDigestIndex digestIndex,
+            final String digest,
+            final ArtifactDigestIndex.Location location) {
+
+        if (digestIndex == null) {
+            return;
+        }
+
+        try {
+            if (location != null) {
+                digestIndex.put(digest, location);
+            } else {
+                digestIndex.remove(digest);
+            }
+        } catch (final IOException ex) {
+            LoggingHelper.log(listener, "Unable to update the artifact digest index: %s", ex.getMessage());
+        }
+    }
+
+    private ArchiveManifest loadArchiveManifest(final File manifestFile) {
+        try {
+            return ArchiveManifest.load(manifestFile);
+        } catch (final IOException ex) {
+            LoggingHelper.log(listener, "Unable to read the manifest of the last archive, compressing the directory: %s",
+                    ex.getMessage());
+            return null;
+        }
+    }
+
+    private UploadedParts loadUploadedParts(final File partsFile) {
+        try {
+            return UploadedParts.load(partsFile);
+        } catch (final IOException ex) {
+            LoggingHelper.log(listener, "Unable to read the parts of the previous upload, uploading every part: %s",
+                    ex.getMessage());
+            return null;
+        }
     }
 }
@@ -18,10 +18,27 @@ import hudson.model.BuildListener;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+import com.amazonaws.retry.RetryUtils;
 import com.amazonaws.services.codepipeline.AWSCodePipeline;
 import com.amazonaws.services.codepipeline.model.Artifact;
 import com.amazonaws.services.codepipeline.model.EncryptionKey;
@@ -32,16 +49,43 @@ import com.amazonaws.services.codepipeline.model.FailureType;
 import com.amazonaws.services.codepipeline.model.PutJobFailureResultRequest;
 import com.amazonaws.services.codepipeline.model.PutJobSuccessResultRequest;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListPartsRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
 import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
 
 public final class PublisherTools {
 
+    static final long PART_SIZE = 5 * 1024 * 1024;
+
+    // User metadata holding the SHA-256 digest of the contents, checked when the artifact is downloaded
+    static final String SHA256_METADATA = "content-sha256";
+    static final String PART_SIZE_METADATA = "content-part-size";
+
+    // Largest object CopyObject copies in one request, larger ones are copied in parts
+    private static final long MAX_COPY_OBJECT_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final long COPY_PART_SIZE = 512L * 1024 * 1024;
+
+    // Attempts per part, the first one included
+    private static final int PART_ATTEMPTS =
+            Integer.getInteger(PublisherTools.class.getName() + ".partAttempts", 5);
+    private static final Backoff PART_BACKOFF = new Backoff(
+            Long.getLong(PublisherTools.class.getName() + ".partRetryBaseDelay", 200),
+            Long.getLong(PublisherTools.class.getName() + ".partRetryMaxDelay", 20_000));
+
     private PublisherTools() {}
 
     public static void putJobResult(
@@ -87,56 +131,671 @@ public final class PublisherTools {
             final AmazonS3 amazonS3,
             final BuildListener listener) throws IOException {
 
+        uploadFile(file, artifact, compressionType, encryptionKey, amazonS3, null, listener);
+    }
+
+    /**
+     * Uploads a file in parts, retrying parts that fail with a backoff.
+     *
+     * With a state directory, the parts are recorded there as they complete. An upload that fails with an
+     * error worth retrying is left in place, and uploading the same file to the same object again continues
+     * it. Uploads that cannot be continued are aborted, so that their parts do not stay in the bucket. That
+     * includes an upload left in place for an earlier object of the same artifact, found by the next upload
+     * of the artifact to the bucket.
+     *
+     * @param stateDirectory where to record the progress of the upload, or null to abort it on failure
+     * @return the ETag of the uploaded object, if S3 returned one
+     */
+    public static String uploadFile(
+            final File file,
+            final Artifact artifact,
+            final CompressionType compressionType,
+            final EncryptionKey encryptionKey,
+            final AmazonS3 amazonS3,
+            final File stateDirectory,
+            final BuildListener listener) throws IOException {
+
+        return uploadFile(file, artifact, compressionType, encryptionKey, amazonS3, stateDirectory, null, listener)
+                .getObject()
+                .getETag();
+    }
+
+    /**
+     * Uploads a file in parts like {@link #uploadFile(File, Artifact, CompressionType, EncryptionKey, AmazonS3,
+     * File, BuildListener)}, copying parts that are the same as in the previous upload of the artifact from
+     * the previous object within S3 instead of uploading them.
+     *
+     * @param previousUpload the parts of the previous upload of the artifact, or null to upload every part
+     * @return the uploaded object with the digests of its parts, which are only known with a state directory
+     *         or a previous upload
+     */
+    static UploadedParts uploadFile(
+            final File file,
+            final Artifact artifact,
+            final CompressionType compressionType,
+            final EncryptionKey encryptionKey,
+            final AmazonS3 amazonS3,
+            final File stateDirectory,
+            final UploadedParts previousUpload,
+            final BuildListener listener) throws IOException {
+
+        return uploadFile(file, artifact, compressionType, encryptionKey, amazonS3, stateDirectory, previousUpload,
+                null, listener);
+    }
+
+    /**
+     * @param build the build the upload is for, parts are scheduled with the other transfers of the agent
+     *        as that build's, see {@link TransferScheduler}
+     */
+    static UploadedParts uploadFile(
+            final File file,
+            final Artifact artifact,
+            final CompressionType compressionType,
+            final EncryptionKey encryptionKey,
+            final AmazonS3 amazonS3,
+            final File stateDirectory,
+            final UploadedParts previousUpload,
+            final String build,
+            final BuildListener listener) throws IOException {
+
+        return uploadFile(file, artifact, compressionType, encryptionKey, amazonS3, stateDirectory, previousUpload,
+                build, BlockingTransferEngine.INSTANCE, null, null, listener);
+    }
+
+    static UploadedParts uploadFile(
+            final File file,
+            final Artifact artifact,
+            final CompressionType compressionType,
+            final EncryptionKey encryptionKey,
+            final AmazonS3 amazonS3,
+            final File stateDirectory,
+            final UploadedParts previousUpload,
+            final String build,
+            final TransferEngine transferEngine,
+            final String sha256,
+            final List<String> partMd5s,
+            final BuildListener listener) throws IOException {
+
+        return uploadFile(file, artifact, compressionType, encryptionKey, amazonS3, stateDirectory, previousUpload,
+                build, transferEngine, sha256, partMd5s, null, listener);
+    }
+
+    /**
+     * Parts are sent with their MD5 digest, which S3 checks before it accepts the part, when the digests
+     * were taken while the file was written or the parts are hashed anyway to be resumed or copied. Parts
+     * that are hashed are read once: they are kept in slabs of the {@link SlabPool} and sent from there, or
+     * read from the file again only when the pool cannot spare the slabs.
+     *
+     * @param transferEngine uploads the parts, which may be in flight several at a time
+     * @param sha256 the SHA-256 digest of the file as taken while it was written, stored with the object so
+     *        that downloads can be checked against it, or null
+     * @param partMd5s the MD5 digests of the parts of the file as taken while it was written, see
+     *        {@link UploadDigest}, or null
+     * @param readDigest takes the digest of the whole file as its parts are read for the upload, for files
+     *        whose digest was not taken before, or null
+     */
+    static UploadedParts uploadFile(
+            final File file,
+            final Artifact artifact,
+            final CompressionType compressionType,
+            final EncryptionKey encryptionKey,
+            final AmazonS3 amazonS3,
+            final File stateDirectory,
+            final UploadedParts previousUpload,
+            final String build,
+            final TransferEngine transferEngine,
+            final String sha256,
+            final List<String> partMd5s,
+            final MessageDigest readDigest,
+            final BuildListener listener) throws IOException {
+
         LoggingHelper.log(listener, "Uploading artifact: " + artifact + ", file: " + file);
 
         final String bucketName = artifact.getLocation().getS3Location().getBucketName();
         final String objectKey  = artifact.getLocation().getS3Location().getObjectKey();
-        final List<PartETag> partETags = new ArrayList<>();
+        final long contentLength = file.length();
+        final String fingerprint = fingerprint(contentLength, compressionType, sha256);
+
+        final MultipartUploadRecord record = stateDirectory == null
+                ? null
+                : MultipartUploadRecord.open(stateDirectory, bucketName, artifact.getName());
+        final boolean hashParts = record != null || previousUpload != null;
+        final long partCount = (contentLength + PART_SIZE - 1) / PART_SIZE;
+        final List<String> knownMd5s = partMd5s != null && partMd5s.size() == partCount ? partMd5s : null;
+        final boolean readParts = readDigest != null || knownMd5s == null && hashParts;
+        final Map<Integer, PartETag> completedParts = new HashMap<>();
+
+        String uploadId = record == null
+                ? null
+                : resumeUpload(file, fingerprint, record, completedParts, bucketName, objectKey, amazonS3, listener);
+
+        if (uploadId == null) {
+            final InitiateMultipartUploadRequest initiateMultipartUploadRequest = new InitiateMultipartUploadRequest(
+                    bucketName,
+                    objectKey,
+                    createUploadMetadata(compressionType, sha256))
+                .withSSEAwsKeyManagementParams(toSSEAwsKeyManagementParams(encryptionKey));
+
+            final InitiateMultipartUploadResult initiateMultipartUploadResult
+                    = amazonS3.initiateMultipartUpload(initiateMultipartUploadRequest);
+            uploadId = initiateMultipartUploadResult.getUploadId();
+
+            if (record != null) {
+                record.start(objectKey, uploadId, fingerprint);
+            }
+        }
+
+        final CompleteMultipartUploadResult completeMultipartUploadResult;
+        final PartUploads partUploads = new PartUploads(record, transferEngine.getMaxPartsInFlight());
+        final List<String> uploadedMd5s = new ArrayList<>();
+        UploadedParts copySource = previousUpload != null && previousUpload.getPartSize() == PART_SIZE
+                ? previousUpload
+                : null;
+        long copiedBytes = 0;
+        int copiedParts = 0;
+
+        try (final FileChannel channel = readParts ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null) {
+            long filePosition = 0;
+
+            for (int i = 1; filePosition < contentLength; i++) {
+                final long partSize = Math.min(PART_SIZE, contentLength - filePosition);
+                final String md5;
+                BufferPool.Part part = null;
+
+                // Taken before the upload, a part that changes on disk meanwhile is refused by S3
+                if (channel != null) {
+                    final MessageDigest partDigest = newMd5();
+                    final MessageDigest[] digests = readDigest == null
+                            ? new MessageDigest[] { partDigest }
+                            : new MessageDigest[] { partDigest, readDigest };
+                    part = BufferPool.tryRead(channel, filePosition, (int) partSize, digests);
+                    if (part == null) {
+                        BufferPool.update(channel, filePosition, partSize, digests);
+                    }
+                    md5 = BinaryUtils.toHex(partDigest.digest());
+                } else {
+                    md5 = knownMd5s == null ? null : knownMd5s.get(i - 1);
+                }
+
+                try {
+                    final PartETag resumedETag = completedParts.get(i);
+
+                    if (resumedETag != null && md5.equals(record.getParts().get(i).getMd5())) {
+                        partUploads.add(i, CompletableFuture.completedFuture(resumedETag), md5, true);
+                    } else {
+                        if (resumedETag != null) {
+                            LoggingHelper.log(listener, "Part %d changed since it was uploaded, uploading it again", i);
+                        }
+                        PartETag partETag = null;
+
+                        if (copySource != null && isSamePart(copySource, i, filePosition, partSize, md5)) {
+                            partETag = copyPart(copySource, i, filePosition, partSize, bucketName, objectKey, uploadId,
+                                    amazonS3, listener);
+
+                            if (partETag != null) {
+                                copiedBytes += partSize;
+                                copiedParts++;
+                            } else {
+                                LoggingHelper.log(listener,
+                                        "Parts of %s can no longer be copied, uploading the remaining parts",
+                                        copySource.getObject());
+                                copySource = null;
+                            }
+                        }
+
+                        if (partETag == null) {
+                            final UploadPartRequest uploadPartRequest = new UploadPartRequest()
+                                    .withBucketName(bucketName)
+                                    .withKey(objectKey)
+                                    .withUploadId(uploadId)
+                                    .withPartNumber(i)
+                                    .withPartSize(partSize)
+                                    .withMD5Digest(md5 == null ? null : BinaryUtils.toBase64(BinaryUtils.fromHex(md5)));
+                            if (part != null) {
+                                uploadPartRequest.setInputStream(part.newInputStream());
+                            } else {
+                                uploadPartRequest.setFile(file);
+                                uploadPartRequest.setFileOffset(filePosition);
+                            }
+
+                            final CompletableFuture<PartETag> upload =
+                                    transferEngine.uploadPart(amazonS3, uploadPartRequest, build, listener);
+                            if (part != null) {
+                                // The slabs go back once the part is sent, or once it is cancelled before it started
+                                final BufferPool.Part sent = part;
+                                part = null;
+                                upload.whenComplete((eTag, ex) -> sent.close());
+                            }
+                            partUploads.add(i, upload, md5, false);
+                        } else {
+                            partUploads.add(i, CompletableFuture.completedFuture(partETag), md5, false);
+                        }
+                    }
+                } finally {
+                    if (part != null) {
+                        part.close();
+                    }
+                }
+
+                uploadedMd5s.add(md5);
+                filePosition += partSize;
+            }
+
+            final CompleteMultipartUploadRequest completeMultipartUpload
+                    = new CompleteMultipartUploadRequest(
+                        bucketName,
+                        objectKey,
+                        uploadId,
+                        partUploads.awaitAll());
+
+            completeMultipartUploadResult = amazonS3.completeMultipartUpload(completeMultipartUpload);
+        } catch (final IOException | RuntimeException ex) {
+            // Parts still in flight would fail once the upload is aborted, or be missing from its record
+            partUploads.awaitInFlight();
+
+            if (record != null && isResumable(ex)) {
+                LoggingHelper.log(listener, "Upload %s failed, publishing the same file again continues it", uploadId);
+            } else {
+                abortUpload(bucketName, objectKey, uploadId, amazonS3, listener);
+                if (record != null) {
+                    record.delete();
+                }
+            }
+            throw ex;
+        }
+
+        if (record != null) {
+            record.delete();
+        }
+
+        if (copiedParts > 0) {
+            LoggingHelper.log(listener, "Copied %d unchanged parts (%d bytes) from %s instead of uploading them",
+                    copiedParts, copiedBytes, previousUpload.getObject());
+        }
+        LoggingHelper.log(listener, "Upload successful");
+
+        return new UploadedParts(
+                new ArtifactDigestIndex.Location(
+                        bucketName,
+                        objectKey,
+                        contentLength,
+                        completeMultipartUploadResult == null ? null : completeMultipartUploadResult.getETag()),
+                PART_SIZE,
+                hashParts ? uploadedMd5s : new ArrayList<>(),
+                copiedBytes);
+    }
+
+    /**
+     * Identifies the file of an upload, so that only an upload of the same file is continued. The digest is
+     * part of it as it was stored with the object when the upload was initiated.
+     */
+    static String fingerprint(final long contentLength, final CompressionType compressionType, final String sha256) {
+        final String fingerprint = contentLength + ":" + PART_SIZE + ":" + compressionType.name();
+        return sha256 == null ? fingerprint : fingerprint + ":" + sha256;
+    }
+
+    private static boolean isSamePart(
+            final UploadedParts previousUpload,
+            final int partNumber,
+            final long offset,
+            final long partSize,
+            final String md5) {
+
+        final long previousPartSize = Math.min(PART_SIZE, previousUpload.getObject().getSize() - offset);
+        return previousPartSize == partSize && md5 != null && md5.equals(previousUpload.getPartMd5(partNumber));
+    }
+
+    /**
+     * Copies a part of the previous upload of the artifact, as long as the previous object has not changed.
+     *
+     * @return the ETag of the copied part, or null if the previous object can no longer be copied from
+     */
+    private static PartETag copyPart(
+            final UploadedParts previousUpload,
+            final int partNumber,
+            final long offset,
+            final long partSize,
+            final String bucketName,
+            final String objectKey,
+            final String uploadId,
+            final AmazonS3 amazonS3,
+            final BuildListener listener) throws IOException {
+
+        final ArtifactDigestIndex.Location source = previousUpload.getObject();
+        final CopyPartRequest copyPartRequest = new CopyPartRequest()
+                .withSourceBucketName(source.getBucketName())
+                .withSourceKey(source.getObjectKey())
+                .withDestinationBucketName(bucketName)
+                .withDestinationKey(objectKey)
+                .withUploadId(uploadId)
+                .withPartNumber(partNumber)
+                .withFirstByte(offset)
+                .withLastByte(offset + partSize - 1)
+                .withMatchingETagConstraint(source.getETag());
+
+        try {
+            return retryPart(partNumber, () -> {
+                // No result when the ETag constraint is not met
+                final CopyPartResult copyPartResult = amazonS3.copyPart(copyPartRequest);
+                return copyPartResult == null ? null : copyPartResult.getPartETag();
+            }, listener);
+        } catch (final AmazonServiceException ex) {
+            LoggingHelper.log(listener, "Unable to copy part %d: %s", partNumber, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Copies an object with the same contents as the artifact to the artifact's location within S3, instead
+     * of uploading the artifact. Objects larger than a single copy allows are copied in parts.
+     *
+     * @return the ETag of the copy, or null if the source is gone, has changed or cannot be read with the
+     *         job's credentials, in which case nothing was copied and the artifact has to be uploaded
+     */
+    static String copyObject(
+            final ArtifactDigestIndex.Location source,
+            final Artifact artifact,
+            final CompressionType compressionType,
+            final EncryptionKey encryptionKey,
+            final AmazonS3 amazonS3,
+            final BuildListener listener) throws IOException {
+
+        return copyObject(source, artifact, compressionType, encryptionKey, amazonS3, null, listener);
+    }
+
+    /**
+     * @param sha256 the SHA-256 digest of the contents to store with the copy, or null
+     */
+    static String copyObject(
+            final ArtifactDigestIndex.Location source,
+            final Artifact artifact,
+            final CompressionType compressionType,
+            final EncryptionKey encryptionKey,
+            final AmazonS3 amazonS3,
+            final String sha256,
+            final BuildListener listener) throws IOException {
+
+        final String bucketName = artifact.getLocation().getS3Location().getBucketName();
+        final String objectKey  = artifact.getLocation().getS3Location().getObjectKey();
+
+        try {
+            final ObjectMetadata sourceMetadata =
+                    amazonS3.getObjectMetadata(source.getBucketName(), source.getObjectKey());
+            if (sourceMetadata.getContentLength() != source.getSize()
+                    || !removeQuotes(source.getETag()).equals(removeQuotes(sourceMetadata.getETag()))) {
+                LoggingHelper.log(listener, "%s has changed since it was recorded, uploading the artifact", source);
+                return null;
+            }
+        } catch (final AmazonServiceException ex) {
+            LoggingHelper.log(listener, "Unable to read %s for a server-side copy, uploading the artifact: %s",
+                    source, ex.getMessage());
+            return null;
+        }
+
+        LoggingHelper.log(listener, "Artifact has the same contents as %s, copying it within S3", source);
+
+        if (source.getSize() <= MAX_COPY_OBJECT_SIZE) {
+            final CopyObjectRequest copyObjectRequest = new CopyObjectRequest(
+                    source.getBucketName(),
+                    source.getObjectKey(),
+                    bucketName,
+                    objectKey)
+                .withNewObjectMetadata(createObjectMetadata(compressionType, sha256))
+                .withSSEAwsKeyManagementParams(toSSEAwsKeyManagementParams(encryptionKey));
+
+            try {
+                return amazonS3.copyObject(copyObjectRequest).getETag();
+            } catch (final AmazonServiceException ex) {
+                LoggingHelper.log(listener, "Server-side copy failed, uploading the artifact: %s", ex.getMessage());
+                return null;
+            }
+        }
 
         final InitiateMultipartUploadRequest initiateMultipartUploadRequest = new InitiateMultipartUploadRequest(
                 bucketName,
                 objectKey,
-                createObjectMetadata(compressionType))
+                createObjectMetadata(compressionType, sha256))
             .withSSEAwsKeyManagementParams(toSSEAwsKeyManagementParams(encryptionKey));
+        final String uploadId = amazonS3.initiateMultipartUpload(initiateMultipartUploadRequest).getUploadId();
+
+        try {
+            final List<PartETag> partETags = new ArrayList<>();
+            long position = 0;
+
+            for (int i = 1; position < source.getSize(); i++) {
+                final long partSize = Math.min(COPY_PART_SIZE, source.getSize() - position);
+                final CopyPartRequest copyPartRequest = new CopyPartRequest()
+                        .withSourceBucketName(source.getBucketName())
+                        .withSourceKey(source.getObjectKey())
+                        .withDestinationBucketName(bucketName)
+                        .withDestinationKey(objectKey)
+                        .withUploadId(uploadId)
+                        .withPartNumber(i)
+                        .withFirstByte(position)
+                        .withLastByte(position + partSize - 1);
+
+                partETags.add(retryPart(i, () -> amazonS3.copyPart(copyPartRequest).getPartETag(), listener));
+                position += partSize;
+            }
+
+            return amazonS3.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucketName, objectKey, uploadId, partETags)).getETag();
+        } catch (final AmazonServiceException ex) {
+            abortUpload(bucketName, objectKey, uploadId, amazonS3, listener);
+            LoggingHelper.log(listener, "Server-side copy failed, uploading the artifact: %s", ex.getMessage());
+            return null;
+        } catch (final IOException | RuntimeException ex) {
+            abortUpload(bucketName, objectKey, uploadId, amazonS3, listener);
+            throw ex;
+        }
+    }
+
+    /**
+     * Continues the recorded upload if it was for the same file and still exists, collecting the parts that
+     * are already in S3. They are only kept if they still match the file when it is read for the upload.
+     *
+     * @return the ID of the upload to continue, or null to start a new one
+     */
+    private static String resumeUpload(
+            final File file,
+            final String fingerprint,
+            final MultipartUploadRecord record,
+            final Map<Integer, PartETag> completedParts,
+            final String bucketName,
+            final String objectKey,
+            final AmazonS3 amazonS3,
+            final BuildListener listener) throws IOException {
+
+        final String uploadId = record.getUploadId();
+        if (uploadId == null) {
+            return null;
+        }
 
-        final InitiateMultipartUploadResult initiateMultipartUploadResult
-                = amazonS3.initiateMultipartUpload(initiateMultipartUploadRequest);
+        // The object key changes with every execution of the pipeline, the upload can only be aborted then
+        if (!objectKey.equals(record.getObjectKey())) {
+            if (record.getObjectKey() != null) {
+                LoggingHelper.log(listener, "Upload %s was for an earlier object of the artifact, aborting it", uploadId);
+                abortUpload(bucketName, record.getObjectKey(), uploadId, amazonS3, listener);
+            }
+            return null;
+        }
+
+        if (!fingerprint.equals(record.getFingerprint())) {
+            LoggingHelper.log(listener, "Upload %s was for a different file, starting over", uploadId);
+            abortUpload(bucketName, objectKey, uploadId, amazonS3, listener);
+            return null;
+        }
+
+        final Map<Integer, String> uploadedParts;
+        try {
+            uploadedParts = listParts(bucketName, objectKey, uploadId, amazonS3);
+        } catch (final AmazonS3Exception ex) {
+            if (ex.getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                LoggingHelper.log(listener, "Upload %s no longer exists, starting over", uploadId);
+                return null;
+            }
+            throw ex;
+        }
 
         final long contentLength = file.length();
-        long filePosition = 0;
-        long partSize = 5 * 1024 * 1024; // Set part size to 5 MB
+        for (final Map.Entry<Integer, MultipartUploadRecord.Part> entry : record.getParts().entrySet()) {
+            final int partNumber = entry.getKey();
+            final MultipartUploadRecord.Part part = entry.getValue();
+            final long offset = (partNumber - 1) * PART_SIZE;
+
+            if (partNumber >= 1
+                    && offset < contentLength
+                    && removeQuotes(part.getETag()).equals(removeQuotes(uploadedParts.get(partNumber)))) {
+                completedParts.put(partNumber, new PartETag(partNumber, part.getETag()));
+            }
+        }
 
-        for (int i = 1; filePosition < contentLength; i++) {
-            partSize = Math.min(partSize, (contentLength - filePosition));
+        LoggingHelper.log(listener, "Resuming upload %s, %d of %d parts are already uploaded",
+                uploadId, completedParts.size(), (contentLength + PART_SIZE - 1) / PART_SIZE);
+        return uploadId;
+    }
+
+    private static Map<Integer, String> listParts(
+            final String bucketName,
+            final String objectKey,
+            final String uploadId,
+            final AmazonS3 amazonS3) {
 
-            final UploadPartRequest uploadPartRequest = new UploadPartRequest()
-                    .withBucketName(bucketName)
-                    .withKey(objectKey)
-                    .withUploadId(initiateMultipartUploadResult.getUploadId())
-                    .withPartNumber(i)
-                    .withFileOffset(filePosition)
-                    .withFile(file)
-                    .withPartSize(partSize);
+        final Map<Integer, String> uploadedParts = new HashMap<>();
+        final ListPartsRequest listPartsRequest = new ListPartsRequest(bucketName, objectKey, uploadId);
+        PartListing partListing;
 
-            partETags.add(amazonS3.uploadPart(uploadPartRequest).getPartETag());
+        do {
+            partListing = amazonS3.listParts(listPartsRequest);
+            for (final PartSummary partSummary : partListing.getParts()) {
+                uploadedParts.put(partSummary.getPartNumber(), partSummary.getETag());
+            }
+            listPartsRequest.setPartNumberMarker(partListing.getNextPartNumberMarker());
+        } while (partListing.isTruncated());
 
-            filePosition += partSize;
+        return uploadedParts;
+    }
+
+    /**
+     * Uploads a part as a transfer of the build, retrying it with a backoff. Every attempt sends the whole
+     * part again and is accounted for as such.
+     */
+    static PartETag uploadPart(
+            final AmazonS3 amazonS3,
+            final UploadPartRequest uploadPartRequest,
+            final String build,
+            final BuildListener listener) throws IOException {
+
+        try (final TransferScheduler.Transfer transfer =
+                     TransferScheduler.get().start(build, TransferScheduler.Priority.UPLOAD)) {
+            return retryPart(uploadPartRequest.getPartNumber(), () -> {
+                // A part sent from memory is sent from its start again
+                if (uploadPartRequest.getInputStream() != null) {
+                    uploadPartRequest.getInputStream().reset();
+                }
+                transfer.transferred(uploadPartRequest.getPartSize());
+                return amazonS3.uploadPart(uploadPartRequest).getPartETag();
+            }, listener);
         }
+    }
 
-        final CompleteMultipartUploadRequest completeMultipartUpload
-                = new CompleteMultipartUploadRequest(
-                    bucketName,
-                    objectKey,
-                    initiateMultipartUploadResult.getUploadId(),
-                    partETags);
+    private static PartETag retryPart(
+            final int partNumber,
+            final PartAttempt part,
+            final BuildListener listener) throws IOException {
 
-        amazonS3.completeMultipartUpload(completeMultipartUpload);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return part.attempt();
+            } catch (final AmazonClientException ex) {
+                final long delayMillis = getPartRetryDelayMillis(attempt, ex);
+                if (delayMillis < 0) {
+                    throw ex;
+                }
 
-        LoggingHelper.log(listener, "Upload successful");
+                LoggingHelper.log(listener, "Upload of part %d failed, retrying in %d ms: %s",
+                        partNumber, delayMillis, ex.getMessage());
+
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (final InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry the upload of part " + partNumber);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how long to wait before the attempt after the one that failed, or -1 if the part is not tried again
+     */
+    static long getPartRetryDelayMillis(final int attempt, final AmazonClientException ex) {
+        if (attempt >= PART_ATTEMPTS || !isRetryable(ex)) {
+            return -1;
+        }
+        return PART_BACKOFF.getDelayMillis(attempt);
+    }
+
+    private interface PartAttempt {
+        PartETag attempt() throws IOException;
+    }
+
+    private static void abortUpload(
+            final String bucketName,
+            final String objectKey,
+            final String uploadId,
+            final AmazonS3 amazonS3,
+            final BuildListener listener) {
+
+        // Aborted even when the build is being interrupted, the client would refuse the request otherwise
+        final boolean interrupted = Thread.interrupted();
+        try {
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, objectKey, uploadId));
+        } catch (final AmazonClientException ex) {
+            // Whatever failed the upload is reported, not this
+            LoggingHelper.log(listener, "Unable to abort upload %s: %s", uploadId, ex.getMessage());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static boolean isRetryable(final AmazonClientException ex) {
+        if (ex instanceof AmazonServiceException) {
+            return RetryUtils.isRetryableServiceException((AmazonServiceException) ex)
+                    || RetryUtils.isThrottlingException((AmazonServiceException) ex)
+                    || RetryUtils.isClockSkewError((AmazonServiceException) ex);
+        }
+        return ex.isRetryable();
+    }
+
+    // Failures of S3 that will not go away by trying again leave nothing worth continuing
+    private static boolean isResumable(final Exception ex) {
+        return !(ex instanceof AmazonClientException) || isRetryable((AmazonClientException) ex);
+    }
+
+    private static String removeQuotes(final String eTag) {
+        return eTag == null ? "" : eTag.replace("\"", "");
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
     }
 
     public static ObjectMetadata createObjectMetadata(final CompressionType type) {
+        return createObjectMetadata(type, null);
+    }
+
+    static ObjectMetadata createObjectMetadata(final CompressionType type, final String sha256) {
         final ObjectMetadata objectMetadata = new ObjectMetadata();
+        if (sha256 != null) {
+            objectMetadata.addUserMetadata(SHA256_METADATA, sha256);
+        }
 
         switch (type) {
             case Tar:
@@ -155,6 +814,16 @@ public final class PublisherTools {
         return objectMetadata;
     }
 
+    /**
+     * The metadata of an object uploaded in parts also has their size, so that downloads can check the contents
+     * against the ETag of the object, which is the MD5 digest of the digests of the parts.
+     */
+    private static ObjectMetadata createUploadMetadata(final CompressionType type, final String sha256) {
+        final ObjectMetadata objectMetadata = createObjectMetadata(type, sha256);
+        objectMetadata.addUserMetadata(PART_SIZE_METADATA, Long.toString(PART_SIZE));
+        return objectMetadata;
+    }
+
     private static SSEAwsKeyManagementParams toSSEAwsKeyManagementParams(final EncryptionKey encryptionKey) {
         if (encryptionKey != null
                 && encryptionKey.getId() != null
@@ -165,4 +834,126 @@ public final class PublisherTools {
         return new SSEAwsKeyManagementParams();
     }
 
+    /**
+     * The parts of an upload in the order of their numbers. Once as many parts are in flight as the transfer
+     * engine allows, the oldest is waited for. Parts are recorded as they are waited for, so that only the
+     * thread of the build writes to the record.
+     */
+    private static final class PartUploads {
+        private final MultipartUploadRecord record;
+        private final int maxPartsInFlight;
+        private final Deque<PendingPart> pendingParts = new ArrayDeque<>();
+        private final List<PartETag> partETags = new ArrayList<>();
+
+        private PartUploads(final MultipartUploadRecord record, final int maxPartsInFlight) {
+            this.record = record;
+            this.maxPartsInFlight = maxPartsInFlight;
+        }
+
+        /**
+         * @param recorded whether the part is in the record already
+         */
+        void add(
+                final int partNumber,
+                final CompletableFuture<PartETag> partETag,
+                final String md5,
+                final boolean recorded) throws IOException {
+
+            pendingParts.add(new PendingPart(partNumber, partETag, md5, recorded));
+            while (pendingParts.size() >= maxPartsInFlight) {
+                awaitNext();
+            }
+        }
+
+        List<PartETag> awaitAll() throws IOException {
+            while (!pendingParts.isEmpty()) {
+                awaitNext();
+            }
+            return partETags;
+        }
+
+        /**
+         * After a failure, cancels the parts that have not started and waits for those on their way, recording
+         * those that were uploaded anyway. An interrupt does not stop the wait, the upload is only aborted once
+         * no part is in flight; the thread is interrupted again when done.
+         */
+        void awaitInFlight() {
+            // Cleared so that the parts can still be recorded
+            boolean interrupted = Thread.interrupted();
+
+            for (final PendingPart pendingPart : pendingParts) {
+                pendingPart.partETag.cancel(false);
+            }
+
+            // join() is not interrupted, it only keeps the interrupt
+            for (final PendingPart pendingPart : pendingParts) {
+                try {
+                    pendingPart.partETag.join();
+                } catch (final CompletionException | CancellationException ex) {
+                    // Reported by awaitNext
+                }
+            }
+            interrupted |= Thread.interrupted();
+
+            while (!pendingParts.isEmpty()) {
+                try {
+                    awaitNext();
+                } catch (final IOException | RuntimeException ex) {
+                    // The failure that ended the upload is the one reported
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void awaitNext() throws IOException {
+            final PendingPart pendingPart = pendingParts.remove();
+            final PartETag partETag;
+
+            try {
+                partETag = pendingPart.partETag.get();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for part " + pendingPart.partNumber);
+            } catch (final ExecutionException ex) {
+                final Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+
+            if (record != null && !pendingPart.recorded) {
+                record.addPart(pendingPart.partNumber, partETag.getETag(), pendingPart.md5);
+            }
+            partETags.add(partETag);
+        }
+    }
+
+    private static final class PendingPart {
+        private final int partNumber;
+        private final CompletableFuture<PartETag> partETag;
+        private final String md5;
+        private final boolean recorded;
+
+        private PendingPart(
+                final int partNumber,
+                final CompletableFuture<PartETag> partETag,
+                final String md5,
+                final boolean recorded) {
+            this.partNumber = partNumber;
+            this.partETag = partETag;
+            this.md5 = md5;
+            this.recorded = recorded;
+        }
+    }
+
 }
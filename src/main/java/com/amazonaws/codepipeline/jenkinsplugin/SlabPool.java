@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Direct buffers of a fixed size shared by all builds of an agent, for contents held in memory on their way
+ * to or from disk. The pool never holds more than its budget, whatever the number of builds, and the
+ * contents are outside of the heap, so that fast transfers do not fill it or keep the collector busy.
+ *
+ * Slabs are allocated when first needed and kept for reuse. Whoever cannot get one goes to disk instead or,
+ * when it is about to give its slabs back anyway, waits. The budget is set on the agents with the system
+ * property {@code com.amazonaws.codepipeline.jenkinsplugin.SlabPool.maxBytes}.
+ */
+final class SlabPool implements SlabPoolMXBean {
+
+    static final String OBJECT_NAME = "com.amazonaws.codepipeline.jenkinsplugin:type=SlabPool";
+    static final int SLAB_SIZE = 64 * 1024;
+
+    private static final Logger LOGGER = Logger.getLogger(SlabPool.class.getName());
+
+    private static final long MAX_BYTES = Long.getLong(SlabPool.class.getName() + ".maxBytes", 64L * 1024 * 1024);
+
+    private static final SlabPool INSTANCE = register(new SlabPool(MAX_BYTES));
+
+    private final int maxSlabs;
+
+    // Guarded by this
+    private final Deque<ByteBuffer> freeSlabs = new ArrayDeque<>();
+    private int allocatedSlabs;
+    private int waitingThreads;
+    private long exhaustions;
+
+    SlabPool(final long maxBytes) {
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / SLAB_SIZE));
+    }
+
+    static SlabPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return a cleared slab, or null if the budget is used up
+     */
+    synchronized ByteBuffer tryTake() {
+        final List<ByteBuffer> slabs = tryTake(1);
+        return slabs == null ? null : slabs.get(0);
+    }
+
+    /**
+     * Takes all slabs or none.
+     *
+     * @return cleared slabs, or null if there are not that many left in the budget
+     */
+    synchronized List<ByteBuffer> tryTake(final int count) {
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        if (freeSlabs.size() + maxSlabs - allocatedSlabs < count) {
+            exhaustions++;
+            return null;
+        }
+
+        final List<ByteBuffer> slabs = new ArrayList<>(count);
+        while (slabs.size() < count) {
+            final ByteBuffer slab = freeSlabs.poll();
+            if (slab != null) {
+                slabs.add(slab);
+            } else {
+                slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+                allocatedSlabs++;
+            }
+        }
+        return slabs;
+    }
+
+    /**
+     * Waits for a slab. Only for those that give back what they hold without waiting for anything, or the
+     * pool could run dry for good.
+     */
+    synchronized ByteBuffer take() throws InterruptedIOException {
+        ByteBuffer slab = tryTake();
+        if (slab != null) {
+            return slab;
+        }
+
+        waitingThreads++;
+        try {
+            while ((slab = freeSlabs.poll()) == null) {
+                wait();
+            }
+            return slab;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory to transfer into");
+        } finally {
+            waitingThreads--;
+        }
+    }
+
+    synchronized void give(final ByteBuffer slab) {
+        slab.clear();
+        freeSlabs.push(slab);
+        notify();
+    }
+
+    void give(final List<ByteBuffer> slabs) {
+        for (final ByteBuffer slab : slabs) {
+            give(slab);
+        }
+    }
+
+    private static SlabPool register(final SlabPool pool) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(pool, new ObjectName(OBJECT_NAME));
+        } catch (final InstanceAlreadyExistsException ex) {
+            // Loaded again by another class loader, the first one keeps reporting
+        } catch (final JMException | RuntimeException ex) {
+            LOGGER.log(Level.FINE, "Unable to register the slab pool metrics", ex);
+        }
+        return pool;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return (long) maxSlabs * SLAB_SIZE;
+    }
+
+    @Override
+    public int getSlabSize() {
+        return SLAB_SIZE;
+    }
+
+    @Override
+    public synchronized long getAllocatedBytes() {
+        return (long) allocatedSlabs * SLAB_SIZE;
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return (long) (allocatedSlabs - freeSlabs.size()) * SLAB_SIZE;
+    }
+
+    @Override
+    public synchronized int getWaitingThreads() {
+        return waitingThreads;
+    }
+
+    @Override
+    public synchronized long getExhaustions() {
+        return exhaustions;
+    }
+
+}
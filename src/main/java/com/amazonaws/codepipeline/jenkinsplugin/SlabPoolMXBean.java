@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+/**
+ * Occupancy of the {@link SlabPool} of an agent, registered with the platform MBean server as
+ * {@value SlabPool#OBJECT_NAME}.
+ */
+public interface SlabPoolMXBean {
+
+    long getMaxBytes();
+
+    int getSlabSize();
+
+    /**
+     * @return the direct memory allocated for slabs so far, which is kept for reuse
+     */
+    long getAllocatedBytes();
+
+    /**
+     * @return the memory of the slabs in use
+     */
+    long getUsedBytes();
+
+    int getWaitingThreads();
+
+    /**
+     * @return how often there was no slab to be had, so that a transfer waited or went to disk instead
+     */
+    long getExhaustions();
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.Tracer;
+
+/**
+ * Records a client span for every AWS call made while a traced phase of a job is active.
+ */
+public class TracingRequestHandler extends RequestHandler2 {
+
+    private static final HandlerContextKey<Span> SPAN = new HandlerContextKey<>("AWSCodePipelinePluginSpan");
+
+    @Override
+    public void beforeRequest(final Request<?> request) {
+        final Tracer tracer = CodePipelineTracing.currentTracer();
+        if (tracer == null) {
+            return;
+        }
+
+        final String service = request.getServiceName().replace("Amazon", "").trim();
+        final String operation = getOperationName(request.getOriginalRequest());
+
+        final Span span = tracer.spanBuilder(service + "." + operation)
+                .setSpanKind(SpanKind.CLIENT)
+                .setAttribute("rpc.system", "aws-api")
+                .setAttribute("rpc.service", service)
+                .setAttribute("rpc.method", operation)
+                .startSpan();
+
+        request.addHandlerContext(SPAN, span);
+    }
+
+    @Override
+    public void afterResponse(final Request<?> request, final Response<?> response) {
+        final Span span = request.getHandlerContext(SPAN);
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    @Override
+    public void afterError(final Request<?> request, final Response<?> response, final Exception e) {
+        final Span span = request.getHandlerContext(SPAN);
+        if (span != null) {
+            CodePipelineTracing.recordFailure(span, e);
+            span.end();
+        }
+    }
+
+    private static String getOperationName(final AmazonWebServiceRequest originalRequest) {
+        final String requestName = originalRequest.getClass().getSimpleName();
+        if (requestName.endsWith("Request")) {
+            return requestName.substring(0, requestName.length() - "Request".length());
+        }
+        return requestName;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import hudson.model.BuildListener;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Carries out the S3 transfers of builds. {@link BlockingTransferEngine} uploads the parts of a file one
+ * after the other on the thread of the build, {@link PooledTransferEngine} hands them to a pool shared by
+ * all builds of an agent, so that each upload keeps several parts in flight while the thread of the build
+ * goes on with the next ones. {@link AsyncTransferEngine} keeps parts in flight without a thread for each,
+ * with a non-blocking client made for the build.
+ */
+interface TransferEngine {
+
+    static TransferEngine get(final boolean pooled) {
+        return pooled ? PooledTransferEngine.get() : BlockingTransferEngine.INSTANCE;
+    }
+
+    /**
+     * The contents of downloads are read by the build while they arrive, so every engine requests them on
+     * the thread of the build.
+     *
+     * @return the object, whose contents are read by the caller
+     */
+    default S3Object getObject(final AmazonS3 amazonS3, final String bucketName, final String objectKey) {
+        return amazonS3.getObject(bucketName, objectKey);
+    }
+
+    /**
+     * @return the object, or null if a constraint of the request is not met
+     */
+    default S3Object getObject(final AmazonS3 amazonS3, final GetObjectRequest getObjectRequest) {
+        return amazonS3.getObject(getObjectRequest);
+    }
+
+    /**
+     * Uploads a part as a transfer of the build scheduled by {@link TransferScheduler}, retrying it like
+     * {@link PublisherTools} retries all parts.
+     *
+     * Cancelling the returned future keeps the part from being uploaded if it has not started yet; a part
+     * on its way is left to complete the future.
+     *
+     * @return the ETag of the part once it is uploaded, or what failed the upload
+     */
+    CompletableFuture<PartETag> uploadPart(
+            AmazonS3 amazonS3,
+            UploadPartRequest uploadPartRequest,
+            String build,
+            BuildListener listener);
+
+    /**
+     * @return how many parts of one upload may be in flight at once
+     */
+    int getMaxPartsInFlight();
+
+}
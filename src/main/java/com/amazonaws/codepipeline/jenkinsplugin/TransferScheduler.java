@@ -0,0 +1,335 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Shares the network of an agent between the S3 transfers of all builds running on it: object downloads and
+ * part uploads. Copies within S3 do not go through the agent and are not scheduled.
+ *
+ * At most {@code maxStreams} transfers run at once. When one ends, the next to start is a download before
+ * an upload, as a build cannot start before its input artifacts are there; then one of the build with the
+ * fewest transfers running, so that a build publishing many artifacts does not hold up the others; then
+ * the one that has waited longest. All transfers draw from one token bucket of {@code maxBytesPerSecond}.
+ * Downloads are metered as they are read; uploads are sent by the AWS SDK from the file, so each part is
+ * paid for before it is sent, which keeps the average rate within the limit.
+ *
+ * The limits are set on the Configure System page and sent to the agents with each build, the latest build
+ * to arrive setting them for all. Limits left blank there are those of the agent's system properties
+ * {@code com.amazonaws.codepipeline.jenkinsplugin.TransferScheduler.maxStreams} and
+ * {@code com.amazonaws.codepipeline.jenkinsplugin.TransferScheduler.maxBytesPerSecond}, 0 meaning no limit.
+ */
+final class TransferScheduler implements TransferSchedulerMXBean {
+
+    static final String OBJECT_NAME = "com.amazonaws.codepipeline.jenkinsplugin:type=TransferScheduler";
+
+    private static final Logger LOGGER = Logger.getLogger(TransferScheduler.class.getName());
+
+    private static final int MAX_STREAMS =
+            Integer.getInteger(TransferScheduler.class.getName() + ".maxStreams", 16);
+    private static final long MAX_BYTES_PER_SECOND =
+            Long.getLong(TransferScheduler.class.getName() + ".maxBytesPerSecond", 0);
+
+    private static final TransferScheduler INSTANCE = register(new TransferScheduler(MAX_STREAMS, MAX_BYTES_PER_SECOND));
+
+    enum Priority {
+        // In the order they are started
+        DOWNLOAD,
+        UPLOAD
+    }
+
+    // Guarded by this
+    private int maxStreams;
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final Map<String, Integer> activeStreamsByBuild = new HashMap<>();
+    private int activeStreams;
+    private long nextWaiter;
+
+    // Guarded by the bucket
+    private final Object bucket = new Object();
+    private long maxBytesPerSecond;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private long rateWindowStart = System.nanoTime();
+    private long rateWindowBytes;
+    private long bytesPerSecond;
+
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    TransferScheduler(final int maxStreams, final long maxBytesPerSecond) {
+        this.maxStreams = Math.max(0, maxStreams);
+        this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+        this.tokens = this.maxBytesPerSecond;
+    }
+
+    static TransferScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Changes the limits for the transfers that start from now on. Transfers already running keep running,
+     * even if there are more of them than the new limit allows.
+     *
+     * @param maxStreams the limit, or null for the one of the agent's system property
+     * @param maxBytesPerSecond the limit, or null for the one of the agent's system property
+     */
+    void setLimits(final Integer maxStreams, final Long maxBytesPerSecond) {
+        synchronized (this) {
+            this.maxStreams = Math.max(0, maxStreams == null ? MAX_STREAMS : maxStreams);
+            // Waiters may fit in a higher limit
+            notifyAll();
+        }
+        synchronized (bucket) {
+            this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond == null ? MAX_BYTES_PER_SECOND : maxBytesPerSecond);
+            tokens = Math.min(tokens, this.maxBytesPerSecond);
+        }
+    }
+
+    /**
+     * Waits for the transfer's turn.
+     *
+     * @param build the build the transfer is for, transfers of the same build share its fair part
+     * @return the running transfer, to be closed when it is over
+     */
+    Transfer start(final String build, final Priority priority) throws InterruptedIOException {
+        final String owner = build == null ? "" : build;
+
+        synchronized (this) {
+            final Waiter waiter = new Waiter(owner, priority, nextWaiter++);
+            waiters.add(waiter);
+
+            try {
+                while (!(hasFreeStream() && nextWaiter() == waiter)) {
+                    wait();
+                }
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for other transfers to finish");
+            } finally {
+                waiters.remove(waiter);
+                // The next one may be able to start as well
+                notifyAll();
+            }
+
+            activeStreams++;
+            activeStreamsByBuild.merge(owner, 1, Integer::sum);
+        }
+
+        return new Transfer(owner, priority);
+    }
+
+    private boolean hasFreeStream() {
+        return maxStreams == 0 || activeStreams < maxStreams;
+    }
+
+    private Waiter nextWaiter() {
+        return waiters.stream().min(Comparator
+                .comparing((Waiter waiter) -> waiter.priority)
+                .thenComparing(waiter -> activeStreamsByBuild.getOrDefault(waiter.build, 0))
+                .thenComparing(waiter -> waiter.sequence))
+                .orElse(null);
+    }
+
+    private synchronized void end(final String build) {
+        activeStreams--;
+        activeStreamsByBuild.computeIfPresent(build, (key, count) -> count == 1 ? null : count - 1);
+        notifyAll();
+    }
+
+    /**
+     * Takes the bytes out of the bucket, waiting as long as it takes the bucket to pay for them.
+     */
+    private void consume(final long bytes, final Priority priority) throws InterruptedIOException {
+        (priority == Priority.DOWNLOAD ? downloadedBytes : uploadedBytes).addAndGet(bytes);
+
+        final long waitNanos;
+        synchronized (bucket) {
+            final long now = System.nanoTime();
+            recordRate(now, bytes);
+
+            if (maxBytesPerSecond == 0) {
+                return;
+            }
+
+            // Up to a second's worth is kept, taking more leaves the bucket owing it
+            tokens = Math.min(maxBytesPerSecond, tokens + (now - refilledAt) * maxBytesPerSecond / 1e9);
+            refilledAt = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / maxBytesPerSecond) : 0;
+        }
+
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    private void recordRate(final long now, final long bytes) {
+        final long elapsed = now - rateWindowStart;
+        if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+            bytesPerSecond = (long) (rateWindowBytes * 1e9 / elapsed);
+            rateWindowStart = now;
+            rateWindowBytes = 0;
+        }
+        rateWindowBytes += bytes;
+    }
+
+    private static TransferScheduler register(final TransferScheduler scheduler) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(scheduler, new ObjectName(OBJECT_NAME));
+        } catch (final InstanceAlreadyExistsException ex) {
+            // Loaded again by another class loader, the first one keeps reporting
+        } catch (final JMException | RuntimeException ex) {
+            LOGGER.log(Level.FINE, "Unable to register the transfer scheduler metrics", ex);
+        }
+        return scheduler;
+    }
+
+    @Override
+    public synchronized int getMaxStreams() {
+        return maxStreams;
+    }
+
+    @Override
+    public long getMaxBytesPerSecond() {
+        synchronized (bucket) {
+            return maxBytesPerSecond;
+        }
+    }
+
+    @Override
+    public synchronized int getActiveStreams() {
+        return activeStreams;
+    }
+
+    @Override
+    public synchronized int getWaitingStreams() {
+        return waiters.size();
+    }
+
+    @Override
+    public synchronized int getActiveBuilds() {
+        return activeStreamsByBuild.size();
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        synchronized (bucket) {
+            // Nothing recorded for a while means nothing was transferred
+            return System.nanoTime() - rateWindowStart >= TimeUnit.SECONDS.toNanos(2) ? 0 : bytesPerSecond;
+        }
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    @Override
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    /**
+     * A transfer that has its turn.
+     */
+    final class Transfer implements Closeable {
+        private final String build;
+        private final Priority priority;
+        private boolean closed;
+
+        private Transfer(final String build, final Priority priority) {
+            this.build = build;
+            this.priority = priority;
+        }
+
+        /**
+         * Accounts for bytes about to be sent or just received, waiting while the agent is over its bandwidth.
+         */
+        void transferred(final long bytes) throws InterruptedIOException {
+            consume(bytes, priority);
+        }
+
+        /**
+         * @return the stream, metered as it is read
+         */
+        InputStream meter(final InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b != -1) {
+                        transferred(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                    final int bytesRead = super.read(bytes, offset, length);
+                    if (bytesRead > 0) {
+                        transferred(bytesRead);
+                    }
+                    return bytesRead;
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                end(build);
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final String build;
+        private final Priority priority;
+        private final long sequence;
+
+        private Waiter(final String build, final Priority priority, final long sequence) {
+            this.build = build;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+/**
+ * Utilization of the {@link TransferScheduler} of an agent, registered with the platform MBean server as
+ * {@value TransferScheduler#OBJECT_NAME}.
+ */
+public interface TransferSchedulerMXBean {
+
+    /**
+     * @return the most transfers that run at once, or 0 for no limit
+     */
+    int getMaxStreams();
+
+    /**
+     * @return the most bytes transferred per second by all transfers together, or 0 for no limit
+     */
+    long getMaxBytesPerSecond();
+
+    int getActiveStreams();
+
+    /**
+     * @return the transfers waiting for one of the others to end
+     */
+    int getWaitingStreams();
+
+    /**
+     * @return the builds with at least one transfer running
+     */
+    int getActiveBuilds();
+
+    /**
+     * @return the bytes transferred per second over the last second or so
+     */
+    long getBytesPerSecond();
+
+    long getDownloadedBytes();
+
+    long getUploadedBytes();
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.ClientConfiguration;
+
+import hudson.util.ListBoxModel;
+
+/**
+ * How the HTTP connections to S3 and AWS CodePipeline are set up. Chosen on the Configure System page and
+ * overridden by the SCM or the publisher of a project.
+ *
+ * The values of the parallel transfers profile can be changed with system properties named after this class,
+ * such as {@code -Dcom.amazonaws.codepipeline.jenkinsplugin.TransportProfile.maxConnections=256}.
+ */
+public enum TransportProfile {
+
+    /**
+     * The defaults of the SDK.
+     */
+    Default("SDK defaults") {
+        @Override
+        void apply(final ClientConfiguration clientCfg) {
+            // Left as the SDK sets it up
+        }
+    },
+
+    /**
+     * Many connections held open for parts uploaded and downloaded side by side: large socket buffers for
+     * long fat networks, keep-alive probes so idle connections are not silently dropped by firewalls, and
+     * connections that are recycled after a while so that new ones spread over the addresses S3 resolves to.
+     */
+    ParallelTransfers("Parallel transfers") {
+        @Override
+        void apply(final ClientConfiguration clientCfg) {
+            clientCfg.setMaxConnections(MAX_CONNECTIONS);
+            clientCfg.setSocketBufferSizeHints(SOCKET_BUFFER_SIZE, SOCKET_BUFFER_SIZE);
+            clientCfg.setUseTcpKeepAlive(true);
+            clientCfg.setConnectionTTL(CONNECTION_TTL_MILLIS);
+            // S3 closes connections idle for about 20 seconds, reaping them first avoids failed reuses
+            clientCfg.setUseReaper(true);
+            clientCfg.setConnectionMaxIdleMillis(CONNECTION_MAX_IDLE_MILLIS);
+        }
+    };
+
+    private static final int MAX_CONNECTIONS =
+            Integer.getInteger(TransportProfile.class.getName() + ".maxConnections", 128);
+    private static final int SOCKET_BUFFER_SIZE =
+            Integer.getInteger(TransportProfile.class.getName() + ".socketBufferSize", 1024 * 1024);
+    private static final long CONNECTION_TTL_MILLIS =
+            Long.getLong(TransportProfile.class.getName() + ".connectionTtl", 60 * 1000L);
+    private static final long CONNECTION_MAX_IDLE_MILLIS =
+            Long.getLong(TransportProfile.class.getName() + ".connectionMaxIdle", 15 * 1000L);
+
+    private final String displayName;
+
+    TransportProfile(final String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    abstract void apply(ClientConfiguration clientCfg);
+
+    static ListBoxModel fillItems() {
+        return addItems(new ListBoxModel());
+    }
+
+    /**
+     * @return the profiles a project can choose from, headed by the one of the global configuration
+     */
+    static ListBoxModel fillOverrideItems() {
+        final ListBoxModel items = new ListBoxModel();
+        items.add("As configured globally", "");
+        return addItems(items);
+    }
+
+    private static ListBoxModel addItems(final ListBoxModel items) {
+        for (final TransportProfile profile : values()) {
+            items.add(profile.getDisplayName(), profile.name());
+        }
+        return items;
+    }
+
+    /**
+     * @return the profile of the name, or the fallback if the name is empty or unknown
+     */
+    public static TransportProfile fromName(final String name, final TransportProfile fallback) {
+        if (!StringUtils.isEmpty(name)) {
+            for (final TransportProfile profile : values()) {
+                if (profile.name().equals(name)) {
+                    return profile;
+                }
+            }
+        }
+        return fallback;
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * The SHA-256 digest of a file to upload that also takes the MD5 digest of each of its parts, so that the
+ * parts can be sent with their Content-MD5 without reading the file again. It goes wherever the SHA-256
+ * digest is taken while the file is written.
+ */
+final class UploadDigest extends MessageDigest {
+
+    private final MessageDigest sha256 = ArtifactDigestIndex.newDigest();
+    private final MessageDigest partMd5 = newMd5();
+    private final List<String> partMd5s = new ArrayList<>();
+    private final long partSize;
+    private long partBytes;
+
+    UploadDigest() {
+        this(PublisherTools.PART_SIZE);
+    }
+
+    UploadDigest(final long partSize) {
+        super("SHA-256");
+        this.partSize = partSize;
+    }
+
+    /**
+     * @return the MD5 digests of the parts, hex encoded, once the SHA-256 digest was taken
+     */
+    List<String> getPartMd5s() {
+        return Collections.unmodifiableList(new ArrayList<>(partMd5s));
+    }
+
+    @Override
+    protected void engineUpdate(final byte input) {
+        engineUpdate(new byte[] { input }, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(final byte[] input, final int offset, final int length) {
+        sha256.update(input, offset, length);
+
+        int position = offset;
+        final int end = offset + length;
+        while (position < end) {
+            final int bytes = (int) Math.min(end - position, partSize - partBytes);
+            partMd5.update(input, position, bytes);
+            position += bytes;
+            partBytes += bytes;
+
+            if (partBytes == partSize) {
+                endPart();
+            }
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        if (partBytes > 0) {
+            endPart();
+        }
+        return sha256.digest();
+    }
+
+    @Override
+    protected void engineReset() {
+        sha256.reset();
+        partMd5.reset();
+        partMd5s.clear();
+        partBytes = 0;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return sha256.getDigestLength();
+    }
+
+    private void endPart() {
+        partMd5s.add(BinaryUtils.toHex(partMd5.digest()));
+        partBytes = 0;
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
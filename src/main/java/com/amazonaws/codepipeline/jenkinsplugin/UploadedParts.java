@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An object uploaded in parts, with the MD5 digest of each part, so that the next upload of the same
+ * artifact can copy the parts that did not change from it.
+ */
+final class UploadedParts {
+
+    private static final String OBJECT = "object";
+    private static final String PART = "part";
+
+    private final ArtifactDigestIndex.Location object;
+    private final long partSize;
+    private final List<String> partMd5s;
+    private final long copiedBytes;
+
+    UploadedParts(
+            final ArtifactDigestIndex.Location object,
+            final long partSize,
+            final List<String> partMd5s,
+            final long copiedBytes) {
+
+        this.object = object;
+        this.partSize = partSize;
+        this.partMd5s = Collections.unmodifiableList(new ArrayList<>(partMd5s));
+        this.copiedBytes = copiedBytes;
+    }
+
+    /**
+     * @return the parts recorded in the file, or null if there are none
+     */
+    static UploadedParts load(final File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        ArtifactDigestIndex.Location object = null;
+        long partSize = 0;
+        final List<String> partMd5s = new ArrayList<>();
+
+        for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            final String[] fields = line.split(" ");
+
+            try {
+                if (fields.length == 6 && OBJECT.equals(fields[0])) {
+                    object = new ArtifactDigestIndex.Location(
+                            ArtifactDigestIndex.decode(fields[1]),
+                            ArtifactDigestIndex.decode(fields[2]),
+                            Long.parseLong(fields[3]),
+                            ArtifactDigestIndex.decode(fields[4]));
+                    partSize = Long.parseLong(fields[5]);
+                } else if (fields.length == 2 && PART.equals(fields[0])) {
+                    partMd5s.add(fields[1]);
+                } else {
+                    return null;
+                }
+            } catch (final IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        return object == null ? null : new UploadedParts(object, partSize, partMd5s, 0);
+    }
+
+    void save(final File file) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+
+        final StringBuilder contents = new StringBuilder()
+                .append(OBJECT).append(' ')
+                .append(ArtifactDigestIndex.encode(object.getBucketName())).append(' ')
+                .append(ArtifactDigestIndex.encode(object.getObjectKey())).append(' ')
+                .append(object.getSize()).append(' ')
+                .append(ArtifactDigestIndex.encode(object.getETag())).append(' ')
+                .append(partSize).append('\n');
+        for (final String partMd5 : partMd5s) {
+            contents.append(PART).append(' ').append(partMd5).append('\n');
+        }
+
+        final File temporaryFile = new File(directory, file.getName() + ".tmp");
+        Files.write(temporaryFile.toPath(), contents.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    ArtifactDigestIndex.Location getObject() {
+        return object;
+    }
+
+    long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * @return the digest of the part, or null if the object has no such part
+     */
+    String getPartMd5(final int partNumber) {
+        return partNumber >= 1 && partNumber <= partMd5s.size() ? partMd5s.get(partNumber - 1) : null;
+    }
+
+    List<String> getPartMd5s() {
+        return partMd5s;
+    }
+
+    /**
+     * @return the bytes of the upload that were copied from an earlier object rather than uploaded, not
+     *         recorded on disk
+     */
+    long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+}
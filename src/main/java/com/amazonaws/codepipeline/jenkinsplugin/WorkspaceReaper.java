@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Clears workspaces by renaming their contents into a trash directory next to them, which takes about one
+ * rename per top-level entry, and deletes the trash on a single low priority thread per agent afterwards.
+ *
+ * The trash lives in the workspace's state directory, so it is on the same file system as the workspace in
+ * the usual layout and outlives the agent process: trash left behind by a restart is deleted the next time
+ * the workspace is cleared or downloaded to. Entries that cannot be renamed, e.g. a mount point, are deleted
+ * right away.
+ */
+final class WorkspaceReaper implements WorkspaceReaperMXBean {
+
+    static final String OBJECT_NAME = "com.amazonaws.codepipeline.jenkinsplugin:type=WorkspaceReaper";
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceReaper.class.getName());
+    private static final String TRASH = "trash";
+
+    private static final WorkspaceReaper INSTANCE = register(new WorkspaceReaper());
+
+    private final ExecutorService deleter = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "AWS CodePipeline workspace reaper");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final Set<Path> backlog = ConcurrentHashMap.newKeySet();
+    private final AtomicLong reclaimedDirectories = new AtomicLong();
+    private final AtomicLong reclaimedFiles = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong failedDeletions = new AtomicLong();
+
+    WorkspaceReaper() {}
+
+    static WorkspaceReaper get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Empties the workspace, leaving the deletion of its former contents to the background thread.
+     */
+    void clear(final File workspace) throws IOException {
+        final Path trashDirectory;
+        try {
+            final Path trashRoot = getTrashRoot(workspace);
+            Files.createDirectories(trashRoot);
+            trashDirectory = Files.createTempDirectory(trashRoot, "workspace-");
+        } catch (final IOException ex) {
+            LOGGER.log(Level.FINE, "No trash directory for " + workspace + ", deleting its contents", ex);
+            FileUtils.cleanDirectory(workspace);
+            return;
+        }
+
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(workspace.toPath())) {
+            for (final Path entry : entries) {
+                try {
+                    Files.move(entry, trashDirectory.resolve(entry.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                } catch (final IOException ex) {
+                    FileUtils.forceDelete(entry.toFile());
+                }
+            }
+        }
+
+        reclaim(workspace);
+    }
+
+    /**
+     * Has everything in the trash of the workspace deleted in the background, including trash left behind
+     * by an earlier agent process.
+     */
+    void reclaim(final File workspace) throws IOException {
+        final Path trashRoot = getTrashRoot(workspace);
+        if (!Files.isDirectory(trashRoot)) {
+            return;
+        }
+
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(trashRoot)) {
+            for (final Path entry : entries) {
+                if (backlog.add(entry)) {
+                    deleter.execute(() -> delete(entry));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a directory to extract into before the entries are moved into the workspace. It is in the trash,
+     * so that one left behind by an agent that stopped while extracting is reclaimed like cleared contents.
+     * Where the trash is on another file system than the workspace, entries could not be moved with a rename
+     * and the directory is created in the workspace instead.
+     */
+    Path createStagingDirectory(final File workspace) throws IOException {
+        try {
+            final Path trashRoot = getTrashRoot(workspace);
+            Files.createDirectories(trashRoot);
+            if (Files.getFileStore(trashRoot).equals(Files.getFileStore(workspace.toPath()))) {
+                return Files.createTempDirectory(trashRoot, ExtractionDestination.STAGING_PREFIX);
+            }
+        } catch (final IOException ex) {
+            LOGGER.log(Level.FINE, "No trash directory for " + workspace + ", staging the extraction in it", ex);
+        }
+        return Files.createTempDirectory(workspace.toPath(), ExtractionDestination.STAGING_PREFIX);
+    }
+
+    private void delete(final Path directory) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    try {
+                        Files.delete(file);
+                        reclaimedFiles.incrementAndGet();
+                        reclaimedBytes.addAndGet(attrs.size());
+                    } catch (final NoSuchFileException ex) {
+                        // Already gone
+                    } catch (final IOException ex) {
+                        failedDeletions.incrementAndGet();
+                        LOGGER.log(Level.FINE, "Unable to delete " + file, ex);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                    failedDeletions.incrementAndGet();
+                    LOGGER.log(Level.FINE, "Unable to delete " + file, ex);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(final Path dir, final IOException ex) {
+                    try {
+                        Files.deleteIfExists(dir);
+                    } catch (final IOException deleteException) {
+                        // Not empty as something below it failed, that was counted already
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            if (Files.notExists(directory)) {
+                reclaimedDirectories.incrementAndGet();
+            }
+        } catch (final IOException | RuntimeException ex) {
+            failedDeletions.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Unable to delete cleared workspace contents in " + directory, ex);
+        } finally {
+            backlog.remove(directory);
+        }
+    }
+
+    private static Path getTrashRoot(final File workspace) {
+        return WorkspaceStateDirectory.get(workspace, TRASH).toPath();
+    }
+
+    private static WorkspaceReaper register(final WorkspaceReaper reaper) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(reaper, new ObjectName(OBJECT_NAME));
+        } catch (final InstanceAlreadyExistsException ex) {
+            // Loaded again by another class loader, the first one keeps reporting
+        } catch (final JMException | RuntimeException ex) {
+            LOGGER.log(Level.FINE, "Unable to register the workspace reaper metrics", ex);
+        }
+        return reaper;
+    }
+
+    @Override
+    public int getBacklogDirectories() {
+        return backlog.size();
+    }
+
+    @Override
+    public long getReclaimedDirectories() {
+        return reclaimedDirectories.get();
+    }
+
+    @Override
+    public long getReclaimedFiles() {
+        return reclaimedFiles.get();
+    }
+
+    @Override
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    @Override
+    public long getFailedDeletions() {
+        return failedDeletions.get();
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+/**
+ * Metrics of the {@link WorkspaceReaper} of an agent, registered with the platform MBean server as
+ * {@value WorkspaceReaper#OBJECT_NAME}.
+ */
+public interface WorkspaceReaperMXBean {
+
+    /**
+     * @return the cleared workspace contents waiting to be deleted or being deleted
+     */
+    int getBacklogDirectories();
+
+    long getReclaimedDirectories();
+
+    long getReclaimedFiles();
+
+    long getReclaimedBytes();
+
+    /**
+     * @return the files that could not be deleted, they are tried again when a workspace is next cleared
+     */
+    long getFailedDeletions();
+
+}
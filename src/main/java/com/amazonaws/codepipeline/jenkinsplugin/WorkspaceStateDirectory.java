@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.File;
+
+/**
+ * Where the plugin keeps state that has to outlive a build on the agent. It lives in the temporary directory
+ * Jenkins pairs with every workspace (the workspace name followed by {@code @tmp}), so it is neither part of
+ * the workspace contents nor lost when the workspace is wiped, and goes away with the workspace itself.
+ */
+final class WorkspaceStateDirectory {
+
+    private static final String PLUGIN_DIRECTORY = "aws-codepipeline";
+
+    private WorkspaceStateDirectory() {}
+
+    static File get(final File workspace, final String name) {
+        final File absoluteWorkspace = workspace.getAbsoluteFile();
+        final File temporaryDirectory =
+                new File(absoluteWorkspace.getParentFile(), absoluteWorkspace.getName() + "@tmp");
+
+        return new File(new File(temporaryDirectory, PLUGIN_DIRECTORY), name);
+    }
+
+}
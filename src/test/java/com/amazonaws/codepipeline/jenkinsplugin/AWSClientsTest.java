@@ -15,8 +15,14 @@
 package com.amazonaws.codepipeline.jenkinsplugin;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -27,10 +33,13 @@ import org.mockito.ArgumentCaptor;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.codepipeline.AWSCodePipeline;
+import com.amazonaws.services.codepipeline.AWSCodePipelineClient;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
 
 public class AWSClientsTest {
 
@@ -46,9 +55,9 @@ public class AWSClientsTest {
 
     public AWSClientsTest() {
         expectedCodePipelineClient = mock(AWSCodePipeline.class);
-        when(codePipelineClientFactory.getAWSCodePipelineClient(any(AWSCredentials.class), any(ClientConfiguration.class))).thenReturn(expectedCodePipelineClient);
+        when(codePipelineClientFactory.getAWSCodePipelineClient(any(AWSCredentials.class), any(ClientConfiguration.class), any(EndpointConfiguration.class))).thenReturn(expectedCodePipelineClient);
         expectedS3Client = mock(AmazonS3.class);
-        when(s3ClientFactory.getS3Client(any(AWSCredentialsProvider.class), any(ClientConfiguration.class))).thenReturn(expectedS3Client);
+        when(s3ClientFactory.getS3Client(any(AWSCredentialsProvider.class), any(ClientConfiguration.class), any(EndpointConfiguration.class), anyBoolean())).thenReturn(expectedS3Client);
     }
 
     @Test
@@ -60,11 +69,11 @@ public class AWSClientsTest {
         // then
         assertEquals(expectedCodePipelineClient, codePipelineClient);
         final ArgumentCaptor<ClientConfiguration> clientConfigurationCaptor = ArgumentCaptor.forClass(ClientConfiguration.class);
-        verify(codePipelineClientFactory).getAWSCodePipelineClient(any(AWSCredentials.class), clientConfigurationCaptor.capture());
+        verify(codePipelineClientFactory).getAWSCodePipelineClient(any(AWSCredentials.class), clientConfigurationCaptor.capture(), any(EndpointConfiguration.class));
         final ClientConfiguration clientConfiguration = clientConfigurationCaptor.getValue();
         assertEquals(PROXY_HOST, clientConfiguration.getProxyHost());
         assertEquals(PROXY_PORT, clientConfiguration.getProxyPort());
-        verify(codePipelineClient).setEndpoint("https://codepipeline.us-west-2.amazonaws.com");
+        assertCodePipelineEndpoint("https://codepipeline.us-west-2.amazonaws.com");
     }
 
     @Test
@@ -76,11 +85,49 @@ public class AWSClientsTest {
         // then
         assertEquals(expectedS3Client, s3Client);
         final ArgumentCaptor<ClientConfiguration> clientConfigurationCaptor = ArgumentCaptor.forClass(ClientConfiguration.class);
-        verify(s3ClientFactory).getS3Client(any(AWSCredentialsProvider.class), clientConfigurationCaptor.capture());
+        verify(s3ClientFactory).getS3Client(any(AWSCredentialsProvider.class), clientConfigurationCaptor.capture(), any(EndpointConfiguration.class), anyBoolean());
         final ClientConfiguration clientConfiguration = clientConfigurationCaptor.getValue();
         assertEquals(PROXY_HOST, clientConfiguration.getProxyHost());
         assertEquals(PROXY_PORT, clientConfiguration.getProxyPort());
-        verify(s3Client).setEndpoint("https://s3.us-west-2.amazonaws.com");
+        assertS3Endpoint("https://s3.us-west-2.amazonaws.com");
+    }
+
+    @Test
+    public void shutsDownEveryClient() {
+        // given
+        final AWSClients awsClients = new AWSClients(Region.getRegion(Regions.US_WEST_2).getName(), mock(AWSCredentials.class), PROXY_HOST, PROXY_PORT, PLUGIN_VERSION, codePipelineClientFactory, s3ClientFactory);
+        final AmazonS3 s3Client = awsClients.getS3Client(mock(AWSCredentialsProvider.class));
+
+        // when
+        awsClients.shutdown();
+
+        // then
+        verify(expectedCodePipelineClient).shutdown();
+        verify(s3Client).shutdown();
+    }
+
+    @Test
+    public void signsWithKeysOfSettings() {
+        // when
+        new AWSClients(settings(Regions.US_WEST_2).build(), codePipelineClientFactory, s3ClientFactory);
+
+        // then
+        final ArgumentCaptor<AWSCredentials> credentialsCaptor = ArgumentCaptor.forClass(AWSCredentials.class);
+        verify(codePipelineClientFactory).getAWSCodePipelineClient(credentialsCaptor.capture(), any(ClientConfiguration.class), any(EndpointConfiguration.class));
+        assertEquals("access", credentialsCaptor.getValue().getAWSAccessKeyId());
+        assertEquals("secret", credentialsCaptor.getValue().getAWSSecretKey());
+    }
+
+    @Test
+    public void leavesCredentialsToDefaultChainWithoutKeysInSettings() {
+        // given
+        when(codePipelineClientFactory.getAWSCodePipelineClient(isNull(), any(ClientConfiguration.class), any(EndpointConfiguration.class))).thenReturn(expectedCodePipelineClient);
+
+        // when
+        new AWSClients(settings(Regions.US_WEST_2).withCredentials("", null).build(), codePipelineClientFactory, s3ClientFactory);
+
+        // then
+        verify(codePipelineClientFactory).getAWSCodePipelineClient(isNull(), any(ClientConfiguration.class), any(EndpointConfiguration.class));
     }
 
     @Test
@@ -91,8 +138,8 @@ public class AWSClientsTest {
         final AmazonS3 s3Client = awsClients.getS3Client(mock(AWSCredentialsProvider.class));
 
         // then
-        verify(codePipelineClient).setEndpoint("https://codepipeline.us-east-1.amazonaws.com");
-        verify(s3Client).setEndpoint("https://s3.us-east-1.amazonaws.com");
+        assertCodePipelineEndpoint("https://codepipeline.us-east-1.amazonaws.com");
+        assertS3Endpoint("https://s3.us-east-1.amazonaws.com");
     }
 
     @Test
@@ -103,8 +150,8 @@ public class AWSClientsTest {
         final AmazonS3 s3Client = awsClients.getS3Client(mock(AWSCredentialsProvider.class));
 
         // then
-        verify(codePipelineClient).setEndpoint("https://codepipeline.cn-north-1.amazonaws.com.cn");
-        verify(s3Client).setEndpoint("https://s3.cn-north-1.amazonaws.com.cn");
+        assertCodePipelineEndpoint("https://codepipeline.cn-north-1.amazonaws.com.cn");
+        assertS3Endpoint("https://s3.cn-north-1.amazonaws.com.cn");
     }
 
     @Test
@@ -116,7 +163,139 @@ public class AWSClientsTest {
         final AmazonS3 s3Client = awsClients.getS3Client(mock(AWSCredentialsProvider.class));
 
         // then
-        verify(codePipelineClient).setEndpoint(String.format("https://codepipeline.%s.amazonaws.com", randomRegion));
-        verify(s3Client).setEndpoint(String.format("https://s3.%s.amazonaws.com", randomRegion));
+        assertCodePipelineEndpoint(String.format("https://codepipeline.%s.amazonaws.com", randomRegion));
+        assertS3Endpoint(String.format("https://s3.%s.amazonaws.com", randomRegion));
+    }
+
+    @Test
+    public void usesConfiguredEndpoints() {
+        // when
+        final AWSClients awsClients = new AWSClients(settings(Regions.US_WEST_2)
+                .withCodePipelineEndpoint("https://vpce-0123-abcd.codepipeline.us-west-2.vpce.amazonaws.com")
+                .withS3Endpoint("https://s3-accelerate.amazonaws.com")
+                .build(), codePipelineClientFactory, s3ClientFactory);
+        final AWSCodePipeline codePipelineClient = awsClients.getCodePipelineClient();
+        final AmazonS3 s3Client = awsClients.getS3Client(mock(AWSCredentialsProvider.class));
+
+        // then
+        assertCodePipelineEndpoint("https://vpce-0123-abcd.codepipeline.us-west-2.vpce.amazonaws.com");
+        assertS3Endpoint("https://s3-accelerate.amazonaws.com");
+        assertPathStyleAccess(false);
     }
+
+    @Test
+    public void usesEndpointsOfRegionWhenConfiguredEndpointsAreEmpty() {
+        // when
+        final AWSClients awsClients = new AWSClients(settings(Regions.US_WEST_2)
+                .withCodePipelineEndpoint("")
+                .withS3Endpoint("")
+                .build(), codePipelineClientFactory, s3ClientFactory);
+        final AWSCodePipeline codePipelineClient = awsClients.getCodePipelineClient();
+        final AmazonS3 s3Client = awsClients.getS3Client(mock(AWSCredentialsProvider.class));
+
+        // then
+        assertCodePipelineEndpoint("https://codepipeline.us-west-2.amazonaws.com");
+        assertS3Endpoint("https://s3.us-west-2.amazonaws.com");
+    }
+
+    @Test
+    public void addressesBucketsInPathOnEndpointsOutsideOfAws() {
+        // when
+        final AWSClients awsClients = new AWSClients(settings(Regions.US_WEST_2)
+                .withS3Endpoint("http://localhost:9000")
+                .build(), codePipelineClientFactory, s3ClientFactory);
+        final AmazonS3 s3Client = awsClients.getS3Client(mock(AWSCredentialsProvider.class));
+
+        // then
+        assertS3Endpoint("http://localhost:9000");
+        assertPathStyleAccess(true);
+    }
+
+    @Test
+    public void signsRequestsToConfiguredEndpointsForRegion() {
+        // when
+        final AWSClients awsClients = new AWSClients(settings(Regions.EU_WEST_1)
+                .withProxy(null, 0)
+                .withCodePipelineEndpoint("https://vpce-0123-abcd.codepipeline.eu-west-1.vpce.amazonaws.com")
+                .withS3Endpoint("https://bucket.vpce-0123-abcd.s3.eu-west-1.vpce.amazonaws.com")
+                .build(), new AWSClients.CodePipelineClientFactory(), new AWSClients.S3ClientFactory());
+
+        // then
+        assertEquals("eu-west-1", ((AWSCodePipelineClient) awsClients.getCodePipelineClient()).getSignerRegionOverride());
+        assertEquals("eu-west-1", ((AmazonS3Client) awsClients.getS3Client(mock(AWSCredentialsProvider.class))).getSignerRegionOverride());
+    }
+
+    @Test
+    public void setsUpConnectionsOfBothClientsWithTransportProfile() {
+        // when
+        final AWSClients awsClients = new AWSClients(settings(Regions.US_WEST_2)
+                .withTransportProfile(TransportProfile.ParallelTransfers)
+                .build(), codePipelineClientFactory, s3ClientFactory);
+        awsClients.getS3Client(mock(AWSCredentialsProvider.class));
+
+        // then
+        final ArgumentCaptor<ClientConfiguration> codePipelineCfgCaptor = ArgumentCaptor.forClass(ClientConfiguration.class);
+        verify(codePipelineClientFactory).getAWSCodePipelineClient(any(AWSCredentials.class), codePipelineCfgCaptor.capture(), any(EndpointConfiguration.class));
+        final ArgumentCaptor<ClientConfiguration> s3CfgCaptor = ArgumentCaptor.forClass(ClientConfiguration.class);
+        verify(s3ClientFactory).getS3Client(any(AWSCredentialsProvider.class), s3CfgCaptor.capture(), any(EndpointConfiguration.class), anyBoolean());
+
+        for (final ClientConfiguration clientConfiguration : new ClientConfiguration[] { codePipelineCfgCaptor.getValue(), s3CfgCaptor.getValue() }) {
+            assertEquals(128, clientConfiguration.getMaxConnections());
+            assertTrue(clientConfiguration.useTcpKeepAlive());
+            assertEquals(PROXY_HOST, clientConfiguration.getProxyHost());
+        }
+    }
+
+    @Test
+    public void recognizesEndpointsOfAws() {
+        assertTrue(AWSClients.isAwsEndpoint("https://s3-accelerate.amazonaws.com"));
+        assertTrue(AWSClients.isAwsEndpoint("https://s3.dualstack.us-east-1.amazonaws.com"));
+        assertTrue(AWSClients.isAwsEndpoint("https://s3.cn-north-1.amazonaws.com.cn"));
+        assertTrue(AWSClients.isAwsEndpoint("s3-fips.us-east-1.amazonaws.com"));
+        assertFalse(AWSClients.isAwsEndpoint("https://127.0.0.1:9000"));
+        assertFalse(AWSClients.isAwsEndpoint("https://amazonaws.com.example.com"));
+    }
+
+    @Test
+    public void reportsConnectionPoolsOfClientsUntilTheyAreShutDown() {
+        // given
+        final int maxConnectionsBefore = ConnectionPoolMetrics.S3.getMaxConnections();
+        final AWSClients awsClients = new AWSClients(settings(Regions.US_WEST_2).withProxy(null, 0).build(),
+                new AWSClients.CodePipelineClientFactory(), new AWSClients.S3ClientFactory());
+        awsClients.getS3Client(mock(AWSCredentialsProvider.class));
+
+        // then
+        assertEquals(maxConnectionsBefore + ClientConfiguration.DEFAULT_MAX_CONNECTIONS, ConnectionPoolMetrics.S3.getMaxConnections());
+
+        // when
+        awsClients.shutdown();
+
+        // then
+        assertEquals(maxConnectionsBefore, ConnectionPoolMetrics.S3.getMaxConnections());
+    }
+
+    private void assertCodePipelineEndpoint(final String expectedEndpoint) {
+        final ArgumentCaptor<EndpointConfiguration> endpointCaptor = ArgumentCaptor.forClass(EndpointConfiguration.class);
+        verify(codePipelineClientFactory).getAWSCodePipelineClient(any(), any(ClientConfiguration.class), endpointCaptor.capture());
+        assertEquals(expectedEndpoint, endpointCaptor.getValue().getServiceEndpoint());
+    }
+
+    private void assertS3Endpoint(final String expectedEndpoint) {
+        final ArgumentCaptor<EndpointConfiguration> endpointCaptor = ArgumentCaptor.forClass(EndpointConfiguration.class);
+        verify(s3ClientFactory).getS3Client(any(AWSCredentialsProvider.class), any(ClientConfiguration.class), endpointCaptor.capture(), anyBoolean());
+        assertEquals(expectedEndpoint, endpointCaptor.getValue().getServiceEndpoint());
+    }
+
+    private void assertPathStyleAccess(final boolean expectedPathStyleAccess) {
+        verify(s3ClientFactory).getS3Client(any(AWSCredentialsProvider.class), any(ClientConfiguration.class), any(EndpointConfiguration.class), eq(expectedPathStyleAccess));
+    }
+
+    private static AWSClientSettings.Builder settings(final Regions region) {
+        return AWSClientSettings.builder()
+                .withCredentials("access", "secret")
+                .withProxy(PROXY_HOST, PROXY_PORT)
+                .withRegion(Region.getRegion(region).getName())
+                .withPluginUserAgentPrefix(PLUGIN_VERSION);
+    }
+
 }
@@ -73,6 +73,13 @@ public class AWSCodePipelinePublisherTest {
     private static final String PROXY_HOST = "";
     private static final int PROXY_PORT = 0;
     private static final String PLUGIN_VERSION = "aws-codepipeline/unknown jenkins/" + Jenkins.getVersion();
+    private static final AWSClientSettings CLIENT_SETTINGS = AWSClientSettings.builder()
+            .withCredentials(ACCESS_KEY, SECRET_KEY)
+            .withProxy(PROXY_HOST, PROXY_PORT)
+            .withRegion(REGION)
+            .withTransportProfile(null)
+            .withPluginUserAgentPrefix(PLUGIN_VERSION)
+            .build();
     private static final String BUILD_ID = "34";
 
     private static final String PUBLISHING_ARTIFACTS_MESSAGE = "[AWS CodePipeline Plugin] Publishing artifacts";
@@ -119,7 +126,7 @@ public class AWSCodePipelinePublisherTest {
 
         CodePipelineStateService.setModel(model);
 
-        when(mockFactory.getAwsClient(anyString(), anyString(), anyString(), anyInt(), anyString(), anyString())).thenReturn(mockAWS);
+        when(mockFactory.getAwsClient(any(AWSClientSettings.class))).thenReturn(mockAWS);
         when(mockJob.getId()).thenReturn(jobId);
         when(mockJob.getData()).thenReturn(mockJobData);
 
@@ -145,7 +152,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobSuccessResult(putJobSuccessResultRequest.capture());
 
@@ -173,7 +180,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobSuccessResult(putJobSuccessResultRequest.capture());
 
@@ -201,7 +208,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobSuccessResult(putJobSuccessResultRequest.capture());
 
@@ -229,7 +236,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobSuccessResult(putJobSuccessResultRequest.capture());
 
@@ -255,7 +262,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobFailureResult(putJobFailureResultRequest.capture());
 
@@ -286,7 +293,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory, never()).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory, never()).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS, never()).getCodePipelineClient();
 
         final String expected = String.format(
@@ -316,7 +323,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobFailureResult(putJobFailureResultRequest.capture());
 
@@ -360,7 +367,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobFailureResult(putJobFailureResultRequest.capture());
 
@@ -401,7 +408,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobFailureResult(putJobFailureResultRequest.capture());
 
@@ -438,7 +445,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobFailureResult(putJobFailureResultRequest.capture());
 
@@ -472,7 +479,7 @@ public class AWSCodePipelinePublisherTest {
 
         // then
         final InOrder inOrder = inOrder(mockFactory, mockAWS, mockCodePipelineClient);
-        inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(mockAWS).getCodePipelineClient();
         inOrder.verify(mockCodePipelineClient).putJobFailureResult(putJobFailureResultRequest.capture());
 
@@ -486,6 +493,23 @@ public class AWSCodePipelinePublisherTest {
         assertContainsIgnoreCase(PUT_JOB_FAILURE_MESSAGE, outContent.toString());
     }
 
+    @Test
+    public void readsIncludeAndExcludePatternsOfOutputLocations() {
+        // given
+        final JSONArray outputs = generateOutputLocations(Arrays.asList("output_1", "output_2"), Arrays.asList("", ""));
+        outputs.getJSONObject(0).put("includes", " target/*.jar, docs/ ");
+        outputs.getJSONObject(0).put("excludes", "**/.git/");
+
+        // when
+        final OutputArtifact[] outputArtifacts = new AWSCodePipelinePublisherMock(outputs, mockFactory).getOutputArtifacts();
+
+        // then
+        assertEquals("target/*.jar, docs/", outputArtifacts[0].getIncludes());
+        assertEquals("**/.git/", outputArtifacts[0].getExcludes());
+        assertEquals("", outputArtifacts[1].getIncludes());
+        assertEquals("", outputArtifacts[1].getExcludes());
+    }
+
     @Test
     public void cleanUpSuccess() {
         // given
@@ -100,6 +100,13 @@ public class AWSCodePipelineSCMTest extends Suite {
         protected static final String PROXY_HOST = "";
         protected static final int PROXY_PORT = 0;
         protected static final String PLUGIN_VERSION = "aws-codepipeline/unknown jenkins/" + Jenkins.getVersion();
+        protected static final AWSClientSettings CLIENT_SETTINGS = AWSClientSettings.builder()
+                .withCredentials(ACCESS_KEY, SECRET_KEY)
+                .withProxy(PROXY_HOST, PROXY_PORT)
+                .withRegion(REGION)
+                .withTransportProfile(null)
+                .withPluginUserAgentPrefix(PLUGIN_VERSION)
+                .build();
 
         protected String jobId;
         protected String jobNonce;
@@ -138,7 +145,7 @@ public class AWSCodePipelineSCMTest extends Suite {
         public void setUp() throws IOException, InterruptedException, ReflectiveOperationException {
             super.setUp();
 
-            when(mockFactory.getAwsClient(anyString(), anyString(), anyString(), anyInt(), anyString(), anyString()))
+            when(mockFactory.getAwsClient(any(AWSClientSettings.class)))
                     .thenReturn(mockAWSClients);
 
             when(mockAWSClients.getCodePipelineClient()).thenReturn(codePipelineClient);
@@ -188,7 +195,7 @@ public class AWSCodePipelineSCMTest extends Suite {
             assertContainsIgnoreCase(expectedMessage, outContent.toString());
 
             final InOrder inOrder = inOrder(mockFactory, mockAWSClients, codePipelineClient);
-            inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+            inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
             inOrder.verify(mockAWSClients).getCodePipelineClient();
             inOrder.verify(codePipelineClient).pollForJobs(pollForJobsRequest.capture());
 
@@ -211,7 +218,7 @@ public class AWSCodePipelineSCMTest extends Suite {
             assertContainsIgnoreCase("No jobs found.", outContent.toString());
 
             final InOrder inOrder = inOrder(mockFactory, mockAWSClients, codePipelineClient);
-            inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+            inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
             inOrder.verify(mockAWSClients).getCodePipelineClient();
             inOrder.verify(codePipelineClient).pollForJobs(any(PollForJobsRequest.class));
         }
@@ -255,7 +262,7 @@ public class AWSCodePipelineSCMTest extends Suite {
             final InOrder inOrder = inOrder(mockFactory, mockAWSClients, codePipelineClient);
             inOrder.verify(codePipelineClient).acknowledgeJob(acknowledgeJobRequest.capture());
             // verifying that we are initializing s3 client to download artifacts.
-            inOrder.verify(mockFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+            inOrder.verify(mockFactory).getAwsClient(CLIENT_SETTINGS);
             inOrder.verify(mockAWSClients).getS3Client(isA(AWSCredentialsProvider.class));
 
             assertEquals(jobId, acknowledgeJobRequest.getValue().getJobId());
@@ -521,6 +528,11 @@ public class AWSCodePipelineSCMTest extends Suite {
         @Test
         public void testRoundTripConfiguration() throws Exception {
             final AWSCodePipelineSCM before = awsCodePipelineSCM;
+            before.setIncludes("services/billing/, build.gradle");
+            before.setExcludes("**/test-data/");
+            before.setCodePipelineEndpoint("https://codepipeline.example.com");
+            before.setS3Endpoint("https://s3.example.com:9000");
+            before.setTransportProfile(TransportProfile.ParallelTransfers.name());
             final Project project = jenkinsRule.createFreeStyleProject();
             project.setScm(before);
 
@@ -528,6 +540,12 @@ public class AWSCodePipelineSCMTest extends Suite {
             final SCM after = project.getScm();
 
             jenkinsRule.assertEqualDataBoundBeans(before, after);
+            final AWSCodePipelineSCM afterSCM = (AWSCodePipelineSCM) after;
+            assertEquals("services/billing/, build.gradle", afterSCM.getIncludes());
+            assertEquals("**/test-data/", afterSCM.getExcludes());
+            assertEquals("https://codepipeline.example.com", afterSCM.getCodePipelineEndpoint());
+            assertEquals("https://s3.example.com:9000", afterSCM.getS3Endpoint());
+            assertEquals(TransportProfile.ParallelTransfers.name(), afterSCM.getTransportProfile());
         }
 
         @Test
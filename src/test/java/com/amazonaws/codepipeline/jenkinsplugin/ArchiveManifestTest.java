@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+
+public class ArchiveManifestTest {
+
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = tempFolder.newFolder("output").toPath();
+        Files.createDirectories(directory.resolve("dir"));
+        Files.write(directory.resolve("a.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("dir").resolve("b.txt"), "bb".getBytes(StandardCharsets.UTF_8));
+        setModifiedAgo(TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Test
+    public void matchesUnchangedDirectory() throws IOException {
+        final ArchiveManifest manifest = take(false);
+
+        assertTrue(manifest.matches(take(false)));
+    }
+
+    @Test
+    public void doesNotMatchChangedFiles() throws IOException {
+        final ArchiveManifest manifest = take(false);
+
+        Files.write(directory.resolve("a.txt"), "A".getBytes(StandardCharsets.UTF_8));
+        setModifiedAgo(TimeUnit.MINUTES.toMillis(1));
+
+        assertFalse(manifest.matches(take(false)));
+    }
+
+    @Test
+    public void doesNotMatchAddedOrRemovedFiles() throws IOException {
+        final ArchiveManifest manifest = take(false);
+
+        Files.write(directory.resolve("c.txt"), new byte[0]);
+        setModifiedAgo(TimeUnit.HOURS.toMillis(1));
+        assertFalse(manifest.matches(take(false)));
+
+        Files.delete(directory.resolve("c.txt"));
+        Files.delete(directory.resolve("a.txt"));
+        assertFalse(manifest.matches(take(false)));
+    }
+
+    @Test
+    public void doesNotMatchOtherArchiveSettings() throws IOException {
+        final ArchiveManifest manifest = take(false);
+
+        assertFalse(manifest.matches(ArchiveManifest.take(directory, PathFilter.ALL, CompressionType.Tar, false, false, null)));
+        assertFalse(manifest.matches(ArchiveManifest.take(directory, PathFilter.ALL, CompressionType.Zip, true, false, null)));
+    }
+
+    // A file made executable keeps its size, time and contents
+    @Test
+    public void doesNotMatchChangedPermissions() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Files.setPosixFilePermissions(directory.resolve("a.txt"), PosixFilePermissions.fromString("rw-r--r--"));
+        final ArchiveManifest manifest = take(true);
+
+        Files.setPosixFilePermissions(directory.resolve("a.txt"), PosixFilePermissions.fromString("rwxr-xr-x"));
+
+        assertFalse(manifest.matches(take(true)));
+        assertFalse(manifest.matches(take(false)));
+
+        final File file = new File(tempFolder.getRoot(), "archives/output.manifest");
+        manifest.setArchive("digest", 1234);
+        manifest.save(file);
+        assertFalse(ArchiveManifest.load(file).matches(take(true)));
+
+        Files.setPosixFilePermissions(directory.resolve("a.txt"), PosixFilePermissions.fromString("rw-r--r--"));
+        assertTrue(ArchiveManifest.load(file).matches(take(true)));
+    }
+
+    @Test
+    public void doesNotTrustFilesModifiedJustBeforeTheManifest() throws IOException {
+        setModifiedAgo(0);
+        final ArchiveManifest manifest = take(false);
+
+        assertFalse(manifest.matches(take(false)));
+    }
+
+    @Test
+    public void matchesRewrittenFilesWithSameContentsWhenHashing() throws IOException {
+        final ArchiveManifest manifest = take(true);
+
+        Files.write(directory.resolve("a.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        setModifiedAgo(0);
+
+        assertTrue(manifest.matches(take(true)));
+        assertFalse(manifest.matches(take(false)));
+
+        Files.write(directory.resolve("a.txt"), "A".getBytes(StandardCharsets.UTF_8));
+        assertFalse(manifest.matches(take(true)));
+    }
+
+    @Test
+    public void loadsSavedManifest() throws IOException {
+        final File file = new File(tempFolder.getRoot(), "archives/My%20Artifact.manifest");
+        final ArchiveManifest manifest = take(true);
+        manifest.setArchive("digest", 1234);
+        manifest.save(file);
+
+        final ArchiveManifest loaded = ArchiveManifest.load(file);
+
+        assertEquals("digest", loaded.getArchiveDigest());
+        assertEquals(1234, loaded.getArchiveSize());
+        assertTrue(loaded.matches(take(false)));
+        assertTrue(loaded.matches(take(true)));
+    }
+
+    @Test
+    public void nothingToLoadWithoutFile() throws IOException {
+        assertNull(ArchiveManifest.load(new File(tempFolder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void nothingToLoadFromMalformedFile() throws IOException {
+        final File file = tempFolder.newFile();
+        Files.write(file.toPath(), "archive Zip false 1 digest 10\nfile a.txt one 1 420 -\n".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(ArchiveManifest.load(file));
+    }
+
+    private ArchiveManifest take(final boolean hashContents) throws IOException {
+        return ArchiveManifest.take(directory, PathFilter.ALL, CompressionType.Zip, false, hashContents, null);
+    }
+
+    private void setModifiedAgo(final long millis) throws IOException {
+        final FileTime time = FileTime.fromMillis(System.currentTimeMillis() - millis);
+        try (final Stream<Path> files = Files.walk(directory)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.setLastModifiedTime(file, time);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+
+public class ArchiveSourceTest {
+
+    private Path testDir;
+
+    @Before
+    public void setUp() throws IOException {
+        TestUtils.initializeTestingFolders();
+        testDir = Paths.get(TestUtils.TEST_DIR);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestUtils.cleanUpTestingFolders();
+    }
+
+    @Test
+    public void returnsFilesInWalkOrder() throws IOException {
+        final List<File> expected = CompressionTools.addFilesToCompress(testDir, null);
+        final List<File> actual = new ArrayList<>();
+
+        try (final ArchiveSource source = new ArchiveSource(testDir, new ArchiveEntryFactory(CompressionType.Zip), null)) {
+            ArchiveSource.Item item;
+            while ((item = source.next()) != null) {
+                actual.add(item.getFile().toFile());
+                assertEquals(testDir.relativize(item.getFile()).toString(), item.getEntry().getName());
+            }
+            assertNull(source.next());
+        }
+
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void writesContentsOfSmallAndLargeFiles() throws IOException {
+        final byte[] small = randomBytes(100);
+        final byte[] large = randomBytes(3 * 1024 * 1024);
+        Files.write(testDir.resolve("bbb.txt"), small);
+        Files.write(testDir.resolve("Dir2").resolve("333.txt"), large);
+
+        try (final ArchiveSource source = new ArchiveSource(testDir, new ArchiveEntryFactory(CompressionType.Tar), null)) {
+            ArchiveSource.Item item;
+            while ((item = source.next()) != null) {
+                final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                item.writeContents(contents);
+
+                assertArrayEquals(Files.readAllBytes(item.getFile()), contents.toByteArray());
+                assertEquals(Files.size(item.getFile()), item.getEntry().getSize());
+            }
+        }
+    }
+
+    @Test
+    public void writesContentsOfMappedFiles() throws IOException {
+        final byte[] large = randomBytes(3 * 1024 * 1024 + 5);
+        Files.write(testDir.resolve("Dir2").resolve("333.txt"), large);
+
+        try (final ArchiveSource source = new ArchiveSource(testDir, PathFilter.ALL, new ArchiveEntryFactory(CompressionType.Zip), null, 1)) {
+            ArchiveSource.Item item;
+            while ((item = source.next()) != null) {
+                final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                item.writeContents(contents);
+
+                assertArrayEquals(Files.readAllBytes(item.getFile()), contents.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void createsEntriesFromWalkAttributes() throws IOException {
+        try (final ArchiveSource source = new ArchiveSource(testDir, new ArchiveEntryFactory(CompressionType.Zip), null)) {
+            final ArchiveSource.Item item = source.next();
+
+            assertNotNull(item);
+            final ZipArchiveEntry entry = (ZipArchiveEntry) item.getEntry();
+            assertEquals(Files.getLastModifiedTime(item.getFile()).toMillis(), entry.getTime());
+        }
+
+        try (final ArchiveSource source = new ArchiveSource(testDir, new ArchiveEntryFactory(CompressionType.TarGz), null)) {
+            final ArchiveSource.Item item = source.next();
+
+            assertNotNull(item);
+            assertEquals(TarArchiveEntry.class, item.getEntry().getClass());
+        }
+    }
+
+    @Test
+    public void createsReproducibleEntries() throws IOException {
+        final Path file = testDir.resolve("bbb.txt");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+        final TarArchiveEntry tarEntry = (TarArchiveEntry) new ArchiveEntryFactory(CompressionType.Tar, true)
+                .create(file.toFile(), "bbb.txt", attributes);
+        assertEquals(Date.from(Instant.parse("1980-02-01T00:00:00Z")), tarEntry.getModTime());
+        assertEquals(0, tarEntry.getLongUserId());
+        assertEquals(0, tarEntry.getLongGroupId());
+        assertEquals("", tarEntry.getUserName());
+        assertEquals(0100644, tarEntry.getMode());
+        assertEquals(Files.size(file), tarEntry.getSize());
+
+        final ZipArchiveEntry zipEntry = (ZipArchiveEntry) new ArchiveEntryFactory(CompressionType.Zip, true)
+                .create(file.toFile(), "bbb.txt", attributes);
+        assertEquals(0100644, zipEntry.getUnixMode());
+        assertEquals(LocalDateTime.of(1980, 2, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                zipEntry.getTime());
+    }
+
+    @Test
+    public void keepsExecutableBitInReproducibleEntries() throws IOException {
+        final Path file = testDir.resolve("bbb.txt");
+        assumeTrue(file.toFile().setExecutable(true, true));
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+        final TarArchiveEntry tarEntry = (TarArchiveEntry) new ArchiveEntryFactory(CompressionType.Tar, true)
+                .create(file.toFile(), "bbb.txt", attributes);
+        assertEquals(0100755, tarEntry.getMode());
+    }
+
+    @Test
+    public void returnsFilesInNameOrderWhenReproducible() throws IOException {
+        final List<String> names = new ArrayList<>();
+
+        try (final ArchiveSource source = new ArchiveSource(testDir, new ArchiveEntryFactory(CompressionType.Tar, true), null)) {
+            ArchiveSource.Item item;
+            while ((item = source.next()) != null) {
+                names.add(item.getEntry().getName());
+            }
+        }
+
+        final List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        assertEquals(5, names.size());
+        assertEquals(sorted, names);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnCyclesInWorkspace() throws IOException {
+        TestUtils.addSymlinkToCreateCycleInWorkspace();
+
+        try (final ArchiveSource source = new ArchiveSource(testDir, new ArchiveEntryFactory(CompressionType.Zip), null)) {
+            while (source.next() != null) {
+                // Reads until the walk fails
+            }
+        } finally {
+            TestUtils.removeSymlinkCycle();
+        }
+    }
+
+    @Test
+    public void canBeClosedBeforeAllFilesAreRead() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            Files.write(testDir.resolve("Dir2").resolve("file" + i), randomBytes(10));
+        }
+
+        try (final ArchiveSource source = new ArchiveSource(testDir, new ArchiveEntryFactory(CompressionType.Zip), null)) {
+            assertNotNull(source.next());
+        }
+    }
+
+    // Slabs that readers are still filling are not given back by close, but by the readers once they are done
+    @Test
+    public void givesBackEverySlabOnceWhenClosedWhileReadingAhead() throws IOException, InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            Files.write(testDir.resolve("Dir2").resolve("file" + i), randomBytes(10));
+        }
+        final SlabPool slabPool = SlabPool.get();
+        final long usedBytes = slabPool.getUsedBytes();
+
+        try (final ArchiveSource source = new ArchiveSource(testDir, new ArchiveEntryFactory(CompressionType.Zip), null)) {
+            assertNotNull(source.next());
+        }
+
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (slabPool.getUsedBytes() > usedBytes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(usedBytes, slabPool.getUsedBytes());
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArtifactDigestIndexTest {
+
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void findsLocationsAfterReload() throws IOException {
+        final File indexFile = new File(tempFolder.getRoot(), "state/" + ArtifactDigestIndex.FILE_NAME);
+        final ArtifactDigestIndex index = ArtifactDigestIndex.load(indexFile);
+        index.put("abc", new ArtifactDigestIndex.Location("bucket", "Pipeline/Out put/key+1", 42, "\"etag\""));
+
+        final ArtifactDigestIndex.Location location = ArtifactDigestIndex.load(indexFile).find("abc");
+
+        assertNotNull(location);
+        assertEquals("bucket", location.getBucketName());
+        assertEquals("Pipeline/Out put/key+1", location.getObjectKey());
+        assertEquals(42, location.getSize());
+        assertEquals("\"etag\"", location.getETag());
+        assertNull(ArtifactDigestIndex.load(indexFile).find("def"));
+    }
+
+    @Test
+    public void removesLocations() throws IOException {
+        final File indexFile = new File(tempFolder.getRoot(), ArtifactDigestIndex.FILE_NAME);
+        final ArtifactDigestIndex index = ArtifactDigestIndex.load(indexFile);
+        index.put("abc", new ArtifactDigestIndex.Location("bucket", "key", 42, "etag"));
+        index.remove("abc");
+
+        assertNull(index.find("abc"));
+        assertNull(ArtifactDigestIndex.load(indexFile).find("abc"));
+    }
+
+    @Test
+    public void keepsMostRecentlyUsedEntries() throws IOException {
+        final File indexFile = new File(tempFolder.getRoot(), ArtifactDigestIndex.FILE_NAME);
+        final ArtifactDigestIndex index = ArtifactDigestIndex.load(indexFile);
+
+        index.put("first", new ArtifactDigestIndex.Location("bucket", "first", 1, "etag"));
+        index.put("second", new ArtifactDigestIndex.Location("bucket", "second", 1, "etag"));
+        // Used again, so it outlives the second entry
+        index.put("first", new ArtifactDigestIndex.Location("bucket", "first", 1, "etag"));
+        for (int i = 0; i < 255; i++) {
+            index.put("digest" + i, new ArtifactDigestIndex.Location("bucket", "key" + i, 1, "etag"));
+        }
+
+        final ArtifactDigestIndex reloaded = ArtifactDigestIndex.load(indexFile);
+        assertNotNull(reloaded.find("first"));
+        assertNull(reloaded.find("second"));
+        assertNotNull(reloaded.find("digest254"));
+    }
+
+    @Test
+    public void ignoresMalformedLines() throws IOException {
+        final File indexFile = tempFolder.newFile();
+        Files.write(indexFile.toPath(), "abc bucket key notanumber etag\ndef bucket key 7 etag\ntruncated\n"
+                .getBytes(StandardCharsets.UTF_8));
+
+        final ArtifactDigestIndex index = ArtifactDigestIndex.load(indexFile);
+
+        assertNull(index.find("abc"));
+        assertEquals(7, index.find("def").getSize());
+    }
+
+    @Test
+    public void digestsFiles() throws IOException {
+        final File file = tempFolder.newFile();
+        Files.write(file.toPath(), "abc".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                ArtifactDigestIndex.digestFile(file));
+    }
+
+}
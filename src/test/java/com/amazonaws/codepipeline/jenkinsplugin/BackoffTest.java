@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BackoffTest {
+
+    @Test
+    public void ceilingDoublesUpToMaximum() {
+        final Backoff backoff = new Backoff(100, 1000);
+
+        assertEquals(100, backoff.getCeilingMillis(1));
+        assertEquals(200, backoff.getCeilingMillis(2));
+        assertEquals(800, backoff.getCeilingMillis(4));
+        assertEquals(1000, backoff.getCeilingMillis(5));
+        assertEquals(1000, backoff.getCeilingMillis(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void delayIsBetweenZeroAndCeiling() {
+        final Backoff backoff = new Backoff(100, 1000);
+
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                final long delay = backoff.getDelayMillis(attempt);
+                assertTrue(delay >= 0 && delay <= backoff.getCeilingMillis(attempt));
+            }
+        }
+    }
+
+}
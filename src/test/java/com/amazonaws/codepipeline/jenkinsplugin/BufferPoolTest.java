@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("BufferPoolTest", ".bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void copiesStreamLargerThanWriteBuffer() throws IOException {
+        final byte[] contents = randomBytes(BufferPool.WRITE_BUFFER_SIZE * 2 + 12345);
+
+        assertEquals(contents.length, copy(new ByteArrayInputStream(contents)));
+        assertArrayEquals(contents, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void copiesStreamReturningShortReads() throws IOException {
+        final byte[] contents = randomBytes(BufferPool.READ_CHUNK_SIZE * 3 + 7);
+        final InputStream trickle = new FilterInputStream(new ByteArrayInputStream(contents)) {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+
+        assertEquals(contents.length, copy(trickle));
+        assertArrayEquals(contents, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void copiesEmptyStream() throws IOException {
+        assertEquals(0, copy(new ByteArrayInputStream(new byte[0])));
+        assertEquals(0, Files.size(file));
+    }
+
+    @Test
+    public void givesSlabsBackAfterCopy() throws IOException {
+        final long usedBytes = SlabPool.get().getUsedBytes();
+
+        copy(new ByteArrayInputStream(randomBytes(BufferPool.WRITE_BUFFER_SIZE + 1)));
+
+        assertEquals(usedBytes, SlabPool.get().getUsedBytes());
+    }
+
+    @Test
+    public void givesSlabsBackWhenCopyFails() {
+        final long usedBytes = SlabPool.get().getUsedBytes();
+        final InputStream failing = new FilterInputStream(new ByteArrayInputStream(randomBytes(1024))) {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+
+        try {
+            copy(failing);
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertEquals("Connection reset", ex.getMessage());
+        }
+        assertEquals(usedBytes, SlabPool.get().getUsedBytes());
+    }
+
+    @Test
+    public void copiesWithSingleSlabWhenPoolIsShort() throws IOException {
+        final SlabPool slabPool = SlabPool.get();
+        final List<ByteBuffer> held = new ArrayList<>();
+        ByteBuffer slab;
+        while ((slab = slabPool.tryTake()) != null) {
+            held.add(slab);
+        }
+        slabPool.give(held.remove(held.size() - 1));
+
+        try {
+            final byte[] contents = randomBytes(BufferPool.WRITE_BUFFER_SIZE + 12345);
+
+            assertEquals(contents.length, copy(new ByteArrayInputStream(contents)));
+            assertArrayEquals(contents, Files.readAllBytes(file));
+        } finally {
+            slabPool.give(held);
+        }
+    }
+
+    @Test
+    public void digestsPartOfFile() throws Exception {
+        final byte[] contents = randomBytes(BufferPool.READ_CHUNK_SIZE * 2 + 99);
+        Files.write(file, contents);
+        final MessageDigest expected = MessageDigest.getInstance("MD5");
+        expected.update(contents, 100, contents.length - 200);
+
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BufferPool.update(channel, 100, contents.length - 200, digest);
+        }
+
+        assertArrayEquals(expected.digest(), digest.digest());
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsDigestOfPartPastEndOfFile() throws Exception {
+        Files.write(file, randomBytes(1000));
+
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BufferPool.update(channel, 500, 1000, MessageDigest.getInstance("MD5"));
+        }
+    }
+
+    @Test
+    public void readsPartIntoSlabsWhileDigestingIt() throws Exception {
+        final byte[] contents = randomBytes(BufferPool.READ_CHUNK_SIZE * 3 + 99);
+        Files.write(file, contents);
+        final byte[] expected = Arrays.copyOfRange(contents, 50, contents.length - 10);
+        final long usedBytes = SlabPool.get().getUsedBytes();
+
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             final BufferPool.Part part = BufferPool.tryRead(channel, 50, expected.length, digest)) {
+
+            assertArrayEquals(MessageDigest.getInstance("MD5").digest(expected), digest.digest());
+
+            final InputStream in = part.newInputStream();
+            assertArrayEquals(expected, IOUtils.toByteArray(in));
+
+            // Sent again from the start when a request is retried
+            in.reset();
+            assertEquals(expected[0] & 0xff, in.read());
+            assertEquals(expected.length - 1, in.available());
+        }
+
+        assertEquals(usedBytes, SlabPool.get().getUsedBytes());
+    }
+
+    @Test
+    public void readsNoPartWhenPoolIsShort() throws Exception {
+        Files.write(file, randomBytes(BufferPool.READ_CHUNK_SIZE * 2));
+        final SlabPool slabPool = SlabPool.get();
+        final List<ByteBuffer> held = new ArrayList<>();
+        ByteBuffer slab;
+        while ((slab = slabPool.tryTake()) != null) {
+            held.add(slab);
+        }
+        slabPool.give(held.remove(held.size() - 1));
+
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertNull(BufferPool.tryRead(channel, 0, BufferPool.READ_CHUNK_SIZE * 2, digest));
+        } finally {
+            slabPool.give(held);
+        }
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(), digest.digest());
+    }
+
+    private long copy(final InputStream in) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            return BufferPool.copy(in, channel);
+        }
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import org.junit.Test;
+
+/**
+ * Measures what the integrity checks of transfers cost per byte: the MD5 of each uploaded part and the
+ * SHA-256 of whole artifacts, next to CRC32C for comparison. Not part of the regular test run, start it
+ * with {@code mvn test -Dtest=ChecksumBenchmark}.
+ *
+ * The data is hashed in chunks of the size transfers are copied in, from memory, so that the figures are
+ * the cost of hashing alone; a transfer slower than them is not slowed down by it.
+ */
+public class ChecksumBenchmark {
+
+    private static final long BYTES_PER_ROUND = 1024L * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void checksums() throws Exception {
+        final byte[] chunk = new byte[BufferPool.READ_CHUNK_SIZE];
+        new Random(BYTES_PER_ROUND).nextBytes(chunk);
+
+        for (int round = 0; round <= ROUNDS; round++) {
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            final MessageDigest sha256 = ArtifactDigestIndex.newDigest();
+            final Checksum crc32c = new CRC32C();
+
+            report(round, "MD5", measure(chunk, () -> md5.update(chunk, 0, chunk.length)));
+            report(round, "SHA-256", measure(chunk, () -> sha256.update(chunk, 0, chunk.length)));
+            report(round, "CRC32C", measure(chunk, () -> crc32c.update(chunk, 0, chunk.length)));
+        }
+    }
+
+    private static long measure(final byte[] chunk, final Runnable update) {
+        final long startTime = System.nanoTime();
+        for (long hashed = 0; hashed < BYTES_PER_ROUND; hashed += chunk.length) {
+            update.run();
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static void report(final int round, final String algorithm, final long elapsedNanos) {
+        // Round 0 warms up the JIT
+        if (round > 0) {
+            System.out.printf("round %d: %s %.0f MiB/s, %.2f ns per byte%n", round, algorithm,
+                    BYTES_PER_ROUND / (elapsedNanos / 1e9) / (1024 * 1024), (double) elapsedNanos / BYTES_PER_ROUND);
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+
+public class CodePipelineTracingTest {
+
+    private static final String JOB_ID = "JobId";
+
+    private InMemorySpanExporter exporter;
+    private SdkTracerProvider tracerProvider;
+    private Tracer tracer;
+
+    @Before
+    public void setUp() {
+        exporter = InMemorySpanExporter.create();
+        tracerProvider = SdkTracerProvider.builder()
+                .addSpanProcessor(SimpleSpanProcessor.create(exporter))
+                .build();
+        tracer = tracerProvider.get("test");
+    }
+
+    @After
+    public void tearDown() {
+        tracerProvider.close();
+    }
+
+    @Test
+    public void propagatesTraceContextThroughMap() {
+        final Span root = CodePipelineTracing.startSpan(tracer, "Poll", Context.root(), JOB_ID);
+        final Map<String, String> carrier = CodePipelineTracing.inject(Context.root().with(root));
+        root.end();
+
+        final Span child = CodePipelineTracing.startSpan(tracer, "Download", CodePipelineTracing.extract(carrier), JOB_ID);
+        child.end();
+
+        final List<SpanData> spans = exporter.getFinishedSpanItems();
+        assertEquals(2, spans.size());
+        assertEquals(spans.get(0).getTraceId(), spans.get(1).getTraceId());
+        assertEquals(spans.get(0).getSpanId(), spans.get(1).getParentSpanId());
+        assertEquals(JOB_ID, spans.get(1).getAttributes().get(CodePipelineTracing.JOB_ID));
+    }
+
+    @Test
+    public void extractsRootContextWhenNothingWasPropagated() {
+        assertFalse(Span.fromContext(CodePipelineTracing.extract(null)).getSpanContext().isValid());
+        assertFalse(Span.fromContext(CodePipelineTracing.extract(CodePipelineTracing.inject(Context.root())))
+                .getSpanContext().isValid());
+    }
+
+    @Test
+    public void createsChildSpanOfCurrentPhase() throws IOException {
+        final Span phase = CodePipelineTracing.startSpan(tracer, "Upload", Context.root(), JOB_ID);
+
+        try (final Scope ignored = CodePipelineTracing.makeCurrent(phase, tracer)) {
+            assertEquals("result", CodePipelineTracing.inSpan("Compress", () -> "result"));
+        } finally {
+            phase.end();
+        }
+
+        final List<SpanData> spans = exporter.getFinishedSpanItems();
+        assertEquals(2, spans.size());
+        assertEquals("Compress", spans.get(0).getName());
+        assertEquals(phase.getSpanContext().getSpanId(), spans.get(0).getParentSpanId());
+    }
+
+    @Test
+    public void recordsFailureOfChildSpan() {
+        final Span phase = CodePipelineTracing.startSpan(tracer, "Upload", Context.root(), JOB_ID);
+
+        try (final Scope ignored = CodePipelineTracing.makeCurrent(phase, tracer)) {
+            CodePipelineTracing.inSpan("UploadArtifact", () -> {
+                throw new IOException("Upload failed");
+            });
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertEquals("Upload failed", ex.getMessage());
+        } finally {
+            phase.end();
+        }
+
+        final SpanData uploadArtifact = exporter.getFinishedSpanItems().get(0);
+        assertEquals(StatusCode.ERROR, uploadArtifact.getStatus().getStatusCode());
+        assertEquals(1, uploadArtifact.getEvents().size());
+    }
+
+    @Test
+    public void runsCallWithoutSpanWhenNoPhaseIsTraced() throws IOException {
+        assertEquals("result", CodePipelineTracing.inSpan("Compress", () -> "result"));
+
+        assertTrue(exporter.getFinishedSpanItems().isEmpty());
+    }
+
+    @Test
+    public void requestHandlerRecordsAwsCallsOfCurrentPhase() {
+        final TracingRequestHandler handler = new TracingRequestHandler();
+        final Request<GetObjectRequest> request = new DefaultRequest<>(new GetObjectRequest("bucket", "key"), "Amazon S3");
+        final Span phase = CodePipelineTracing.startSpan(tracer, "Download", Context.root(), JOB_ID);
+
+        try (final Scope ignored = CodePipelineTracing.makeCurrent(phase, tracer)) {
+            handler.beforeRequest(request);
+            handler.afterResponse(request, null);
+        } finally {
+            phase.end();
+        }
+
+        final SpanData awsCall = exporter.getFinishedSpanItems().get(0);
+        final SpanContext phaseContext = phase.getSpanContext();
+        assertEquals("S3.GetObject", awsCall.getName());
+        assertEquals(phaseContext.getSpanId(), awsCall.getParentSpanId());
+    }
+
+    @Test
+    public void requestHandlerDoesNothingWhenNoPhaseIsTraced() {
+        final TracingRequestHandler handler = new TracingRequestHandler();
+        final Request<GetObjectRequest> request = new DefaultRequest<>(new GetObjectRequest("bucket", "key"), "Amazon S3");
+
+        handler.beforeRequest(request);
+        handler.afterResponse(request, null);
+
+        assertTrue(exporter.getFinishedSpanItems().isEmpty());
+    }
+
+    @Test
+    public void shutsDownSdkOfReplacedEndpoint() {
+        try {
+            // given
+            final Tracer first = CodePipelineTracing.getTracer("http://127.0.0.1:1/v1/traces");
+            assertTrue(first.spanBuilder("Probe").startSpan().isRecording());
+
+            // when
+            final Tracer second = CodePipelineTracing.getTracer("http://127.0.0.1:2/v1/traces");
+
+            // then
+            assertFalse(first.spanBuilder("Probe").startSpan().isRecording());
+            assertTrue(second.spanBuilder("Probe").startSpan().isRecording());
+        } finally {
+            CodePipelineTracing.shutdown();
+        }
+    }
+
+    @Test
+    public void shutsDownSdkWhenStopped() {
+        // given
+        final Tracer tracer = CodePipelineTracing.getTracer("http://127.0.0.1:1/v1/traces");
+
+        // when
+        CodePipelineTracing.shutdown();
+
+        // then
+        assertFalse(tracer.spanBuilder("Probe").startSpan().isRecording());
+        assertTrue(CodePipelineTracing.getTracer("http://127.0.0.1:1/v1/traces").spanBuilder("Probe").startSpan().isRecording());
+        CodePipelineTracing.shutdown();
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+
+/**
+ * Compares reading a large file through a stream with mapping it into memory while archiving it. Not part
+ * of the regular test run, start it with {@code mvn test -Dtest=CompressionToolsBenchmark}; the size of the
+ * file can be set with {@code -Dbenchmark.fileSize=<bytes>}.
+ *
+ * The file is half random and half zeros, so that deflate has some work to do without dominating the run.
+ */
+public class CompressionToolsBenchmark {
+
+    private static final long FILE_SIZE = Long.getLong("benchmark.fileSize", 1024L * 1024 * 1024);
+    private static final int ROUNDS = 3;
+
+    private Path workDir;
+    private Path inputDir;
+    private Path archive;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("CompressionToolsBenchmark");
+        inputDir = Files.createDirectory(workDir.resolve("input"));
+        archive = workDir.resolve("archive");
+
+        final byte[] block = new byte[1024 * 1024];
+        final Random random = new Random(FILE_SIZE);
+
+        try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(inputDir.resolve("image.bin").toFile()))) {
+            for (long written = 0; written < FILE_SIZE; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, block.length / 2);
+                out.write(new byte[block.length / 2]);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Test
+    public void zipStored() throws IOException {
+        run("zip stored", CompressionType.Zip, ZipEntry.STORED);
+    }
+
+    @Test
+    public void zipDeflated() throws IOException {
+        run("zip deflated", CompressionType.Zip, ZipEntry.DEFLATED);
+    }
+
+    @Test
+    public void tar() throws IOException {
+        run("tar", CompressionType.Tar, -1);
+    }
+
+    private void run(final String mode, final CompressionType compressionType, final int zipMethod) throws IOException {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+        for (int round = 0; round <= ROUNDS; round++) {
+            for (final boolean mapped : new boolean[] { false, true }) {
+                final long cpuBefore = threadBean.getCurrentThreadCpuTime();
+                final long startTime = System.nanoTime();
+
+                try (final ArchiveOutputStream out = open(compressionType, zipMethod);
+                     final ArchiveSource source = new ArchiveSource(
+                             inputDir,
+                             PathFilter.ALL,
+                             new ArchiveEntryFactory(compressionType),
+                             null,
+                             mapped ? 0 : Long.MAX_VALUE)) {
+                    ArchiveSource.Item item;
+                    while ((item = source.next()) != null) {
+                        out.putArchiveEntry(item.getEntry());
+                        item.writeContents(out);
+                        out.closeArchiveEntry();
+                    }
+                }
+
+                final double seconds = (System.nanoTime() - startTime) / 1e9;
+                final double cpuSeconds = (threadBean.getCurrentThreadCpuTime() - cpuBefore) / 1e9;
+
+                // Round 0 warms up the JIT and the page cache
+                if (round > 0) {
+                    System.out.printf("%s, %s: %.0f MiB/s, %.2f s CPU%n", mode, mapped ? "mapped" : "streamed",
+                            FILE_SIZE / seconds / (1024 * 1024), cpuSeconds);
+                }
+            }
+        }
+    }
+
+    private ArchiveOutputStream open(final CompressionType compressionType, final int zipMethod) throws IOException {
+        if (compressionType == CompressionType.Zip) {
+            // Seekable, so that stored entries do not need their size and checksum up front
+            final ZipArchiveOutputStream zipArchiveOutputStream = new ZipArchiveOutputStream(archive.toFile());
+            zipArchiveOutputStream.setMethod(zipMethod);
+            return zipArchiveOutputStream;
+        }
+
+        final TarArchiveOutputStream tarArchiveOutputStream =
+                new TarArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(archive.toFile())));
+        tarArchiveOutputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
+        return tarArchiveOutputStream;
+    }
+
+}
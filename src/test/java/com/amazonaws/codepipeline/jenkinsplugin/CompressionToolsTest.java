@@ -14,6 +14,7 @@
  */
 package com.amazonaws.codepipeline.jenkinsplugin;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
@@ -23,10 +24,17 @@ import hudson.model.AbstractProject;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -117,6 +125,69 @@ public class CompressionToolsTest {
         assertTrue(compressedFile.getName().contains(".tar.gz"));
     }
 
+    @Test
+    public void digestsArchiveWhileWritingIt() throws IOException {
+        projectName = "DigestProject";
+
+        for (final CodePipelineStateModel.CompressionType compressionType : new CodePipelineStateModel.CompressionType[] {
+                CodePipelineStateModel.CompressionType.Zip,
+                CodePipelineStateModel.CompressionType.Tar,
+                CodePipelineStateModel.CompressionType.TarGz }) {
+            final MessageDigest digest = ArtifactDigestIndex.newDigest();
+            compressedFile = CompressionTools.compressFile(projectName, testDir, PathFilter.ALL, compressionType, digest, false, null);
+
+            assertEquals(ArtifactDigestIndex.digestFile(compressedFile), ArtifactDigestIndex.toHex(digest));
+            compressedFile.delete();
+        }
+    }
+
+    @Test
+    public void createsIdenticalReproducibleArchives() throws IOException {
+        projectName = "ReproducibleProject";
+
+        for (final CodePipelineStateModel.CompressionType compressionType : new CodePipelineStateModel.CompressionType[] {
+                CodePipelineStateModel.CompressionType.Zip,
+                CodePipelineStateModel.CompressionType.Tar,
+                CodePipelineStateModel.CompressionType.TarGz }) {
+            final File first = CompressionTools.compressFile(projectName, testDir, PathFilter.ALL, compressionType, null, true, null);
+
+            // Same names and contents, written later and in another order
+            final Path file = testDir.resolve("Dir1").resolve("out.txt");
+            final byte[] contents = Files.readAllBytes(file);
+            Files.delete(file);
+            Files.write(testDir.resolve("Dir1").resolve("zzz.txt"), contents);
+            Files.write(file, contents);
+            Files.delete(testDir.resolve("Dir1").resolve("zzz.txt"));
+            Files.setLastModifiedTime(testDir.resolve("bbb.txt"), FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+            compressedFile = CompressionTools.compressFile(projectName, testDir, PathFilter.ALL, compressionType, null, true, null);
+            try {
+                assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(compressedFile.toPath()));
+            } finally {
+                first.delete();
+                compressedFile.delete();
+            }
+        }
+    }
+
+    // Reading the files while archiving them changes their access time, which is not part of the entries
+    @Test
+    public void createsIdenticalZipArchivesWhenFilesWereOnlyRead() throws IOException {
+        projectName = "AccessTimeProject";
+
+        final File first = CompressionTools.compressFile(projectName, testDir, PathFilter.ALL,
+                CodePipelineStateModel.CompressionType.Zip, null, false, null);
+        Files.setAttribute(testDir.resolve("bbb.txt"), "lastAccessTime", FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+        compressedFile = CompressionTools.compressFile(projectName, testDir, PathFilter.ALL,
+                CodePipelineStateModel.CompressionType.Zip, null, false, null);
+        try {
+            assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(compressedFile.toPath()));
+        } finally {
+            first.delete();
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void failsWithUnknownCompressionType() throws IOException {
         projectName = "UnkownkCompressionProject";
@@ -162,6 +233,78 @@ public class CompressionToolsTest {
         assertEquals(7, files.size());
     }
 
+    @Test
+    public void walksFilesInNameOrder() throws IOException {
+        Files.write(testDir.resolve("Dir1").resolve("000.txt"), new byte[0]);
+        final List<Path> files = new ArrayList<>();
+
+        CompressionTools.walkFilesToCompressSorted(testDir, null, (file, attributes) -> files.add(file));
+
+        final List<Path> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparing(Path::toString));
+        assertEquals(6, files.size());
+        assertEquals(sorted, files);
+    }
+
+    @Test
+    public void walksOnlyFilesPassingTheFilter() throws IOException {
+        final List<Path> files = new ArrayList<>();
+
+        CompressionTools.walkFilesToCompress(testDir, PathFilter.of("Dir1/, *.txt", "**/SubDir3/"), null,
+                (file, attributes) -> files.add(testDir.relativize(file)));
+
+        files.sort(Comparator.comparing(Path::toString));
+        assertEquals(Arrays.asList(
+                Paths.get("Dir1", "SubDir1", "aaa.txt"),
+                Paths.get("Dir1", "out.txt"),
+                Paths.get("bbb.txt")), files);
+    }
+
+    @Test
+    public void skipsExcludedDirectoriesWithoutReadingThem() throws IOException {
+        TestUtils.addSymlinkToCreateCycleInWorkspace();
+
+        try {
+            final List<Path> files = new ArrayList<>();
+            final PathFilter filter = PathFilter.of(null, "Dir1/");
+
+            CompressionTools.walkFilesToCompress(testDir, filter, null, (file, attributes) -> files.add(file));
+            assertEquals(2, files.size());
+
+            files.clear();
+            CompressionTools.walkFilesToCompressSorted(testDir, filter, null, (file, attributes) -> files.add(file));
+            assertEquals(2, files.size());
+        } finally {
+            TestUtils.removeSymlinkCycle();
+        }
+    }
+
+    @Test
+    public void compressesOnlyFilesPassingTheFilter() throws IOException {
+        projectName = "FilteredProject";
+
+        compressedFile = CompressionTools.compressFile(projectName, testDir, PathFilter.of("**/*.txt", "Dir1/"),
+                CodePipelineStateModel.CompressionType.Zip, null, false, null);
+
+        final List<String> names = new ArrayList<>();
+        try (final ZipFile zipFile = new ZipFile(compressedFile)) {
+            zipFile.getEntries().asIterator().forEachRemaining(entry -> names.add(entry.getName()));
+        }
+        names.sort(Comparator.naturalOrder());
+        assertEquals(Arrays.asList("Dir2/333.txt", "bbb.txt"), names);
+    }
+
+    @Test(expected = IOException.class)
+    public void detectsCyclesInSortedWalk() throws IOException {
+        TestUtils.addSymlinkToCreateCycleInWorkspace();
+
+        try {
+            CompressionTools.walkFilesToCompressSorted(testDir, null, (file, attributes) -> { });
+        } finally {
+            TestUtils.removeSymlinkCycle();
+        }
+    }
+
     @Test(expected = IOException.class)
     public void detectsCyclesInWorkspace() throws IOException {
         TestUtils.addSymlinkToCreateCycleInWorkspace();
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.Test;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSRequestMetricsFullSupport;
+
+public class ConnectionPoolMetricsTest {
+
+    @Test
+    public void readsCountsOfEveryPoolWhenAskedFor() throws Exception {
+        // given
+        final ConnectionPoolMetrics metrics = new ConnectionPoolMetrics();
+        final PoolingHttpClientConnectionManager firstPool = new PoolingHttpClientConnectionManager();
+        final PoolingHttpClientConnectionManager secondPool = new PoolingHttpClientConnectionManager();
+        firstPool.setMaxTotal(10);
+        secondPool.setMaxTotal(5);
+        metrics.register(firstPool);
+        metrics.register(secondPool);
+
+        try {
+            // when
+            final HttpClientConnection first = lease(firstPool);
+            lease(firstPool);
+            lease(secondPool);
+
+            // then
+            assertEquals(3, metrics.getLeasedConnections());
+            assertEquals(0, metrics.getAvailableConnections());
+            assertEquals(0, metrics.getPendingRequests());
+            assertEquals(15, metrics.getMaxConnections());
+
+            // when
+            firstPool.releaseConnection(first, null, 0, TimeUnit.MILLISECONDS);
+
+            // then
+            assertEquals(2, metrics.getLeasedConnections());
+            assertEquals(3, metrics.getPeakLeasedConnections());
+        } finally {
+            firstPool.shutdown();
+            secondPool.shutdown();
+        }
+    }
+
+    @Test
+    public void dropsPoolsOfReleasedClients() throws Exception {
+        // given
+        final ConnectionPoolMetrics metrics = new ConnectionPoolMetrics();
+        final PoolingHttpClientConnectionManager firstPool = new PoolingHttpClientConnectionManager();
+        final PoolingHttpClientConnectionManager secondPool = new PoolingHttpClientConnectionManager();
+        metrics.register(firstPool);
+        metrics.register(secondPool);
+
+        try {
+            lease(firstPool);
+            lease(secondPool);
+            lease(secondPool);
+
+            // when
+            metrics.release(firstPool);
+
+            // then
+            assertEquals(2, metrics.getLeasedConnections());
+            assertEquals(secondPool.getMaxTotal(), metrics.getMaxConnections());
+        } finally {
+            firstPool.shutdown();
+            secondPool.shutdown();
+        }
+    }
+
+    @Test
+    public void countsRequestsAndPeaksTheySaw() {
+        // given
+        final ConnectionPoolMetrics metrics = new ConnectionPoolMetrics();
+
+        // when
+        metrics.getCollector().collectMetrics(request(5, 1, 0), null);
+        metrics.getCollector().collectMetrics(request(3, 2, 0), null);
+        metrics.getCollector().collectMetrics(request(4, 0, 2), null);
+
+        // then
+        assertEquals(5, metrics.getPeakLeasedConnections());
+        assertEquals(2, metrics.getPeakPendingRequests());
+        assertEquals(3, metrics.getRequests());
+        // No pool was registered to read the current counts from
+        assertEquals(0, metrics.getLeasedConnections());
+    }
+
+    @Test
+    public void ignoresRequestsThatNeverGotToThePool() {
+        // given
+        final ConnectionPoolMetrics metrics = new ConnectionPoolMetrics();
+        final DefaultRequest<Void> request = new DefaultRequest<>("Amazon S3");
+        request.setAWSRequestMetrics(new AWSRequestMetricsFullSupport());
+
+        // when
+        metrics.getCollector().collectMetrics(request, null);
+
+        // then
+        assertEquals(0, metrics.getRequests());
+        assertEquals(0, metrics.getLeasedConnections());
+    }
+
+    @Test
+    public void collectsCountsOfS3Clients() throws IOException {
+        try (final LocalS3Server server = new LocalS3Server()) {
+            final int connectionsBefore = ConnectionPoolMetrics.S3.getAvailableConnections()
+                    + ConnectionPoolMetrics.S3.getLeasedConnections();
+            final AmazonS3 amazonS3 = server.createClient();
+            final long requestsBefore = ConnectionPoolMetrics.S3.getRequests();
+            final byte[] contents = "contents".getBytes(StandardCharsets.UTF_8);
+
+            try {
+                // when
+                final ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(contents.length);
+                amazonS3.putObject("bucket", "key", new ByteArrayInputStream(contents), metadata);
+                try (final S3Object object = amazonS3.getObject("bucket", "key")) {
+                    assertArrayEquals(contents, IOUtils.toByteArray(object.getObjectContent()));
+                }
+
+                // then
+                assertTrue(ConnectionPoolMetrics.S3.getRequests() >= requestsBefore + 2);
+                // The connection of the first request was given back to the pool before the second one
+                assertTrue(ConnectionPoolMetrics.S3.getAvailableConnections() + ConnectionPoolMetrics.S3.getLeasedConnections() > 0);
+            } finally {
+                amazonS3.shutdown();
+            }
+
+            // The pool of the client is closed with it, clients that were dropped meanwhile may be gone too
+            assertTrue(ConnectionPoolMetrics.S3.getAvailableConnections() + ConnectionPoolMetrics.S3.getLeasedConnections()
+                    <= connectionsBefore);
+        }
+    }
+
+    @Test
+    public void registersMetricsOfEveryService() throws Exception {
+        // given
+        ConnectionPoolMetrics.S3.getRequests();
+
+        // then
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(ConnectionPoolMetrics.OBJECT_NAME_PREFIX + "S3")));
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(ConnectionPoolMetrics.OBJECT_NAME_PREFIX + "CodePipeline")));
+    }
+
+    private static HttpClientConnection lease(final PoolingHttpClientConnectionManager pool) throws Exception {
+        return pool.requestConnection(new HttpRoute(new HttpHost("localhost")), null).get(1, TimeUnit.SECONDS);
+    }
+
+    private static DefaultRequest<Void> request(final int leased, final int available, final int pending) {
+        final AWSRequestMetrics requestMetrics = new AWSRequestMetricsFullSupport();
+        requestMetrics.withCounter(AWSRequestMetrics.Field.HttpClientPoolLeasedCount, leased);
+        requestMetrics.withCounter(AWSRequestMetrics.Field.HttpClientPoolAvailableCount, available);
+        requestMetrics.withCounter(AWSRequestMetrics.Field.HttpClientPoolPendingCount, pending);
+
+        final DefaultRequest<Void> request = new DefaultRequest<>("Amazon S3");
+        request.setAWSRequestMetrics(requestMetrics);
+        return request;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Measures the CPU time the download of an artifact spends copying it from the connection to the file, per
+ * GiB: through a buffered output stream as before the copy went through channels, through a heap chunk into
+ * the direct buffer, and through a channel straight into the direct buffer as {@link DownloadCallable} does.
+ * Not part of the regular test run, start it with {@code mvn test -Dtest=DownloadCallableBenchmark}.
+ *
+ * The contents come from memory in reads of the size a TLS connection returns, so that the figures are the
+ * cost of the copy and of writing the file alone.
+ */
+public class DownloadCallableBenchmark {
+
+    private static final long BYTES_PER_ROUND = 1024L * 1024 * 1024;
+    private static final int READ_SIZE = 16 * 1024;
+    private static final int ROUNDS = 3;
+
+    private interface Copy {
+        void copy(InputStream in, File file) throws IOException;
+    }
+
+    @Test
+    public void copies() throws Exception {
+        final byte[] record = new byte[READ_SIZE];
+        new Random(BYTES_PER_ROUND).nextBytes(record);
+        final File file = File.createTempFile("download", ".bin");
+        try {
+            for (int round = 0; round <= ROUNDS; round++) {
+                report(round, "output stream", measure(record, file, DownloadCallableBenchmark::copyToStream));
+                report(round, "heap chunk", measure(record, file, DownloadCallableBenchmark::copyThroughChunk));
+                report(round, "channel", measure(record, file, (in, target) -> {
+                    try (final FileChannel channel = open(target)) {
+                        DownloadCallable.copyContents(in, channel);
+                    }
+                }));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void copyToStream(final InputStream in, final File file) throws IOException {
+        try (final OutputStream out = new FileOutputStream(file)) {
+            final byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+        }
+    }
+
+    private static void copyThroughChunk(final InputStream in, final File file) throws IOException {
+        final byte[] chunk = new byte[64 * 1024];
+        final ByteBuffer pending = ByteBuffer.allocateDirect(1024 * 1024);
+        try (final FileChannel channel = open(file)) {
+            int bytesRead;
+            while ((bytesRead = in.read(chunk)) != -1) {
+                if (pending.remaining() < bytesRead) {
+                    drain(pending, channel);
+                }
+                pending.put(chunk, 0, bytesRead);
+            }
+            drain(pending, channel);
+        }
+    }
+
+    private static void drain(final ByteBuffer pending, final FileChannel channel) throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) {
+            channel.write(pending);
+        }
+        pending.clear();
+    }
+
+    private static FileChannel open(final File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static long measure(final byte[] record, final File file, final Copy copy) throws IOException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long startTime = threads.getCurrentThreadCpuTime();
+        copy.copy(new RecordInputStream(record), file);
+        return threads.getCurrentThreadCpuTime() - startTime;
+    }
+
+    private static void report(final int round, final String path, final long cpuNanos) {
+        // Round 0 warms up the JIT
+        if (round > 0) {
+            System.out.printf("round %d: %s %.2f CPU seconds per GiB%n", round, path,
+                    cpuNanos / 1e9 / (BYTES_PER_ROUND / (1024.0 * 1024 * 1024)));
+        }
+    }
+
+    // Returns the record over and over, at most one record per read like a TLS connection
+    private static final class RecordInputStream extends InputStream {
+        private final byte[] record;
+        private long remaining = BYTES_PER_ROUND;
+
+        private RecordInputStream(final byte[] record) {
+            this.record = record;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            final int count = (int) Math.min(Math.min(len, record.length), remaining);
+            System.arraycopy(record, 0, b, off, count);
+            remaining -= count;
+            return count;
+        }
+    }
+
+}
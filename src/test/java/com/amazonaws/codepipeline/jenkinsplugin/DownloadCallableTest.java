@@ -14,23 +14,38 @@
  */
 package com.amazonaws.codepipeline.jenkinsplugin;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static com.amazonaws.codepipeline.jenkinsplugin.TestUtils.assertContainsIgnoreCase;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -56,7 +71,9 @@ import com.amazonaws.services.codepipeline.model.JobData;
 import com.amazonaws.services.codepipeline.model.JobDetails;
 import com.amazonaws.services.codepipeline.model.S3ArtifactLocation;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 
 public class DownloadCallableTest {
@@ -67,6 +84,13 @@ public class DownloadCallableTest {
     private static final String PROXY_HOST = "localhost";
     private static final int PROXY_PORT = 80;
     private static final String REGION = "us-east-1";
+    private static final AWSClientSettings CLIENT_SETTINGS = AWSClientSettings.builder()
+            .withCredentials(ACCESS_KEY, SECRET_KEY)
+            .withProxy(PROXY_HOST, PROXY_PORT)
+            .withRegion(REGION)
+            .withTransportProfile(null)
+            .withPluginUserAgentPrefix(PLUGIN_VERSION)
+            .build();
 
     private static final String JOB_ID = UUID.randomUUID().toString();
     private static final String JOB_ACCESS_KEY = "BPTDIOSFODNN7EXAMPLE";
@@ -129,7 +153,7 @@ public class DownloadCallableTest {
                 null,
                 false);
 
-        when(clientFactory.getAwsClient(anyString(), anyString(), anyString(), anyInt(), anyString(), anyString())).thenReturn(awsClients);
+        when(clientFactory.getAwsClient(any(AWSClientSettings.class))).thenReturn(awsClients);
         when(awsClients.getCodePipelineClient()).thenReturn(codePipelineClient);
         when(awsClients.getS3Client(any(AWSCredentialsProvider.class))).thenReturn(s3Client);
         when(s3Client.getObject(anyString(), anyString())).thenReturn(s3Object);
@@ -171,7 +195,7 @@ public class DownloadCallableTest {
 
         // then
         final InOrder inOrder = inOrder(clientFactory, awsClients, s3Client, model);
-        inOrder.verify(clientFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(clientFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(awsClients).getCodePipelineClient();
         inOrder.verify(awsClients).getS3Client(credentialsProviderCaptor.capture());
         inOrder.verify(s3Client).getObject(S3_BUCKET_NAME, S3_OBJECT_KEY);
@@ -199,6 +223,9 @@ public class DownloadCallableTest {
         assertFalse(doesWorkspaceFileExist("Dir1"));
         assertFalse(doesWorkspaceFileExist("bbb.txt"));
         assertContainsIgnoreCase("[AWS CodePipeline Plugin] Clearing workspace", outContent.toString());
+
+        TestUtils.awaitWorkspaceReaper(WorkspaceReaper.get());
+        assertEquals(0, WorkspaceStateDirectory.get(workspace, "trash").list().length);
     }
 
     @Test
@@ -231,8 +258,237 @@ public class DownloadCallableTest {
         assertContainsIgnoreCase("[AWS CodePipeline Plugin] Artifact uncompressed successfully", outContent.toString());
     }
 
+    @Test
+    public void preallocatesArchiveFromContentLength() throws InterruptedException {
+        // given
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(getArchiveFile().length());
+        when(s3Object.getObjectMetadata()).thenReturn(metadata);
+
+        // when
+        downloader.invoke(workspace, null);
+
+        // then
+        assertTrue(doesWorkspaceFileExist("appspec.yml"));
+        assertTrue(doesWorkspaceFileExist("src", "index.html.haml"));
+    }
+
+    @Test
+    public void truncatesArchiveWhenContentLengthIsOverstated() throws InterruptedException {
+        // given
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(getArchiveFile().length() + 4096);
+        when(s3Object.getObjectMetadata()).thenReturn(metadata);
+
+        // when
+        downloader.invoke(workspace, null);
+
+        // then
+        assertTrue(doesWorkspaceFileExist("appspec.yml"));
+        assertContainsIgnoreCase("[AWS CodePipeline Plugin] Artifact uncompressed successfully", outContent.toString());
+    }
+
+    @Test
+    public void recordsDigestOfDownloadedArtifact() throws IOException, InterruptedException {
+        // given
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(getArchiveFile().length());
+        metadata.setHeader("ETag", "input-etag");
+        when(s3Object.getObjectMetadata()).thenReturn(metadata);
+        when(s3Object.getBucketName()).thenReturn(S3_BUCKET_NAME);
+
+        // when
+        downloader.invoke(workspace, null);
+
+        // then
+        final ArtifactDigestIndex digestIndex = ArtifactDigestIndex.load(
+                WorkspaceStateDirectory.get(workspace, ArtifactDigestIndex.FILE_NAME));
+        final ArtifactDigestIndex.Location location =
+                digestIndex.find(ArtifactDigestIndex.digestFile(getArchiveFile()));
+
+        assertNotNull(location);
+        assertEquals(S3_BUCKET_NAME, location.getBucketName());
+        assertEquals(S3_OBJECT_KEY, location.getObjectKey());
+        assertEquals(getArchiveFile().length(), location.getSize());
+        assertEquals("input-etag", location.getETag());
+    }
+
+    @Test
+    public void verifiesDigestOfDownloadedArtifact() throws IOException, InterruptedException {
+        // given
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.addUserMetadata(PublisherTools.SHA256_METADATA, ArtifactDigestIndex.digestFile(getArchiveFile()));
+        when(s3Object.getObjectMetadata()).thenReturn(metadata);
+
+        // when
+        downloader.invoke(workspace, null);
+
+        // then
+        assertTrue(doesWorkspaceFileExist("appspec.yml"));
+        assertContainsIgnoreCase("[AWS CodePipeline Plugin] Verified the SHA-256 digest of the artifact", outContent.toString());
+    }
+
+    @Test
+    public void refusesCorruptedArtifact() {
+        // given
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.addUserMetadata(PublisherTools.SHA256_METADATA, "0000");
+        when(s3Object.getObjectMetadata()).thenReturn(metadata);
+
+        // when
+        try {
+            downloader.invoke(workspace, null);
+            fail("Expected InterruptedException");
+        } catch (final InterruptedException ex) {
+            // then
+            assertContainsIgnoreCase("is corrupt, its SHA-256 digest is", ex.getMessage());
+            assertFalse(doesWorkspaceFileExist("appspec.yml"));
+            assertFalse(doesWorkspaceFileExist(Paths.get(S3_OBJECT_KEY).getFileName().toString()));
+        }
+    }
+
+    @Test
+    public void resumesDroppedDownload() throws IOException, InterruptedException {
+        // given
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(getArchiveFile().length());
+        metadata.setHeader("ETag", "input-etag");
+        metadata.addUserMetadata(PublisherTools.SHA256_METADATA, ArtifactDigestIndex.digestFile(getArchiveFile()));
+        when(s3Object.getObjectMetadata()).thenReturn(metadata);
+        when(s3Object.getBucketName()).thenReturn(S3_BUCKET_NAME);
+        when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(
+                new DroppingInputStream(new FileInputStream(getArchiveFile()), 1000), null, false));
+
+        final S3Object remainder = new S3Object();
+        final InputStream remainingContents = new FileInputStream(getArchiveFile());
+        remainingContents.skip(1000);
+        remainder.setObjectContent(remainingContents);
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(remainder);
+
+        // when
+        downloader.invoke(workspace, null);
+
+        // then
+        final ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(s3Client).getObject(requestCaptor.capture());
+        assertEquals(1000, requestCaptor.getValue().getRange()[0]);
+        assertEquals(Collections.singletonList("input-etag"), requestCaptor.getValue().getMatchingETagConstraints());
+
+        assertTrue(doesWorkspaceFileExist("appspec.yml"));
+        assertContainsIgnoreCase("[AWS CodePipeline Plugin] Connection dropped after 1000 bytes", outContent.toString());
+        assertContainsIgnoreCase("[AWS CodePipeline Plugin] Resumed the download 1 times, the last time from byte 1000", outContent.toString());
+        assertContainsIgnoreCase("[AWS CodePipeline Plugin] Verified the SHA-256 digest of the artifact", outContent.toString());
+    }
+
+    @Test
+    public void failsResumeWhenObjectChanged() throws FileNotFoundException {
+        // given
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "input-etag");
+        when(s3Object.getObjectMetadata()).thenReturn(metadata);
+        when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(
+                new DroppingInputStream(new FileInputStream(getArchiveFile()), 1000), null, false));
+        // No object when the ETag no longer matches
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(null);
+
+        // when
+        try {
+            downloader.invoke(workspace, null);
+            fail("Expected InterruptedException");
+        } catch (final InterruptedException ex) {
+            // then
+            assertContainsIgnoreCase("changed while it was being downloaded", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void doesNotResumeWithoutETag() throws FileNotFoundException {
+        // given
+        when(s3Object.getObjectContent()).thenReturn(new S3ObjectInputStream(
+                new DroppingInputStream(new FileInputStream(getArchiveFile()), 1000), null, false));
+
+        // when
+        try {
+            downloader.invoke(workspace, null);
+            fail("Expected InterruptedException");
+        } catch (final InterruptedException ex) {
+            // then
+            assertContainsIgnoreCase("Connection reset", ex.getMessage());
+            verify(s3Client, never()).getObject(any(GetObjectRequest.class));
+        }
+    }
+
+    @Test
+    public void copiesContentsLongerThanTheWriteBuffer() throws IOException {
+        // given
+        final byte[] contents = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+        final Path target = Paths.get(TestUtils.TEST_DIR, "contents");
+
+        // when
+        try (final FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            DownloadCallable.copyContents(new ByteArrayInputStream(contents), channel);
+        }
+
+        // then
+        assertArrayEquals(contents, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void doesNotTakeAbortedCopyForDroppedConnection() throws IOException {
+        // given
+        final Path target = Paths.get(TestUtils.TEST_DIR, "contents");
+
+        try (final FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Thread.currentThread().interrupt();
+
+            // when
+            DownloadCallable.copyContents(new ByteArrayInputStream(new byte[1000]), channel);
+            fail("Expected InterruptedIOException");
+        } catch (final InterruptedIOException ex) {
+            // then
+            assertContainsIgnoreCase("Interrupted", ex.getMessage());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    private File getArchiveFile() {
+        return new File(getClass().getClassLoader().getResource("aws-codedeploy-demo.zip").getFile());
+    }
+
     private boolean doesWorkspaceFileExist(final String... path) {
         return Paths.get(TestUtils.TEST_DIR, path).toFile().exists();
     }
 
+    // Fails like a dropped connection once the limit is read
+    private static final class DroppingInputStream extends FilterInputStream {
+        private long remaining;
+
+        private DroppingInputStream(final InputStream in, final long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (remaining == 0) {
+                throw new SocketException("Connection reset");
+            }
+            final int bytesRead = super.read(b, off, (int) Math.min(len, remaining));
+            if (bytesRead > 0) {
+                remaining -= bytesRead;
+            }
+            return bytesRead;
+        }
+    }
+
 }
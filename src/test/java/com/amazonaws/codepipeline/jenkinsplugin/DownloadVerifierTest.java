@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static com.amazonaws.codepipeline.jenkinsplugin.TestUtils.assertContainsIgnoreCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+
+public class DownloadVerifierTest {
+
+    private static final String KEY = "Pipeline/MyArtifact/abc";
+
+    private final byte[] contents = randomBytes();
+
+    @Test
+    public void verifiesSha256OfPublishedArtifact() throws IOException {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.addUserMetadata(PublisherTools.SHA256_METADATA, sha256Hex(contents));
+        // Not looked at, the SHA-256 digest is enough
+        metadata.setHeader("ETag", "00000000000000000000000000000000");
+
+        assertEquals("SHA-256 digest of the artifact", download(metadata).verify(sha256Hex(contents)));
+    }
+
+    @Test
+    public void verifiesMd5OfSinglePartObjectAgainstETag() throws IOException {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "\"" + md5Hex(contents) + "\"");
+
+        assertEquals("MD5 digest of the artifact against its ETag", download(metadata).verify(sha256Hex(contents)));
+    }
+
+    @Test
+    public void refusesContentsNotMatchingETag() {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "0123456789abcdef0123456789abcdef");
+
+        try {
+            download(metadata).verify(sha256Hex(contents));
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertContainsIgnoreCase("Downloaded artifact " + KEY + " is corrupt, its MD5 digest is", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void doesNotTakeETagOfKmsEncryptedObjectForMd5() throws IOException {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "0123456789abcdef0123456789abcdef");
+        metadata.setSSEAlgorithm("aws:kms");
+
+        assertNull(download(metadata).verify(sha256Hex(contents)));
+    }
+
+    @Test
+    public void verifiesMd5sOfPartsOfObjectUploadedInPartsOfRecordedSize() throws IOException {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.addUserMetadata(PublisherTools.PART_SIZE_METADATA, "40000");
+        metadata.setHeader("ETag", "\"" + multipartETag(contents, 40000) + "\"");
+
+        assertEquals("MD5 digests of the parts of the artifact against its ETag",
+                download(metadata).verify(sha256Hex(contents)));
+    }
+
+    @Test
+    public void refusesContentsNotMatchingMultipartETag() {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.addUserMetadata(PublisherTools.PART_SIZE_METADATA, "40000");
+        metadata.setHeader("ETag", "0123456789abcdef0123456789abcdef-3");
+
+        try {
+            download(metadata).verify(sha256Hex(contents));
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertContainsIgnoreCase("its multipart ETag is " + multipartETag(contents, 40000), ex.getMessage());
+        }
+    }
+
+    // Parts of another size give another ETag, the check is only made with the size the plugin recorded
+    @Test
+    public void doesNotVerifyMultipartETagWithoutPartSize() throws IOException {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "0123456789abcdef0123456789abcdef-3");
+
+        assertNull(download(metadata).verify(sha256Hex(contents)));
+    }
+
+    @Test
+    public void verifiesCrc32cOfMultipartObject() throws IOException {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "0123456789abcdef0123456789abcdef-3");
+        metadata.setHeader(DownloadVerifier.CRC32C_HEADER, crc32cBase64(contents));
+
+        assertEquals("CRC32C checksum of the artifact", download(metadata).verify(sha256Hex(contents)));
+    }
+
+    @Test
+    public void refusesContentsNotMatchingCrc32c() {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "0123456789abcdef0123456789abcdef-3");
+        metadata.setHeader(DownloadVerifier.CRC32C_HEADER, "AAAAAA==");
+
+        try {
+            download(metadata).verify(sha256Hex(contents));
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertContainsIgnoreCase("its CRC32C checksum is " + crc32cBase64(contents) + " instead of AAAAAA==",
+                    ex.getMessage());
+        }
+    }
+
+    @Test
+    public void doesNotVerifyCompositeChecksumOfParts() throws IOException {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "0123456789abcdef0123456789abcdef-3");
+        metadata.setHeader(DownloadVerifier.CRC32C_HEADER, "AAAAAA==-3");
+
+        assertNull(download(metadata).verify(sha256Hex(contents)));
+    }
+
+    @Test
+    public void verifiesNothingWithoutMetadata() throws IOException {
+        assertNull(download(null).verify(sha256Hex(contents)));
+    }
+
+    private DownloadVerifier download(final ObjectMetadata metadata) throws IOException {
+        final DownloadVerifier verifier = DownloadVerifier.forObject(KEY, metadata);
+        final MessageDigest digest = verifier.getDigest();
+        try (final InputStream in = new DigestInputStream(verifier.wrap(new ByteArrayInputStream(contents)), digest)) {
+            IOUtils.toByteArray(in);
+        }
+        assertEquals(sha256Hex(contents), ArtifactDigestIndex.toHex(digest));
+        return verifier;
+    }
+
+    private static byte[] randomBytes() {
+        final byte[] bytes = new byte[100_000];
+        new Random(47).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String sha256Hex(final byte[] bytes) {
+        final MessageDigest digest = ArtifactDigestIndex.newDigest();
+        digest.update(bytes);
+        return ArtifactDigestIndex.toHex(digest);
+    }
+
+    private static String md5Hex(final byte[] bytes) {
+        return BinaryUtils.toHex(Md5Utils.computeMD5Hash(bytes));
+    }
+
+    private static String multipartETag(final byte[] bytes, final int partSize) {
+        final ByteArrayOutputStream partMd5s = new ByteArrayOutputStream();
+        int parts = 0;
+        for (int offset = 0; offset < bytes.length; offset += partSize) {
+            final byte[] partMd5 =
+                    Md5Utils.computeMD5Hash(Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + partSize)));
+            partMd5s.write(partMd5, 0, partMd5.length);
+            parts++;
+        }
+        return md5Hex(partMd5s.toByteArray()) + "-" + parts;
+    }
+
+    private static String crc32cBase64(final byte[] bytes) {
+        final CRC32C crc32c = new CRC32C();
+        crc32c.update(bytes);
+        return Base64.getEncoder().encodeToString(ByteBuffer.allocate(Integer.BYTES).putInt((int) crc32c.getValue()).array());
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExtractionDestinationTest {
+
+    private static final String INVALID_DESTINATION = "The compressed input file contains files targeting an invalid destination: ";
+
+    private Path testDir;
+    private Path baseDir;
+    private Path outsideDir;
+    private ExtractionDestination destination;
+
+    @Before
+    public void setUp() throws IOException {
+        testDir = Files.createTempDirectory("ExtractionDestinationTest").toRealPath();
+        baseDir = Files.createDirectory(testDir.resolve("base"));
+        outsideDir = Files.createDirectory(testDir.resolve("outside"));
+        destination = new ExtractionDestination(baseDir.toFile());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(testDir.toFile());
+    }
+
+    @Test
+    public void resolvesEntryBelowBaseDirectory() throws IOException {
+        assertEquals(baseDir.resolve("a").resolve("b.txt"), destination.resolve("a/./c/../b.txt"));
+        assertEquals(baseDir, destination.resolve("./"));
+    }
+
+    @Test
+    public void resolvesAbsoluteEntryNameBelowBaseDirectory() throws IOException {
+        assertEquals(baseDir.resolve("etc").resolve("passwd"), destination.resolve("/etc/passwd"));
+    }
+
+    @Test
+    public void refusesEntryEscapingBaseDirectory() {
+        assertInvalidDestination("../evil.txt");
+        assertInvalidDestination("a/../../base-evil.txt");
+    }
+
+    @Test
+    public void createsFileAndMissingParentDirectories() throws IOException {
+        write("a/b/c/file.txt", "contents");
+        write("a/b/other.txt", "other");
+
+        assertEquals("contents", read(baseDir.resolve("a/b/c/file.txt")));
+        assertEquals("other", read(baseDir.resolve("a/b/other.txt")));
+    }
+
+    @Test
+    public void replacesExistingFile() throws IOException {
+        Files.write(baseDir.resolve("file.txt"), "a much longer previous content".getBytes(StandardCharsets.UTF_8));
+
+        write("file.txt", "new");
+
+        assertEquals("new", read(baseDir.resolve("file.txt")));
+    }
+
+    @Test
+    public void followsLinkedDirectoryInsideBaseDirectory() throws IOException {
+        Files.createDirectory(baseDir.resolve("real"));
+        Files.createSymbolicLink(baseDir.resolve("link"), baseDir.resolve("real"));
+
+        write("link/file.txt", "contents");
+
+        assertEquals("contents", read(baseDir.resolve("real/file.txt")));
+    }
+
+    @Test
+    public void refusesLinkedDirectoryOutsideBaseDirectory() throws IOException {
+        Files.createSymbolicLink(baseDir.resolve("link"), outsideDir);
+
+        try {
+            destination.createFile("link/evil.txt").close();
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertTrue(ex.getMessage().startsWith(INVALID_DESTINATION));
+        }
+
+        assertFalse(Files.exists(outsideDir.resolve("evil.txt")));
+    }
+
+    @Test
+    public void refusesLinkedFileOutsideBaseDirectory() throws IOException {
+        final Path outsideFile = Files.write(outsideDir.resolve("target.txt"), "untouched".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(baseDir.resolve("file.txt"), outsideFile);
+
+        try {
+            destination.createFile("file.txt").close();
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertTrue(ex.getMessage().startsWith(INVALID_DESTINATION));
+        }
+
+        assertEquals("untouched", read(outsideFile));
+    }
+
+    @Test
+    public void movesFileReplacingExistingOne() throws IOException {
+        write("a/file.txt", "old");
+        final Path source = Files.write(testDir.resolve("new.txt"), "new".getBytes(StandardCharsets.UTF_8));
+
+        destination.move(source, "a/file.txt");
+
+        assertEquals("new", read(baseDir.resolve("a/file.txt")));
+        assertFalse(Files.exists(source));
+    }
+
+    @Test
+    public void refusesToMoveThroughLinkLeavingBaseDirectory() throws IOException {
+        final Path outsideFile = Files.write(outsideDir.resolve("file.txt"), "untouched".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(baseDir.resolve("file.txt"), outsideFile);
+        final Path source = Files.write(testDir.resolve("new.txt"), "new".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            destination.move(source, "file.txt");
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertTrue(ex.getMessage().startsWith(INVALID_DESTINATION));
+        }
+
+        assertEquals("untouched", read(outsideFile));
+    }
+
+    private void assertInvalidDestination(final String entryName) {
+        try {
+            destination.resolve(entryName);
+            fail("Expected IOException for " + entryName);
+        } catch (final IOException ex) {
+            assertEquals(INVALID_DESTINATION + entryName, ex.getMessage());
+        }
+    }
+
+    private void write(final String entryName, final String contents) throws IOException {
+        try (final FileChannel channel = destination.createFile(entryName)) {
+            channel.write(ByteBuffer.wrap(contents.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    private static String read(final Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+}
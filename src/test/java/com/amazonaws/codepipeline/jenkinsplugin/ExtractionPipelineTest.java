@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExtractionPipelineTest {
+
+    private Path baseDir;
+
+    @Before
+    public void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("ExtractionPipelineTest").toRealPath();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(baseDir.toFile());
+    }
+
+    @Test
+    public void writesFilesOfAllSizes() throws IOException {
+        final Random random = new Random(42);
+        final byte[][] contents = new byte[200][];
+
+        try (final ExtractionPipeline pipeline = new ExtractionPipeline(new ExtractionDestination(baseDir.toFile()))) {
+            pipeline.createDirectory("dir/");
+            for (int i = 0; i < contents.length; i++) {
+                // Empty, smaller than a chunk, several chunks, and preallocated
+                contents[i] = new byte[i % 4 == 0 ? 0 : i % 4 == 1 ? 100 : i % 4 == 2 ? 200 * 1024 : 1536 * 1024];
+                random.nextBytes(contents[i]);
+                pipeline.writeFile("dir/sub" + i % 7 + "/file" + i, new ByteArrayInputStream(contents[i]), contents[i].length);
+            }
+            pipeline.finish();
+        }
+
+        for (int i = 0; i < contents.length; i++) {
+            assertArrayEquals(contents[i], Files.readAllBytes(baseDir.resolve("dir/sub" + i % 7 + "/file" + i)));
+        }
+    }
+
+    @Test
+    public void writesFileOfUnknownSize() throws IOException {
+        try (final ExtractionPipeline pipeline = new ExtractionPipeline(new ExtractionDestination(baseDir.toFile()))) {
+            pipeline.writeFile("file.txt", stream("contents"), -1);
+            pipeline.finish();
+        }
+
+        assertEquals("contents", read(baseDir.resolve("file.txt")));
+    }
+
+    @Test
+    public void keepsLastEntryOfSameName() throws IOException {
+        try (final ExtractionPipeline pipeline = new ExtractionPipeline(new ExtractionDestination(baseDir.toFile()))) {
+            for (int i = 0; i < 100; i++) {
+                pipeline.writeFile("file.txt", stream("version " + i), -1);
+            }
+            pipeline.finish();
+        }
+
+        assertEquals("version 99", read(baseDir.resolve("file.txt")));
+    }
+
+    @Test
+    public void writesDirectlyWhenSlabPoolIsEmpty() throws IOException {
+        final SlabPool slabPool = new SlabPool(SlabPool.SLAB_SIZE);
+        final ByteBuffer taken = slabPool.tryTake();
+        final byte[] contents = new byte[200 * 1024];
+        new Random(7).nextBytes(contents);
+
+        try (final ExtractionPipeline pipeline =
+                     new ExtractionPipeline(new ExtractionDestination(baseDir.toFile()), slabPool)) {
+            pipeline.writeFile("file.bin", new ByteArrayInputStream(contents), contents.length);
+            pipeline.finish();
+        }
+
+        assertArrayEquals(contents, Files.readAllBytes(baseDir.resolve("file.bin")));
+        assertEquals(1, slabPool.getExhaustions());
+
+        slabPool.give(taken);
+        assertEquals(0, slabPool.getUsedBytes());
+    }
+
+    @Test
+    public void givesBackSlabs() throws IOException {
+        final SlabPool slabPool = new SlabPool(2 * SlabPool.SLAB_SIZE);
+        final byte[] contents = new byte[1024 * 1024];
+        new Random(8).nextBytes(contents);
+
+        try (final ExtractionPipeline pipeline =
+                     new ExtractionPipeline(new ExtractionDestination(baseDir.toFile()), slabPool)) {
+            for (int i = 0; i < 10; i++) {
+                pipeline.writeFile("file" + i, new ByteArrayInputStream(contents), contents.length);
+            }
+            pipeline.finish();
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(contents, Files.readAllBytes(baseDir.resolve("file" + i)));
+        }
+        assertEquals(0, slabPool.getUsedBytes());
+        assertEquals(2 * SlabPool.SLAB_SIZE, slabPool.getAllocatedBytes());
+    }
+
+    @Test
+    public void givesBackSlabsWhenClosedWhileWriting() throws Exception {
+        // A pipe nobody reads from holds the writer in the middle of the file
+        final Path fifo = baseDir.resolve("fifo");
+        Assume.assumeTrue(makeFifo(fifo));
+        final SlabPool slabPool = new SlabPool(64 * SlabPool.SLAB_SIZE);
+        final byte[] contents = new byte[1024 * 1024];
+        new Random(9).nextBytes(contents);
+
+        final CompletableFuture<FileChannel> readEnd = CompletableFuture.supplyAsync(() -> {
+            try {
+                return FileChannel.open(fifo, StandardOpenOption.READ);
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+
+        try (final ExtractionPipeline pipeline =
+                     new ExtractionPipeline(new ExtractionDestination(baseDir.toFile()), slabPool)) {
+            // Of unknown size, a pipe cannot be allocated up front
+            pipeline.writeFile("fifo", new ByteArrayInputStream(contents), -1);
+            readEnd.get(10, TimeUnit.SECONDS);
+            Thread.sleep(200);
+            assertTrue(slabPool.getUsedBytes() > 0);
+            // Aborted, closed without finishing
+        } finally {
+            readEnd.get(10, TimeUnit.SECONDS).close();
+        }
+
+        assertEquals(0, slabPool.getUsedBytes());
+    }
+
+    @Test
+    public void reportsFailedWrite() throws IOException {
+        Files.createDirectories(baseDir.resolve("taken/child"));
+
+        try (final ExtractionPipeline pipeline = new ExtractionPipeline(new ExtractionDestination(baseDir.toFile()))) {
+            pipeline.writeFile("taken", stream("contents"), -1);
+            pipeline.writeFile("other.txt", stream("other"), -1);
+            pipeline.finish();
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertTrue(Files.isDirectory(baseDir.resolve("taken")));
+        }
+    }
+
+    @Test
+    public void refusesEntryOutsideDestinationBeforeReadingIt() throws IOException {
+        try (final ExtractionPipeline pipeline = new ExtractionPipeline(new ExtractionDestination(baseDir.toFile()))) {
+            pipeline.writeFile("../evil.txt", stream("evil"), -1);
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertEquals("The compressed input file contains files targeting an invalid destination: ../evil.txt",
+                    ex.getMessage());
+        }
+    }
+
+    private static boolean makeFifo(final Path path) throws InterruptedException {
+        try {
+            return new ProcessBuilder("mkfifo", path.toString()).start().waitFor() == 0;
+        } catch (final IOException ex) {
+            return false;
+        }
+    }
+
+    private static ByteArrayInputStream stream(final String contents) {
+        return new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(final Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+}
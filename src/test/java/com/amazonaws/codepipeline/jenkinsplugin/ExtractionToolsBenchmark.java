@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+
+/**
+ * Measures the heap used to extract archives. Not part of the regular test run, start it with
+ * {@code mvn test -Dtest=ExtractionToolsBenchmark}.
+ *
+ * What remains per tar entry is the bookkeeping of commons-compress and java.io (entry headers, names,
+ * File objects and file handles); the copy itself allocates nothing once the thread's buffers exist.
+ * For zip files the peak heap of reading the central directory is compared with streaming extraction.
+ */
+public class ExtractionToolsBenchmark {
+
+    private static final int ENTRY_COUNT = 20000;
+    private static final int ENTRY_SIZE = 16 * 1024;
+    private static final int ZIP_ENTRY_COUNT = 200000;
+    private static final int ROUNDS = 5;
+
+    private Path workDir;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("ExtractionToolsBenchmark");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Test
+    public void allocationPerEntry() throws IOException {
+        final Path archive = workDir.resolve("benchmark.tar");
+        final byte[] contents = new byte[ENTRY_SIZE];
+        new Random(ENTRY_SIZE).nextBytes(contents);
+
+        try (final TarArchiveOutputStream out = new TarArchiveOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(archive.toFile())))) {
+            for (int i = 0; i < ENTRY_COUNT; i++) {
+                final TarArchiveEntry entry = new TarArchiveEntry(String.format("dir%03d/file%05d.bin", i % 100, i));
+                entry.setSize(contents.length);
+                out.putArchiveEntry(entry);
+                out.write(contents);
+                out.closeArchiveEntry();
+            }
+        }
+
+        final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        final long threadId = Thread.currentThread().getId();
+
+        for (int round = 0; round <= ROUNDS; round++) {
+            final Path destination = Files.createDirectory(workDir.resolve("round" + round));
+
+            final long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+            final long startTime = System.nanoTime();
+
+            ExtractionTools.decompressFile(archive.toFile(), destination.toFile(), CompressionType.Tar, null);
+
+            final long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+            final long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            // Round 0 warms up the JIT and the thread's buffers
+            if (round > 0) {
+                System.out.printf("round %d: %d entries in %d ms, %d bytes allocated per entry%n",
+                        round, ENTRY_COUNT, elapsedMillis, allocated / ENTRY_COUNT);
+            }
+
+            FileUtils.deleteDirectory(destination.toFile());
+        }
+    }
+
+    @Test
+    public void zipPeakHeap() throws IOException {
+        final Path archive = workDir.resolve("benchmark.zip");
+
+        try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(archive.toFile())) {
+            for (int i = 0; i < ZIP_ENTRY_COUNT; i++) {
+                out.putArchiveEntry(new ZipArchiveEntry(String.format("dir%03d/file%06d.txt", i % 1000, i)));
+                out.write(Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+                out.closeArchiveEntry();
+            }
+        }
+
+        for (int round = 0; round <= ROUNDS; round++) {
+            for (final boolean streaming : new boolean[] { false, true }) {
+                final Path destination = Files.createDirectory(workDir.resolve("round" + round + streaming));
+
+                System.gc();
+                final long heapBefore = getUsedHeap();
+                for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    pool.resetPeakUsage();
+                }
+
+                ExtractionTools.extractZip(archive.toFile(), destination.toFile(), streaming, PathFilter.ALL, null);
+
+                final long peakHeap = getPeakHeap() - heapBefore;
+                if (round > 0) {
+                    System.out.printf("round %d: %d zip entries %s, peak heap grew by %d KiB%n",
+                            round, ZIP_ENTRY_COUNT, streaming ? "streamed" : "from central directory", peakHeap / 1024);
+                }
+
+                FileUtils.deleteDirectory(destination.toFile());
+            }
+        }
+    }
+
+    private static long getUsedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // Sum of the pools' individual peaks, an upper bound of the actual peak
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+}
@@ -14,7 +14,9 @@
  */
 package com.amazonaws.codepipeline.jenkinsplugin;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.when;
@@ -22,10 +24,15 @@ import static org.mockito.Mockito.when;
 import hudson.model.AbstractBuild;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -36,11 +43,16 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 import java.util.zip.CRC32;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.tools.zip.ZipOutputStream;
 import org.junit.After;
@@ -61,7 +73,8 @@ import com.amazonaws.services.s3.model.S3Object;
 @Suite.SuiteClasses({
         ExtractionToolsTest.GetCompressionTypeTest.class,
         ExtractionToolsTest.DecompressFileTest.class,
-        ExtractionToolsTest.ExtractionPathTraversalTest.class
+        ExtractionToolsTest.ExtractionPathTraversalTest.class,
+        ExtractionToolsTest.ZipStreamingTest.class
 })
 public class ExtractionToolsTest extends Suite {
 
@@ -301,6 +314,60 @@ public class ExtractionToolsTest extends Suite {
             }
         }
 
+        @Test
+        public void canDecompressTarGzFileWithLargeEntryOverExistingFile() throws IOException {
+            final byte[] contents = new byte[3 * 1024 * 1024 + 17];
+            new Random(42).nextBytes(contents);
+
+            compressedFile = Files.createTempFile(ARCHIVE_PREFIX, ".tar.gz");
+            try (final TarArchiveOutputStream outputStream = new TarArchiveOutputStream(new GzipCompressorOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(compressedFile.toFile()))))) {
+                final TarArchiveEntry archiveEntry = new TarArchiveEntry("large.bin");
+                archiveEntry.setSize(contents.length);
+                outputStream.putArchiveEntry(archiveEntry);
+                outputStream.write(contents);
+                outputStream.closeArchiveEntry();
+            }
+
+            // A longer file from an earlier build must not leave its tail behind
+            final Path existingFile = decompressDestination.resolve("large.bin");
+            Files.write(existingFile, new byte[contents.length + 4096]);
+
+            ExtractionTools.decompressFile(
+                    compressedFile.toFile(),
+                    decompressDestination.toFile(),
+                    CompressionType.TarGz,
+                    null);
+
+            assertArrayEquals(contents, Files.readAllBytes(existingFile));
+        }
+
+        @Test
+        public void extractsOnlySelectedTarEntries() throws IOException {
+            compressedFile = Files.createTempFile(ARCHIVE_PREFIX, ".tar");
+            try (final TarArchiveOutputStream outputStream = new TarArchiveOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(compressedFile.toFile())))) {
+                // As written by tar -C dir .
+                for (final String name : new String[] { "./docs/guide.md", "./src/Main.java", "./README.md" }) {
+                    final byte[] contents = name.getBytes(StandardCharsets.UTF_8);
+                    final TarArchiveEntry archiveEntry = new TarArchiveEntry(name);
+                    archiveEntry.setSize(contents.length);
+                    outputStream.putArchiveEntry(archiveEntry);
+                    outputStream.write(contents);
+                    outputStream.closeArchiveEntry();
+                }
+            }
+
+            ExtractionTools.decompressFile(
+                    compressedFile.toFile(),
+                    decompressDestination.toFile(),
+                    CompressionType.Tar,
+                    PathFilter.of("src/, *.md", null),
+                    null);
+
+            assertEquals(new HashSet<>(Arrays.asList("Main.java", "README.md")), getFileNames(decompressDestination));
+        }
+
         @SuppressWarnings("unchecked")
         private static Set<String> getFileNames(final Path dir) {
             final Collection<File> files = FileUtils.listFiles(dir.toFile(), null, true);
@@ -452,4 +519,173 @@ public class ExtractionToolsTest extends Suite {
             shouldNotThrowExtractingFile("dir-traversal-dotslash.zip");
         }
     }
+
+    public static class ZipStreamingTest extends TestBase {
+        private Path testDir;
+        private Path compressedFile;
+        private Path decompressDestination;
+
+        @Before
+        public void setUp() throws IOException {
+            testDir = Files.createTempDirectory("ZipStreamingTest");
+            compressedFile = testDir.resolve("archive.zip");
+            decompressDestination = Files.createDirectory(testDir.resolve("destination"));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            FileUtils.deleteDirectory(testDir.toFile());
+        }
+
+        @Test
+        public void canDecompressZipFileWithDataDescriptorsAsStream() throws IOException {
+            // Written to a plain stream, the sizes of deflated entries follow their data in a data descriptor
+            try (final ZipArchiveOutputStream outputStream = new ZipArchiveOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(compressedFile.toFile())))) {
+                addEntry(outputStream, "dir/", null);
+                addEntry(outputStream, "dir/first.txt", "first file");
+                addEntry(outputStream, "dir/sub/second.txt", "second file");
+            }
+
+            ExtractionTools.extractZip(compressedFile.toFile(), decompressDestination.toFile(), true, PathFilter.ALL, null);
+
+            assertEquals("first file", read(decompressDestination.resolve("dir/first.txt")));
+            assertEquals("second file", read(decompressDestination.resolve("dir/sub/second.txt")));
+        }
+
+        // The command line zip stores the inner zip file with a data descriptor, which needs the central directory
+        @Test
+        public void fallsBackToCentralDirectoryForZipFileCreatedFromCommandLine() throws IOException {
+            final File cliCompressedFile = new File(getClass().getClassLoader().getResource("aws-codedeploy-demo.zip").getFile());
+
+            ExtractionTools.extractZip(cliCompressedFile, decompressDestination.toFile(), true, PathFilter.ALL, null);
+
+            assertTrue(Files.exists(decompressDestination.resolve("appspec.yml")));
+            assertTrue(Files.exists(decompressDestination.resolve(Paths.get("src", "index.html.haml"))));
+            assertTrue(Files.exists(decompressDestination.resolve(Paths.get("dist", "aws-codepipeline-jenkins-aws-codedeploy_linux.zip"))));
+            assertFalse(containsStagingDirectory(decompressDestination));
+        }
+
+        // A local header the central directory does not refer to is only found by reading the stream
+        @Test
+        public void fallsBackToCentralDirectoryForLocalHeadersItDoesNotList() throws IOException {
+            final Path hiddenFile = testDir.resolve("hidden.zip");
+            try (final ZipArchiveOutputStream outputStream = new ZipArchiveOutputStream(hiddenFile.toFile())) {
+                addEntry(outputStream, "hidden.txt", "hidden file");
+            }
+            try (final ZipArchiveOutputStream outputStream = new ZipArchiveOutputStream(compressedFile.toFile())) {
+                addEntry(outputStream, "visible.txt", "visible file");
+            }
+
+            // The local header and data of the hidden entry, up to its central directory, go in front, and the
+            // offsets of the visible entry and of its central directory are moved past them
+            final byte[] hidden = Files.readAllBytes(hiddenFile);
+            final int hiddenLength = ByteBuffer.wrap(hidden).order(ByteOrder.LITTLE_ENDIAN).getInt(hidden.length - 6);
+            final ByteBuffer visible = ByteBuffer.wrap(Files.readAllBytes(compressedFile)).order(ByteOrder.LITTLE_ENDIAN);
+            final int centralDirectoryOffset = visible.getInt(visible.capacity() - 6);
+            visible.putInt(visible.capacity() - 6, centralDirectoryOffset + hiddenLength);
+            visible.putInt(centralDirectoryOffset + 42, visible.getInt(centralDirectoryOffset + 42) + hiddenLength);
+
+            final ByteArrayOutputStream combined = new ByteArrayOutputStream();
+            combined.write(hidden, 0, hiddenLength);
+            combined.write(visible.array());
+            Files.write(compressedFile, combined.toByteArray());
+
+            ExtractionTools.extractZip(compressedFile.toFile(), decompressDestination.toFile(), true, PathFilter.ALL, null);
+
+            assertEquals("visible file", read(decompressDestination.resolve("visible.txt")));
+            assertFalse(Files.exists(decompressDestination.resolve("hidden.txt")));
+            assertFalse(containsStagingDirectory(decompressDestination));
+        }
+
+        @Test
+        public void extractsOnlySelectedZipEntries() throws IOException {
+            try (final ZipArchiveOutputStream outputStream = new ZipArchiveOutputStream(compressedFile.toFile())) {
+                addEntry(outputStream, "services/", null);
+                addEntry(outputStream, "services/billing/Main.java", "billing");
+                addEntry(outputStream, "services/billing/test-data/big.csv", "data");
+                addEntry(outputStream, "services/search/Main.java", "search");
+                addEntry(outputStream, "build.gradle", "build");
+            }
+            final PathFilter filter = PathFilter.of("services/billing/, build.gradle", "**/test-data/");
+
+            for (final boolean streaming : new boolean[] { false, true }) {
+                final Path destination = Files.createDirectory(decompressDestination.resolve("streaming-" + streaming));
+
+                ExtractionTools.extractZip(compressedFile.toFile(), destination.toFile(), streaming, filter, null);
+
+                assertEquals("billing", read(destination.resolve("services/billing/Main.java")));
+                assertEquals("build", read(destination.resolve("build.gradle")));
+                assertFalse(Files.exists(destination.resolve("services/billing/test-data")));
+                assertFalse(Files.exists(destination.resolve("services/search")));
+            }
+        }
+
+        @Test
+        public void shouldNotTraverseBaseDirOnStreamingExtraction() throws IOException {
+            final File traversalFile = new File(getClass().getClassLoader().getResource("dir-traversal-unix.zip").getFile());
+
+            try {
+                ExtractionTools.extractZip(traversalFile, decompressDestination.toFile(), true, PathFilter.ALL, null);
+                fail("Expected IOException");
+            } catch (final IOException e) {
+                assertTrue(e.getMessage().startsWith("The compressed input file contains files targeting an invalid destination: "));
+            }
+
+            assertFalse(Files.exists(testDir.resolve("evil.txt")));
+        }
+
+        @Test
+        public void readsEntryCountFromEndOfCentralDirectory() throws IOException {
+            try (final ZipArchiveOutputStream outputStream = new ZipArchiveOutputStream(compressedFile.toFile())) {
+                outputStream.setComment("An archive comment");
+                for (int i = 0; i < 42; i++) {
+                    addEntry(outputStream, "file" + i + ".txt", "contents " + i);
+                }
+            }
+
+            assertEquals(42, ExtractionTools.getZipEntryCount(compressedFile.toFile()));
+        }
+
+        @Test
+        public void readsEntryCountFromZip64EndOfCentralDirectory() throws IOException {
+            try (final ZipArchiveOutputStream outputStream = new ZipArchiveOutputStream(compressedFile.toFile())) {
+                outputStream.setUseZip64(Zip64Mode.Always);
+                for (int i = 0; i < 3; i++) {
+                    addEntry(outputStream, "file" + i + ".txt", "contents " + i);
+                }
+            }
+
+            assertEquals(3, ExtractionTools.getZipEntryCount(compressedFile.toFile()));
+        }
+
+        @Test
+        public void returnsNoEntryCountForOtherFiles() throws IOException {
+            Files.write(compressedFile, "not a zip file".getBytes(StandardCharsets.UTF_8));
+
+            assertEquals(-1, ExtractionTools.getZipEntryCount(compressedFile.toFile()));
+        }
+
+        private static void addEntry(
+                final ZipArchiveOutputStream outputStream,
+                final String name,
+                final String contents) throws IOException {
+
+            outputStream.putArchiveEntry(new ZipArchiveEntry(name));
+            if (contents != null) {
+                outputStream.write(contents.getBytes(StandardCharsets.UTF_8));
+            }
+            outputStream.closeArchiveEntry();
+        }
+
+        private static boolean containsStagingDirectory(final Path directory) throws IOException {
+            try (final DirectoryStream<Path> entries = Files.newDirectoryStream(directory, ExtractionDestination.STAGING_PREFIX + "*")) {
+                return entries.iterator().hasNext();
+            }
+        }
+
+        private static String read(final Path file) throws IOException {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        }
+    }
 }
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.util.BinaryUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+/**
+ * Enough of S3 on a local port for multipart uploads and downloads: objects are kept in memory with their
+ * user metadata, parts are checked against their Content-MD5, requests can be made to take a while like
+ * they would over a network, and parts can be made to fail, to be throttled or to arrive corrupted.
+ *
+ * Served over HTTPS with the self-signed certificate in {@value #KEY_STORE}, which the SDK insists on for
+ * requests with server-side encryption parameters. Only clients from {@link #createClient()} and
+ * {@link #createAsyncClient()} trust it.
+ */
+final class LocalS3Server implements Closeable {
+
+    private static final String KEY_STORE = "/local-s3-server.p12";
+    private static final char[] KEY_STORE_PASSWORD = "localS3".toCharArray();
+
+    private final HttpsServer server;
+    private final TrustManagerFactory trustManagerFactory;
+    private final SSLContext sslContext;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "LocalS3Server");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, String> multipartETags = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> userMetadata = new ConcurrentHashMap<>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> uploadMetadata = new ConcurrentHashMap<>();
+    private final Set<Integer> failingParts = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> corruptedParts = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> throttledParts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger partRequests = new AtomicInteger();
+    private final AtomicInteger activePartRequests = new AtomicInteger();
+    private final AtomicInteger maxActivePartRequests = new AtomicInteger();
+
+    private volatile long latencyMillis;
+
+    LocalS3Server() throws IOException {
+        final KeyStore keyStore = loadKeyStore();
+        trustManagerFactory = createTrustManagerFactory(keyStore);
+        sslContext = createSslContext(keyStore, trustManagerFactory);
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return a client made by the plugin the way it makes them for a configured S3 endpoint
+     */
+    AmazonS3 createClient() {
+        return createAwsClients().getS3Client(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")));
+    }
+
+    /**
+     * @return a non-blocking client made by the plugin the way it makes them for a configured S3 endpoint
+     */
+    S3AsyncClient createAsyncClient() {
+        return createAwsClients().getS3AsyncClient(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")));
+    }
+
+    private AWSClients createAwsClients() {
+        final AWSClients.S3ClientFactory s3ClientFactory = new AWSClients.S3ClientFactory() {
+            @Override
+            public AmazonS3 getS3Client(
+                    final AWSCredentialsProvider credentialsProvider,
+                    final ClientConfiguration clientCfg,
+                    final EndpointConfiguration endpoint,
+                    final boolean pathStyleAccess) {
+
+                clientCfg.getApacheHttpClientConfig()
+                        .setSslSocketFactory(new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE));
+                return super.getS3Client(credentialsProvider, clientCfg, endpoint, pathStyleAccess);
+            }
+
+            @Override
+            protected NettyNioAsyncHttpClient.Builder newAsyncHttpClientBuilder(final ClientConfiguration clientCfg) {
+                return super.newAsyncHttpClientBuilder(clientCfg).tlsTrustManagersProvider(trustManagerFactory::getTrustManagers);
+            }
+        };
+
+        return new AWSClients(
+                AWSClientSettings.builder()
+                        .withCredentials("access", "secret")
+                        .withRegion("us-east-1")
+                        .withS3Endpoint(getEndpoint())
+                        .withPluginUserAgentPrefix("LocalS3Server")
+                        .build(),
+                new AWSClients.CodePipelineClientFactory(),
+                s3ClientFactory);
+    }
+
+    String getEndpoint() {
+        return "https://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Delays every response, like the round trip to S3 does.
+     */
+    void setLatencyMillis(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Uploads of the part fail without being worth a retry.
+     */
+    void failPart(final int partNumber) {
+        failingParts.add(partNumber);
+    }
+
+    /**
+     * The part arrives with its first byte changed, as if damaged on the way.
+     */
+    void corruptPart(final int partNumber) {
+        corruptedParts.add(partNumber);
+    }
+
+    /**
+     * The next upload of the part is answered with a SlowDown error, which is worth a retry.
+     */
+    void throttlePartOnce(final int partNumber) {
+        throttledParts.add(partNumber);
+    }
+
+    byte[] getObject(final String bucketName, final String objectKey) {
+        return objects.get(bucketName + "/" + objectKey);
+    }
+
+    Map<String, String> getUserMetadata(final String bucketName, final String objectKey) {
+        return userMetadata.get(bucketName + "/" + objectKey);
+    }
+
+    int getOpenUploads() {
+        return uploads.size();
+    }
+
+    int getPartRequests() {
+        return partRequests.get();
+    }
+
+    int getMaxActivePartRequests() {
+        return maxActivePartRequests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            final String path = exchange.getRequestURI().getPath().substring(1);
+            final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            final String method = exchange.getRequestMethod();
+
+            if ("POST".equals(method) && query.containsKey("uploads")) {
+                final String uploadId = UUID.randomUUID().toString();
+                uploads.put(uploadId, new TreeMap<>());
+                uploadMetadata.put(uploadId, readUserMetadata(exchange));
+                respondXml(exchange, "<InitiateMultipartUploadResult><Bucket>" + bucketOf(path) + "</Bucket><Key>"
+                        + keyOf(path) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            } else if ("PUT".equals(method) && query.containsKey("partNumber")) {
+                uploadPart(exchange, query);
+            } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+                completeUpload(exchange, path, query.get("uploadId"));
+            } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+                uploads.remove(query.get("uploadId"));
+                uploadMetadata.remove(query.get("uploadId"));
+                respond(exchange, 204, null);
+            } else if ("PUT".equals(method)) {
+                final byte[] contents = readBody(exchange);
+                objects.put(path, contents);
+                userMetadata.put(path, readUserMetadata(exchange));
+                exchange.getResponseHeaders().add("ETag", "\"" + md5Hex(contents) + "\"");
+                respond(exchange, 200, null);
+            } else if ("GET".equals(method) && objects.containsKey(path)) {
+                final byte[] contents = objects.get(path);
+                exchange.getResponseHeaders().add("ETag", "\"" + eTagOf(contents, path) + "\"");
+                exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+                for (final Map.Entry<String, String> entry : userMetadata.getOrDefault(path, new HashMap<>()).entrySet()) {
+                    exchange.getResponseHeaders().add("x-amz-meta-" + entry.getKey(), entry.getValue());
+                }
+                respond(exchange, 200, contents);
+            } else {
+                respondError(exchange, 404, "NoSuchKey");
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void uploadPart(final HttpExchange exchange, final Map<String, String> query) throws IOException {
+        final int active = activePartRequests.incrementAndGet();
+        maxActivePartRequests.accumulateAndGet(active, Math::max);
+        partRequests.incrementAndGet();
+
+        try {
+            final int partNumber = Integer.parseInt(query.get("partNumber"));
+            final byte[] contents = readBody(exchange);
+            if (corruptedParts.contains(partNumber) && contents.length > 0) {
+                contents[0]++;
+            }
+            final String contentMd5 = exchange.getRequestHeaders().getFirst("Content-MD5");
+            final SortedMap<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+
+            if (parts == null) {
+                respondError(exchange, 404, "NoSuchUpload");
+            } else if (failingParts.contains(partNumber)) {
+                respondError(exchange, 400, "InvalidPart");
+            } else if (throttledParts.remove(partNumber)) {
+                respondError(exchange, 503, "SlowDown");
+            } else if (contentMd5 != null && !contentMd5.equals(BinaryUtils.toBase64(md5().digest(contents)))) {
+                respondError(exchange, 400, "BadDigest");
+            } else {
+                synchronized (parts) {
+                    parts.put(partNumber, contents);
+                }
+                exchange.getResponseHeaders().add("ETag", "\"" + md5Hex(contents) + "\"");
+                respond(exchange, 200, null);
+            }
+        } finally {
+            activePartRequests.decrementAndGet();
+        }
+    }
+
+    private void completeUpload(final HttpExchange exchange, final String path, final String uploadId)
+            throws IOException {
+        readBody(exchange);
+        final SortedMap<Integer, byte[]> parts = uploads.remove(uploadId);
+        if (parts == null) {
+            respondError(exchange, 404, "NoSuchUpload");
+            return;
+        }
+
+        final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        synchronized (parts) {
+            for (final byte[] part : parts.values()) {
+                contents.write(part);
+            }
+        }
+        final String eTag = multipartETag(parts);
+        objects.put(path, contents.toByteArray());
+        multipartETags.put(path, eTag);
+        userMetadata.put(path, uploadMetadata.remove(uploadId));
+
+        respondXml(exchange, "<CompleteMultipartUploadResult><Bucket>" + bucketOf(path) + "</Bucket><Key>"
+                + keyOf(path) + "</Key><ETag>\"" + eTag + "\"</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private static Map<String, String> readUserMetadata(final HttpExchange exchange) {
+        final Map<String, String> metadata = new HashMap<>();
+        for (final Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+            final String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (name.startsWith("x-amz-meta-")) {
+                metadata.put(name.substring("x-amz-meta-".length()), header.getValue().get(0));
+            }
+        }
+        return metadata;
+    }
+
+    private String eTagOf(final byte[] contents, final String path) {
+        final String eTag = multipartETags.get(path);
+        return eTag != null ? eTag : md5Hex(contents);
+    }
+
+    private static String multipartETag(final SortedMap<Integer, byte[]> parts) {
+        final MessageDigest digest = md5();
+        for (final byte[] part : parts.values()) {
+            digest.update(md5().digest(part));
+        }
+        return BinaryUtils.toHex(digest.digest()) + "-" + parts.size();
+    }
+
+    // Uploads are signed in chunks, each preceded by its size and signature
+    private static byte[] readBody(final HttpExchange exchange) throws IOException {
+        final byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        final String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if (encoding == null || !encoding.contains("aws-chunked")) {
+            return body;
+        }
+
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        int position = 0;
+        while (true) {
+            final int lineEnd = indexOf(body, position);
+            final String header = new String(body, position, lineEnd - position, StandardCharsets.US_ASCII);
+            final int size = Integer.parseInt(header.split(";")[0], 16);
+            position = lineEnd + 2;
+            if (size == 0) {
+                return decoded.toByteArray();
+            }
+            decoded.write(body, position, size);
+            position += size + 2;
+        }
+    }
+
+    private static int indexOf(final byte[] body, final int from) {
+        for (int i = from; i < body.length - 1; i++) {
+            if (body[i] == '\r' && body[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return body.length;
+    }
+
+    private static void respondXml(final HttpExchange exchange, final String xml) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        respond(exchange, 200, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respondError(final HttpExchange exchange, final int status, final String code)
+            throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        respond(exchange, status, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code
+                + "</Code><Message>" + code + "</Message><RequestId>local</RequestId></Error>")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // The key store holds the certificate of the server, which is also all that clients trust
+    private static KeyStore loadKeyStore() throws IOException {
+        try (final InputStream in = LocalS3Server.class.getResourceAsStream(KEY_STORE)) {
+            final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(in, KEY_STORE_PASSWORD);
+            return keyStore;
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static TrustManagerFactory createTrustManagerFactory(final KeyStore keyStore) throws IOException {
+        try {
+            final TrustManagerFactory trustManagerFactory =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(keyStore);
+            return trustManagerFactory;
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static SSLContext createSslContext(final KeyStore keyStore, final TrustManagerFactory trustManagerFactory)
+            throws IOException {
+        try {
+            final KeyManagerFactory keyManagerFactory =
+                    KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, KEY_STORE_PASSWORD);
+
+            final SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+            return sslContext;
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static Map<String, String> parseQuery(final String query) {
+        final Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (final String parameter : query.split("&")) {
+                final int equals = parameter.indexOf('=');
+                if (equals < 0) {
+                    parameters.put(parameter, "");
+                } else {
+                    parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static String bucketOf(final String path) {
+        return path.substring(0, path.indexOf('/'));
+    }
+
+    private static String keyOf(final String path) {
+        return path.substring(path.indexOf('/') + 1);
+    }
+
+    private static String md5Hex(final byte[] contents) {
+        return BinaryUtils.toHex(md5().digest(contents));
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MultipartUploadRecordTest {
+
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void emptyWhenNothingWasRecorded() throws IOException {
+        final MultipartUploadRecord record = MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "Artifact");
+
+        assertNull(record.getUploadId());
+        assertNull(record.getFingerprint());
+        assertTrue(record.getParts().isEmpty());
+    }
+
+    @Test
+    public void readsRecordedParts() throws IOException {
+        final File directory = new File(tempFolder.getRoot(), "uploads");
+        final MultipartUploadRecord record = MultipartUploadRecord.open(directory, "Bucket", "Artifact");
+        record.start("Key", "upload-1", "1024:5242880:Zip");
+        record.addPart(1, "\"etag-1\"", "md5-1");
+        record.addPart(2, "\"etag-2\"", "md5-2");
+
+        final MultipartUploadRecord reopened = MultipartUploadRecord.open(directory, "Bucket", "Artifact");
+
+        assertEquals("Key", reopened.getObjectKey());
+        assertEquals("upload-1", reopened.getUploadId());
+        assertEquals("1024:5242880:Zip", reopened.getFingerprint());
+        assertEquals(2, reopened.getParts().size());
+        assertEquals("\"etag-2\"", reopened.getParts().get(2).getETag());
+        assertEquals("md5-2", reopened.getParts().get(2).getMd5());
+    }
+
+    @Test
+    public void keepsOneRecordPerArtifact() throws IOException {
+        MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "Artifact").start("Key", "upload-1", "fingerprint");
+
+        assertNull(MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "OtherArtifact").getUploadId());
+        assertNull(MultipartUploadRecord.open(tempFolder.getRoot(), "OtherBucket", "Artifact").getUploadId());
+    }
+
+    @Test
+    public void readsObjectKeyWithSpaces() throws IOException {
+        MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "Artifact").start("Pipeline/Out put/Key", "upload-1", "fingerprint");
+
+        assertEquals("Pipeline/Out put/Key", MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "Artifact").getObjectKey());
+    }
+
+    @Test
+    public void ignoresPartThatWasNotWrittenCompletely() throws IOException {
+        final MultipartUploadRecord record = MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "Artifact");
+        record.start("Key", "upload-1", "fingerprint");
+        record.addPart(1, "etag-1", "md5-1");
+
+        final File[] files = tempFolder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        Files.write(files[0].toPath(), "part 2 etag-2 md5".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        final MultipartUploadRecord reopened = MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "Artifact");
+        assertEquals(1, reopened.getParts().size());
+        assertTrue(reopened.getParts().containsKey(1));
+    }
+
+    @Test
+    public void startReplacesPreviousUpload() throws IOException {
+        final MultipartUploadRecord record = MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "Artifact");
+        record.start("Key", "upload-1", "fingerprint");
+        record.addPart(1, "etag-1", "md5-1");
+        record.start("Key", "upload-2", "fingerprint");
+
+        final MultipartUploadRecord reopened = MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "Artifact");
+        assertEquals("upload-2", reopened.getUploadId());
+        assertTrue(reopened.getParts().isEmpty());
+    }
+
+    @Test
+    public void deleteRemovesRecord() throws IOException {
+        final MultipartUploadRecord record = MultipartUploadRecord.open(tempFolder.getRoot(), "Bucket", "Artifact");
+        record.start("Key", "upload-1", "fingerprint");
+        record.delete();
+
+        assertNull(record.getUploadId());
+        assertFalse(tempFolder.getRoot().listFiles().length > 0);
+    }
+
+}
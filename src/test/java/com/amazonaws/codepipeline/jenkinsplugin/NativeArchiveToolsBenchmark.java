@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+
+/**
+ * Compares creating and extracting the same archives with the plugin's own archiver and with the native
+ * tools of the agent. Not part of the regular test run, start it with
+ * {@code mvn test -Dtest=NativeArchiveToolsBenchmark}; the number of files can be set with
+ * {@code -Dbenchmark.fileCount=<count>}.
+ *
+ * The files are 64 KiB each, half random and half zeros, in a hundred directories.
+ */
+public class NativeArchiveToolsBenchmark {
+
+    private static final int FILE_COUNT = Integer.getInteger("benchmark.fileCount", 10000);
+    private static final int FILE_SIZE = 64 * 1024;
+    private static final int ROUNDS = 3;
+
+    private final NativeArchiveTools nativeArchiveTools = NativeArchiveTools.get();
+
+    private Path workDir;
+    private Path inputDir;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("NativeArchiveToolsBenchmark");
+        inputDir = Files.createDirectory(workDir.resolve("input"));
+
+        final byte[] contents = new byte[FILE_SIZE];
+        final Random random = new Random(FILE_COUNT);
+
+        for (int i = 0; i < FILE_COUNT; i++) {
+            random.nextBytes(contents);
+            Arrays.fill(contents, FILE_SIZE / 2, FILE_SIZE, (byte) 0);
+
+            final Path file = inputDir.resolve(String.format("dir%02d/file%05d.bin", i % 100, i));
+            Files.createDirectories(file.getParent());
+            Files.write(file, contents);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Test
+    public void tar() throws IOException {
+        run(CompressionType.Tar);
+    }
+
+    @Test
+    public void tarGz() throws IOException {
+        run(CompressionType.TarGz);
+    }
+
+    @Test
+    public void zip() throws IOException {
+        run(CompressionType.Zip);
+    }
+
+    private void run(final CompressionType compressionType) throws IOException {
+        assumeTrue(nativeArchiveTools.canExtract(compressionType));
+
+        for (int round = 0; round <= ROUNDS; round++) {
+            for (final boolean nativeTools : new boolean[] { false, true }) {
+                final String backend = nativeTools ? "native" : "built-in";
+
+                long startTime = System.nanoTime();
+                final File archive = CompressionTools.compressFile(
+                        "benchmark", inputDir, PathFilter.ALL, compressionType, null, false, nativeTools, null);
+                final double compressSeconds = (System.nanoTime() - startTime) / 1e9;
+
+                final Path destination = Files.createDirectory(workDir.resolve("round" + round + backend));
+                startTime = System.nanoTime();
+                ExtractionTools.decompressFile(
+                        archive, destination.toFile(), compressionType, PathFilter.ALL, nativeTools, null);
+                final double extractSeconds = (System.nanoTime() - startTime) / 1e9;
+
+                // Round 0 warms up the JIT and the page cache
+                if (round > 0) {
+                    System.out.printf("%s, %s: compressed in %.2f s%s, extracted in %.2f s%n",
+                            compressionType, backend, compressSeconds,
+                            nativeArchiveTools.canCompress(compressionType) ? "" : " (built-in)", extractSeconds);
+                }
+
+                Files.delete(archive.toPath());
+                FileUtils.deleteDirectory(destination.toFile());
+            }
+        }
+    }
+
+}
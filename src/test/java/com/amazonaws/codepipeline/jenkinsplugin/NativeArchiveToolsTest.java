@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+
+public class NativeArchiveToolsTest {
+
+    private static final String INVALID_DESTINATION = "The compressed input file contains files targeting an invalid destination: ";
+
+    private NativeArchiveTools nativeArchiveTools;
+    private Path testDir;
+    private Path sourceDir;
+
+    @Before
+    public void setUp() throws IOException {
+        nativeArchiveTools = NativeArchiveTools.detect(System.getenv("PATH"));
+        testDir = Files.createTempDirectory("NativeArchiveToolsTest").toRealPath();
+        sourceDir = Files.createDirectory(testDir.resolve("source"));
+
+        write(sourceDir.resolve("bbb.txt"), "bbb");
+        write(sourceDir.resolve("Dir1/out.txt"), "out");
+        write(sourceDir.resolve("Dir1/SubDir1/aaa.txt"), "aaa");
+        write(sourceDir.resolve("Dir1/SubDir2/SubDir3/onemoretime.txt"), "one more time");
+        Files.createDirectories(sourceDir.resolve("Empty"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(testDir.toFile());
+    }
+
+    @Test
+    public void findsNoToolsOnEmptySearchPath() {
+        final NativeArchiveTools none = NativeArchiveTools.detect("");
+
+        for (final CompressionType compressionType : CompressionType.values()) {
+            assertFalse(none.canExtract(compressionType));
+            assertFalse(none.canCompress(compressionType));
+        }
+    }
+
+    @Test
+    public void neverCompressesZip() {
+        assertFalse(nativeArchiveTools.canCompress(CompressionType.Zip));
+    }
+
+    @Test
+    public void extractsTarLikeExtractionTools() throws IOException {
+        assumeTrue(nativeArchiveTools.canExtract(CompressionType.Tar));
+        assertExtractsLikeExtractionTools(CompressionType.Tar);
+    }
+
+    @Test
+    public void extractsTarGzLikeExtractionTools() throws IOException {
+        assumeTrue(nativeArchiveTools.canExtract(CompressionType.TarGz));
+        assertExtractsLikeExtractionTools(CompressionType.TarGz);
+    }
+
+    @Test
+    public void extractsZipLikeExtractionTools() throws IOException {
+        assumeTrue(nativeArchiveTools.canExtract(CompressionType.Zip));
+        assertExtractsLikeExtractionTools(CompressionType.Zip);
+    }
+
+    @Test
+    public void dropsExecutePermissionsLikeExtractionTools() throws IOException {
+        assumeTrue(nativeArchiveTools.canExtract(CompressionType.Tar));
+        Files.setPosixFilePermissions(sourceDir.resolve("bbb.txt"), PosixFilePermissions.fromString("rwxr-xr-x"));
+
+        final File archive = CompressionTools.compressFile("test", sourceDir, CompressionType.Tar, null);
+        try {
+            final Path nativeDir = Files.createDirectory(testDir.resolve("native"));
+            final Path javaDir = Files.createDirectory(testDir.resolve("java"));
+
+            assertTrue(nativeArchiveTools.extract(archive, nativeDir.toFile(), CompressionType.Tar, null));
+            ExtractionTools.decompressFile(archive, javaDir.toFile(), CompressionType.Tar, null);
+
+            assertEquals(Files.getPosixFilePermissions(javaDir.resolve("bbb.txt")),
+                    Files.getPosixFilePermissions(nativeDir.resolve("bbb.txt")));
+        } finally {
+            Files.delete(archive.toPath());
+        }
+    }
+
+    @Test
+    public void leavesArchiveWithLinksToExtractionTools() throws IOException {
+        assumeTrue(nativeArchiveTools.canExtract(CompressionType.Tar));
+        final File archive = testDir.resolve("links.tar").toFile();
+        try (final TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(archive))) {
+            final TarArchiveEntry link = new TarArchiveEntry("link", TarArchiveEntry.LF_SYMLINK);
+            link.setLinkName("/etc");
+            out.putArchiveEntry(link);
+            out.closeArchiveEntry();
+        }
+        final Path destination = Files.createDirectory(testDir.resolve("destination"));
+
+        assertFalse(nativeArchiveTools.extract(archive, destination.toFile(), CompressionType.Tar, null));
+
+        assertEquals(0, destination.toFile().list().length);
+    }
+
+    @Test
+    public void refusesEntriesOutsideDestinationLikeExtractionTools() throws IOException {
+        assumeTrue(nativeArchiveTools.canExtract(CompressionType.Tar));
+        final File archive = testDir.resolve("evil.tar").toFile();
+        try (final TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(archive))) {
+            final TarArchiveEntry entry = new TarArchiveEntry("../evil.txt");
+            out.putArchiveEntry(entry);
+            out.closeArchiveEntry();
+        }
+        final Path destination = Files.createDirectory(testDir.resolve("destination"));
+
+        try {
+            ExtractionTools.decompressFile(archive, destination.toFile(), CompressionType.Tar, PathFilter.ALL, true, null);
+            fail("Expected IOException");
+        } catch (final IOException ex) {
+            assertEquals(INVALID_DESTINATION + "../evil.txt", ex.getMessage());
+        }
+
+        assertFalse(Files.exists(testDir.resolve("evil.txt")));
+        assertEquals(0, destination.toFile().list().length);
+    }
+
+    @Test
+    public void doesNotFollowLinksInDestinationLeavingIt() throws IOException {
+        assumeTrue(nativeArchiveTools.canExtract(CompressionType.Tar));
+        final File archive = CompressionTools.compressFile("test", sourceDir, CompressionType.Tar, null);
+        try {
+            final Path destination = Files.createDirectory(testDir.resolve("destination"));
+            final Path outside = Files.createDirectory(testDir.resolve("outside"));
+            Files.createSymbolicLink(destination.resolve("Dir1"), outside);
+
+            try {
+                nativeArchiveTools.extract(archive, destination.toFile(), CompressionType.Tar, null);
+                fail("Expected IOException");
+            } catch (final IOException ex) {
+                assertTrue(ex.getMessage().startsWith(INVALID_DESTINATION));
+            }
+
+            assertEquals(0, outside.toFile().list().length);
+        } finally {
+            Files.delete(archive.toPath());
+        }
+    }
+
+    @Test
+    public void mergesIntoExistingDirectories() throws IOException {
+        assumeTrue(nativeArchiveTools.canExtract(CompressionType.Tar));
+        final File archive = CompressionTools.compressFile("test", sourceDir, CompressionType.Tar, null);
+        try {
+            final Path destination = Files.createDirectory(testDir.resolve("destination"));
+            write(destination.resolve("Dir1/kept.txt"), "kept");
+            write(destination.resolve("Dir1/out.txt"), "replaced");
+
+            assertTrue(nativeArchiveTools.extract(archive, destination.toFile(), CompressionType.Tar, null));
+
+            assertEquals("kept", read(destination.resolve("Dir1/kept.txt")));
+            assertEquals("out", read(destination.resolve("Dir1/out.txt")));
+            assertEquals("aaa", read(destination.resolve("Dir1/SubDir1/aaa.txt")));
+            // Nothing but the entries, the staging directory is gone
+            assertEquals(new TreeSet<>(Arrays.asList("Dir1", "bbb.txt")), new TreeSet<>(Arrays.asList(destination.toFile().list())));
+        } finally {
+            Files.delete(archive.toPath());
+        }
+    }
+
+    @Test
+    public void compressesTarLikeCompressionTools() throws IOException {
+        assumeTrue(nativeArchiveTools.canCompress(CompressionType.TarGz));
+        final File archive = testDir.resolve("native.tar.gz").toFile();
+
+        assertTrue(nativeArchiveTools.compress(archive, sourceDir, PathFilter.ALL, CompressionType.TarGz, null));
+
+        final File javaArchive = CompressionTools.compressFile("test", sourceDir, CompressionType.TarGz, null);
+        try {
+            assertEquals(readTarGz(javaArchive), readTarGz(archive));
+        } finally {
+            Files.delete(javaArchive.toPath());
+        }
+    }
+
+    @Test
+    public void compressesOnlyFilesPassingFilter() throws IOException {
+        assumeTrue(nativeArchiveTools.canCompress(CompressionType.TarGz));
+        final File archive = testDir.resolve("native.tar.gz").toFile();
+
+        assertTrue(nativeArchiveTools.compress(
+                archive, sourceDir, PathFilter.of("**/*.txt", "Dir1/"), CompressionType.TarGz, null));
+
+        assertEquals(1, readTarGz(archive).size());
+        assertEquals("bbb", readTarGz(archive).get("bbb.txt"));
+    }
+
+    private void assertExtractsLikeExtractionTools(final CompressionType compressionType) throws IOException {
+        final File archive = CompressionTools.compressFile("test", sourceDir, compressionType, null);
+        try {
+            final Path nativeDir = Files.createDirectory(testDir.resolve("native"));
+            final Path javaDir = Files.createDirectory(testDir.resolve("java"));
+
+            assertTrue(nativeArchiveTools.extract(archive, nativeDir.toFile(), compressionType, null));
+            ExtractionTools.decompressFile(archive, javaDir.toFile(), compressionType, null);
+
+            assertEquals(listFiles(javaDir), listFiles(nativeDir));
+        } finally {
+            Files.delete(archive.toPath());
+        }
+    }
+
+    // Relative names of files and directories, mapped to the contents of files and permissions of both
+    private static Map<String, String> listFiles(final Path dir) throws IOException {
+        final Map<String, String> files = new TreeMap<>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attrs) throws IOException {
+                files.put(dir.relativize(directory) + "/", permissions(directory));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                files.put(dir.relativize(file).toString(), read(file) + " " + permissions(file));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private static String permissions(final Path path) throws IOException {
+        return PosixFilePermissions.toString(Files.getPosixFilePermissions(path));
+    }
+
+    private static Map<String, String> readTarGz(final File archive) throws IOException {
+        final Map<String, String> entries = new TreeMap<>();
+        try (final InputStream in = new GzipCompressorInputStream(new BufferedInputStream(new FileInputStream(archive)));
+             final TarArchiveInputStream tar = new TarArchiveInputStream(in)) {
+            ArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                final byte[] contents = new byte[(int) entry.getSize()];
+                int offset = 0;
+                while (offset < contents.length) {
+                    offset += tar.read(contents, offset, contents.length - offset);
+                }
+                entries.put(entry.getName(), new String(contents, StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+
+    private static void write(final Path file, final String contents) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(final Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class PathFilterTest {
+
+    @Test
+    public void includesEverythingWithoutPatterns() {
+        final PathFilter filter = PathFilter.of(" ", null);
+
+        assertTrue(filter.isAll());
+        assertTrue(filter.includesFile("any/file.txt"));
+        assertTrue(filter.mayIncludeBelow("any"));
+    }
+
+    @Test
+    public void includesOnlyMatchingFiles() {
+        final PathFilter filter = PathFilter.of("target/*.jar, docs/", "");
+
+        assertTrue(filter.includesFile(path("target/app.jar")));
+        assertTrue(filter.includesFile(path("docs/guide/index.html")));
+        assertFalse(filter.includesFile(path("target/classes/App.class")));
+        assertFalse(filter.includesFile(path("src/App.java")));
+    }
+
+    @Test
+    public void excludesMatchingFiles() {
+        final PathFilter filter = PathFilter.of(null, "**/*.o, **/.git/");
+
+        assertTrue(filter.includesFile(path("src/main.c")));
+        assertFalse(filter.includesFile(path("build/main.o")));
+        assertFalse(filter.includesFile(path(".git/HEAD")));
+        assertFalse(filter.includesFile(path("module/.git/objects/ab/cdef")));
+    }
+
+    @Test
+    public void prunesDirectoriesNoIncludeCanReach() {
+        final PathFilter filter = PathFilter.of("target/*.jar, docs/**", null);
+
+        assertTrue(filter.mayIncludeBelow("target"));
+        assertTrue(filter.mayIncludeBelow(path("docs/guide")));
+        assertFalse(filter.mayIncludeBelow("src"));
+        assertFalse(filter.mayIncludeBelow(path("target/classes")));
+    }
+
+    @Test
+    public void prunesDirectoriesExcludedWithEverythingBelow() {
+        final PathFilter filter = PathFilter.of(null, "**/.git/, build/*.o, node_modules/**");
+
+        assertFalse(filter.mayIncludeBelow(".git"));
+        assertFalse(filter.mayIncludeBelow(path("module/.git")));
+        assertFalse(filter.mayIncludeBelow("node_modules"));
+        // Only some files below it are excluded
+        assertTrue(filter.mayIncludeBelow("build"));
+        assertTrue(filter.mayIncludeBelow("src"));
+    }
+
+    @Test
+    public void acceptsEitherSeparatorInPatterns() {
+        final PathFilter filter = PathFilter.of("target\\*.jar", null);
+
+        assertTrue(filter.includesFile(path("target/app.jar")));
+    }
+
+    private static String path(final String path) {
+        return path.replace('/', File.separatorChar);
+    }
+
+}
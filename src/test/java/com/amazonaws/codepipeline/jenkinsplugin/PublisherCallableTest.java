@@ -15,12 +15,16 @@
 package com.amazonaws.codepipeline.jenkinsplugin;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -30,10 +34,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import org.junit.After;
 import org.junit.Before;
@@ -57,11 +69,19 @@ import com.amazonaws.services.codepipeline.model.JobData;
 import com.amazonaws.services.codepipeline.model.JobDetails;
 import com.amazonaws.services.codepipeline.model.S3ArtifactLocation;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
 
 public class PublisherCallableTest {
 
@@ -72,6 +92,13 @@ public class PublisherCallableTest {
     private static final String PROXY_HOST = "localhost";
     private static final int PROXY_PORT = 80;
     private static final String REGION = "us-east-1";
+    private static final AWSClientSettings CLIENT_SETTINGS = AWSClientSettings.builder()
+            .withCredentials(ACCESS_KEY, SECRET_KEY)
+            .withProxy(PROXY_HOST, PROXY_PORT)
+            .withRegion(REGION)
+            .withTransportProfile(null)
+            .withPluginUserAgentPrefix(PLUGIN_VERSION)
+            .build();
 
     private static final String JOB_ID = UUID.randomUUID().toString();
     private static final String JOB_ACCESS_KEY = "BPTDIOSFODNN7EXAMPLE";
@@ -105,6 +132,7 @@ public class PublisherCallableTest {
     @Captor private ArgumentCaptor<AWSCredentialsProvider> credentialsProviderCaptor;
     @Captor private ArgumentCaptor<InitiateMultipartUploadRequest> initiateMultipartUploadRequestCaptor;
     @Captor private ArgumentCaptor<UploadPartRequest> uploadPartRequestCaptor;
+    @Captor private ArgumentCaptor<CopyObjectRequest> copyObjectRequestCaptor;
 
     private ByteArrayOutputStream outContent;
     private CodePipelineStateModel model;
@@ -156,7 +184,7 @@ public class PublisherCallableTest {
         outputArtifacts = new ArrayList<>();
         outputArtifacts.add(outputArtifact);
 
-        when(clientFactory.getAwsClient(anyString(), anyString(), anyString(), anyInt(), anyString(), anyString())).thenReturn(awsClients);
+        when(clientFactory.getAwsClient(any(AWSClientSettings.class))).thenReturn(awsClients);
         when(awsClients.getCodePipelineClient()).thenReturn(codePipelineClient);
         when(awsClients.getS3Client(any(AWSCredentialsProvider.class))).thenReturn(s3Client);
 
@@ -189,7 +217,7 @@ public class PublisherCallableTest {
 
         // then
         final InOrder inOrder = inOrder(clientFactory, awsClients, s3Client);
-        inOrder.verify(clientFactory).getAwsClient(ACCESS_KEY, SECRET_KEY, PROXY_HOST, PROXY_PORT, REGION, PLUGIN_VERSION);
+        inOrder.verify(clientFactory).getAwsClient(CLIENT_SETTINGS);
         inOrder.verify(awsClients).getCodePipelineClient();
         inOrder.verify(awsClients).getS3Client(credentialsProviderCaptor.capture());
         inOrder.verify(s3Client).initiateMultipartUpload(initiateMultipartUploadRequestCaptor.capture());
@@ -286,7 +314,10 @@ public class PublisherCallableTest {
         verify(s3Client).uploadPart(uploadPartRequestCaptor.capture());
 
         assertNull(initiateMultipartUploadRequestCaptor.getValue().getObjectMetadata().getContentType());
-        assertEquals("bbb.txt", uploadPartRequestCaptor.getValue().getFile().getName());
+        final byte[] contents = Files.readAllBytes(new File(workspace, TEST_FILE).toPath());
+        assertEquals(contents.length, uploadPartRequestCaptor.getValue().getPartSize());
+        assertEquals(BinaryUtils.toBase64(Md5Utils.computeMD5Hash(contents)),
+                uploadPartRequestCaptor.getValue().getMd5Digest());
     }
 
     @Test
@@ -309,6 +340,71 @@ public class PublisherCallableTest {
         verify(s3Client, times(3)).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
     }
 
+    @Test
+    public void uploadsMultipleOutputArtifactsConcurrently() throws IOException {
+        // given
+        givenThreeOutputArtifacts();
+        final CyclicBarrier allUploading = new CyclicBarrier(3);
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            // Times out unless the three parts are uploaded at the same time
+            allUploading.await(10, TimeUnit.SECONDS);
+            return uploadPartResult;
+        });
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        verify(s3Client, times(3)).uploadPart(any(UploadPartRequest.class));
+    }
+
+    @Test
+    public void publishesOutputArtifactsOneAfterTheOtherWhenConfigured() throws IOException {
+        // given
+        givenThreeOutputArtifacts();
+        model.setPublisherParallelism(1);
+        final AtomicInteger uploading = new AtomicInteger();
+        final AtomicInteger mostUploading = new AtomicInteger();
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            mostUploading.accumulateAndGet(uploading.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            uploading.decrementAndGet();
+            return uploadPartResult;
+        });
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        verify(s3Client, times(3)).uploadPart(any(UploadPartRequest.class));
+        assertEquals(1, mostUploading.get());
+    }
+
+    @Test
+    public void publishesRemainingOutputArtifactsAndReportsAllFailures() throws IOException {
+        // given
+        givenThreeOutputArtifacts();
+        when(s3Client.initiateMultipartUpload(argThat(request -> !S3_BUCKET_NAME.equals(request.getBucketName()))))
+                .thenAnswer(invocation -> {
+                    final AmazonS3Exception accessDenied = new AmazonS3Exception("Access Denied");
+                    accessDenied.setStatusCode(403);
+                    throw accessDenied;
+                });
+
+        // when
+        try {
+            publisher.invoke(workspace, null);
+            fail("Expected the failed uploads to be reported");
+        } catch (final AmazonS3Exception ex) {
+            // then
+            assertEquals(1, ex.getSuppressed().length);
+        }
+
+        final ArgumentCaptor<UploadPartRequest> captor = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(s3Client).uploadPart(captor.capture());
+        assertEquals(S3_BUCKET_NAME, captor.getValue().getBucketName());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void failedValidationWhenOnlySomeOutputLocationHasArtifactName() throws IOException {
         // given
@@ -343,4 +439,244 @@ public class PublisherCallableTest {
         publisher.invoke(workspace, null);
     }
 
+    @Test
+    public void copiesArtifactWithPreviouslyPublishedContentsInsteadOfUploading() throws IOException {
+        // given
+        final CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("published-etag");
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+        publisher.invoke(workspace, null);
+
+        when(s3Client.getObjectMetadata(S3_BUCKET_NAME, S3_OBJECT_KEY)).thenAnswer(invocation -> {
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(publishedSize());
+            metadata.setHeader("ETag", "published-etag");
+            return metadata;
+        });
+        final CopyObjectResult copyResult = new CopyObjectResult();
+        copyResult.setETag("copied-etag");
+        when(s3Client.copyObject(any(CopyObjectRequest.class))).thenReturn(copyResult);
+
+        outputArtifacts.clear();
+        outputArtifacts.add(outputArtifact1);
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        verify(s3Client, times(1)).uploadPart(any(UploadPartRequest.class));
+        verify(s3Client).copyObject(copyObjectRequestCaptor.capture());
+
+        final CopyObjectRequest copyRequest = copyObjectRequestCaptor.getValue();
+        assertEquals(S3_BUCKET_NAME, copyRequest.getSourceBucketName());
+        assertEquals(S3_OBJECT_KEY, copyRequest.getSourceKey());
+        assertEquals(S3_BUCKET_NAME + "1", copyRequest.getDestinationBucketName());
+        assertEquals(S3_OBJECT_KEY + "1", copyRequest.getDestinationKey());
+        assertEquals("application/zip", copyRequest.getNewObjectMetadata().getContentType());
+
+        assertContainsIgnoreCase("Server-side copies avoided uploading " + publishedSize() + " bytes", outContent.toString());
+    }
+
+    @Test
+    public void uploadsArtifactWhenPreviouslyPublishedObjectHasChanged() throws IOException {
+        // given
+        final CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("published-etag");
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+        publisher.invoke(workspace, null);
+
+        when(s3Client.getObjectMetadata(S3_BUCKET_NAME, S3_OBJECT_KEY)).thenAnswer(invocation -> {
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(publishedSize());
+            metadata.setHeader("ETag", "overwritten-etag");
+            return metadata;
+        });
+
+        outputArtifacts.clear();
+        outputArtifacts.add(outputArtifact1);
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        verify(s3Client, never()).copyObject(any(CopyObjectRequest.class));
+        verify(s3Client, times(2)).uploadPart(any(UploadPartRequest.class));
+    }
+
+    @Test
+    public void uploadsArtifactWhenDigestIndexCannotBeRead() throws IOException {
+        // given
+        final File indexFile = WorkspaceStateDirectory.get(workspace, ArtifactDigestIndex.FILE_NAME);
+        indexFile.getParentFile().mkdirs();
+        Files.write(indexFile.toPath(), new byte[] { (byte) 0xFF, (byte) 0xFE, '\n' });
+        final CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("published-etag");
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        verify(s3Client).uploadPart(any(UploadPartRequest.class));
+        assertContainsIgnoreCase("Unable to read the artifact digest index", outContent.toString());
+        assertContainsIgnoreCase("Upload successful", outContent.toString());
+    }
+
+    @Test
+    public void uploadsArtifactWhenDigestIndexCannotBeWritten() throws IOException {
+        // given
+        final File indexFile = WorkspaceStateDirectory.get(workspace, ArtifactDigestIndex.FILE_NAME);
+        new File(indexFile, "blocked").mkdirs();
+        final CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("published-etag");
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        verify(s3Client).uploadPart(any(UploadPartRequest.class));
+        assertContainsIgnoreCase("Unable to update the artifact digest index", outContent.toString());
+    }
+
+    @Test
+    public void recordsPartsOfUploadForDeltaUploads() throws IOException {
+        // given
+        model.setDeltaUpload(true);
+        final CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("published-etag");
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        final UploadedParts uploadedParts = UploadedParts.load(
+                new File(WorkspaceStateDirectory.get(workspace, "parts"), outputArtifact.getName()));
+        assertEquals(S3_OBJECT_KEY, uploadedParts.getObject().getObjectKey());
+        assertEquals("published-etag", uploadedParts.getObject().getETag());
+        assertEquals(1, uploadedParts.getPartMd5s().size());
+    }
+
+    @Test
+    public void recordsNoPartsWithoutDeltaUploads() throws IOException {
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        assertNull(UploadedParts.load(new File(WorkspaceStateDirectory.get(workspace, "parts"), outputArtifact.getName())));
+    }
+
+    @Test
+    public void keepsArchiveOfDirectoryWithArchiveCache() throws IOException {
+        // given
+        model.setArchiveCache(true);
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        final File cacheDirectory = WorkspaceStateDirectory.get(workspace, "archives");
+        final ArchiveManifest manifest = ArchiveManifest.load(new File(cacheDirectory, outputArtifact.getName() + ".manifest"));
+        final File archive = new File(cacheDirectory, outputArtifact.getName() + ".archive");
+        assertEquals(archive.length(), manifest.getArchiveSize());
+        assertEquals(ArtifactDigestIndex.digestFile(archive), manifest.getArchiveDigest());
+        assertEquals(archive.length(), publishedSize());
+    }
+
+    @Test
+    public void uploadsKeptArchiveOfUnchangedDirectory() throws IOException {
+        // given
+        model.setArchiveCache(true);
+        setWorkspaceModifiedAgo(TimeUnit.HOURS.toMillis(1));
+        publisher.invoke(workspace, null);
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        assertTrue(outContent.toString().contains("did not change since it was last archived"));
+    }
+
+    @Test
+    public void compressesChangedDirectoryAgain() throws IOException {
+        // given
+        model.setArchiveCache(true);
+        setWorkspaceModifiedAgo(TimeUnit.HOURS.toMillis(1));
+        publisher.invoke(workspace, null);
+
+        Files.write(new File(workspace, TEST_FILE).toPath(), "Other content".getBytes(StandardCharsets.UTF_8));
+        setWorkspaceModifiedAgo(TimeUnit.MINUTES.toMillis(1));
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        assertFalse(outContent.toString().contains("did not change since it was last archived"));
+    }
+
+    // The digest of the file is taken while it is uploaded, and taken before the next upload of a file of that size
+    @Test
+    public void copiesFileWithContentsDigestedWhileTheyWereUploaded() throws IOException {
+        // given
+        jenkinsOutputs.clear();
+        jenkinsOutputs.add(new OutputArtifact(TEST_FILE, "dummyArtifact"));
+        final CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("published-etag");
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+        publisher.invoke(workspace, null);
+
+        when(s3Client.getObjectMetadata(S3_BUCKET_NAME, S3_OBJECT_KEY)).thenAnswer(invocation -> {
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(publishedSize());
+            metadata.setHeader("ETag", "published-etag");
+            return metadata;
+        });
+        final CopyObjectResult copyResult = new CopyObjectResult();
+        copyResult.setETag("copied-etag");
+        when(s3Client.copyObject(any(CopyObjectRequest.class))).thenReturn(copyResult);
+
+        jenkinsOutputs.clear();
+        jenkinsOutputs.add(new OutputArtifact(TEST_FILE, "dummyArtifact1"));
+        outputArtifacts.clear();
+        outputArtifacts.add(outputArtifact1);
+
+        // when
+        publisher.invoke(workspace, null);
+
+        // then
+        verify(s3Client, times(1)).uploadPart(any(UploadPartRequest.class));
+        verify(s3Client).copyObject(copyObjectRequestCaptor.capture());
+        assertEquals(S3_OBJECT_KEY, copyObjectRequestCaptor.getValue().getSourceKey());
+        assertEquals(ArtifactDigestIndex.digestFile(new File(workspace, TEST_FILE)), copyObjectRequestCaptor.getValue()
+                .getNewObjectMetadata().getUserMetaDataOf(PublisherTools.SHA256_METADATA));
+    }
+
+    private void givenThreeOutputArtifacts() {
+        jenkinsOutputs.clear();
+        jenkinsOutputs.add(new OutputArtifact(TEST_FILE, "dummyArtifact"));
+        jenkinsOutputs.add(new OutputArtifact("Dir1", "dummyArtifact1"));
+        jenkinsOutputs.add(new OutputArtifact("Dir2", "dummyArtifact2"));
+
+        outputArtifacts.clear();
+        outputArtifacts.add(outputArtifact);
+        outputArtifacts.add(outputArtifact1);
+        outputArtifacts.add(outputArtifact2);
+    }
+
+    private void setWorkspaceModifiedAgo(final long millis) throws IOException {
+        final FileTime time = FileTime.fromMillis(System.currentTimeMillis() - millis);
+        try (final Stream<Path> files = Files.walk(workspace.toPath())) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.setLastModifiedTime(file, time);
+            }
+        }
+    }
+
+    private long publishedSize() {
+        final ArgumentCaptor<UploadPartRequest> captor = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(s3Client, times(1)).uploadPart(captor.capture());
+        return captor.getValue().getPartSize();
+    }
+
 }
@@ -15,11 +15,15 @@
 package com.amazonaws.codepipeline.jenkinsplugin;
 
 import static com.amazonaws.codepipeline.jenkinsplugin.TestUtils.assertContainsIgnoreCase;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -27,17 +31,27 @@ import static org.mockito.Mockito.when;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
 import com.amazonaws.services.codepipeline.AWSCodePipeline;
 import com.amazonaws.services.codepipeline.model.Artifact;
@@ -48,13 +62,26 @@ import com.amazonaws.services.codepipeline.model.PutJobFailureResultRequest;
 import com.amazonaws.services.codepipeline.model.PutJobSuccessResultRequest;
 import com.amazonaws.services.codepipeline.model.S3ArtifactLocation;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListPartsRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
 
 public class PublisherToolsTest {
 
@@ -72,6 +99,12 @@ public class PublisherToolsTest {
     @Mock private EncryptionKey mockEncryptionKey;
 
     @Captor private ArgumentCaptor<InitiateMultipartUploadRequest> initiateCaptor;
+    @Captor private ArgumentCaptor<UploadPartRequest> uploadCaptor;
+    @Captor private ArgumentCaptor<CompleteMultipartUploadRequest> completeCaptor;
+    @Captor private ArgumentCaptor<AbortMultipartUploadRequest> abortCaptor;
+
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+    @Rule public TemporaryFolder stateFolder = new TemporaryFolder();
 
     @Before
     public void setUp() {
@@ -81,6 +114,7 @@ public class PublisherToolsTest {
                 .thenReturn(mockUploadResult);
         when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenReturn(mockPartRequest);
         when(mockUploadResult.getUploadId()).thenReturn("123");
+        when(mockArtifact.getName()).thenReturn("Artifact");
         when(mockArtifact.getLocation()).thenReturn(mockLocation);
         when(mockLocation.getS3Location()).thenReturn(s3ArtifactLocation);
         when(s3ArtifactLocation.getBucketName()).thenReturn("Bucket");
@@ -162,6 +196,87 @@ public class PublisherToolsTest {
         TestUtils.cleanUpTestingFolders();
     }
 
+    @Test
+    public void uploadSendsDigestsOfPartsAndFile() throws IOException {
+        TestUtils.initializeTestingFolders();
+
+        final UploadDigest digest = new UploadDigest();
+        final File compressedFile = CompressionTools.compressFile(
+                "ZipProject",
+                PATH_TO_COMPRESS,
+                PathFilter.ALL,
+                CompressionType.Zip,
+                digest,
+                false,
+                null);
+
+        PublisherTools.uploadFile(
+                compressedFile,
+                mockArtifact,
+                CompressionType.Zip,
+                null, // No custom encryption key
+                mockS3Client,
+                null, // No state directory
+                null, // No previous upload
+                "build",
+                BlockingTransferEngine.INSTANCE,
+                ArtifactDigestIndex.toHex(digest),
+                digest.getPartMd5s(),
+                null); // Listener
+
+        final ArgumentCaptor<UploadPartRequest> uploadPartCaptor = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(mockS3Client).initiateMultipartUpload(initiateCaptor.capture());
+        verify(mockS3Client).uploadPart(uploadPartCaptor.capture());
+
+        assertEquals(ArtifactDigestIndex.digestFile(compressedFile), initiateCaptor.getValue().getObjectMetadata()
+                .getUserMetaDataOf(PublisherTools.SHA256_METADATA));
+        assertEquals(
+                BinaryUtils.toBase64(Md5Utils.computeMD5Hash(Files.readAllBytes(compressedFile.toPath()))),
+                uploadPartCaptor.getValue().getMd5Digest());
+
+        compressedFile.delete();
+        TestUtils.cleanUpTestingFolders();
+    }
+
+    // Without digests taken while the file was written, the file is not read again just for them
+    @Test
+    public void uploadSendsPartsWithoutDigestsNotTakenBefore() throws IOException {
+        final File file = createFile(1024);
+
+        PublisherTools.uploadFile(file, mockArtifact, CompressionType.Zip, null, mockS3Client, null);
+
+        verify(mockS3Client).uploadPart(uploadCaptor.capture());
+        assertNull(uploadCaptor.getValue().getMd5Digest());
+    }
+
+    // Without a digest taken before, the file is digested as its parts are read, and they are sent from the slabs
+    @Test
+    public void takesDigestOfFileFromPartsReadForUpload() throws IOException {
+        final File file = createFile((int) PublisherTools.PART_SIZE + 1024);
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            final UploadPartRequest request = invocation.getArgument(0);
+            final byte[] part = IOUtils.toByteArray(request.getInputStream());
+            assertEquals(BinaryUtils.toBase64(Md5Utils.computeMD5Hash(part)), request.getMd5Digest());
+            sent.write(part);
+            return partResult(request.getPartNumber(), "etag-" + request.getPartNumber());
+        });
+        final MessageDigest readDigest = ArtifactDigestIndex.newDigest();
+
+        PublisherTools.uploadFile(file, mockArtifact, CompressionType.Zip, null, mockS3Client, null, null, null,
+                BlockingTransferEngine.INSTANCE, null, null, readDigest, null);
+
+        assertEquals(ArtifactDigestIndex.digestFile(file), ArtifactDigestIndex.toHex(readDigest));
+        verify(mockS3Client, times(2)).uploadPart(uploadCaptor.capture());
+        assertNull(uploadCaptor.getValue().getFile());
+        assertArrayEquals(Files.readAllBytes(file.toPath()), sent.toByteArray());
+
+        verify(mockS3Client).initiateMultipartUpload(initiateCaptor.capture());
+        final ObjectMetadata metadata = initiateCaptor.getValue().getObjectMetadata();
+        assertNull(metadata.getUserMetaDataOf(PublisherTools.SHA256_METADATA));
+        assertEquals(Long.toString(PublisherTools.PART_SIZE), metadata.getUserMetaDataOf(PublisherTools.PART_SIZE_METADATA));
+    }
+
     @Test
     public void uploadWithCustomKmsEncryptionKey() throws IOException {
         TestUtils.initializeTestingFolders();
@@ -260,4 +375,463 @@ public class PublisherToolsTest {
         assertNull(metadata.getContentType());
     }
 
+    @Test
+    public void retriesFailedPartAndCompletesUpload() throws IOException {
+        final File file = createFile(1024);
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class)))
+                .thenThrow(serviceException(503))
+                .thenReturn(partResult(1, "etag-1"));
+
+        PublisherTools.uploadFile(file, mockArtifact, CompressionType.Zip, null, mockS3Client, null);
+
+        verify(mockS3Client, times(2)).uploadPart(any(UploadPartRequest.class));
+        verify(mockS3Client).completeMultipartUpload(completeCaptor.capture());
+        verify(mockS3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        assertEquals("etag-1", completeCaptor.getValue().getPartETags().get(0).getETag());
+        assertContainsIgnoreCase("Upload of part 1 failed, retrying", outContent.toString());
+    }
+
+    @Test
+    public void accountsForEveryAttemptOfPart() throws IOException {
+        final File file = createFile(1024);
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class)))
+                .thenThrow(serviceException(503))
+                .thenReturn(partResult(1, "etag-1"));
+        final long uploadedBytes = TransferScheduler.get().getUploadedBytes();
+
+        PublisherTools.uploadFile(file, mockArtifact, CompressionType.Zip, null, mockS3Client, null);
+
+        assertEquals(2 * file.length(), TransferScheduler.get().getUploadedBytes() - uploadedBytes);
+    }
+
+    @Test
+    public void abortsUploadWhenPartFailsWithNonRetryableError() throws IOException {
+        final File file = createFile(1024);
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenThrow(serviceException(403));
+
+        try {
+            PublisherTools.uploadFile(
+                    file, mockArtifact, CompressionType.Zip, null, mockS3Client, stateFolder.getRoot(), null);
+            fail("Expected the upload to fail");
+        } catch (final AmazonServiceException ex) {
+            assertEquals(403, ex.getStatusCode());
+        }
+
+        verify(mockS3Client, times(1)).uploadPart(any(UploadPartRequest.class));
+        verify(mockS3Client).abortMultipartUpload(abortCaptor.capture());
+        assertEquals("123", abortCaptor.getValue().getUploadId());
+        assertEquals(0, stateFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void abortsUploadWithoutStateDirectoryOnFailure() throws IOException {
+        final File file = createFile(1024);
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenReturn(partResult(1, "etag-1"));
+        when(mockS3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenThrow(serviceException(500));
+
+        try {
+            PublisherTools.uploadFile(file, mockArtifact, CompressionType.Zip, null, mockS3Client, null);
+            fail("Expected the upload to fail");
+        } catch (final AmazonServiceException ex) {
+            assertEquals(500, ex.getStatusCode());
+        }
+
+        verify(mockS3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void resumesRecordedUploadAndSkipsCompletedParts() throws IOException {
+        // Three parts, the last one shorter
+        final File file = createFile((int) (2 * PublisherTools.PART_SIZE + 1024));
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            final UploadPartRequest request = invocation.getArgument(0);
+            return partResult(request.getPartNumber(), "etag-" + request.getPartNumber());
+        });
+        when(mockS3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenThrow(serviceException(500))
+                .thenReturn(null);
+
+        try {
+            PublisherTools.uploadFile(
+                    file, mockArtifact, CompressionType.Zip, null, mockS3Client, stateFolder.getRoot(), null);
+            fail("Expected the upload to fail");
+        } catch (final AmazonServiceException ex) {
+            assertEquals(500, ex.getStatusCode());
+        }
+        verify(mockS3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+
+        // Part 2 did not make it to S3 after all
+        final PartListing partListing = new PartListing();
+        partListing.setParts(Arrays.asList(partSummary(1, "\"etag-1\""), partSummary(3, "\"etag-3\"")));
+        when(mockS3Client.listParts(any(ListPartsRequest.class))).thenReturn(partListing);
+
+        PublisherTools.uploadFile(
+                file, mockArtifact, CompressionType.Zip, null, mockS3Client, stateFolder.getRoot(), null);
+
+        verify(mockS3Client, times(1)).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        verify(mockS3Client, times(4)).uploadPart(uploadCaptor.capture());
+        assertEquals(2, uploadCaptor.getValue().getPartNumber());
+        assertEquals("123", uploadCaptor.getValue().getUploadId());
+
+        verify(mockS3Client, times(2)).completeMultipartUpload(completeCaptor.capture());
+        final List<PartETag> partETags = completeCaptor.getValue().getPartETags();
+        assertEquals(3, partETags.size());
+        for (int i = 0; i < partETags.size(); i++) {
+            assertEquals(i + 1, partETags.get(i).getPartNumber());
+            assertEquals("etag-" + (i + 1), partETags.get(i).getETag());
+        }
+
+        assertContainsIgnoreCase("Resuming upload 123, 2 of 3 parts are already uploaded", outContent.toString());
+        assertEquals(0, stateFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void abortsRecordedUploadOfDifferentFile() throws IOException {
+        final MultipartUploadRecord record = MultipartUploadRecord.open(stateFolder.getRoot(), "Bucket", "Artifact");
+        record.start("Key", "old-upload", "1:2:Zip");
+        record.addPart(1, "etag-1", "00");
+
+        final File file = createFile(1024);
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenReturn(partResult(1, "etag-1"));
+
+        PublisherTools.uploadFile(
+                file, mockArtifact, CompressionType.Zip, null, mockS3Client, stateFolder.getRoot(), null);
+
+        verify(mockS3Client).abortMultipartUpload(abortCaptor.capture());
+        assertEquals("old-upload", abortCaptor.getValue().getUploadId());
+        verify(mockS3Client, never()).listParts(any(ListPartsRequest.class));
+        verify(mockS3Client).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        verify(mockS3Client).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    // Recorded parts are checked against the file as it is read for the upload
+    @Test
+    public void uploadsRecordedPartAgainWhenFileChangedSince() throws IOException {
+        final File file = createFile(1024);
+        final MultipartUploadRecord record = MultipartUploadRecord.open(stateFolder.getRoot(), "Bucket", "Artifact");
+        record.start("Key", "123", PublisherTools.fingerprint(file.length(), CompressionType.Zip, null));
+        record.addPart(1, "etag-1", "00");
+
+        final PartListing partListing = new PartListing();
+        partListing.setParts(Arrays.asList(partSummary(1, "\"etag-1\"")));
+        when(mockS3Client.listParts(any(ListPartsRequest.class))).thenReturn(partListing);
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenReturn(partResult(1, "etag-2"));
+
+        PublisherTools.uploadFile(
+                file, mockArtifact, CompressionType.Zip, null, mockS3Client, stateFolder.getRoot(), null);
+
+        verify(mockS3Client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        verify(mockS3Client).uploadPart(any(UploadPartRequest.class));
+        verify(mockS3Client).completeMultipartUpload(completeCaptor.capture());
+        assertEquals("etag-2", completeCaptor.getValue().getPartETags().get(0).getETag());
+        assertContainsIgnoreCase("Part 1 changed since it was uploaded", outContent.toString());
+    }
+
+    // The digest stored with the object when the upload was initiated would no longer match the file
+    @Test
+    public void abortsRecordedUploadOfFileWithOtherDigest() throws IOException {
+        final File file = createFile(1024);
+        final MultipartUploadRecord record = MultipartUploadRecord.open(stateFolder.getRoot(), "Bucket", "Artifact");
+        record.start("Key", "old-upload", PublisherTools.fingerprint(file.length(), CompressionType.Zip, "0a1b"));
+        record.addPart(1, "etag-1", "00");
+
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenReturn(partResult(1, "etag-1"));
+
+        PublisherTools.uploadFile(file, mockArtifact, CompressionType.Zip, null, mockS3Client, stateFolder.getRoot(),
+                null, null, BlockingTransferEngine.INSTANCE, "2c3d", null, null);
+
+        verify(mockS3Client).abortMultipartUpload(abortCaptor.capture());
+        assertEquals("old-upload", abortCaptor.getValue().getUploadId());
+        verify(mockS3Client, never()).listParts(any(ListPartsRequest.class));
+        verify(mockS3Client).initiateMultipartUpload(initiateCaptor.capture());
+        assertEquals("2c3d", initiateCaptor.getValue().getObjectMetadata().getUserMetaDataOf(PublisherTools.SHA256_METADATA));
+    }
+
+    // The object key of an output artifact changes with every execution of the pipeline
+    @Test
+    public void abortsRecordedUploadOfEarlierObject() throws IOException {
+        final File file = createFile(1024);
+        final MultipartUploadRecord record = MultipartUploadRecord.open(stateFolder.getRoot(), "Bucket", "Artifact");
+        record.start("EarlierKey", "earlier-upload", PublisherTools.fingerprint(file.length(), CompressionType.Zip, null));
+        record.addPart(1, "etag-1", "00");
+
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenReturn(partResult(1, "etag-1"));
+
+        PublisherTools.uploadFile(
+                file, mockArtifact, CompressionType.Zip, null, mockS3Client, stateFolder.getRoot(), null);
+
+        verify(mockS3Client).abortMultipartUpload(abortCaptor.capture());
+        assertEquals("EarlierKey", abortCaptor.getValue().getKey());
+        assertEquals("earlier-upload", abortCaptor.getValue().getUploadId());
+        verify(mockS3Client, never()).listParts(any(ListPartsRequest.class));
+        verify(mockS3Client).completeMultipartUpload(completeCaptor.capture());
+        assertEquals("123", completeCaptor.getValue().getUploadId());
+        assertEquals(0, stateFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void startsOverWhenRecordedUploadNoLongerExists() throws IOException {
+        final File file = createFile(1024);
+        final MultipartUploadRecord record = MultipartUploadRecord.open(stateFolder.getRoot(), "Bucket", "Artifact");
+        record.start("Key", "expired-upload", PublisherTools.fingerprint(file.length(), CompressionType.Zip, null));
+
+        when(mockS3Client.listParts(any(ListPartsRequest.class))).thenThrow(s3Exception(404));
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenReturn(partResult(1, "etag-1"));
+
+        PublisherTools.uploadFile(
+                file, mockArtifact, CompressionType.Zip, null, mockS3Client, stateFolder.getRoot(), null);
+
+        verify(mockS3Client).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        verify(mockS3Client).completeMultipartUpload(completeCaptor.capture());
+        assertEquals("123", completeCaptor.getValue().getUploadId());
+        verify(mockS3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void copiesObjectWithSameContents() throws IOException {
+        when(mockEncryptionKey.getId()).thenReturn("KMS-KEY-ARN");
+        when(mockEncryptionKey.getType()).thenReturn(EncryptionKeyType.KMS.toString());
+        when(mockS3Client.getObjectMetadata("SourceBucket", "SourceKey")).thenReturn(objectMetadata(1024, "source-etag"));
+        final CopyObjectResult copyObjectResult = new CopyObjectResult();
+        copyObjectResult.setETag("copy-etag");
+        when(mockS3Client.copyObject(any(CopyObjectRequest.class))).thenReturn(copyObjectResult);
+
+        final String eTag = PublisherTools.copyObject(
+                new ArtifactDigestIndex.Location("SourceBucket", "SourceKey", 1024, "\"source-etag\""),
+                mockArtifact,
+                CompressionType.Zip,
+                mockEncryptionKey,
+                mockS3Client,
+                null);
+
+        assertEquals("copy-etag", eTag);
+        final ArgumentCaptor<CopyObjectRequest> copyCaptor = ArgumentCaptor.forClass(CopyObjectRequest.class);
+        verify(mockS3Client).copyObject(copyCaptor.capture());
+        assertEquals("SourceBucket", copyCaptor.getValue().getSourceBucketName());
+        assertEquals("SourceKey", copyCaptor.getValue().getSourceKey());
+        assertEquals("Bucket", copyCaptor.getValue().getDestinationBucketName());
+        assertEquals("Key", copyCaptor.getValue().getDestinationKey());
+        assertEquals("application/zip", copyCaptor.getValue().getNewObjectMetadata().getContentType());
+        assertEquals("KMS-KEY-ARN", copyCaptor.getValue().getSSEAwsKeyManagementParams().getAwsKmsKeyId());
+        verify(mockS3Client, never()).uploadPart(any(UploadPartRequest.class));
+    }
+
+    @Test
+    public void doesNotCopyObjectThatCannotBeRead() throws IOException {
+        when(mockS3Client.getObjectMetadata("SourceBucket", "SourceKey")).thenThrow(s3Exception(403));
+
+        final String eTag = PublisherTools.copyObject(
+                new ArtifactDigestIndex.Location("SourceBucket", "SourceKey", 1024, "source-etag"),
+                mockArtifact,
+                CompressionType.Zip,
+                null,
+                mockS3Client,
+                null);
+
+        assertNull(eTag);
+        verify(mockS3Client, never()).copyObject(any(CopyObjectRequest.class));
+        assertContainsIgnoreCase("Unable to read s3://SourceBucket/SourceKey for a server-side copy", outContent.toString());
+    }
+
+    @Test
+    public void doesNotCopyObjectThatChanged() throws IOException {
+        when(mockS3Client.getObjectMetadata("SourceBucket", "SourceKey")).thenReturn(objectMetadata(1024, "other-etag"));
+
+        final String eTag = PublisherTools.copyObject(
+                new ArtifactDigestIndex.Location("SourceBucket", "SourceKey", 1024, "source-etag"),
+                mockArtifact,
+                CompressionType.Zip,
+                null,
+                mockS3Client,
+                null);
+
+        assertNull(eTag);
+        verify(mockS3Client, never()).copyObject(any(CopyObjectRequest.class));
+    }
+
+    @Test
+    public void copiesLargeObjectInParts() throws IOException {
+        final long size = 6L * 1024 * 1024 * 1024 + 1;
+        when(mockS3Client.getObjectMetadata("SourceBucket", "SourceKey")).thenReturn(objectMetadata(size, "source-etag"));
+        when(mockS3Client.copyPart(any(CopyPartRequest.class))).thenAnswer(invocation -> {
+            final CopyPartRequest request = invocation.getArgument(0);
+            final CopyPartResult result = new CopyPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+        final CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("copy-etag");
+        when(mockS3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+
+        final String eTag = PublisherTools.copyObject(
+                new ArtifactDigestIndex.Location("SourceBucket", "SourceKey", size, "source-etag"),
+                mockArtifact,
+                CompressionType.Zip,
+                null,
+                mockS3Client,
+                null);
+
+        assertEquals("copy-etag", eTag);
+        verify(mockS3Client, never()).copyObject(any(CopyObjectRequest.class));
+
+        final ArgumentCaptor<CopyPartRequest> copyPartCaptor = ArgumentCaptor.forClass(CopyPartRequest.class);
+        verify(mockS3Client, times(13)).copyPart(copyPartCaptor.capture());
+        final CopyPartRequest lastPart = copyPartCaptor.getValue();
+        assertEquals(13, lastPart.getPartNumber());
+        assertEquals(Long.valueOf(size - 1), lastPart.getFirstByte());
+        assertEquals(Long.valueOf(size - 1), lastPart.getLastByte());
+        assertEquals("123", lastPart.getUploadId());
+
+        verify(mockS3Client).completeMultipartUpload(completeCaptor.capture());
+        assertEquals(13, completeCaptor.getValue().getPartETags().size());
+    }
+
+    @Test
+    public void abortsPartCopyThatFails() throws IOException {
+        final long size = 6L * 1024 * 1024 * 1024;
+        when(mockS3Client.getObjectMetadata("SourceBucket", "SourceKey")).thenReturn(objectMetadata(size, "source-etag"));
+        when(mockS3Client.copyPart(any(CopyPartRequest.class))).thenThrow(s3Exception(403));
+
+        final String eTag = PublisherTools.copyObject(
+                new ArtifactDigestIndex.Location("SourceBucket", "SourceKey", size, "source-etag"),
+                mockArtifact,
+                CompressionType.Zip,
+                null,
+                mockS3Client,
+                null);
+
+        assertNull(eTag);
+        verify(mockS3Client).abortMultipartUpload(abortCaptor.capture());
+        assertEquals("123", abortCaptor.getValue().getUploadId());
+        verify(mockS3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void copiesUnchangedPartsFromPreviousUpload() throws IOException {
+        final File file = createFile((int) (2 * PublisherTools.PART_SIZE + 1024));
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            final UploadPartRequest request = invocation.getArgument(0);
+            return partResult(request.getPartNumber(), "etag-" + request.getPartNumber());
+        });
+        when(mockS3Client.copyPart(any(CopyPartRequest.class))).thenAnswer(invocation -> {
+            final CopyPartRequest request = invocation.getArgument(0);
+            final CopyPartResult result = new CopyPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("copied-" + request.getPartNumber());
+            return result;
+        });
+        final CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("previous-etag");
+        when(mockS3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+
+        final UploadedParts previousUpload = PublisherTools.uploadFile(
+                file, mockArtifact, CompressionType.Tar, null, mockS3Client, stateFolder.getRoot(), null, null);
+        assertEquals(3, previousUpload.getPartMd5s().size());
+
+        // Only the second part changes
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(PublisherTools.PART_SIZE + 10);
+            randomAccessFile.write(new byte[] { 1, 2, 3 });
+        }
+
+        final UploadedParts upload = PublisherTools.uploadFile(
+                file, mockArtifact, CompressionType.Tar, null, mockS3Client, stateFolder.getRoot(), previousUpload, null);
+
+        verify(mockS3Client, times(4)).uploadPart(uploadCaptor.capture());
+        assertEquals(2, uploadCaptor.getValue().getPartNumber());
+
+        final ArgumentCaptor<CopyPartRequest> copyPartCaptor = ArgumentCaptor.forClass(CopyPartRequest.class);
+        verify(mockS3Client, times(2)).copyPart(copyPartCaptor.capture());
+        final CopyPartRequest firstCopy = copyPartCaptor.getAllValues().get(0);
+        assertEquals(1, firstCopy.getPartNumber());
+        assertEquals("Bucket", firstCopy.getSourceBucketName());
+        assertEquals(Long.valueOf(0), firstCopy.getFirstByte());
+        assertEquals(Long.valueOf(PublisherTools.PART_SIZE - 1), firstCopy.getLastByte());
+        assertEquals(Arrays.asList("previous-etag"), firstCopy.getMatchingETagConstraints());
+        final CopyPartRequest lastCopy = copyPartCaptor.getAllValues().get(1);
+        assertEquals(3, lastCopy.getPartNumber());
+        assertEquals(Long.valueOf(2 * PublisherTools.PART_SIZE), lastCopy.getFirstByte());
+
+        verify(mockS3Client, times(2)).completeMultipartUpload(completeCaptor.capture());
+        final List<PartETag> partETags = completeCaptor.getValue().getPartETags();
+        assertEquals("copied-1", partETags.get(0).getETag());
+        assertEquals("etag-2", partETags.get(1).getETag());
+        assertEquals("copied-3", partETags.get(2).getETag());
+
+        assertEquals(PublisherTools.PART_SIZE + 1024, upload.getCopiedBytes());
+        assertEquals(previousUpload.getPartMd5(1), upload.getPartMd5(1));
+        assertNotEquals(previousUpload.getPartMd5(2), upload.getPartMd5(2));
+        assertContainsIgnoreCase("Copied 2 unchanged parts", outContent.toString());
+    }
+
+    @Test
+    public void uploadsRemainingPartsWhenPreviousObjectChanged() throws IOException {
+        final File file = createFile((int) (PublisherTools.PART_SIZE + 1024));
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            final UploadPartRequest request = invocation.getArgument(0);
+            return partResult(request.getPartNumber(), "etag-" + request.getPartNumber());
+        });
+        final CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("previous-etag");
+        when(mockS3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+
+        final UploadedParts previousUpload = PublisherTools.uploadFile(
+                file, mockArtifact, CompressionType.Tar, null, mockS3Client, stateFolder.getRoot(), null, null);
+
+        // The ETag constraint is not met
+        when(mockS3Client.copyPart(any(CopyPartRequest.class))).thenReturn(null);
+
+        final UploadedParts upload = PublisherTools.uploadFile(
+                file, mockArtifact, CompressionType.Tar, null, mockS3Client, stateFolder.getRoot(), previousUpload, null);
+
+        verify(mockS3Client, times(1)).copyPart(any(CopyPartRequest.class));
+        verify(mockS3Client, times(4)).uploadPart(any(UploadPartRequest.class));
+        assertEquals(0, upload.getCopiedBytes());
+        assertContainsIgnoreCase("can no longer be copied, uploading the remaining parts", outContent.toString());
+    }
+
+    private static ObjectMetadata objectMetadata(final long contentLength, final String eTag) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contentLength);
+        metadata.setHeader("ETag", eTag);
+        return metadata;
+    }
+
+    private File createFile(final int size) throws IOException {
+        final byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+
+        final File file = tempFolder.newFile();
+        Files.write(file.toPath(), contents);
+        return file;
+    }
+
+    private static UploadPartResult partResult(final int partNumber, final String eTag) {
+        final UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(partNumber);
+        result.setETag(eTag);
+        return result;
+    }
+
+    private static PartSummary partSummary(final int partNumber, final String eTag) {
+        final PartSummary partSummary = new PartSummary();
+        partSummary.setPartNumber(partNumber);
+        partSummary.setETag(eTag);
+        return partSummary;
+    }
+
+    private static AmazonServiceException serviceException(final int statusCode) {
+        final AmazonServiceException ex = new AmazonServiceException("Status " + statusCode);
+        ex.setStatusCode(statusCode);
+        return ex;
+    }
+
+    private static AmazonS3Exception s3Exception(final int statusCode) {
+        final AmazonS3Exception ex = new AmazonS3Exception("Status " + statusCode);
+        ex.setStatusCode(statusCode);
+        return ex;
+    }
+
 }
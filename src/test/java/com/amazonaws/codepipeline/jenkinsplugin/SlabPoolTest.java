@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class SlabPoolTest {
+
+    @Test
+    public void allocatesDirectSlabsUpToBudget() {
+        final SlabPool pool = new SlabPool(3 * SlabPool.SLAB_SIZE);
+
+        final List<ByteBuffer> slabs = pool.tryTake(3);
+        assertEquals(3, slabs.size());
+        for (final ByteBuffer slab : slabs) {
+            assertTrue(slab.isDirect());
+            assertEquals(SlabPool.SLAB_SIZE, slab.remaining());
+        }
+        assertEquals(3 * SlabPool.SLAB_SIZE, pool.getUsedBytes());
+        assertNull(pool.tryTake());
+        assertEquals(1, pool.getExhaustions());
+    }
+
+    @Test
+    public void takesAllOrNone() {
+        final SlabPool pool = new SlabPool(2 * SlabPool.SLAB_SIZE);
+
+        assertNull(pool.tryTake(3));
+        assertEquals(0, pool.getAllocatedBytes());
+        assertTrue(pool.tryTake(0).isEmpty());
+    }
+
+    @Test
+    public void reusesSlabsGivenBack() {
+        final SlabPool pool = new SlabPool(SlabPool.SLAB_SIZE);
+        final ByteBuffer slab = pool.tryTake();
+        slab.put((byte) 1).flip();
+
+        pool.give(slab);
+        assertEquals(0, pool.getUsedBytes());
+
+        final ByteBuffer again = pool.tryTake();
+        assertSame(slab, again);
+        assertEquals(0, again.position());
+        assertEquals(SlabPool.SLAB_SIZE, again.limit());
+        assertEquals(SlabPool.SLAB_SIZE, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void waitsForSlabGivenBack() throws Exception {
+        final SlabPool pool = new SlabPool(SlabPool.SLAB_SIZE);
+        final ByteBuffer slab = pool.tryTake();
+        final AtomicReference<ByteBuffer> taken = new AtomicReference<>();
+
+        final Thread thread = new Thread(() -> {
+            try {
+                taken.set(pool.take());
+            } catch (final Exception ex) {
+                // Leaves nothing taken
+            }
+        });
+        thread.start();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getWaitingThreads() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getWaitingThreads());
+
+        pool.give(slab);
+        thread.join(5000);
+        assertSame(slab, taken.get());
+        assertEquals(0, pool.getWaitingThreads());
+    }
+
+    @Test
+    public void isRegisteredWithMBeanServer() throws Exception {
+        assertNotNull(SlabPool.get());
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(SlabPool.OBJECT_NAME)));
+    }
+
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -88,10 +89,27 @@ public class TestUtils {
         FileUtils.deleteQuietly(Paths.get(TEST_DIR, "Dir1", "Cycle").toFile());
     }
 
+    public static void awaitWorkspaceReaper(final WorkspaceReaper reaper) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (reaper.getBacklogDirectories() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
     public static void cleanUpTestingFolders() throws IOException {
+        // Cleared workspace contents are still being deleted from the state directory in the background
+        try {
+            awaitWorkspaceReaper(WorkspaceReaper.get());
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the workspace reaper");
+        }
+
         for (final String testDir : new String[] { TEST_DIR, EXTRA_TEST_DIR }) {
             final File file = new File(testDir);
             FileUtils.deleteDirectory(file);
+            // State the plugin keeps next to a workspace
+            FileUtils.deleteDirectory(new File(testDir + "@tmp"));
         }
     }
 
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+import com.amazonaws.services.codepipeline.model.Artifact;
+import com.amazonaws.services.codepipeline.model.ArtifactLocation;
+import com.amazonaws.services.codepipeline.model.S3ArtifactLocation;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Compares the transfer engines uploading to a local S3 stand-in that answers each request after a delay,
+ * like S3 does over a network. Not part of the regular test run, start it with
+ * {@code mvn test -Dtest=TransferEngineBenchmark}; the delay can be set with
+ * {@code -Dbenchmark.latencyMillis=<ms>}.
+ *
+ * Several builds upload at once, so that the pooled engine is measured sharing its threads between them.
+ */
+public class TransferEngineBenchmark {
+
+    private static final long LATENCY_MILLIS = Long.getLong("benchmark.latencyMillis", 200);
+    private static final int BUILDS = 4;
+    private static final int PARTS_PER_FILE = 16;
+    private static final int ROUNDS = 3;
+
+    private LocalS3Server server;
+    private AmazonS3 amazonS3;
+    private Path workDir;
+    private File file;
+    private List<String> partMd5s;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalS3Server();
+        server.setLatencyMillis(LATENCY_MILLIS);
+        amazonS3 = server.createClient();
+        workDir = Files.createTempDirectory("TransferEngineBenchmark");
+
+        final byte[] contents = new byte[(int) (PARTS_PER_FILE * PublisherTools.PART_SIZE)];
+        new Random(PARTS_PER_FILE).nextBytes(contents);
+        file = workDir.resolve("artifact.zip").toFile();
+        Files.write(file.toPath(), contents);
+
+        final UploadDigest digest = new UploadDigest();
+        ArtifactDigestIndex.digestFile(file, digest);
+        partMd5s = digest.getPartMd5s();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        amazonS3.shutdown();
+        server.close();
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Test
+    public void uploads() throws Exception {
+        final TransferEngine pooled = new PooledTransferEngine(16, 4);
+        final ExecutorService builds = Executors.newFixedThreadPool(BUILDS);
+
+        try {
+            for (int round = 0; round <= ROUNDS; round++) {
+                for (final TransferEngine transferEngine : new TransferEngine[] { BlockingTransferEngine.INSTANCE, pooled }) {
+                    final long startTime = System.nanoTime();
+
+                    final List<Future<?>> uploads = new ArrayList<>();
+                    for (int build = 0; build < BUILDS; build++) {
+                        final String buildId = "build" + build;
+                        uploads.add(builds.submit(() -> upload(transferEngine, buildId)));
+                    }
+                    for (final Future<?> upload : uploads) {
+                        upload.get();
+                    }
+
+                    final double seconds = (System.nanoTime() - startTime) / 1e9;
+
+                    // Round 0 warms up the JIT and the connections
+                    if (round > 0) {
+                        System.out.printf("%s: %d builds uploading %d parts each in %.2f s, %.0f MiB/s%n",
+                                transferEngine.getClass().getSimpleName(), BUILDS, PARTS_PER_FILE, seconds,
+                                BUILDS * file.length() / seconds / (1024 * 1024));
+                    }
+                }
+            }
+        } finally {
+            builds.shutdownNow();
+        }
+    }
+
+    private Void upload(final TransferEngine transferEngine, final String build) throws IOException {
+        final Artifact artifact = new Artifact()
+                .withName(build)
+                .withLocation(new ArtifactLocation().withS3Location(
+                        new S3ArtifactLocation().withBucketName("bucket").withObjectKey(build + "/artifact.zip")));
+
+        PublisherTools.uploadFile(file, artifact, CompressionType.Zip, null, amazonS3, null, null, build,
+                transferEngine, null, partMd5s, null);
+        return null;
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.codepipeline.jenkinsplugin.CodePipelineStateModel.CompressionType;
+import com.amazonaws.services.codepipeline.model.Artifact;
+import com.amazonaws.services.codepipeline.model.ArtifactLocation;
+import com.amazonaws.services.codepipeline.model.S3ArtifactLocation;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.S3Object;
+
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+public class TransferEngineTest {
+
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "artifact.zip";
+
+    private LocalS3Server server;
+    private AmazonS3 amazonS3;
+    private S3AsyncClient s3AsyncClient;
+    private Path workDir;
+    private File file;
+    private List<String> partMd5s;
+    private byte[] contents;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalS3Server();
+        amazonS3 = server.createClient();
+        s3AsyncClient = server.createAsyncClient();
+        workDir = Files.createTempDirectory("TransferEngineTest");
+
+        // Three full parts and a short one
+        contents = new byte[(int) (3 * PublisherTools.PART_SIZE + 1000)];
+        new Random(46).nextBytes(contents);
+        file = workDir.resolve("artifact.zip").toFile();
+        Files.write(file.toPath(), contents);
+
+        final UploadDigest digest = new UploadDigest();
+        ArtifactDigestIndex.digestFile(file, digest);
+        partMd5s = digest.getPartMd5s();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        amazonS3.shutdown();
+        s3AsyncClient.close();
+        server.close();
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Test
+    public void blockingEngineUploadsOnePartAtATime() throws IOException {
+        server.setLatencyMillis(50);
+
+        upload(BlockingTransferEngine.INSTANCE, null);
+
+        assertArrayEquals(contents, server.getObject(BUCKET, KEY));
+        assertEquals(1, server.getMaxActivePartRequests());
+    }
+
+    @Test
+    public void pooledEngineKeepsSeveralPartsInFlight() throws IOException {
+        server.setLatencyMillis(200);
+
+        upload(new PooledTransferEngine(4, 4), null);
+
+        assertArrayEquals(contents, server.getObject(BUCKET, KEY));
+        assertTrue(server.getMaxActivePartRequests() > 1);
+    }
+
+    @Test
+    public void pooledEngineRecordsPartsForResuming() throws IOException {
+        final File stateDirectory = workDir.resolve("uploads").toFile();
+
+        upload(new PooledTransferEngine(4, 4), stateDirectory);
+
+        assertArrayEquals(contents, server.getObject(BUCKET, KEY));
+        // Deleted once the upload is complete
+        assertEquals(0, stateDirectory.listFiles().length);
+    }
+
+    @Test
+    public void pooledEngineAbortsUploadAfterPartsInFlight() throws IOException {
+        server.failPart(2);
+
+        try {
+            upload(new PooledTransferEngine(4, 4), null);
+            fail("Expected AmazonS3Exception");
+        } catch (final AmazonS3Exception ex) {
+            assertEquals("InvalidPart", ex.getErrorCode());
+        }
+
+        assertEquals(0, server.getOpenUploads());
+        assertEquals(4, server.getPartRequests());
+    }
+
+    @Test
+    public void pooledEngineDoesNotStartQueuedPartsAfterFailure() throws IOException {
+        server.setLatencyMillis(200);
+        server.failPart(1);
+
+        try {
+            // One thread, the parts after the first one wait for it
+            upload(new PooledTransferEngine(1, 4), null);
+            fail("Expected AmazonS3Exception");
+        } catch (final AmazonS3Exception ex) {
+            assertEquals("InvalidPart", ex.getErrorCode());
+        }
+
+        assertEquals(0, server.getOpenUploads());
+        assertTrue(server.getPartRequests() < 4);
+    }
+
+    @Test
+    public void pooledEngineAbortsUploadAfterPartsInFlightWhenInterrupted() throws Exception {
+        server.setLatencyMillis(500);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+
+        final Thread build = new Thread(() -> {
+            try {
+                upload(new PooledTransferEngine(4, 4), null);
+            } catch (final Throwable ex) {
+                failure.set(ex);
+            }
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+        build.start();
+        Thread.sleep(700);
+        build.interrupt();
+        build.join(10_000);
+
+        assertTrue(failure.get() instanceof InterruptedIOException);
+        assertTrue(interrupted.get());
+        assertEquals(0, server.getOpenUploads());
+
+        // No part was still on its way
+        final int partRequests = server.getPartRequests();
+        Thread.sleep(1000);
+        assertEquals(partRequests, server.getPartRequests());
+    }
+
+    @Test
+    public void asyncEngineKeepsSeveralPartsInFlight() throws IOException {
+        server.setLatencyMillis(200);
+
+        upload(new AsyncTransferEngine(s3AsyncClient, 4), null);
+
+        assertArrayEquals(contents, server.getObject(BUCKET, KEY));
+        assertTrue(server.getMaxActivePartRequests() > 1);
+    }
+
+    @Test
+    public void asyncEngineAbortsUploadAfterPartsInFlight() throws IOException {
+        server.failPart(2);
+
+        try {
+            upload(new AsyncTransferEngine(s3AsyncClient, 4), null);
+            fail("Expected AmazonS3Exception");
+        } catch (final AmazonS3Exception ex) {
+            assertEquals("InvalidPart", ex.getErrorCode());
+            assertEquals(400, ex.getStatusCode());
+        }
+
+        assertEquals(0, server.getOpenUploads());
+        assertEquals(4, server.getPartRequests());
+    }
+
+    @Test
+    public void blockingEngineStopsAtFailedPart() throws IOException {
+        server.failPart(2);
+
+        try {
+            upload(BlockingTransferEngine.INSTANCE, null);
+            fail("Expected AmazonS3Exception");
+        } catch (final AmazonS3Exception ex) {
+            assertEquals("InvalidPart", ex.getErrorCode());
+        }
+
+        assertEquals(0, server.getOpenUploads());
+        assertEquals(2, server.getPartRequests());
+    }
+
+    @Test
+    public void refusesCorruptedPart() throws IOException {
+        server.corruptPart(3);
+
+        try {
+            upload(new PooledTransferEngine(4, 4), null);
+            fail("Expected AmazonS3Exception");
+        } catch (final AmazonS3Exception ex) {
+            assertEquals("BadDigest", ex.getErrorCode());
+        }
+
+        assertEquals(0, server.getOpenUploads());
+    }
+
+    @Test
+    public void storesDigestOfFileWithObject() throws IOException {
+        final Artifact artifact = new Artifact()
+                .withName("artifact")
+                .withLocation(new ArtifactLocation().withS3Location(
+                        new S3ArtifactLocation().withBucketName(BUCKET).withObjectKey(KEY)));
+
+        PublisherTools.uploadFile(file, artifact, CompressionType.Zip, null, amazonS3, null, null,
+                "build", BlockingTransferEngine.INSTANCE, "file-sha256", partMd5s, null);
+
+        assertEquals("file-sha256", server.getUserMetadata(BUCKET, KEY).get(PublisherTools.SHA256_METADATA));
+        try (final S3Object object = amazonS3.getObject(BUCKET, KEY)) {
+            assertEquals("file-sha256", object.getObjectMetadata().getUserMetaDataOf(PublisherTools.SHA256_METADATA));
+        }
+    }
+
+    // Parts read for the upload are sent from memory, from their start again when a request is retried
+    @Test
+    public void enginesUploadPartsReadForTheUpload() throws IOException {
+        for (final TransferEngine transferEngine : new TransferEngine[] {
+                BlockingTransferEngine.INSTANCE, new PooledTransferEngine(4, 4), new AsyncTransferEngine(s3AsyncClient, 4) }) {
+            server.throttlePartOnce(2);
+            final MessageDigest readDigest = ArtifactDigestIndex.newDigest();
+
+            PublisherTools.uploadFile(file, artifact(), CompressionType.Zip, null, amazonS3, null, null,
+                    "build", transferEngine, null, null, readDigest, null);
+
+            assertArrayEquals(contents, server.getObject(BUCKET, KEY));
+            assertEquals(ArtifactDigestIndex.digestFile(file), ArtifactDigestIndex.toHex(readDigest));
+        }
+    }
+
+    @Test
+    public void verifiesDownloadOfObjectUploadedWithoutDigestAgainstItsETag() throws IOException {
+        PublisherTools.uploadFile(file, artifact(), CompressionType.Zip, null, amazonS3, null, null,
+                "build", BlockingTransferEngine.INSTANCE, null, null, ArtifactDigestIndex.newDigest(), null);
+
+        try (final S3Object object = amazonS3.getObject(BUCKET, KEY)) {
+            final DownloadVerifier verifier = DownloadVerifier.forObject(KEY, object.getObjectMetadata());
+            final MessageDigest digest = verifier.getDigest();
+            IOUtils.toByteArray(new DigestInputStream(verifier.wrap(object.getObjectContent()), digest));
+
+            assertEquals("MD5 digests of the parts of the artifact against its ETag",
+                    verifier.verify(ArtifactDigestIndex.toHex(digest)));
+        }
+    }
+
+    @Test
+    public void enginesDownloadObject() throws IOException {
+        upload(BlockingTransferEngine.INSTANCE, null);
+
+        for (final TransferEngine transferEngine : new TransferEngine[] {
+                BlockingTransferEngine.INSTANCE, new PooledTransferEngine(1, 1) }) {
+            try (final S3Object object = transferEngine.getObject(amazonS3, BUCKET, KEY)) {
+                assertArrayEquals(contents, IOUtils.toByteArray(object.getObjectContent()));
+            }
+        }
+    }
+
+    private void upload(final TransferEngine transferEngine, final File stateDirectory) throws IOException {
+        PublisherTools.uploadFile(file, artifact(), CompressionType.Zip, null, amazonS3, stateDirectory, null,
+                "build", transferEngine, null, partMd5s, null);
+    }
+
+    private static Artifact artifact() {
+        return new Artifact()
+                .withName("artifact")
+                .withLocation(new ArtifactLocation().withS3Location(
+                        new S3ArtifactLocation().withBucketName(BUCKET).withObjectKey(KEY)));
+    }
+
+}
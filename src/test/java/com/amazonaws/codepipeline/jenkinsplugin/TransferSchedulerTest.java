@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.amazonaws.codepipeline.jenkinsplugin.TransferScheduler.Priority;
+import com.amazonaws.codepipeline.jenkinsplugin.TransferScheduler.Transfer;
+
+public class TransferSchedulerTest {
+
+    private final List<String> started = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void limitsConcurrentStreams() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(2, 0);
+        final Transfer first = scheduler.start("build", Priority.DOWNLOAD);
+        scheduler.start("build", Priority.DOWNLOAD);
+
+        final Thread third = startInBackground(scheduler, "build", Priority.DOWNLOAD, "third");
+        awaitWaiting(scheduler, 1);
+        assertEquals(2, scheduler.getActiveStreams());
+        assertTrue(started.isEmpty());
+
+        first.close();
+        third.join(5000);
+
+        assertEquals(1, started.size());
+        assertEquals(1, scheduler.getActiveStreams());
+        assertEquals(0, scheduler.getWaitingStreams());
+    }
+
+    @Test
+    public void startsDownloadsBeforeUploads() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(1, 0);
+        final Transfer running = scheduler.start("build", Priority.UPLOAD);
+
+        final Thread upload = startInBackground(scheduler, "other", Priority.UPLOAD, "upload");
+        awaitWaiting(scheduler, 1);
+        final Thread download = startInBackground(scheduler, "another", Priority.DOWNLOAD, "download");
+        awaitWaiting(scheduler, 2);
+
+        running.close();
+        download.join(5000);
+        upload.join(5000);
+
+        assertEquals("download", started.get(0));
+        assertEquals("upload", started.get(1));
+    }
+
+    @Test
+    public void startsTransfersOfBuildWithFewestRunning() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(2, 0);
+        final Transfer running = scheduler.start("busy", Priority.UPLOAD);
+        scheduler.start("busy", Priority.UPLOAD);
+
+        final Thread busy = startInBackground(scheduler, "busy", Priority.UPLOAD, "busy");
+        awaitWaiting(scheduler, 1);
+        final Thread idle = startInBackground(scheduler, "idle", Priority.UPLOAD, "idle");
+        awaitWaiting(scheduler, 2);
+        assertEquals(1, scheduler.getActiveBuilds());
+
+        running.close();
+        idle.join(5000);
+        busy.join(5000);
+
+        assertEquals("idle", started.get(0));
+        assertEquals("busy", started.get(1));
+    }
+
+    @Test
+    public void limitsBandwidth() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(0, 1024 * 1024);
+
+        try (final Transfer transfer = scheduler.start("build", Priority.UPLOAD)) {
+            // A second's worth is there to start with
+            transfer.transferred(1024 * 1024);
+
+            final long startTime = System.nanoTime();
+            transfer.transferred(512 * 1024);
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+            assertTrue("waited " + elapsedMillis + " ms", elapsedMillis >= 400);
+        }
+    }
+
+    @Test
+    public void countsTransferredBytes() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(0, 0);
+
+        try (final Transfer download = scheduler.start("build", Priority.DOWNLOAD)) {
+            try (final InputStream in = download.meter(new ByteArrayInputStream(new byte[3000]))) {
+                IOUtils.toByteArray(in);
+            }
+        }
+        try (final Transfer upload = scheduler.start("build", Priority.UPLOAD)) {
+            upload.transferred(5000);
+        }
+
+        assertEquals(3000, scheduler.getDownloadedBytes());
+        assertEquals(5000, scheduler.getUploadedBytes());
+        assertEquals(0, scheduler.getActiveStreams());
+        assertEquals(0, scheduler.getActiveBuilds());
+    }
+
+    @Test
+    public void endsTransferOnlyOnce() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(1, 0);
+        final Transfer transfer = scheduler.start("build", Priority.DOWNLOAD);
+
+        transfer.close();
+        transfer.close();
+
+        assertEquals(0, scheduler.getActiveStreams());
+    }
+
+    @Test
+    public void startsWaitingTransfersWhenLimitIsRaised() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(1, 0);
+        scheduler.start("build", Priority.DOWNLOAD);
+
+        final Thread waiting = startInBackground(scheduler, "build", Priority.DOWNLOAD, "waiting");
+        awaitWaiting(scheduler, 1);
+        scheduler.setLimits(2, 1024L);
+        waiting.join(5000);
+
+        assertEquals(1, started.size());
+        assertEquals(2, scheduler.getMaxStreams());
+        assertEquals(1024, scheduler.getMaxBytesPerSecond());
+    }
+
+    @Test
+    public void fallsBackToSystemPropertiesForLimitsLeftUnset() {
+        final TransferScheduler scheduler = new TransferScheduler(1, 1024);
+
+        scheduler.setLimits(null, null);
+
+        assertEquals(16, scheduler.getMaxStreams());
+        assertEquals(0, scheduler.getMaxBytesPerSecond());
+    }
+
+    @Test
+    public void registersMetrics() throws Exception {
+        TransferScheduler.get();
+
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(TransferScheduler.OBJECT_NAME)));
+    }
+
+    private Thread startInBackground(
+            final TransferScheduler scheduler,
+            final String build,
+            final Priority priority,
+            final String name) {
+
+        final Thread thread = new Thread(() -> {
+            try {
+                try (final Transfer transfer = scheduler.start(build, priority)) {
+                    started.add(name);
+                }
+            } catch (final IOException ex) {
+                started.add(ex.toString());
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(final TransferScheduler scheduler, final int waiting) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getWaitingStreams() < waiting && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(waiting, scheduler.getWaitingStreams());
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+
+public class TransportProfileTest {
+
+    @Test
+    public void defaultProfileKeepsDefaultsOfSdk() {
+        // given
+        final ClientConfiguration clientCfg = new ClientConfiguration();
+
+        // when
+        TransportProfile.Default.apply(clientCfg);
+
+        // then
+        assertEquals(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, clientCfg.getMaxConnections());
+        assertEquals(ClientConfiguration.DEFAULT_TCP_KEEP_ALIVE, clientCfg.useTcpKeepAlive());
+        assertEquals(ClientConfiguration.DEFAULT_CONNECTION_TTL, clientCfg.getConnectionTTL());
+        assertArrayEquals(new int[] { 0, 0 }, clientCfg.getSocketBufferSizeHints());
+    }
+
+    @Test
+    public void parallelTransfersProfileHoldsMoreConnectionsOpen() {
+        // given
+        final ClientConfiguration clientCfg = new ClientConfiguration();
+
+        // when
+        TransportProfile.ParallelTransfers.apply(clientCfg);
+
+        // then
+        assertEquals(128, clientCfg.getMaxConnections());
+        assertArrayEquals(new int[] { 1024 * 1024, 1024 * 1024 }, clientCfg.getSocketBufferSizeHints());
+        assertTrue(clientCfg.useTcpKeepAlive());
+        assertEquals(60 * 1000L, clientCfg.getConnectionTTL());
+        assertTrue(clientCfg.useReaper());
+        assertEquals(15 * 1000L, clientCfg.getConnectionMaxIdleMillis());
+    }
+
+    @Test
+    public void fallsBackForEmptyOrUnknownNames() {
+        assertEquals(TransportProfile.ParallelTransfers,
+                TransportProfile.fromName("ParallelTransfers", TransportProfile.Default));
+        assertEquals(TransportProfile.ParallelTransfers,
+                TransportProfile.fromName(null, TransportProfile.ParallelTransfers));
+        assertEquals(TransportProfile.Default, TransportProfile.fromName("", TransportProfile.Default));
+        assertNull(TransportProfile.fromName("Removed", null));
+    }
+
+}
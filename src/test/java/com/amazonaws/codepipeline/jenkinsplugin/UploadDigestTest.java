@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+
+public class UploadDigestTest {
+
+    @Test
+    public void takesDigestsOfFileAndParts() {
+        final byte[] contents = new byte[2500];
+        new Random(47).nextBytes(contents);
+
+        final UploadDigest digest = new UploadDigest(1000);
+        // Updates that cross the end of a part
+        digest.update(contents, 0, 700);
+        digest.update(contents, 700, 1800);
+
+        assertEquals(sha256Hex(contents), ArtifactDigestIndex.toHex(digest));
+        assertEquals(
+                Arrays.asList(md5Hex(contents, 0, 1000), md5Hex(contents, 1000, 2000), md5Hex(contents, 2000, 2500)),
+                digest.getPartMd5s());
+    }
+
+    @Test
+    public void takesDigestsOfPartsEndingWithFile() {
+        final byte[] contents = new byte[2000];
+        new Random(47).nextBytes(contents);
+
+        final UploadDigest digest = new UploadDigest(1000);
+        for (final byte b : contents) {
+            digest.update(b);
+        }
+
+        assertEquals(sha256Hex(contents), ArtifactDigestIndex.toHex(digest));
+        assertEquals(Arrays.asList(md5Hex(contents, 0, 1000), md5Hex(contents, 1000, 2000)), digest.getPartMd5s());
+    }
+
+    @Test
+    public void noPartsForEmptyFile() {
+        final UploadDigest digest = new UploadDigest(1000);
+
+        assertEquals(sha256Hex(new byte[0]), ArtifactDigestIndex.toHex(digest));
+        assertTrue(digest.getPartMd5s().isEmpty());
+    }
+
+    private static String sha256Hex(final byte[] contents) {
+        final MessageDigest digest = ArtifactDigestIndex.newDigest();
+        digest.update(contents);
+        return ArtifactDigestIndex.toHex(digest);
+    }
+
+    private static String md5Hex(final byte[] contents, final int from, final int to) {
+        return BinaryUtils.toHex(Md5Utils.computeMD5Hash(Arrays.copyOfRange(contents, from, to)));
+    }
+
+}
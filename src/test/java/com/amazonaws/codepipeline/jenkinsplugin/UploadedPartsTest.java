@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadedPartsTest {
+
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void loadsSavedParts() throws IOException {
+        final File file = new File(tempFolder.getRoot(), "parts/MyArtifact");
+        new UploadedParts(
+                new ArtifactDigestIndex.Location("bucket", "Pipeline/MyArtifact/abc", 6L * 1024 * 1024, "etag-1"),
+                5L * 1024 * 1024,
+                Arrays.asList("md5-1", "md5-2"),
+                1234).save(file);
+
+        final UploadedParts uploadedParts = UploadedParts.load(file);
+
+        assertEquals("bucket", uploadedParts.getObject().getBucketName());
+        assertEquals("Pipeline/MyArtifact/abc", uploadedParts.getObject().getObjectKey());
+        assertEquals(6L * 1024 * 1024, uploadedParts.getObject().getSize());
+        assertEquals("etag-1", uploadedParts.getObject().getETag());
+        assertEquals(5L * 1024 * 1024, uploadedParts.getPartSize());
+        assertEquals("md5-1", uploadedParts.getPartMd5(1));
+        assertEquals("md5-2", uploadedParts.getPartMd5(2));
+        assertNull(uploadedParts.getPartMd5(3));
+        assertNull(uploadedParts.getPartMd5(0));
+        // Only known for the upload that copied them
+        assertEquals(0, uploadedParts.getCopiedBytes());
+    }
+
+    @Test
+    public void nothingToLoadWithoutFile() throws IOException {
+        assertNull(UploadedParts.load(new File(tempFolder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void nothingToLoadFromMalformedFile() throws IOException {
+        final File file = tempFolder.newFile();
+        Files.write(file.toPath(), "object bucket key notanumber etag 5\npart md5\n".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(UploadedParts.load(file));
+    }
+
+}
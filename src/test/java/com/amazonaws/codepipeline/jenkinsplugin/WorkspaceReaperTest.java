@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.codepipeline.jenkinsplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkspaceReaperTest {
+
+    private File workspace;
+    private File trash;
+    private WorkspaceReaper reaper;
+
+    @Before
+    public void setUp() throws IOException {
+        TestUtils.initializeTestingFolders();
+        workspace = new File(TestUtils.TEST_DIR);
+        trash = WorkspaceStateDirectory.get(workspace, "trash");
+        reaper = new WorkspaceReaper();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtils.awaitWorkspaceReaper(reaper);
+        TestUtils.cleanUpTestingFolders();
+    }
+
+    @Test
+    public void emptiesWorkspaceAndDeletesItsContentsInTheBackground() throws Exception {
+        // when
+        reaper.clear(workspace);
+
+        // then
+        assertEquals(0, workspace.list().length);
+
+        TestUtils.awaitWorkspaceReaper(reaper);
+        assertEquals(0, reaper.getBacklogDirectories());
+        assertEquals(0, trash.list().length);
+        assertEquals(1, reaper.getReclaimedDirectories());
+        assertEquals(5, reaper.getReclaimedFiles());
+        assertEquals(0, reaper.getFailedDeletions());
+    }
+
+    @Test
+    public void deletesTrashLeftBehindByEarlierAgent() throws Exception {
+        // given
+        final File leftover = new File(trash, "workspace-leftover");
+        assertTrue(leftover.mkdirs());
+        Files.write(new File(leftover, "old.txt").toPath(), "old".getBytes(StandardCharsets.UTF_8));
+
+        // when
+        reaper.reclaim(workspace);
+        TestUtils.awaitWorkspaceReaper(reaper);
+
+        // then
+        assertFalse(leftover.exists());
+        assertEquals(1, reaper.getReclaimedFiles());
+        assertEquals(3, reaper.getReclaimedBytes());
+        assertTrue(new File(workspace, "bbb.txt").exists());
+    }
+
+    @Test
+    public void doesNothingWithoutTrash() throws Exception {
+        // when
+        reaper.reclaim(workspace);
+
+        // then
+        assertFalse(trash.exists());
+        assertEquals(0, reaper.getBacklogDirectories());
+    }
+
+    @Test
+    public void doesNotFollowLinksIntoOtherDirectories() throws Exception {
+        // given
+        TestUtils.addSymlinkToCreateCycleInWorkspace();
+        TestUtils.addSymlinkToFolderOutsideWorkspace();
+
+        // when
+        reaper.clear(workspace);
+        TestUtils.awaitWorkspaceReaper(reaper);
+
+        // then
+        assertEquals(0, workspace.list().length);
+        assertEquals(0, trash.list().length);
+        assertTrue(new File("ExtraTestDir", "life.txt").exists());
+    }
+
+    @Test
+    public void stagesExtractionInTrashNextToWorkspace() throws Exception {
+        // when
+        final Path staging = reaper.createStagingDirectory(workspace);
+
+        // then
+        assertEquals(trash.toPath(), staging.getParent());
+        assertTrue(staging.getFileName().toString().startsWith(ExtractionDestination.STAGING_PREFIX));
+        assertFalse(Files.newDirectoryStream(workspace.toPath(), ExtractionDestination.STAGING_PREFIX + "*").iterator().hasNext());
+    }
+
+    @Test
+    public void deletesStagedExtractionLeftBehindByEarlierAgent() throws Exception {
+        // given
+        final Path staging = reaper.createStagingDirectory(workspace);
+        Files.write(staging.resolve("partial.txt"), "partial".getBytes(StandardCharsets.UTF_8));
+
+        // when
+        reaper.reclaim(workspace);
+        TestUtils.awaitWorkspaceReaper(reaper);
+
+        // then
+        assertFalse(Files.exists(staging));
+        assertEquals(1, reaper.getReclaimedFiles());
+    }
+
+    @Test
+    public void registersMetrics() throws Exception {
+        // when
+        WorkspaceReaper.get();
+
+        // then
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(WorkspaceReaper.OBJECT_NAME)));
+    }
+
+}